@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.benchmark;
+
+import com.joaquimley.sync.drive.BatchUploadCallback;
+import com.joaquimley.sync.drive.BatchUploadResult;
+import com.joaquimley.sync.drive.BatchUploader;
+import com.joaquimley.sync.drive.DriveTaskCallback;
+import com.joaquimley.sync.drive.InMemoryRemoteFolder;
+import com.joaquimley.sync.metrics.SyncMetrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A batch of files going through {@link BatchUploader} into the in-memory Drive folder, with
+ * and without per file callbacks, for a range of worker counts and commit latencies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchUploadBenchmark {
+
+    private static final int FILE_COUNT = 16;
+
+    @Param({"16384", "1048576"})
+    public int fileSize;
+
+    @Param({"1", "4", "8"})
+    public int workers;
+
+    @Param({"0", "2"})
+    public long commitLatencyMillis;
+
+    @Param({"false", "true"})
+    public boolean callbacks;
+
+    private final AtomicLong mCallbackCount = new AtomicLong();
+    private File mDirectory;
+    private List<File> mFiles;
+    private SyncMetrics mMetrics;
+    private BatchUploadCallback mCallback;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = BenchmarkFiles.createDirectory("batch-upload");
+        mFiles = BenchmarkFiles.createFiles(mDirectory, FILE_COUNT, fileSize);
+        mMetrics = new SyncMetrics();
+        final DriveTaskCallback fileCallback = new DriveTaskCallback() {
+            @Override
+            public void onTaskStarted() {
+                mCallbackCount.incrementAndGet();
+            }
+
+            @Override
+            public void onTaskInProgress() {
+                mCallbackCount.incrementAndGet();
+            }
+
+            @Override
+            public void onTaskSuccess(String returnText) {
+                mCallbackCount.incrementAndGet();
+            }
+
+            @Override
+            public void onTaskError(String errorMessage) {
+                mCallbackCount.incrementAndGet();
+            }
+        };
+        mCallback = new BatchUploadCallback() {
+            @Override
+            public DriveTaskCallback getFileCallback(File file) {
+                return fileCallback;
+            }
+
+            @Override
+            public void onBatchFinished(BatchUploadResult result) {
+                mCallbackCount.incrementAndGet();
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkFiles.delete(mDirectory);
+    }
+
+    @Benchmark
+    public BatchUploadResult upload() throws InterruptedException {
+        BatchUploader uploader = new BatchUploader(new InMemoryRemoteFolder(commitLatencyMillis), workers,
+                BatchUploader.DEFAULT_CHUNK_SIZE, mMetrics);
+        BatchUploadResult result = uploader.upload(mFiles, callbacks ? mCallback : null);
+        if (!result.isSuccess()) {
+            throw new IllegalStateException("Batch failed: " + result);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Scratch files for the benchmarks, filled with text-like content that compresses roughly
+ * the way app databases and logs do.
+ */
+final class BenchmarkFiles {
+
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789 ,.:{}\"\n";
+
+    private BenchmarkFiles() {
+    }
+
+    static File createDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        return directory;
+    }
+
+    static List<File> createFiles(File directory, int count, int size) throws IOException {
+        Random random = new Random(count * 31L + size);
+        List<File> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            File file = new File(directory, String.format("file-%03d", i));
+            write(file, size, random);
+            files.add(file);
+        }
+        return files;
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void write(File file, int size, Random random) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            int remaining = size;
+            while (remaining > 0) {
+                int length = Math.min(remaining, buffer.length);
+                for (int i = 0; i < length; i++) {
+                    // One random byte in eight keeps the data from compressing too well
+                    buffer[i] = (i & 7) == 0 ? (byte) random.nextInt()
+                            : (byte) ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+                }
+                outputStream.write(buffer, 0, length);
+                remaining -= length;
+            }
+        } finally {
+            outputStream.close();
+        }
+    }
+}
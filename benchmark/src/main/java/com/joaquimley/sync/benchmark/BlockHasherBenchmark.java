@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.benchmark;
+
+import com.joaquimley.sync.delta.BlockHasher;
+import com.joaquimley.sync.delta.FileManifest;
+import com.joaquimley.sync.delta.MerkleTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing a large file with {@link BlockHasher} for a range of thread counts, one thread being
+ * the baseline the others scale from, and finding what changed between two versions through
+ * their {@link MerkleTree}s. Compare with {@link ManifestBenchmark} for the sequential stream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockHasherBenchmark {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    @Param({"268435456"})
+    public int fileSize;
+
+    @Param({"1", "2", "4", "8"})
+    public int parallelism;
+
+    private File mDirectory;
+    private File mFile;
+    private BlockHasher mHasher;
+    private MerkleTree mTree;
+    private MerkleTree mChangedTree;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = BenchmarkFiles.createDirectory("hasher");
+        mFile = BenchmarkFiles.createFiles(mDirectory, 1, fileSize).get(0);
+        mHasher = new BlockHasher(parallelism);
+        mTree = MerkleTree.of(mHasher.build(mFile, BLOCK_SIZE, 0));
+        // A single block differs, as after a small in place write
+        File changedDirectory = new File(mDirectory, "changed");
+        if (!changedDirectory.mkdir()) {
+            throw new IOException("Unable to create " + changedDirectory);
+        }
+        File changed = BenchmarkFiles.createFiles(changedDirectory, 1, fileSize).get(0);
+        RandomAccessFile file = new RandomAccessFile(changed, "rw");
+        try {
+            file.seek(fileSize / 2);
+            int value = file.read();
+            file.seek(fileSize / 2);
+            file.write(~value);
+        } finally {
+            file.close();
+        }
+        mChangedTree = MerkleTree.of(mHasher.build(changed, BLOCK_SIZE, 0));
+    }
+
+    @TearDown
+    public void tearDown() {
+        mHasher.shutdown();
+        BenchmarkFiles.delete(mDirectory);
+    }
+
+    @Benchmark
+    public FileManifest hash() throws IOException {
+        return mHasher.build(mFile, BLOCK_SIZE, 0);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<MerkleTree.BlockRange> diff() {
+        return mTree.diff(mChangedTree);
+    }
+}
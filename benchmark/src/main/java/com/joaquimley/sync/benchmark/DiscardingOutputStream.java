@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.benchmark;
+
+import java.io.OutputStream;
+
+/**
+ * Stands in for {@code DriveContents.getOutputStream()}, only counting what it is given.
+ */
+final class DiscardingOutputStream extends OutputStream {
+
+    private long mCount;
+
+    @Override
+    public void write(int b) {
+        mCount++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        mCount += length;
+    }
+
+    long getCount() {
+        return mCount;
+    }
+}
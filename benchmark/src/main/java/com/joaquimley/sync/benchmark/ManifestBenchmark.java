@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.benchmark;
+
+import com.joaquimley.sync.delta.FileManifest;
+import com.joaquimley.sync.delta.ManifestBuilder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the per block checksums stored alongside every upload, which every sync redoes for
+ * the files it checks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ManifestBenchmark {
+
+    @Param({"1048576", "16777216"})
+    public int fileSize;
+
+    @Param({"4096", "65536"})
+    public int blockSize;
+
+    private File mDirectory;
+    private File mFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = BenchmarkFiles.createDirectory("manifest");
+        mFile = BenchmarkFiles.createFiles(mDirectory, 1, fileSize).get(0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkFiles.delete(mDirectory);
+    }
+
+    @Benchmark
+    public FileManifest build() throws IOException {
+        return ManifestBuilder.build(mFile, blockSize, 1);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.benchmark;
+
+import com.joaquimley.sync.metrics.SyncMetrics;
+import com.joaquimley.sync.mirror.DirectoryScanner;
+import com.joaquimley.sync.mirror.InMemoryRemoteTree;
+import com.joaquimley.sync.mirror.MirrorEngine;
+import com.joaquimley.sync.mirror.MirrorResult;
+import com.joaquimley.sync.mirror.MirrorSnapshotStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mirroring an already mirrored tree again, unchanged or with a single file changed, which
+ * should cost the same stat per file whatever the size of the files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MirrorBenchmark {
+
+    private static final int FILES_PER_FOLDER = 100;
+
+    @Param({"1000", "10000"})
+    public int fileCount;
+
+    @Param({"4096", "262144"})
+    public int fileSize;
+
+    private File mDirectory;
+    private File mRoot;
+    private File mChangedFile;
+    private long mModifiedAt;
+    private boolean mToggled;
+    private MirrorSnapshotStore mSnapshotStore;
+    private MirrorEngine mEngine;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        mDirectory = BenchmarkFiles.createDirectory("mirror");
+        mRoot = new File(mDirectory, "root");
+        // Older than the scan, as files untouched since the last sync are
+        mModifiedAt = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+        for (int folder = 0; folder * FILES_PER_FOLDER < fileCount; folder++) {
+            File directory = new File(mRoot, String.format("folder-%03d", folder));
+            if (!directory.mkdirs()) {
+                throw new IOException("Unable to create " + directory);
+            }
+            for (File file : BenchmarkFiles.createFiles(directory, Math.min(FILES_PER_FOLDER,
+                    fileCount - folder * FILES_PER_FOLDER), fileSize)) {
+                file.setLastModified(mModifiedAt);
+            }
+        }
+        mChangedFile = new File(new File(mRoot, "folder-000"), "file-000");
+        mSnapshotStore = new MirrorSnapshotStore(new File(mDirectory, "snapshots"));
+        mEngine = new MirrorEngine(new InMemoryRemoteTree(), MirrorEngine.DEFAULT_WORKERS, 64 * 1024, new SyncMetrics());
+        mEngine.mirror(mRoot, InMemoryRemoteTree.ROOT_ID, mSnapshotStore);
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkFiles.delete(mDirectory);
+    }
+
+    @Benchmark
+    public MirrorResult unchanged() throws IOException, InterruptedException {
+        return mEngine.mirror(mRoot, InMemoryRemoteTree.ROOT_ID, mSnapshotStore);
+    }
+
+    @Benchmark
+    public MirrorResult oneFileChanged() throws IOException, InterruptedException {
+        mToggled = !mToggled;
+        RandomAccessFile file = new RandomAccessFile(mChangedFile, "rw");
+        try {
+            file.write(mToggled ? 1 : 0);
+        } finally {
+            file.close();
+        }
+        // Flips between two old enough times, each differing from the one the last run saw
+        mChangedFile.setLastModified(mModifiedAt + (mToggled ? DirectoryScanner.MODIFIED_GRANULARITY_MILLIS : 0));
+        return mEngine.mirror(mRoot, InMemoryRemoteTree.ROOT_ID, mSnapshotStore);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.benchmark;
+
+import com.joaquimley.sync.drive.ChunkedUploader;
+import com.joaquimley.sync.drive.FileChannelUploadTransport;
+import com.joaquimley.sync.drive.OutputStreamUploadTransport;
+import com.joaquimley.sync.drive.UploadTransport;
+import com.joaquimley.sync.metrics.SyncMetrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uncompressed upload of a large backup into a local file standing in for the Drive contents,
+ * through the heap buffer and stream as before or along the zero-copy read paths. Compare the
+ * time per upload and gc.alloc.rate.norm from {@code -prof gc}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class ReadPathBenchmark {
+
+    @Param({"1048576", "16777216", "268435456", "1073741824"})
+    public int fileSize;
+
+    @Param({"HEAP", "MEMORY_MAPPED", "TRANSFER_TO"})
+    public ChunkedUploader.ReadPath readPath;
+
+    private File mDirectory;
+    private File mFile;
+    private File mTarget;
+    private ChunkedUploader mUploader;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = BenchmarkFiles.createDirectory("read-path");
+        mFile = BenchmarkFiles.createFiles(mDirectory, 1, fileSize).get(0);
+        mTarget = new File(mDirectory, "drive-contents");
+        mUploader = new ChunkedUploader(ChunkedUploader.DEFAULT_CHUNK_SIZE, null, new SyncMetrics(), readPath);
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkFiles.delete(mDirectory);
+    }
+
+    @Benchmark
+    public long upload() throws IOException {
+        FileOutputStream driveContents = new FileOutputStream(mTarget);
+        UploadTransport transport = readPath == ChunkedUploader.ReadPath.HEAP
+                ? new OutputStreamUploadTransport(driveContents)
+                : new FileChannelUploadTransport(driveContents.getChannel());
+        return mUploader.upload(mFile, transport);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.benchmark;
+
+import com.joaquimley.sync.compress.CompressingUploadTransport;
+import com.joaquimley.sync.compress.CompressionCodecs;
+import com.joaquimley.sync.drive.ChunkedUploader;
+import com.joaquimley.sync.drive.OutputStreamUploadTransport;
+import com.joaquimley.sync.drive.UploadTransport;
+import com.joaquimley.sync.metrics.SyncMetrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The copy loop of {@code UploadToFolderTask}: a local file read in chunks and written to the
+ * Drive contents stream, optionally through the compression stage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadCopyBenchmark {
+
+    @Param({"65536", "1048576", "16777216"})
+    public int fileSize;
+
+    @Param({"16384", "131072", "524288"})
+    public int chunkSize;
+
+    @Param({CompressionCodecs.IDENTITY, CompressionCodecs.GZIP})
+    public String codec;
+
+    private File mDirectory;
+    private File mFile;
+    private ChunkedUploader mUploader;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = BenchmarkFiles.createDirectory("upload-copy");
+        mFile = BenchmarkFiles.createFiles(mDirectory, 1, fileSize).get(0);
+        mUploader = new ChunkedUploader(chunkSize, null, new SyncMetrics());
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkFiles.delete(mDirectory);
+    }
+
+    @Benchmark
+    public long upload() throws IOException {
+        DiscardingOutputStream driveContents = new DiscardingOutputStream();
+        UploadTransport transport = new OutputStreamUploadTransport(driveContents);
+        if (!CompressionCodecs.IDENTITY.equals(codec)) {
+            transport = new CompressingUploadTransport(transport, CompressionCodecs.forName(codec), true);
+        }
+        mUploader.upload(mFile, transport);
+        return driveContents.getCount();
+    }
+}
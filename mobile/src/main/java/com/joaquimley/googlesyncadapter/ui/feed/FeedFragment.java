@@ -16,7 +16,7 @@
 
 package com.joaquimley.googlesyncadapter.ui.feed;
 
-import android.content.Context;
+import android.accounts.Account;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.design.widget.Snackbar;
@@ -71,11 +71,11 @@ public class FeedFragment extends Fragment {
 
             case R.id.action_refresh:
 
-                String folderId = mActivity.getSharedPreferences(SyncHelper.SYNC_SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE)
-                        .getString(SyncHelper.SYNC_DRIVE_FOLDER_ID, "");
-
-                Log.e("Fragment", "FOLDERID----->  " + folderId);
-                SyncHelper.uploadFileToDriveFolder(mActivity, folderId);
+                for (Account account : SyncHelper.getSyncAccounts(mActivity)) {
+                    String folderId = SyncHelper.getDriveFolderId(mActivity, account);
+                    Log.e("Fragment", "FOLDERID----->  " + account.name + " " + folderId);
+                    SyncHelper.uploadFileToDriveFolder(mActivity, account, folderId);
+                }
 
                 Snackbar.make(mActivity.findViewById(R.id.fab), "Background syncing started",
                         Snackbar.LENGTH_LONG).show();
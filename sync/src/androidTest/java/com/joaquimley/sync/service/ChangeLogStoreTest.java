@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.service;
+
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.test.ProviderTestCase2;
+
+import com.joaquimley.sync.changelog.ChangeRecord;
+import com.joaquimley.sync.changelog.ChangeSegment;
+import com.joaquimley.sync.service.SyncContract.Changes;
+
+import java.util.Collections;
+import java.util.List;
+
+public class ChangeLogStoreTest extends ProviderTestCase2<SyncProvider> {
+
+    // Same value as R.string.sync_authority
+    private static final String AUTHORITY = "com.joaquimley.googlesyncadapter.ui.feed.FeedActivity";
+
+    private ContentProviderClient mProviderClient;
+    private ChangeLogStore mChangeLog;
+
+    public ChangeLogStoreTest() {
+        super(SyncProvider.class, AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProviderClient = getMockContentResolver().acquireContentProviderClient(AUTHORITY);
+        mChangeLog = new ChangeLogStore(getMockContext(), mProviderClient, "first@gmail.com");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProviderClient.release();
+        super.tearDown();
+    }
+
+    public void testAppend_sameRecordTwice_keepsLatestAtTheEnd() throws Exception {
+        append("readings", "1", "{\"value\":1}");
+        append("readings", "2", "{\"value\":2}");
+        append("readings", "1", "{\"value\":3}");
+
+        List<ChangeRecord> changes = mChangeLog.readChanges(0, Long.MAX_VALUE, Long.MAX_VALUE);
+
+        assertEquals(2, changes.size());
+        assertEquals("2", changes.get(0).getRecordId());
+        assertEquals("{\"value\":3}", changes.get(1).getData());
+        assertTrue(changes.get(1).getId() > changes.get(0).getId());
+    }
+
+    public void testReadChanges_stopsAtMaxBytes() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            append("readings", String.valueOf(i), "0123456789");
+        }
+        long size = mChangeLog.readChanges(0, Long.MAX_VALUE, 1).get(0).getApproximateSize();
+
+        List<ChangeRecord> first = mChangeLog.readChanges(0, Long.MAX_VALUE, size * 4);
+        List<ChangeRecord> rest = mChangeLog.readChanges(first.get(first.size() - 1).getId(), Long.MAX_VALUE, Long.MAX_VALUE);
+
+        assertEquals(4, first.size());
+        assertEquals(6, rest.size());
+        assertEquals(10, mChangeLog.getPending(0).getCount());
+        assertEquals(size * 10, mChangeLog.getPending(0).getApproximateBytes());
+    }
+
+    public void testRecordUpload_movesWatermarkOfThatAccountOnly() throws Exception {
+        append("readings", "1", "{}");
+        append("readings", "2", "{}");
+        ChangeLogStore.Pending pending = mChangeLog.getPending(0);
+
+        mChangeLog.recordUpload(new ChangeSegment(ChangeSegment.Kind.SNAPSHOT, 0, pending.getLastId(),
+                mChangeLog.readLiveRecords(pending.getLastId())), 100, "DriveId:snapshot");
+        append("readings", "3", "{}");
+
+        assertEquals(pending.getLastId(), mChangeLog.getWatermark());
+        assertEquals(1, mChangeLog.getPending(mChangeLog.getWatermark()).getCount());
+        ChangeLogStore other = new ChangeLogStore(getMockContext(), mProviderClient, "second@gmail.com");
+        assertEquals(0, other.getWatermark());
+        assertEquals(100, mChangeLog.getSnapshotState().getSnapshotBytes());
+        assertEquals(-1, other.getSnapshotState().getSnapshotBytes());
+    }
+
+    public void testPurgeUploadedDeletions_waitsForEveryAccount() throws Exception {
+        append("readings", "1", "{}");
+        delete("readings", "1");
+        long lastId = mChangeLog.getPending(0).getLastId();
+        ChangeLogStore other = new ChangeLogStore(getMockContext(), mProviderClient, "second@gmail.com");
+        other.recordUpload(new ChangeSegment(ChangeSegment.Kind.SNAPSHOT, 0, 0,
+                Collections.<ChangeRecord>emptyList()), 10, "DriveId:other");
+
+        mChangeLog.recordUpload(new ChangeSegment(ChangeSegment.Kind.SEGMENT, 0, lastId,
+                mChangeLog.readChanges(0, lastId, Long.MAX_VALUE)), 10, "DriveId:segment");
+        assertEquals(0, mChangeLog.purgeUploadedDeletions());
+
+        other.recordUpload(new ChangeSegment(ChangeSegment.Kind.SEGMENT, 0, lastId,
+                other.readChanges(0, lastId, Long.MAX_VALUE)), 10, "DriveId:other-segment");
+        assertEquals(1, mChangeLog.purgeUploadedDeletions());
+        assertTrue(mChangeLog.readLiveRecords(Long.MAX_VALUE).isEmpty());
+    }
+
+    private void append(String collection, String recordId, String data) throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(Changes.COLUMN_COLLECTION, collection);
+        values.put(Changes.COLUMN_RECORD_ID, recordId);
+        values.put(Changes.COLUMN_DATA, data);
+        mProviderClient.insert(Changes.getContentUri(getMockContext()), values);
+    }
+
+    private void delete(String collection, String recordId) throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(Changes.COLUMN_COLLECTION, collection);
+        values.put(Changes.COLUMN_RECORD_ID, recordId);
+        values.put(Changes.COLUMN_OPERATION, Changes.OPERATION_DELETE);
+        mProviderClient.insert(Changes.getContentUri(getMockContext()), values);
+    }
+}
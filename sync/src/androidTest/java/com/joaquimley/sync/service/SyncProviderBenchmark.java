@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.service;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.joaquimley.sync.service.SyncContract.Items;
+
+import java.util.Random;
+
+/**
+ * Insert and query throughput of the items table while it grows to {@link #MAX_ITEMS} rows.
+ * Runs on a device since the store is the platform SQLite, results go to logcat under
+ * {@link #TAG}.
+ */
+@LargeTest
+public class SyncProviderBenchmark extends ProviderTestCase2<SyncProvider> {
+
+    private static final String TAG = "SyncProviderBenchmark";
+    // Same value as R.string.sync_authority
+    private static final String AUTHORITY = "com.joaquimley.googlesyncadapter.ui.feed.FeedActivity";
+
+    private static final int BATCH_SIZE = 1000;
+    private static final int MAX_ITEMS = 200000;
+    private static final int[] CHECKPOINTS = {1000, 10000, 50000, 100000, 200000};
+    private static final int QUERIES = 500;
+
+    public SyncProviderBenchmark() {
+        super(SyncProvider.class, AUTHORITY);
+    }
+
+    public void testInsertAndQueryThroughput() {
+        ContentResolver resolver = getMockContentResolver();
+        Uri itemsUri = SyncContract.asSyncAdapter(Items.getContentUri(getMockContext()));
+        Random random = new Random(1);
+        double firstLookupMicros = -1;
+        int inserted = 0;
+
+        for (int checkpoint : CHECKPOINTS) {
+            long insertNanos = 0;
+            int insertedBefore = inserted;
+            while (inserted < checkpoint) {
+                ContentValues[] batch = new ContentValues[BATCH_SIZE];
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    batch[i] = item(inserted + i, random);
+                }
+                long start = System.nanoTime();
+                resolver.bulkInsert(itemsUri, batch);
+                insertNanos += System.nanoTime() - start;
+                inserted += BATCH_SIZE;
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < QUERIES; i++) {
+                query(resolver, itemsUri, Items.COLUMN_PATH + "=?", "/data/file-" + random.nextInt(inserted));
+            }
+            double lookupMicros = (System.nanoTime() - start) / 1000.0 / QUERIES;
+
+            start = System.nanoTime();
+            for (int i = 0; i < QUERIES; i++) {
+                query(resolver, itemsUri, Items.COLUMN_DRIVE_ID + "=?", "DriveId:" + random.nextInt(inserted));
+            }
+            double driveIdMicros = (System.nanoTime() - start) / 1000.0 / QUERIES;
+
+            start = System.nanoTime();
+            int dirty = query(resolver, itemsUri.buildUpon().appendQueryParameter(SyncContract.QUERY_PARAMETER_LIMIT, "100").build(),
+                    Items.COLUMN_DIRTY + "=?", "1");
+            double dirtyMicros = (System.nanoTime() - start) / 1000.0;
+
+            double insertsPerSecond = (inserted - insertedBefore) / (insertNanos / 1e9);
+            Log.i(TAG, String.format("%7d items: %8.0f inserts/s, path lookup %6.1fus, drive id lookup %6.1fus, "
+                    + "first %d dirty in %6.1fus", inserted, insertsPerSecond, lookupMicros, driveIdMicros, dirty, dirtyMicros));
+
+            if (firstLookupMicros < 0) {
+                firstLookupMicros = lookupMicros;
+            } else {
+                // Indexed lookups stay flat, a table scan at this size would be orders of magnitude slower
+                assertTrue("Path lookup went from " + firstLookupMicros + "us to " + lookupMicros + "us",
+                        lookupMicros < firstLookupMicros * 10);
+            }
+        }
+        assertEquals(MAX_ITEMS, inserted);
+    }
+
+    private static ContentValues item(int index, Random random) {
+        ContentValues values = new ContentValues();
+        values.put(Items.COLUMN_PATH, "/data/file-" + index);
+        values.put(Items.COLUMN_FOLDER_ID, "DriveId:folder");
+        values.put(Items.COLUMN_DRIVE_ID, "DriveId:" + index);
+        values.put(Items.COLUMN_HASH, Long.toHexString(random.nextLong()));
+        values.put(Items.COLUMN_SIZE, random.nextInt(1 << 20));
+        values.put(Items.COLUMN_MODIFIED, System.currentTimeMillis());
+        values.put(Items.COLUMN_DIRTY, random.nextInt(100) == 0 ? 1 : 0);
+        return values;
+    }
+
+    private static int query(ContentResolver resolver, Uri uri, String selection, String arg) {
+        Cursor cursor = resolver.query(uri, new String[]{Items._ID}, selection, new String[]{arg}, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
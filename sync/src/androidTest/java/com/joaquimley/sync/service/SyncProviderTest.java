@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.service;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+
+import com.joaquimley.sync.service.SyncContract.Items;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+public class SyncProviderTest extends ProviderTestCase2<SyncProvider> {
+
+    // Same value as R.string.sync_authority
+    private static final String AUTHORITY = "com.joaquimley.googlesyncadapter.ui.feed.FeedActivity";
+
+    private ContentResolver mResolver;
+    private Uri mItemsUri;
+
+    public SyncProviderTest() {
+        super(SyncProvider.class, AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getMockContentResolver();
+        mItemsUri = Items.getContentUri(getMockContext());
+    }
+
+    public void testInsert_byApp_marksItemDirty() {
+        Uri itemUri = mResolver.insert(mItemsUri, item("/data/a.realm", 1));
+
+        assertEquals(1, intColumn(itemUri, Items.COLUMN_DIRTY));
+    }
+
+    public void testInsert_bySyncAdapter_leavesItemClean() {
+        Uri itemUri = mResolver.insert(SyncContract.asSyncAdapter(mItemsUri), item("/data/a.realm", 1));
+
+        assertEquals(0, intColumn(itemUri, Items.COLUMN_DIRTY));
+    }
+
+    public void testInsert_samePath_updatesExistingRow() {
+        Uri first = mResolver.insert(SyncContract.asSyncAdapter(mItemsUri), item("/data/a.realm", 1));
+        Uri second = mResolver.insert(mItemsUri, item("/data/a.realm", 2));
+
+        assertEquals(first, second);
+        assertEquals(2, intColumn(second, Items.COLUMN_MODIFIED));
+        assertEquals(1, intColumn(second, Items.COLUMN_DIRTY));
+    }
+
+    public void testBulkInsert_insertsEveryRow() {
+        ContentValues[] values = new ContentValues[100];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = item("/data/" + i, i);
+        }
+
+        assertEquals(100, mResolver.bulkInsert(mItemsUri, values));
+        assertEquals(100, count(Items.COLUMN_DIRTY + "=1"));
+    }
+
+    public void testApplyBatch_failingOperation_rollsBackWholeBatch() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(mItemsUri).withValues(item("/data/a", 1)).build());
+        operations.add(ContentProviderOperation.newInsert(mItemsUri).withValues(item("/data/b", 1)).build());
+        // Items need a path
+        operations.add(ContentProviderOperation.newInsert(mItemsUri).withValue(Items.COLUMN_SIZE, 1).build());
+
+        try {
+            mResolver.applyBatch(AUTHORITY, operations);
+            fail("Last operation should fail");
+        } catch (IllegalArgumentException | OperationApplicationException expected) {
+            // Nothing of the batch may remain
+        }
+        assertEquals(0, count(null));
+    }
+
+    public void testGetDriveIds_onlyUploadedItemsOfTheFolder() throws Exception {
+        mResolver.insert(mItemsUri, item("/data/a", 1));
+        mResolver.insert(mItemsUri, item("/data/b", 1));
+        ContentProviderClient client = mResolver.acquireContentProviderClient(AUTHORITY);
+        try {
+            SyncItemStore items = new SyncItemStore(getMockContext(), client);
+            items.recordUpload("/data/a", "DriveId:a");
+
+            Map<String, String> driveIds = items.getDriveIds("DriveId:folder", Arrays.asList("/data/a", "/data/b", "/data/c"));
+
+            assertEquals(Collections.singletonMap("/data/a", "DriveId:a"), driveIds);
+            assertTrue(items.getDriveIds("DriveId:other", Collections.singletonList("/data/a")).isEmpty());
+        } finally {
+            client.release();
+        }
+    }
+
+    public void testGetPaths_onlyUploadedItems() throws Exception {
+        mResolver.insert(mItemsUri, item("/data/a", 1));
+        mResolver.insert(mItemsUri, item("/data/b", 1));
+        ContentProviderClient client = mResolver.acquireContentProviderClient(AUTHORITY);
+        try {
+            SyncItemStore items = new SyncItemStore(getMockContext(), client);
+            items.recordUpload("/data/a", "DriveId:a");
+
+            Map<String, String> paths = items.getPaths(Arrays.asList("DriveId:a", "DriveId:unknown"));
+
+            assertEquals(Collections.singletonMap("DriveId:a", "/data/a"), paths);
+        } finally {
+            client.release();
+        }
+    }
+
+    public void testGetSyncedAt_zeroUntilUploaded() throws Exception {
+        mResolver.insert(mItemsUri, item("/data/a", 1));
+        ContentProviderClient client = mResolver.acquireContentProviderClient(AUTHORITY);
+        try {
+            SyncItemStore items = new SyncItemStore(getMockContext(), client);
+            assertEquals(0, items.getSyncedAt("/data/a"));
+            assertEquals(0, items.getSyncedAt("/data/unknown"));
+
+            long before = System.currentTimeMillis();
+            items.recordUpload("/data/a", "DriveId:a");
+
+            assertTrue(items.getSyncedAt("/data/a") >= before);
+        } finally {
+            client.release();
+        }
+    }
+
+    private static ContentValues item(String path, long modified) {
+        ContentValues values = new ContentValues();
+        values.put(Items.COLUMN_PATH, path);
+        values.put(Items.COLUMN_FOLDER_ID, "DriveId:folder");
+        values.put(Items.COLUMN_MODIFIED, modified);
+        return values;
+    }
+
+    private int intColumn(Uri uri, String column) {
+        Cursor cursor = mResolver.query(uri, new String[]{column}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int count(String selection) {
+        Cursor cursor = mResolver.query(mItemsUri, new String[]{"COUNT(*)"}, selection, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
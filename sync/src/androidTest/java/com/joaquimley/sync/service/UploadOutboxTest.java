@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.service;
+
+import android.content.ContentProviderClient;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+
+import com.joaquimley.sync.service.SyncContract.Outbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+public class UploadOutboxTest extends ProviderTestCase2<SyncProvider> {
+
+    // Same value as R.string.sync_authority
+    private static final String AUTHORITY = "com.joaquimley.googlesyncadapter.ui.feed.FeedActivity";
+    private static final String FOLDER_ID = "DriveId:folder";
+
+    private ContentProviderClient mProviderClient;
+    private UploadOutbox mOutbox;
+
+    public UploadOutboxTest() {
+        super(SyncProvider.class, AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProviderClient = getMockContentResolver().acquireContentProviderClient(AUTHORITY);
+        mOutbox = new UploadOutbox(getMockContext(), mProviderClient, 2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProviderClient.release();
+        super.tearDown();
+    }
+
+    public void testEnqueue_samePathTwice_queuesOnce() throws Exception {
+        mOutbox.enqueue("/data/backup.realm", FOLDER_ID);
+        mOutbox.enqueue("/data/backup.realm", FOLDER_ID);
+        mOutbox.enqueue("/data/backup.realm", "DriveId:other");
+
+        assertEquals(2, mOutbox.getPendingCount());
+        assertEquals(2, mOutbox.claimBatch(0, 10).size());
+    }
+
+    public void testRecoverInterrupted_replaysEntriesOfDeadSync() throws Exception {
+        mOutbox.enqueue("/data/a", FOLDER_ID);
+        mOutbox.enqueue("/data/b", FOLDER_ID);
+        assertEquals(2, mOutbox.claimBatch(0, 10).size());
+        assertTrue(mOutbox.claimBatch(0, 10).isEmpty());
+
+        // The sync process died here, the next sync starts with the replay
+        assertEquals(2, mOutbox.recoverInterrupted());
+
+        assertEquals(2, mOutbox.claimBatch(0, 10).size());
+    }
+
+    public void testClaimBatch_pagesInIdOrder() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            mOutbox.enqueue("/data/" + i, FOLDER_ID);
+        }
+
+        List<UploadOutbox.Entry> first = mOutbox.claimBatch(0, 3);
+        List<UploadOutbox.Entry> second = mOutbox.claimBatch(first.get(2).getId(), 3);
+
+        assertEquals(3, first.size());
+        assertEquals(2, second.size());
+        assertEquals("/data/0", first.get(0).getPath());
+        assertEquals("/data/4", second.get(1).getPath());
+    }
+
+    public void testEnqueue_whileInProgress_runsAgainAfterwards() throws Exception {
+        mOutbox.enqueue("/data/backup.realm", FOLDER_ID);
+        UploadOutbox.Entry entry = mOutbox.claimBatch(0, 10).get(0);
+
+        mOutbox.enqueue("/data/backup.realm", FOLDER_ID);
+        mOutbox.markDone(entry);
+
+        assertEquals(1, mOutbox.getPendingCount());
+        assertEquals(entry.getId(), mOutbox.claimBatch(0, 10).get(0).getId());
+    }
+
+    public void testMarkFailed_givesUpAfterMaxAttempts() throws Exception {
+        mOutbox.enqueue("/data/backup.realm", FOLDER_ID);
+        mOutbox.markFailed(mOutbox.claimBatch(0, 10).get(0), "Timeout");
+        UploadOutbox.Entry retry = mOutbox.claimBatch(0, 10).get(0);
+        assertEquals(1, retry.getAttempts());
+
+        mOutbox.markFailed(retry, "Timeout");
+
+        assertEquals(0, mOutbox.getPendingCount());
+        assertEquals(Outbox.STATE_FAILED, stateOf(retry.getId()));
+
+        // Enqueuing it again starts over
+        mOutbox.enqueue("/data/backup.realm", FOLDER_ID);
+        assertEquals(0, mOutbox.claimBatch(0, 10).get(0).getAttempts());
+    }
+
+    public void testPurgeDone_keepsUnfinishedEntries() throws Exception {
+        mOutbox.enqueue("/data/a", FOLDER_ID);
+        mOutbox.enqueue("/data/b", FOLDER_ID);
+        List<UploadOutbox.Entry> batch = mOutbox.claimBatch(0, 10);
+        mOutbox.markDone(batch.get(0));
+
+        assertEquals(1, mOutbox.purgeDone());
+        assertEquals(Outbox.STATE_IN_PROGRESS, stateOf(batch.get(1).getId()));
+    }
+
+    public void testAccountOutbox_onlySeesItsOwnAndUnassignedEntries() throws Exception {
+        UploadOutbox first = new UploadOutbox(getMockContext(), mProviderClient, "first@gmail.com", 2);
+        UploadOutbox second = new UploadOutbox(getMockContext(), mProviderClient, "second@gmail.com", 2);
+        first.enqueue("/data/a", FOLDER_ID);
+        second.enqueue("/data/b", "DriveId:second");
+        mOutbox.enqueue("/data/c", FOLDER_ID);
+
+        List<UploadOutbox.Entry> claimed = first.claimBatch(0, 10);
+        assertEquals(2, claimed.size());
+        assertEquals("/data/a", claimed.get(0).getPath());
+        assertEquals("/data/c", claimed.get(1).getPath());
+
+        // The unassigned entry now belongs to the first account
+        assertEquals(0, second.recoverInterrupted());
+        assertEquals(1, second.getPendingCount());
+        assertEquals(2, first.recoverInterrupted());
+    }
+
+    public void testClaimBatch_concurrentAccounts_claimEachEntryOnce() throws Exception {
+        final int entries = 200;
+        for (int i = 0; i < entries; i++) {
+            mOutbox.enqueue("/data/" + i, FOLDER_ID);
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Set<Long>> claimed = new ArrayList<>();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<>();
+        for (final String account : new String[]{"first@gmail.com", "second@gmail.com"}) {
+            final Set<Long> ids = new HashSet<>();
+            claimed.add(ids);
+            final UploadOutbox outbox = new UploadOutbox(getMockContext(), mProviderClient, account, 2);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long afterId = 0;
+                        List<UploadOutbox.Entry> batch;
+                        while (!(batch = outbox.claimBatch(afterId, 10)).isEmpty()) {
+                            afterId = batch.get(batch.size() - 1).getId();
+                            for (UploadOutbox.Entry entry : batch) {
+                                ids.add(entry.getId());
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        Set<Long> both = new HashSet<>(claimed.get(0));
+        both.retainAll(claimed.get(1));
+        assertTrue("Claimed twice: " + both, both.isEmpty());
+        assertEquals(entries, claimed.get(0).size() + claimed.get(1).size());
+    }
+
+    private int stateOf(long id) throws Exception {
+        Cursor cursor = mProviderClient.query(Outbox.getContentUri(getMockContext()), new String[]{Outbox.COLUMN_STATE},
+                Outbox._ID + "=" + id, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
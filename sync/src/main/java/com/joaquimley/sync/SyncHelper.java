@@ -18,39 +18,92 @@ package com.joaquimley.sync;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
+import android.content.ContentProviderClient;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.content.ContextCompat;
-import android.text.format.DateUtils;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.joaquimley.sync.buffer.BufferPool;
+import com.joaquimley.sync.drive.BatchUploader;
+import com.joaquimley.sync.drive.FileRestorer;
+import com.joaquimley.sync.drive.MetadataCache;
+import com.joaquimley.sync.drive.UpsertPlan;
+import com.joaquimley.sync.executor.SyncExecutor;
+import com.joaquimley.sync.metrics.SyncMetrics;
+import com.joaquimley.sync.schedule.RequestCoalescer;
+import com.joaquimley.sync.schedule.SyncSchedulePolicy;
+import com.joaquimley.sync.service.SyncContract;
+import com.joaquimley.sync.service.UploadOutbox;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
 public final class SyncHelper {
 
     private static final String TAG = "SyncHelper";
 
-    private static final int SYNC_INTERVAL = (int) (DateUtils.DAY_IN_MILLIS / 1000); // Once per day
-    private static final int SYNC_FLEXTIME = SYNC_INTERVAL / 3;
     private static final int SYNCABLE_TRUE = 1;
     private static final int SYNCABLE_FALSE = 0;
 
     public static final String SYNC_SHARED_PREFERENCES_NAME = "googleSyncServiceSharedPreferencesName";
     public static final String SYNC_IS_TO_UPLOAD_TO_FOLDER = "googleSyncServiceIsToUploadToFolder";
     public static final String SYNC_DRIVE_FOLDER_ID = "googleSyncServiceFolderId";
+    public static final String SYNC_LOCAL_FILE_PATHS = "googleSyncServiceLocalFilePaths";
+    public static final String SYNC_LOCAL_DIRECTORY = "googleSyncServiceLocalDirectory";
+    /**
+     * Number of requests merged into the sync, see {@link #setCoalescingWindow(long)}
+     */
+    public static final String SYNC_COALESCED_REQUESTS = "googleSyncServiceCoalescedRequests";
+    public static final String SYNC_KEEP_REVISIONS = "googleSyncServiceKeepRevisions";
+    public static final String SYNC_RESTORE_TITLE = "googleSyncServiceRestoreTitle";
+    public static final String SYNC_RESTORE_LOCAL_PATH = "googleSyncServiceRestoreLocalPath";
+    public static final String SYNC_CONFLICT_POLICY = "googleSyncServiceConflictPolicy";
+    /**
+     * The sync fetches the changes made to the folder since the last one, see {@link #syncRemoteChanges(Context)}
+     */
+    public static final String SYNC_REMOTE_CHANGES = "googleSyncServiceRemoteChanges";
+    /**
+     * Directory tree the sync mirrors into the folder, see {@link #mirrorDirectoryToDriveFolder(Context, String, String)}
+     */
+    public static final String SYNC_MIRROR_DIRECTORY = "googleSyncServiceMirrorDirectory";
+
+    public static final long DEFAULT_COALESCING_WINDOW_MILLIS = 3000;
+
+    private static RequestCoalescer<String, PendingSync> sCoalescer;
+    private static final Object sCoalescerLock = new Object();
+    private static volatile FileRestorer.ConflictResolver sConflictResolver;
 
     private SyncHelper() {
     }
 
     public static boolean initializeSync(Context context) {
-        Account syncAccount = getSyncAccount(context);
-        if (syncAccount != null) {
-            onAccountCreated(context, syncAccount);
-            Log.v(TAG, "Syncing initialized");
+        List<Account> syncAccounts = getSyncAccounts(context);
+        for (Account account : syncAccounts) {
+            onAccountCreated(context, account);
+        }
+        if (!syncAccounts.isEmpty()) {
+            Log.v(TAG, "Syncing initialized for " + syncAccounts.size() + " accounts");
             return true;
         }
         Log.v(TAG, "Syncing failed, no account permissions.");
@@ -58,22 +111,85 @@ public final class SyncHelper {
     }
 
     /**
-     * Get a dummy account for the sync adapter
+     * Get the accounts synced by the sync adapter, each one syncs on its own and in parallel
+     * with the others
      *
      * @param context The application context
+     * @return an empty list without the accounts permission
      */
-    private static Account getSyncAccount(Context context) {
+    public static List<Account> getSyncAccounts(Context context) {
         if (ContextCompat.checkSelfPermission(context, android.Manifest.permission.GET_ACCOUNTS) != PackageManager.PERMISSION_GRANTED) {
             Log.e(TAG, "We do not have accounts permission, canceling sync");
-            return null;
+            return Collections.emptyList();
         }
 
         Account[] accounts = AccountManager.get(context).getAccountsByType(context.getString(R.string.sync_account_type));
         if (accounts.length == 0) {
             Log.d(TAG, "Must have a Google account installed");
+        }
+        return Arrays.asList(accounts);
+    }
+
+    /**
+     * @return the account that picked {@code driveFolderId}, otherwise the first account
+     */
+    @Nullable
+    private static Account getSyncAccount(Context context, @Nullable String driveFolderId) {
+        List<Account> accounts = getSyncAccounts(context);
+        if (accounts.isEmpty()) {
             return null;
         }
-        return accounts[0];
+        if (!TextUtils.isEmpty(driveFolderId)) {
+            for (Account account : accounts) {
+                if (driveFolderId.equals(getDriveFolderId(context, account))) {
+                    return account;
+                }
+            }
+        }
+        return accounts.get(0);
+    }
+
+    /**
+     * @return the Drive folder picked for {@code account}, empty when it has none yet
+     */
+    public static String getDriveFolderId(Context context, Account account) {
+        SharedPreferences preferences = context.getSharedPreferences(SYNC_SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE);
+        String folderId = preferences.getString(SYNC_DRIVE_FOLDER_ID + "." + account.name, null);
+        if (folderId != null) {
+            return folderId;
+        }
+        // Folders picked before accounts had their own belong to the account synced back then
+        List<Account> accounts = getSyncAccounts(context);
+        return !accounts.isEmpty() && accounts.get(0).equals(account)
+                ? preferences.getString(SYNC_DRIVE_FOLDER_ID, "") : "";
+    }
+
+    public static void setDriveFolderId(Context context, Account account, String driveFolderId) {
+        context.getSharedPreferences(SYNC_SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE).edit()
+                .putString(SYNC_DRIVE_FOLDER_ID + "." + account.name, driveFolderId)
+                .apply();
+    }
+
+    /**
+     * @return how many remote files are kept for every uploaded title, see {@link #setKeepRevisions(Context, int)}
+     */
+    public static int getKeepRevisions(Context context) {
+        return context.getSharedPreferences(SYNC_SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE)
+                .getInt(SYNC_KEEP_REVISIONS, UpsertPlan.DEFAULT_KEEP_REVISIONS);
+    }
+
+    /**
+     * Uploads overwrite the remote file with the same title. Keeping more than one revision
+     * creates new files until there are {@code keepRevisions} of them, then overwrites the
+     * oldest one.
+     */
+    public static void setKeepRevisions(Context context, int keepRevisions) {
+        if (keepRevisions < 1) {
+            throw new IllegalArgumentException("At least one revision is kept: " + keepRevisions);
+        }
+        context.getSharedPreferences(SYNC_SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE).edit()
+                .putInt(SYNC_KEEP_REVISIONS, keepRevisions)
+                .apply();
     }
 
     private static void onAccountCreated(Context context, Account newAccount) {
@@ -88,68 +204,408 @@ public final class SyncHelper {
         /*
          * Since we've created an account
          */
-        configurePeriodicSync(context, newAccount);
+        configurePeriodicSync(context, newAccount, new SyncScheduler(context).getCurrentInterval(newAccount));
         /*
          * Finally, let's do a sync to get things started
          */
-        syncNow(context);
+        syncNow(context, newAccount, Bundle.EMPTY);
     }
 
     /**
-     * Helper method to schedule the sync adapter periodic execution
+     * Helper method to schedule the sync adapter periodic execution, {@link SyncScheduler}
+     * adjusts the interval after each sync
      */
-    private static void configurePeriodicSync(Context context, Account account) {
+    static void configurePeriodicSync(Context context, Account account, long syncInterval) {
         final String authority = context.getString(R.string.sync_authority);
+        final long syncFlexTime = SyncSchedulePolicy.getFlexTime(syncInterval);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
             // We can enable inexact timers in our periodic sync
             SyncRequest request = new SyncRequest.Builder()
                     .setExtras(Bundle.EMPTY)
-                    .syncPeriodic(SYNC_INTERVAL, SYNC_FLEXTIME)
+                    .syncPeriodic(syncInterval, syncFlexTime)
                     .setSyncAdapter(account, authority)
                     .build();
             ContentResolver.requestSync(request);
         } else {
-            ContentResolver.addPeriodicSync(account, authority, Bundle.EMPTY, SYNC_INTERVAL);
+            ContentResolver.addPeriodicSync(account, authority, Bundle.EMPTY, syncInterval);
         }
-        Log.v(TAG, "Periodic sync configured with " + SYNC_INTERVAL + " interval and " + SYNC_FLEXTIME + " flextime");
+        Log.v(TAG, "Periodic sync configured with " + syncInterval + " interval and " + syncFlexTime + " flextime");
     }
 
     public static void cancelSyncService(Context context) {
-        ContentResolver.setIsSyncable(getSyncAccount(context), context.getString(R.string.sync_authority), SYNCABLE_FALSE);
+        for (Account account : getSyncAccounts(context)) {
+            ContentResolver.setIsSyncable(account, context.getString(R.string.sync_authority), SYNCABLE_FALSE);
+        }
     }
 
     /**
-     * Helper method to have the sync adapter sync immediately
+     * Helper method to have the sync adapter sync every account immediately
      *
      * @param context The context used to access the account service
      */
     public static void syncNow(Context context) {
-        Bundle bundle = new Bundle();
-        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
-        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
-        ContentResolver.requestSync(getSyncAccount(context), context.getString(R.string.sync_authority), bundle);
+        syncNow(context, Bundle.EMPTY);
     }
 
     /**
-     * Helper method to have the sync adapter sync immediately
+     * Helper method to have the sync adapter sync every account immediately
      *
      * @param context The context used to access the account service
      * @param extras  The Bundle of extra values
      */
     public static void syncNow(Context context, Bundle extras) {
+        for (Account account : getSyncAccounts(context)) {
+            syncNow(context, account, extras);
+        }
+    }
+
+    /**
+     * Helper method to have the sync adapter sync a single account immediately
+     *
+     * @param context The context used to access the account service
+     * @param account The account to sync
+     * @param extras  The Bundle of extra values
+     */
+    public static void syncNow(Context context, Account account, Bundle extras) {
         Bundle bundle = new Bundle(extras);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
-        ContentResolver.requestSync(getSyncAccount(context), context.getString(R.string.sync_authority), bundle);
+        requestSync(context, account, bundle, null);
     }
 
+    /**
+     * Uploads to the folder with the account that picked it, see
+     * {@link #uploadFileToDriveFolder(Context, Account, String)}
+     */
     public static void uploadFileToDriveFolder(Context context, String driveFolderId) {
+        uploadFileToDriveFolder(context, getSyncAccount(context, driveFolderId), driveFolderId);
+    }
+
+    public static void uploadFileToDriveFolder(Context context, @Nullable Account account, String driveFolderId) {
+        Bundle bundle = newUploadToFolderExtras(driveFolderId);
+        requestSync(context, account, bundle, null);
+    }
+
+    /**
+     * Uploads to the folder with the account that picked it, see
+     * {@link #uploadFilesToDriveFolder(Context, Account, String, List)}
+     */
+    public static void uploadFilesToDriveFolder(Context context, String driveFolderId, List<String> localFilePaths) {
+        uploadFilesToDriveFolder(context, getSyncAccount(context, driveFolderId), driveFolderId, localFilePaths);
+    }
+
+    /**
+     * Helper method to upload several local files to the Drive folder in a single sync. The
+     * files are queued in the outbox first so the upload survives the sync process dying.
+     *
+     * @param context        The context used to access the account service
+     * @param account        The account owning the folder
+     * @param driveFolderId  The encoded DriveId of the destination folder
+     * @param localFilePaths Absolute paths of the files to upload
+     */
+    public static void uploadFilesToDriveFolder(Context context, @Nullable Account account, String driveFolderId,
+                                                List<String> localFilePaths) {
+        Bundle bundle = newUploadToFolderExtras(driveFolderId);
+        if (account != null && enqueueUploads(context, account, driveFolderId, localFilePaths)) {
+            // The sync drains the whole outbox, requests for other files merge with this one
+            requestSync(context, account, bundle, null);
+            return;
+        }
+        // Let the sync adapter queue them instead
+        bundle.putStringArrayList(SYNC_LOCAL_FILE_PATHS, new ArrayList<>(localFilePaths));
+        requestSync(context, account, bundle, localFilePaths);
+    }
+
+    /**
+     * Uploads to the folder with the account that picked it, see
+     * {@link #uploadDirectoryToDriveFolder(Context, Account, String, String)}
+     */
+    public static void uploadDirectoryToDriveFolder(Context context, String driveFolderId, String localDirectoryPath) {
+        uploadDirectoryToDriveFolder(context, getSyncAccount(context, driveFolderId), driveFolderId, localDirectoryPath);
+    }
+
+    /**
+     * Helper method to upload every file directly inside a local directory to the Drive folder
+     *
+     * @param context            The context used to access the account service
+     * @param account            The account owning the folder
+     * @param driveFolderId      The encoded DriveId of the destination folder
+     * @param localDirectoryPath Absolute path of the directory to upload
+     */
+    public static void uploadDirectoryToDriveFolder(Context context, @Nullable Account account, String driveFolderId,
+                                                    String localDirectoryPath) {
+        List<String> localFilePaths = new ArrayList<>();
+        for (File file : BatchUploader.listFiles(new File(localDirectoryPath))) {
+            localFilePaths.add(file.getAbsolutePath());
+        }
+        uploadFilesToDriveFolder(context, account, driveFolderId, localFilePaths);
+    }
+
+    /**
+     * Mirrors into the folder with the account that picked it, see
+     * {@link #mirrorDirectoryToDriveFolder(Context, Account, String, String)}
+     */
+    public static void mirrorDirectoryToDriveFolder(Context context, String driveFolderId, String localDirectoryPath) {
+        mirrorDirectoryToDriveFolder(context, getSyncAccount(context, driveFolderId), driveFolderId, localDirectoryPath);
+    }
+
+    /**
+     * Helper method to keep the Drive folder a copy of a local directory tree, sub-directories
+     * included. Only what changed since the last mirror of the directory is uploaded, and what
+     * was removed from it is trashed from the folder
+     *
+     * @param context            The context used to access the account service
+     * @param account            The account owning the folder
+     * @param driveFolderId      The encoded DriveId of the destination folder
+     * @param localDirectoryPath Absolute path of the directory to mirror
+     */
+    public static void mirrorDirectoryToDriveFolder(Context context, @Nullable Account account, String driveFolderId,
+                                                    String localDirectoryPath) {
+        Bundle bundle = new Bundle();
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        bundle.putString(SYNC_DRIVE_FOLDER_ID, driveFolderId);
+        bundle.putString(SYNC_MIRROR_DIRECTORY, localDirectoryPath);
+        requestSync(context, account, bundle, Collections.singletonList(localDirectoryPath));
+    }
+
+    /**
+     * Restores with the account that picked the folder, see
+     * {@link #restoreFromDriveFolder(Context, Account, String, String, String, FileRestorer.ConflictPolicy)}
+     */
+    public static void restoreFromDriveFolder(Context context, String driveFolderId, String title, String localFilePath,
+                                              FileRestorer.ConflictPolicy conflictPolicy) {
+        restoreFromDriveFolder(context, getSyncAccount(context, driveFolderId), driveFolderId, title, localFilePath,
+                conflictPolicy);
+    }
+
+    /**
+     * Helper method to bring the most recent revision of a file in the Drive folder back over
+     * its local copy. The download resumes where an interrupted one stopped, and a local copy
+     * changed since its last sync is settled by {@code conflictPolicy}
+     *
+     * @param context        The context used to access the account service
+     * @param account        The account owning the folder
+     * @param driveFolderId  The encoded DriveId of the folder holding the file
+     * @param title          Title of the file in the folder
+     * @param localFilePath  Absolute path the file is restored to
+     * @param conflictPolicy What to do when the local copy changed, see {@link #setConflictResolver}
+     */
+    public static void restoreFromDriveFolder(Context context, @Nullable Account account, String driveFolderId,
+                                              String title, String localFilePath,
+                                              FileRestorer.ConflictPolicy conflictPolicy) {
+        Bundle bundle = new Bundle();
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        bundle.putString(SYNC_DRIVE_FOLDER_ID, driveFolderId);
+        bundle.putString(SYNC_RESTORE_TITLE, title);
+        bundle.putString(SYNC_RESTORE_LOCAL_PATH, localFilePath);
+        bundle.putString(SYNC_CONFLICT_POLICY, conflictPolicy.name());
+        requestSync(context, account, bundle, Collections.singletonList(localFilePath));
+    }
+
+    /**
+     * Requests a sync fetching the changes made to the Drive folder of every account that
+     * picked one, only the files modified since the account's last fetch are looked at. Called
+     * when Drive reports a change, a restored file whose remote copy changed is restored again
+     * and the newest copy wins
+     */
+    public static void syncRemoteChanges(Context context) {
+        for (Account account : getSyncAccounts(context)) {
+            String driveFolderId = getDriveFolderId(context, account);
+            if (TextUtils.isEmpty(driveFolderId)) {
+                continue;
+            }
+            Bundle bundle = new Bundle();
+            bundle.putString(SYNC_DRIVE_FOLDER_ID, driveFolderId);
+            bundle.putBoolean(SYNC_REMOTE_CHANGES, true);
+            requestSync(context, account, bundle, null);
+        }
+    }
+
+    /**
+     * Decides conflicts of restores made with {@link FileRestorer.ConflictPolicy#CALLBACK}, called
+     * on the sync thread. Without one the local copy is kept
+     */
+    public static void setConflictResolver(@Nullable FileRestorer.ConflictResolver resolver) {
+        sConflictResolver = resolver;
+    }
+
+    @Nullable
+    public static FileRestorer.ConflictResolver getConflictResolver() {
+        return sConflictResolver;
+    }
+
+    /**
+     * Appends the latest content of a record to the change log, the next syncs upload it along
+     * with the other changes instead of the whole database
+     *
+     * @param collection Kind of record, such as the name of the table holding it
+     * @param recordId   Id of the record within the collection
+     * @param data       The record's content, in the form the app restores it from
+     */
+    public static void appendChange(Context context, String collection, String recordId, String data) {
+        ContentValues values = new ContentValues();
+        values.put(SyncContract.Changes.COLUMN_COLLECTION, collection);
+        values.put(SyncContract.Changes.COLUMN_RECORD_ID, recordId);
+        values.put(SyncContract.Changes.COLUMN_OPERATION, SyncContract.Changes.OPERATION_UPSERT);
+        values.put(SyncContract.Changes.COLUMN_DATA, data);
+        context.getContentResolver().insert(SyncContract.Changes.getContentUri(context), values);
+    }
+
+    /**
+     * Appends the deletion of a record to the change log, see {@link #appendChange(Context, String, String, String)}
+     */
+    public static void appendDeletion(Context context, String collection, String recordId) {
+        ContentValues values = new ContentValues();
+        values.put(SyncContract.Changes.COLUMN_COLLECTION, collection);
+        values.put(SyncContract.Changes.COLUMN_RECORD_ID, recordId);
+        values.put(SyncContract.Changes.COLUMN_OPERATION, SyncContract.Changes.OPERATION_DELETE);
+        context.getContentResolver().insert(SyncContract.Changes.getContentUri(context), values);
+    }
+
+    /**
+     * @return false when the outbox couldn't be reached
+     */
+    // ContentProviderClient.close() only arrived in API 24, release() is what minSdk 16 has
+    @SuppressWarnings("deprecation")
+    private static boolean enqueueUploads(Context context, Account account, String driveFolderId, List<String> localFilePaths) {
+        ContentProviderClient provider = context.getContentResolver()
+                .acquireContentProviderClient(context.getString(R.string.sync_authority));
+        if (provider == null) {
+            return false;
+        }
+        try {
+            UploadOutbox outbox = new UploadOutbox(context, provider, account.name);
+            for (String path : localFilePaths) {
+                outbox.enqueue(path, driveFolderId);
+            }
+            return true;
+        } catch (RemoteException e) {
+            Log.e(TAG, "enqueueUploads(): " + e.getMessage());
+            return false;
+        } finally {
+            provider.release();
+        }
+    }
+
+    private static Bundle newUploadToFolderExtras(String driveFolderId) {
         Bundle bundle = new Bundle();
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         bundle.putBoolean(SYNC_IS_TO_UPLOAD_TO_FOLDER, true);
         bundle.putString(SYNC_DRIVE_FOLDER_ID, driveFolderId);
-        ContentResolver.requestSync(getSyncAccount(context), context.getString(R.string.sync_authority), bundle);
+        return bundle;
+    }
+
+    /**
+     * A request goes out right away, requests for the same account, folder and files following
+     * it within {@code windowMillis} go out together as a single sync once the window closes,
+     * expedited ones too. 0 turns coalescing off
+     */
+    public static void setCoalescingWindow(long windowMillis) {
+        getCoalescer().setWindow(windowMillis);
+    }
+
+    /**
+     * @return how many sync requests were merged into another one since the process started
+     */
+    public static long getCoalescedRequestCount() {
+        return getCoalescer().getCoalescedCount();
+    }
+
+    /**
+     * Sends the requests still waiting for their coalescing window to close
+     */
+    public static void flushPendingSyncRequests() {
+        getCoalescer().flushAll();
+    }
+
+    private static void requestSync(Context context, @Nullable Account account, Bundle extras,
+                                    @Nullable Collection<String> localFilePaths) {
+        if (account == null) {
+            Log.e(TAG, "requestSync(): no account to sync");
+            return;
+        }
+        String authority = context.getString(R.string.sync_authority);
+        StringBuilder key = new StringBuilder()
+                .append(account.name).append('|')
+                .append(extras.getString(SYNC_DRIVE_FOLDER_ID, "")).append('|');
+        if (extras.containsKey(SYNC_RESTORE_TITLE)) {
+            // Never merged with uploads of the same file
+            key.append("restore|");
+        } else if (extras.getBoolean(SYNC_REMOTE_CHANGES, false)) {
+            key.append("changes|");
+        } else if (extras.containsKey(SYNC_MIRROR_DIRECTORY)) {
+            key.append("mirror|");
+        }
+        if (localFilePaths != null) {
+            key.append(new TreeSet<>(localFilePaths));
+        }
+        getCoalescer().submit(key.toString(), new PendingSync(account, authority, extras));
+    }
+
+    private static RequestCoalescer<String, PendingSync> getCoalescer() {
+        synchronized (sCoalescerLock) {
+            if (sCoalescer == null) {
+                ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull Runnable runnable) {
+                        Thread thread = new Thread(runnable, TAG);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                sCoalescer = new RequestCoalescer<>(scheduler, DEFAULT_COALESCING_WINDOW_MILLIS,
+                        new RequestCoalescer.Merger<PendingSync>() {
+                            @Override
+                            public PendingSync merge(PendingSync pending, PendingSync incoming) {
+                                Bundle extras = new Bundle(pending.mExtras);
+                                extras.putAll(incoming.mExtras);
+                                return new PendingSync(incoming.mAccount, incoming.mAuthority, extras);
+                            }
+                        },
+                        new RequestCoalescer.Dispatcher<String, PendingSync>() {
+                            @Override
+                            public void dispatch(String key, PendingSync sync, int requestCount) {
+                                if (requestCount > 1) {
+                                    Log.v(TAG, "Coalesced " + requestCount + " sync requests for " + key);
+                                }
+                                sync.mExtras.putInt(SYNC_COALESCED_REQUESTS, requestCount);
+                                ContentResolver.requestSync(sync.mAccount, sync.mAuthority, sync.mExtras);
+                            }
+                        });
+            }
+            return sCoalescer;
+        }
+    }
+
+    /**
+     * @return stage timings, transferred bytes and errors of every sync run by this process
+     */
+    public static SyncMetrics.Snapshot getSyncMetrics() {
+        return SyncMetrics.getGlobal().snapshot();
+    }
+
+    /**
+     * @return hits, misses and leaks of the pool the drive tasks borrow their buffers from
+     */
+    public static BufferPool.Metrics getBufferPoolMetrics() {
+        return BufferPool.getDefault().getMetrics();
+    }
+
+    /**
+     * @return hit rate and saved round trips of the remote file metadata the uploads consult
+     */
+    public static MetadataCache.Metrics getMetadataCacheMetrics() {
+        return MetadataCache.getDefault().getMetrics();
+    }
+
+    /**
+     * @return queue depth, wait and execution times of the executor running the drive tasks
+     */
+    public static SyncExecutor.Metrics getSyncExecutorMetrics() {
+        return SyncExecutor.getDefault().getMetrics();
     }
 
     public static boolean isInternetConnected(Context context) {
@@ -157,4 +613,17 @@ public final class SyncHelper {
         NetworkInfo activeNetwork = connectivity.getActiveNetworkInfo();
         return activeNetwork != null && activeNetwork.isConnectedOrConnecting();
     }
+
+    private static final class PendingSync {
+
+        private final Account mAccount;
+        private final String mAuthority;
+        private final Bundle mExtras;
+
+        PendingSync(Account account, String authority, Bundle extras) {
+            mAccount = account;
+            mAuthority = authority;
+            mExtras = extras;
+        }
+    }
 }
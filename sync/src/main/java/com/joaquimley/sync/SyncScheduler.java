@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.util.Log;
+
+import com.joaquimley.sync.schedule.ChurnEstimator;
+import com.joaquimley.sync.schedule.SyncSchedulePolicy;
+
+import java.util.Random;
+
+/**
+ * Keeps the periodic sync in line with {@link SyncSchedulePolicy}, fed by the sync adapter at
+ * the end of every sync. The periodic sync is only re-registered when the interval moves
+ * significantly. Every account has its own interval and churn estimate.
+ */
+public class SyncScheduler {
+
+    private static final String TAG = "SyncScheduler";
+    private static final String PREFERENCES_NAME = "googleSyncServiceSchedule";
+    private static final String KEY_INTERVAL = "interval";
+    private static final String KEY_CHURN = "churnBytesPerSecond";
+    private static final String KEY_FAILURES = "consecutiveFailures";
+    private static final String KEY_LAST_SYNC = "lastSyncMillis";
+
+    private final Context mContext;
+    private final SyncSchedulePolicy mPolicy;
+
+    public SyncScheduler(Context context) {
+        this(context, new SyncSchedulePolicy(new Random()));
+    }
+
+    public SyncScheduler(Context context, SyncSchedulePolicy policy) {
+        mContext = context;
+        mPolicy = policy;
+    }
+
+    /**
+     * @return the registered periodic interval in seconds, the policy maximum until a sync ran
+     */
+    public long getCurrentInterval(Account account) {
+        return getPreferences(account).getLong(KEY_INTERVAL, SyncSchedulePolicy.DEFAULT_MAX_INTERVAL_SECONDS);
+    }
+
+    /**
+     * @param changedBytes bytes the sync found changed and uploaded
+     * @param outboxDepth  uploads still queued once the sync is over
+     * @param success      whether the sync finished without errors
+     */
+    public void onSyncFinished(Account account, long changedBytes, int outboxDepth, boolean success) {
+        SharedPreferences preferences = getPreferences(account);
+        long now = System.currentTimeMillis();
+        long lastSync = preferences.getLong(KEY_LAST_SYNC, 0);
+        ChurnEstimator churn = new ChurnEstimator(ChurnEstimator.DEFAULT_HALF_LIFE_SECONDS,
+                Double.longBitsToDouble(preferences.getLong(KEY_CHURN, Double.doubleToLongBits(-1))));
+        if (lastSync > 0 && success) {
+            churn.update(changedBytes, (now - lastSync) / 1000);
+        }
+        int failures = success ? 0 : preferences.getInt(KEY_FAILURES, 0) + 1;
+
+        long current = getCurrentInterval(account);
+        long proposed = mPolicy.computeInterval(churn.getBytesPerSecond(), outboxDepth, failures, isActiveNetworkMetered());
+        SharedPreferences.Editor editor = preferences.edit()
+                .putLong(KEY_CHURN, Double.doubleToLongBits(churn.getBytesPerSecond()))
+                .putInt(KEY_FAILURES, failures);
+        if (success) {
+            editor.putLong(KEY_LAST_SYNC, now);
+        }
+        if (SyncSchedulePolicy.isSignificantChange(current, proposed)) {
+            SyncHelper.configurePeriodicSync(mContext, account, proposed);
+            editor.putLong(KEY_INTERVAL, proposed);
+        } else {
+            Log.v(TAG, "Keeping the " + current + "s interval, proposed " + proposed + "s");
+        }
+        editor.apply();
+    }
+
+    private SharedPreferences getPreferences(Account account) {
+        return mContext.getSharedPreferences(PREFERENCES_NAME + "." + account.name, Context.MODE_PRIVATE);
+    }
+
+    private boolean isActiveNetworkMetered() {
+        ConnectivityManager connectivity = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return connectivity.isActiveNetworkMetered();
+    }
+}
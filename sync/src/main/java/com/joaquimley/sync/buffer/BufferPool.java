@@ -0,0 +1,490 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.buffer;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded pool of {@link ByteBuffer}s shared by the drive tasks, so uploading a file in steady
+ * state doesn't allocate its chunks.
+ * <p/>
+ * Buffers come in power of two size classes from {@link #MIN_CLASS_SIZE} to
+ * {@link #MAX_CLASS_SIZE}, larger ones are allocated and dropped as usual. Heap and direct
+ * buffers are pooled separately and released buffers are only kept while the retained bytes of
+ * their kind stay under the limit and a slot of their class is free, anything else is left to
+ * the garbage collector. Acquiring and releasing take no lock and, once the pool is warm,
+ * allocate nothing.
+ * <p/>
+ * Every acquired buffer has to be handed back to {@link #release(ByteBuffer)} once, the same
+ * instance and not a duplicate or slice of it. A tracking pool, the one debug builds install as default,
+ * checks that: it knows the buffers it handed out, through weak references so a leaked one can
+ * still be collected, and refuses any other. With {@link #setLeakDetection(LeakListener)} it
+ * also remembers where each buffer was acquired and reports those collected without being
+ * released.
+ */
+public class BufferPool {
+
+    public static final int MIN_CLASS_SIZE = 4 * 1024;
+    public static final int MAX_CLASS_SIZE = 1024 * 1024;
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 8 * 1024 * 1024;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+    private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_CLASS_SIZE) - MIN_SHIFT + 1;
+    // Idle buffers kept per size class, a few more than the threads acquiring at once
+    private static final int SLOTS_PER_CLASS = 16;
+
+    /**
+     * Hears about buffers garbage collected while still acquired.
+     */
+    public interface LeakListener {
+
+        /**
+         * @param acquiredAt stack trace of the {@link #acquire(int)} call
+         */
+        void onLeak(int capacity, Throwable acquiredAt);
+    }
+
+    private static BufferPool sDefault;
+
+    private final long mMaxRetainedBytes;
+    private final boolean mTracking;
+    private final FreeList mHeap;
+    private final FreeList mDirect;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mUnpooled = new AtomicLong();
+    private final AtomicLong mReleased = new AtomicLong();
+    private final AtomicLong mDiscarded = new AtomicLong();
+    private final AtomicLong mLeaks = new AtomicLong();
+    private final AtomicLong mOutstanding = new AtomicLong();
+
+    private volatile LeakListener mLeakListener;
+    // Both null unless tracking
+    private final ReferenceQueue<ByteBuffer> mCollected;
+    // Keyed by identity hash code, ByteBuffer's own hashCode() depends on its contents
+    private final Map<Integer, List<Acquisition>> mAcquisitions;
+
+    public BufferPool() {
+        this(DEFAULT_MAX_RETAINED_BYTES);
+    }
+
+    /**
+     * @param maxRetainedBytes upper bound of the idle bytes kept for reuse, for each of heap and
+     *                         direct buffers
+     */
+    public BufferPool(long maxRetainedBytes) {
+        this(maxRetainedBytes, false);
+    }
+
+    /**
+     * @param tracking whether to check releases and allow leak detection, at the cost of a
+     *                 lock and an allocation per acquire, meant for debug builds
+     */
+    public BufferPool(long maxRetainedBytes, boolean tracking) {
+        if (maxRetainedBytes < 0) {
+            throw new IllegalArgumentException("Retained bytes can't be negative: " + maxRetainedBytes);
+        }
+        mMaxRetainedBytes = maxRetainedBytes;
+        mTracking = tracking;
+        mHeap = new FreeList();
+        mDirect = new FreeList();
+        mCollected = tracking ? new ReferenceQueue<ByteBuffer>() : null;
+        mAcquisitions = tracking ? new HashMap<Integer, List<Acquisition>>() : null;
+    }
+
+    /**
+     * The pool the drive tasks use unless told otherwise.
+     */
+    public static synchronized BufferPool getDefault() {
+        if (sDefault == null) {
+            sDefault = new BufferPool();
+        }
+        return sDefault;
+    }
+
+    /**
+     * Replaces the default pool, to be called before any sync work starts.
+     */
+    public static synchronized void setDefault(BufferPool pool) {
+        sDefault = pool;
+    }
+
+    /**
+     * Starts reporting leaked buffers, meant for debug builds since every acquire then records
+     * a stack trace. Null turns it off for the buffers acquired from now on. Pools that don't
+     * track their buffers never report any.
+     */
+    public void setLeakDetection(LeakListener listener) {
+        mLeakListener = listener;
+    }
+
+    /**
+     * @return a heap buffer with position 0 and limit {@code size}, its capacity may be larger
+     */
+    public ByteBuffer acquire(int size) {
+        return acquire(size, false);
+    }
+
+    /**
+     * @return a direct buffer with position 0 and limit {@code size}, its capacity may be larger
+     */
+    public ByteBuffer acquireDirect(int size) {
+        return acquire(size, true);
+    }
+
+    private ByteBuffer acquire(int size, boolean direct) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Size can't be negative: " + size);
+        }
+        if (mTracking) {
+            pollLeaks();
+        }
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer;
+        if (sizeClass < 0) {
+            mUnpooled.incrementAndGet();
+            buffer = allocate(size, direct);
+        } else {
+            buffer = (direct ? mDirect : mHeap).poll(sizeClass);
+            if (buffer != null) {
+                mHits.incrementAndGet();
+            } else {
+                mMisses.incrementAndGet();
+                buffer = allocate(MIN_CLASS_SIZE << sizeClass, direct);
+            }
+            mOutstanding.incrementAndGet();
+            if (mTracking) {
+                track(buffer, mLeakListener != null);
+            }
+        }
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Gives {@code buffer} back for reuse, it must not be touched afterwards. Null is ignored so
+     * cleanup code can release whatever it got, and so are buffers too large to be pooled.
+     *
+     * @throws IllegalArgumentException when the buffer doesn't have the capacity of a size
+     *                                  class or, for a tracking pool, was released already or
+     *                                  doesn't come from this pool, handing it out again would
+     *                                  give two owners the same memory
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() > MAX_CLASS_SIZE) {
+            return;
+        }
+        if (mTracking ? !untrack(buffer) : !isClassSize(buffer.capacity())) {
+            throw new IllegalArgumentException("Buffer of " + buffer.capacity()
+                    + " bytes was released already or doesn't come from this pool");
+        }
+        mOutstanding.decrementAndGet();
+        int sizeClass = sizeClass(buffer.capacity());
+        buffer.clear();
+        if ((buffer.isDirect() ? mDirect : mHeap).offer(sizeClass, buffer)) {
+            mReleased.incrementAndGet();
+        } else {
+            mDiscarded.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drops every idle buffer.
+     */
+    public void trim() {
+        mHeap.clear();
+        mDirect.clear();
+    }
+
+    public Metrics getMetrics() {
+        if (mTracking) {
+            pollLeaks();
+        }
+        return new Metrics(mHits.get(), mMisses.get(), mUnpooled.get(), mReleased.get(), mDiscarded.get(),
+                mLeaks.get(), mOutstanding.get(), mHeap.getRetainedBytes(), mDirect.getRetainedBytes());
+    }
+
+    /**
+     * @return the index of the smallest class holding {@code size} bytes, -1 when it's too large
+     */
+    private static int sizeClass(int size) {
+        if (size > MAX_CLASS_SIZE) {
+            return -1;
+        }
+        if (size <= MIN_CLASS_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    private static boolean isClassSize(int capacity) {
+        return capacity >= MIN_CLASS_SIZE && Integer.bitCount(capacity) == 1;
+    }
+
+    private static ByteBuffer allocate(int capacity, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private void track(ByteBuffer buffer, boolean recordStackTrace) {
+        Acquisition acquisition = new Acquisition(buffer, mCollected, recordStackTrace);
+        Integer key = System.identityHashCode(buffer);
+        synchronized (mAcquisitions) {
+            List<Acquisition> acquisitions = mAcquisitions.get(key);
+            if (acquisitions == null) {
+                acquisitions = new ArrayList<>(1);
+                mAcquisitions.put(key, acquisitions);
+            }
+            acquisitions.add(acquisition);
+        }
+    }
+
+    /**
+     * @return whether {@code buffer} was handed out and not released since
+     */
+    private boolean untrack(ByteBuffer buffer) {
+        Integer key = System.identityHashCode(buffer);
+        synchronized (mAcquisitions) {
+            List<Acquisition> acquisitions = mAcquisitions.get(key);
+            if (acquisitions == null) {
+                return false;
+            }
+            for (int i = 0; i < acquisitions.size(); i++) {
+                Acquisition acquisition = acquisitions.get(i);
+                if (acquisition.get() == buffer) {
+                    acquisition.clear();
+                    acquisitions.remove(i);
+                    if (acquisitions.isEmpty()) {
+                        mAcquisitions.remove(key);
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Reports the tracked buffers the garbage collector found unreachable.
+     */
+    private void pollLeaks() {
+        Acquisition acquisition;
+        while ((acquisition = (Acquisition) mCollected.poll()) != null) {
+            boolean leaked = false;
+            synchronized (mAcquisitions) {
+                List<Acquisition> acquisitions = mAcquisitions.get(acquisition.mKey);
+                if (acquisitions != null && acquisitions.remove(acquisition)) {
+                    leaked = true;
+                    if (acquisitions.isEmpty()) {
+                        mAcquisitions.remove(acquisition.mKey);
+                    }
+                }
+            }
+            if (leaked) {
+                mLeaks.incrementAndGet();
+                mOutstanding.decrementAndGet();
+                LeakListener listener = mLeakListener;
+                if (listener != null && acquisition.mAcquiredAt != null) {
+                    listener.onLeak(acquisition.mCapacity, acquisition.mAcquiredAt);
+                }
+            }
+        }
+    }
+
+    private static final class Acquisition extends WeakReference<ByteBuffer> {
+
+        private final Integer mKey;
+        private final int mCapacity;
+        // Null unless leak detection was on when the buffer was acquired
+        private final Throwable mAcquiredAt;
+
+        Acquisition(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue, boolean recordStackTrace) {
+            super(buffer, queue);
+            mKey = System.identityHashCode(buffer);
+            mCapacity = buffer.capacity();
+            mAcquiredAt = recordStackTrace ? new Throwable("Buffer of " + buffer.capacity() + " bytes acquired here") : null;
+        }
+    }
+
+    /**
+     * Idle buffers of one kind in fixed slots per size class, claimed and filled with
+     * compare-and-set. Both ends scan a class from its first slot so the most recently used
+     * buffer, the one most likely still in the CPU cache, tends to go out first.
+     */
+    private final class FreeList {
+
+        private final AtomicReferenceArray<ByteBuffer> mSlots =
+                new AtomicReferenceArray<>(CLASS_COUNT * SLOTS_PER_CLASS);
+        private final AtomicLong mRetainedBytes = new AtomicLong();
+
+        ByteBuffer poll(int sizeClass) {
+            int end = (sizeClass + 1) * SLOTS_PER_CLASS;
+            for (int i = sizeClass * SLOTS_PER_CLASS; i < end; i++) {
+                ByteBuffer buffer = mSlots.get(i);
+                if (buffer != null && mSlots.compareAndSet(i, buffer, null)) {
+                    mRetainedBytes.addAndGet(-buffer.capacity());
+                    return buffer;
+                }
+            }
+            return null;
+        }
+
+        boolean offer(int sizeClass, ByteBuffer buffer) {
+            int capacity = buffer.capacity();
+            // The bytes are reserved before taking a slot so the limit holds under contention
+            long retained;
+            do {
+                retained = mRetainedBytes.get();
+                if (retained + capacity > mMaxRetainedBytes) {
+                    return false;
+                }
+            } while (!mRetainedBytes.compareAndSet(retained, retained + capacity));
+
+            int end = (sizeClass + 1) * SLOTS_PER_CLASS;
+            for (int i = sizeClass * SLOTS_PER_CLASS; i < end; i++) {
+                if (mSlots.get(i) == null && mSlots.compareAndSet(i, null, buffer)) {
+                    return true;
+                }
+            }
+            mRetainedBytes.addAndGet(-capacity);
+            return false;
+        }
+
+        void clear() {
+            for (int i = 0; i < mSlots.length(); i++) {
+                ByteBuffer buffer = mSlots.getAndSet(i, null);
+                if (buffer != null) {
+                    mRetainedBytes.addAndGet(-buffer.capacity());
+                }
+            }
+        }
+
+        long getRetainedBytes() {
+            return mRetainedBytes.get();
+        }
+    }
+
+    public static class Metrics {
+
+        private final long mHits;
+        private final long mMisses;
+        private final long mUnpooled;
+        private final long mReleased;
+        private final long mDiscarded;
+        private final long mLeaks;
+        private final long mOutstanding;
+        private final long mRetainedHeapBytes;
+        private final long mRetainedDirectBytes;
+
+        Metrics(long hits, long misses, long unpooled, long released, long discarded, long leaks, long outstanding,
+                long retainedHeapBytes, long retainedDirectBytes) {
+            mHits = hits;
+            mMisses = misses;
+            mUnpooled = unpooled;
+            mReleased = released;
+            mDiscarded = discarded;
+            mLeaks = leaks;
+            mOutstanding = outstanding;
+            mRetainedHeapBytes = retainedHeapBytes;
+            mRetainedDirectBytes = retainedDirectBytes;
+        }
+
+        /**
+         * @return acquisitions served by an idle buffer
+         */
+        public long getHits() {
+            return mHits;
+        }
+
+        /**
+         * @return acquisitions that had to allocate a pooled size
+         */
+        public long getMisses() {
+            return mMisses;
+        }
+
+        /**
+         * @return acquisitions larger than {@link #MAX_CLASS_SIZE}, never pooled
+         */
+        public long getUnpooled() {
+            return mUnpooled;
+        }
+
+        public double getHitRate() {
+            long total = mHits + mMisses;
+            return total == 0 ? 0 : (double) mHits / total;
+        }
+
+        /**
+         * @return releases kept for reuse
+         */
+        public long getReleased() {
+            return mReleased;
+        }
+
+        /**
+         * @return releases dropped because the pool was full
+         */
+        public long getDiscarded() {
+            return mDiscarded;
+        }
+
+        /**
+         * @return buffers collected without being released
+         */
+        public long getLeaks() {
+            return mLeaks;
+        }
+
+        /**
+         * @return pooled buffers acquired and not released yet
+         */
+        public long getOutstanding() {
+            return mOutstanding;
+        }
+
+        public long getRetainedHeapBytes() {
+            return mRetainedHeapBytes;
+        }
+
+        public long getRetainedDirectBytes() {
+            return mRetainedDirectBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "BufferPool.Metrics{hits=" + mHits
+                    + " misses=" + mMisses
+                    + " unpooled=" + mUnpooled
+                    + " released=" + mReleased
+                    + " discarded=" + mDiscarded
+                    + " leaks=" + mLeaks
+                    + " outstanding=" + mOutstanding
+                    + " retainedHeap=" + mRetainedHeapBytes
+                    + "B retainedDirect=" + mRetainedDirectBytes + "B}";
+        }
+    }
+}
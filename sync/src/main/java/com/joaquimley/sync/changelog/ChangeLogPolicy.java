@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.changelog;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when pending changes are sealed into a segment and when a snapshot replaces them.
+ * <p/>
+ * Changes are held back until they fill a segment or the oldest one has waited long enough,
+ * so a sync after a handful of small edits doesn't upload a file of its own. A snapshot is
+ * taken when the segments since the last one add up to a sizeable part of it, or there are
+ * so many that a restore would spend its time fetching them.
+ */
+public class ChangeLogPolicy {
+
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 512 * 1024;
+    public static final long DEFAULT_MAX_SEGMENT_AGE_MILLIS = TimeUnit.MINUTES.toMillis(15);
+    public static final int DEFAULT_MAX_SEGMENTS_PER_SNAPSHOT = 32;
+    /**
+     * Segments adding up to this fraction of the last snapshot's size trigger a new one.
+     */
+    public static final double DEFAULT_SNAPSHOT_RATIO = 0.5;
+
+    private final long mMaxSegmentBytes;
+    private final long mMaxSegmentAgeMillis;
+    private final int mMaxSegmentsPerSnapshot;
+    private final double mSnapshotRatio;
+
+    public ChangeLogPolicy() {
+        this(DEFAULT_MAX_SEGMENT_BYTES, DEFAULT_MAX_SEGMENT_AGE_MILLIS, DEFAULT_MAX_SEGMENTS_PER_SNAPSHOT,
+                DEFAULT_SNAPSHOT_RATIO);
+    }
+
+    /**
+     * @param maxSegmentBytes        pending changes rolled into a segment once they reach this size
+     * @param maxSegmentAgeMillis    or once the oldest of them is this old
+     * @param maxSegmentsPerSnapshot segments uploaded after a snapshot before the next one
+     * @param snapshotRatio          see {@link #DEFAULT_SNAPSHOT_RATIO}
+     */
+    public ChangeLogPolicy(long maxSegmentBytes, long maxSegmentAgeMillis, int maxSegmentsPerSnapshot,
+                           double snapshotRatio) {
+        if (maxSegmentBytes <= 0 || maxSegmentAgeMillis < 0 || maxSegmentsPerSnapshot <= 0 || snapshotRatio <= 0) {
+            throw new IllegalArgumentException("Invalid change log policy");
+        }
+        mMaxSegmentBytes = maxSegmentBytes;
+        mMaxSegmentAgeMillis = maxSegmentAgeMillis;
+        mMaxSegmentsPerSnapshot = maxSegmentsPerSnapshot;
+        mSnapshotRatio = snapshotRatio;
+    }
+
+    public long getMaxSegmentBytes() {
+        return mMaxSegmentBytes;
+    }
+
+    public long getMaxSegmentAgeMillis() {
+        return mMaxSegmentAgeMillis;
+    }
+
+    /**
+     * @param pendingBytes       approximate size of the changes not uploaded yet
+     * @param oldestPendingMillis when the oldest of them was made
+     */
+    public boolean shouldRoll(long pendingBytes, long oldestPendingMillis, long nowMillis) {
+        if (pendingBytes <= 0) {
+            return false;
+        }
+        return pendingBytes >= mMaxSegmentBytes || nowMillis - oldestPendingMillis >= mMaxSegmentAgeMillis;
+    }
+
+    /**
+     * @param snapshotBytes         size of the last snapshot, negative when there is none yet
+     * @param segmentsSinceSnapshot segments uploaded after it, including the ones about to be
+     * @param segmentBytesSinceSnapshot their total size
+     */
+    public boolean shouldSnapshot(long snapshotBytes, int segmentsSinceSnapshot, long segmentBytesSinceSnapshot) {
+        if (snapshotBytes < 0) {
+            return true;
+        }
+        return segmentsSinceSnapshot > mMaxSegmentsPerSnapshot
+                || segmentBytesSinceSnapshot >= snapshotBytes * mSnapshotRatio;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.changelog;
+
+/**
+ * A record-level mutation appended by the app: the latest value of a record, or its deletion.
+ * Records are identified by the collection they belong to and their id within it.
+ */
+public class ChangeRecord {
+
+    // Ids, timestamps and the flag, what every record costs on top of its strings
+    private static final int RECORD_OVERHEAD_BYTES = 32;
+
+    private final long mId;
+    private final String mCollection;
+    private final String mRecordId;
+    private final boolean mDeleted;
+    private final String mData;
+    private final long mCreatedAt;
+
+    /**
+     * @param id        position in the change log, increasing with every change
+     * @param data      the record's content, null when it was deleted
+     * @param createdAt when the app made the change, in milliseconds
+     */
+    public ChangeRecord(long id, String collection, String recordId, boolean deleted, String data, long createdAt) {
+        if (collection == null || recordId == null) {
+            throw new IllegalArgumentException("A change needs a collection and a record id");
+        }
+        mId = id;
+        mCollection = collection;
+        mRecordId = recordId;
+        mDeleted = deleted;
+        mData = deleted ? null : data;
+        mCreatedAt = createdAt;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public String getCollection() {
+        return mCollection;
+    }
+
+    public String getRecordId() {
+        return mRecordId;
+    }
+
+    public boolean isDeleted() {
+        return mDeleted;
+    }
+
+    public String getData() {
+        return mData;
+    }
+
+    public long getCreatedAt() {
+        return mCreatedAt;
+    }
+
+    /**
+     * @return roughly what the change takes in a segment, counting a char as a byte
+     */
+    public long getApproximateSize() {
+        return RECORD_OVERHEAD_BYTES + mCollection.length() + mRecordId.length() + (mData != null ? mData.length() : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeRecord{id=" + mId + ", " + mCollection + "/" + mRecordId + (mDeleted ? " deleted" : "") + "}";
+    }
+}
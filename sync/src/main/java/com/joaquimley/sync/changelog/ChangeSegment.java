@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.changelog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A file of consecutive {@link ChangeRecord}s as it is uploaded to Drive.
+ * <p/>
+ * A {@link Kind#SEGMENT} holds the changes with ids in {@code (firstId, lastId]}, one per record
+ * since the change log only keeps the latest change of each record. A {@link Kind#SNAPSHOT}
+ * holds every record alive at {@code lastId} and no deletions, restoring means reading the
+ * latest snapshot and applying the segments after it in order.
+ * <p/>
+ * File names sort in change log order, so listing the folder is enough to plan a restore.
+ */
+public class ChangeSegment {
+
+    public enum Kind {
+        SEGMENT,
+        SNAPSHOT
+    }
+
+    public static final String SEGMENT_PREFIX = "changes-";
+    public static final String SEGMENT_EXTENSION = ".seg";
+    public static final String SNAPSHOT_PREFIX = "snapshot-";
+    public static final String SNAPSHOT_EXTENSION = ".snap";
+
+    private static final int MAGIC = 0x434c4f47; // CLOG
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Kind mKind;
+    private final long mFirstId;
+    private final long mLastId;
+    private final List<ChangeRecord> mRecords;
+
+    /**
+     * @param firstId id of the change right before the first one held, what the segment follows on
+     * @param lastId  id of the last change covered, which may be past the last record held
+     */
+    public ChangeSegment(Kind kind, long firstId, long lastId, List<ChangeRecord> records) {
+        if (lastId < firstId) {
+            throw new IllegalArgumentException("Segment ends before it starts: " + firstId + " > " + lastId);
+        }
+        mKind = kind;
+        mFirstId = firstId;
+        mLastId = lastId;
+        mRecords = Collections.unmodifiableList(new ArrayList<>(records));
+    }
+
+    public Kind getKind() {
+        return mKind;
+    }
+
+    public long getFirstId() {
+        return mFirstId;
+    }
+
+    public long getLastId() {
+        return mLastId;
+    }
+
+    public List<ChangeRecord> getRecords() {
+        return mRecords;
+    }
+
+    /**
+     * @return the Drive title of the segment, ids are zero padded so names sort by id
+     */
+    public String getFileName() {
+        if (mKind == Kind.SNAPSHOT) {
+            return String.format(Locale.US, "%s%019d%s", SNAPSHOT_PREFIX, mLastId, SNAPSHOT_EXTENSION);
+        }
+        return String.format(Locale.US, "%s%019d-%019d%s", SEGMENT_PREFIX, mFirstId, mLastId, SEGMENT_EXTENSION);
+    }
+
+    /**
+     * Writes the segment into {@code directory} under {@link #getFileName()}.
+     *
+     * @return the file written
+     */
+    public File writeTo(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        File file = new File(directory, getFileName());
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeByte(VERSION);
+            output.writeByte(mKind.ordinal());
+            output.writeLong(mFirstId);
+            output.writeLong(mLastId);
+            output.writeInt(mRecords.size());
+            for (ChangeRecord record : mRecords) {
+                output.writeLong(record.getId());
+                output.writeLong(record.getCreatedAt());
+                output.writeBoolean(record.isDeleted());
+                writeString(output, record.getCollection());
+                writeString(output, record.getRecordId());
+                writeString(output, record.getData());
+            }
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    public static ChangeSegment read(File file) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != MAGIC) {
+                throw new IOException(file + " is not a change segment");
+            }
+            int version = input.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported change segment version " + version + " in " + file);
+            }
+            int kind = input.readUnsignedByte();
+            if (kind >= Kind.values().length) {
+                throw new IOException("Unknown segment kind " + kind + " in " + file);
+            }
+            long firstId = input.readLong();
+            long lastId = input.readLong();
+            int count = input.readInt();
+            if (count < 0) {
+                throw new IOException("Corrupted change segment " + file);
+            }
+            List<ChangeRecord> records = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                long id = input.readLong();
+                long createdAt = input.readLong();
+                boolean deleted = input.readBoolean();
+                String collection = readString(input);
+                String recordId = readString(input);
+                String data = readString(input);
+                records.add(new ChangeRecord(id, collection, recordId, deleted, data, createdAt));
+            }
+            return new ChangeSegment(Kind.values()[kind], firstId, lastId, records);
+        } catch (EOFException e) {
+            throw new IOException("Truncated change segment " + file, e);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Length prefixed UTF-8, {@link DataOutputStream#writeUTF(String)} stops at 64KB.
+     */
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeSegment{" + mKind + " (" + mFirstId + ", " + mLastId + "], " + mRecords.size() + " records}";
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.compress;
+
+import com.joaquimley.sync.buffer.BufferPool;
+import com.joaquimley.sync.drive.ChannelUploadTransport;
+import com.joaquimley.sync.drive.UploadTransport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Deflater;
+
+/**
+ * {@link UploadTransport} decorator compressing everything on its way to another transport.
+ * <p/>
+ * With auto selection on, the first chunk is sampled with a fast deflate pass and, when it
+ * doesn't shrink enough, the data is sent as is, straight from the file's channel when the
+ * downstream transport is a {@link ChannelUploadTransport}. Compressed streams can't be resumed
+ * at an arbitrary offset, so every upload through this transport starts from the beginning.
+ * The MD5 of the content going through is kept, Drive's checksum is of the compressed bytes.
+ */
+public class CompressingUploadTransport implements ChannelUploadTransport {
+
+    /**
+     * Sampled data compressing to more than this fraction of its size is sent uncompressed.
+     */
+    public static final double MAX_SAMPLE_RATIO = 0.9;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final int COPY_SIZE = 16 * 1024;
+
+    private final UploadTransport mDownstream;
+    private final CompressionCodec mCodec;
+    private final boolean mAutoSelect;
+
+    private CompressionCodec mSelectedCodec;
+    private OutputStream mStream;
+    private long mUncompressedBytes;
+    private long mCompressedBytes;
+    // Of the uncompressed content, null once part of it went down without passing through here
+    private MessageDigest mMd5;
+    private String mUncompressedMd5;
+
+    public CompressingUploadTransport(UploadTransport downstream, CompressionCodec codec, boolean autoSelect) {
+        mDownstream = downstream;
+        mCodec = codec;
+        mAutoSelect = autoSelect;
+    }
+
+    @Override
+    public long open(long offset) throws IOException {
+        if (mDownstream.open(0) != 0) {
+            throw new IOException("Compressed uploads must restart from the beginning");
+        }
+        mSelectedCodec = null;
+        mStream = null;
+        mUncompressedBytes = 0;
+        mCompressedBytes = 0;
+        mUncompressedMd5 = null;
+        try {
+            mMd5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 not available", e);
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean supportsResume() {
+        return false;
+    }
+
+    @Override
+    public void write(ByteBuffer chunk) throws IOException {
+        if (mStream == null) {
+            start(chunk);
+        }
+        int length = chunk.remaining();
+        if (canTransfer()) {
+            // A mapped chunk goes down as is rather than through a heap copy
+            mStream.flush();
+            mDownstream.write(chunk);
+            mCompressedBytes += length;
+            mMd5 = null;
+        } else if (chunk.hasArray()) {
+            if (mMd5 != null) {
+                mMd5.update(chunk.array(), chunk.arrayOffset() + chunk.position(), length);
+            }
+            mStream.write(chunk.array(), chunk.arrayOffset() + chunk.position(), length);
+            chunk.position(chunk.limit());
+        } else {
+            ByteBuffer copy = BufferPool.getDefault().acquire(Math.min(length, COPY_SIZE));
+            try {
+                while (chunk.hasRemaining()) {
+                    int count = Math.min(chunk.remaining(), copy.limit());
+                    chunk.get(copy.array(), copy.arrayOffset(), count);
+                    if (mMd5 != null) {
+                        mMd5.update(copy.array(), copy.arrayOffset(), count);
+                    }
+                    mStream.write(copy.array(), copy.arrayOffset(), count);
+                }
+            } finally {
+                BufferPool.getDefault().release(copy);
+            }
+        }
+        mUncompressedBytes += length;
+    }
+
+    /**
+     * @return true once the first chunk turned compression off and the downstream transport
+     * can take the rest from the file's channel
+     */
+    @Override
+    public boolean canTransfer() {
+        return mStream != null && mSelectedCodec == CompressionCodecs.NONE && mDownstream instanceof ChannelUploadTransport
+                && ((ChannelUploadTransport) mDownstream).canTransfer();
+    }
+
+    @Override
+    public long transferFrom(FileChannel source, long position, long count) throws IOException {
+        if (!canTransfer()) {
+            throw new IllegalStateException("Only uncompressed uploads can be transferred");
+        }
+        // Whatever the pass-through stream still holds goes first
+        mStream.flush();
+        long sent = ((ChannelUploadTransport) mDownstream).transferFrom(source, position, count);
+        mUncompressedBytes += sent;
+        mCompressedBytes += sent;
+        mMd5 = null;
+        return sent;
+    }
+
+    @Override
+    public void commit() throws IOException {
+        // Only what the codec already emitted is committed, forcing a flush would cost ratio
+        mDownstream.commit();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mStream == null) {
+                start(ByteBuffer.allocate(0));
+            }
+            mStream.close();
+            mDownstream.commit();
+            if (mMd5 != null) {
+                mUncompressedMd5 = hex(mMd5.digest());
+            }
+        } finally {
+            mDownstream.close();
+        }
+    }
+
+    /**
+     * @return the codec actually used, {@link CompressionCodecs#NONE} when compression was skipped
+     */
+    public CompressionCodec getSelectedCodec() {
+        return mSelectedCodec;
+    }
+
+    public long getUncompressedBytes() {
+        return mUncompressedBytes;
+    }
+
+    public long getCompressedBytes() {
+        return mCompressedBytes;
+    }
+
+    /**
+     * @return hex MD5 of the uncompressed content once the transport is closed, null when part
+     * of it was sent as is, the stored bytes' MD5 is the content's then
+     */
+    public String getUncompressedMd5() {
+        return mUncompressedMd5;
+    }
+
+    private void start(ByteBuffer firstChunk) throws IOException {
+        mSelectedCodec = !mAutoSelect || isCompressible(firstChunk) ? mCodec : CompressionCodecs.NONE;
+        mStream = mSelectedCodec.compress(new DownstreamOutputStream());
+    }
+
+    /**
+     * Runs a fast deflate over the beginning of {@code sample} without consuming it.
+     */
+    public static boolean isCompressible(ByteBuffer sample) {
+        int length = Math.min(sample.remaining(), SAMPLE_SIZE);
+        if (length == 0) {
+            return false;
+        }
+        BufferPool bufferPool = BufferPool.getDefault();
+        ByteBuffer copy = null;
+        byte[] input;
+        int offset;
+        if (sample.hasArray()) {
+            input = sample.array();
+            offset = sample.arrayOffset() + sample.position();
+        } else {
+            copy = bufferPool.acquire(length);
+            sample.duplicate().get(copy.array(), copy.arrayOffset(), length);
+            input = copy.array();
+            offset = copy.arrayOffset();
+        }
+        ByteBuffer output = bufferPool.acquire(BufferPool.MIN_CLASS_SIZE);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input, offset, length);
+            deflater.finish();
+            long compressed = 0;
+            long limit = (long) (length * MAX_SAMPLE_RATIO);
+            while (!deflater.finished() && compressed <= limit) {
+                compressed += deflater.deflate(output.array(), output.arrayOffset(), output.limit());
+            }
+            return compressed <= limit;
+        } finally {
+            deflater.end();
+            bufferPool.release(output);
+            bufferPool.release(copy);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Feeds what the codec emits into the downstream transport.
+     */
+    private final class DownstreamOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            mDownstream.write(ByteBuffer.wrap(bytes, offset, length));
+            mCompressedBytes += length;
+        }
+
+        @Override
+        public void close() {
+            // The downstream transport is closed by CompressingUploadTransport itself
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.compress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The built in codecs: gzip, raw zlib deflate and identity.
+ */
+public final class CompressionCodecs {
+
+    public static final String IDENTITY = "identity";
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static final CompressionCodec NONE = new CompressionCodec() {
+        @Override
+        public String getName() {
+            return IDENTITY;
+        }
+
+        @Override
+        public String getMimeType() {
+            return "application/octet-stream";
+        }
+
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return in;
+        }
+    };
+
+    private CompressionCodecs() {
+    }
+
+    /**
+     * @param level 1 (fastest) to 9 (smallest), or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public static CompressionCodec gzip(final int level) {
+        return new CompressionCodec() {
+            @Override
+            public String getName() {
+                return GZIP;
+            }
+
+            @Override
+            public String getMimeType() {
+                return "application/gzip";
+            }
+
+            @Override
+            public OutputStream compress(OutputStream out) throws IOException {
+                return new GZIPOutputStream(out, BUFFER_SIZE) {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+            }
+
+            @Override
+            public InputStream decompress(InputStream in) throws IOException {
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            }
+        };
+    }
+
+    /**
+     * @param level 1 (fastest) to 9 (smallest), or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public static CompressionCodec deflate(final int level) {
+        return new CompressionCodec() {
+            @Override
+            public String getName() {
+                return DEFLATE;
+            }
+
+            @Override
+            public String getMimeType() {
+                return "application/zlib";
+            }
+
+            @Override
+            public OutputStream compress(OutputStream out) {
+                final Deflater deflater = new Deflater(level);
+                return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            // Not the default deflater, so the stream won't release it for us
+                            deflater.end();
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public InputStream decompress(InputStream in) {
+                return new InflaterInputStream(in);
+            }
+        };
+    }
+
+    /**
+     * @return the codec stored under {@code name}, the level doesn't matter for decompression
+     * @throws IllegalArgumentException when no codec has that name
+     */
+    public static CompressionCodec forName(String name) {
+        if (IDENTITY.equals(name)) {
+            return NONE;
+        } else if (GZIP.equals(name)) {
+            return gzip(Deflater.DEFAULT_COMPRESSION);
+        } else if (DEFLATE.equals(name)) {
+            return deflate(Deflater.DEFAULT_COMPRESSION);
+        }
+        throw new IllegalArgumentException("Unknown compression codec " + name);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.delta;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the same {@link FileManifest} as {@link ManifestBuilder}, with the blocks of a large
+ * file split into ranges hashed in parallel. Every range is read through its own memory
+ * mapping, so workers never share a file position.
+ * <p/>
+ * Small files are hashed on the calling thread, handing them off would cost more than it saves.
+ */
+public class BlockHasher {
+
+    /**
+     * Blocks a range holds at least, files with fewer are not split.
+     */
+    public static final int MIN_BLOCKS_PER_RANGE = 16;
+    // Ranges per worker, so a worker slowed down by page faults doesn't hold up the others
+    private static final int RANGES_PER_WORKER = 4;
+    // A multi-GB file can't be mapped whole in a 32 bit address space
+    private static final long MAX_RANGE_BYTES = 32 * 1024 * 1024;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static BlockHasher sDefault;
+
+    private final ThreadPoolExecutor mPool;
+    private final int mParallelism;
+
+    /**
+     * @param parallelism upper bound of threads hashing at once, idle threads go away
+     */
+    public BlockHasher(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be positive");
+        }
+        mParallelism = parallelism;
+        mPool = new ThreadPoolExecutor(parallelism, parallelism, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new HasherThreadFactory());
+        mPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The hasher the change detectors use unless told otherwise, a thread per core.
+     */
+    public static synchronized BlockHasher getDefault() {
+        if (sDefault == null) {
+            sDefault = new BlockHasher(Runtime.getRuntime().availableProcessors());
+        }
+        return sDefault;
+    }
+
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    /**
+     * Blocks until every block of the file is hashed.
+     *
+     * @throws InterruptedIOException when the calling thread is interrupted meanwhile
+     */
+    public FileManifest build(File file, int blockSize, int revision) throws IOException {
+        // Stat before reading, a write racing with us then shows up as a changed mtime next time
+        long lastModified = file.lastModified();
+        long length = file.length();
+        int blockCount = (int) ((length + blockSize - 1) / blockSize);
+        int[] weakSums = new int[blockCount];
+        byte[] strongSums = new byte[blockCount * FileManifest.STRONG_SUM_LENGTH];
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            int rangeBlocks = getRangeBlocks(blockCount, blockSize);
+            if (rangeBlocks >= blockCount) {
+                new RangeHasher(channel, length, blockSize, 0, blockCount, weakSums, strongSums).call();
+            } else {
+                List<Future<Void>> ranges = new ArrayList<>((blockCount + rangeBlocks - 1) / rangeBlocks);
+                for (int first = 0; first < blockCount; first += rangeBlocks) {
+                    ranges.add(mPool.submit(new RangeHasher(channel, length, blockSize, first,
+                            Math.min(rangeBlocks, blockCount - first), weakSums, strongSums)));
+                }
+                await(ranges);
+            }
+        } finally {
+            in.close();
+        }
+        return new FileManifest(file.getAbsolutePath(), length, lastModified, blockSize, revision, weakSums, strongSums);
+    }
+
+    /**
+     * Lets the threads go once the queued hashing is done.
+     */
+    public void shutdown() {
+        mPool.shutdown();
+    }
+
+    int getRangeBlocks(int blockCount, int blockSize) {
+        int rangeBlocks = (blockCount + mParallelism * RANGES_PER_WORKER - 1) / (mParallelism * RANGES_PER_WORKER);
+        rangeBlocks = Math.max(rangeBlocks, MIN_BLOCKS_PER_RANGE);
+        return (int) Math.max(1, Math.min(rangeBlocks, MAX_RANGE_BYTES / blockSize));
+    }
+
+    private static void await(List<Future<Void>> ranges) throws IOException {
+        try {
+            for (Future<Void> range : ranges) {
+                range.get();
+            }
+        } catch (InterruptedException e) {
+            cancel(ranges);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while hashing");
+        } catch (ExecutionException e) {
+            cancel(ranges);
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static void cancel(List<Future<Void>> ranges) {
+        for (Future<Void> range : ranges) {
+            range.cancel(true);
+        }
+    }
+
+    /**
+     * Hashes consecutive blocks into their slots of the shared sums, no two ranges share a slot.
+     */
+    private static final class RangeHasher implements Callable<Void> {
+
+        private final FileChannel mChannel;
+        private final long mLength;
+        private final int mBlockSize;
+        private final int mFirstBlock;
+        private final int mBlockCount;
+        private final int[] mWeakSums;
+        private final byte[] mStrongSums;
+
+        RangeHasher(FileChannel channel, long length, int blockSize, int firstBlock, int blockCount,
+                    int[] weakSums, byte[] strongSums) {
+            mChannel = channel;
+            mLength = length;
+            mBlockSize = blockSize;
+            mFirstBlock = firstBlock;
+            mBlockCount = blockCount;
+            mWeakSums = weakSums;
+            mStrongSums = strongSums;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            if (mBlockCount == 0) {
+                return null;
+            }
+            long start = (long) mFirstBlock * mBlockSize;
+            long end = Math.min(mLength, (long) (mFirstBlock + mBlockCount) * mBlockSize);
+            // Mapping past the end of a file that shrank would fault
+            if (mChannel.size() < end) {
+                throw new IOException("File shrank while it was being hashed");
+            }
+            MappedByteBuffer mapped = mChannel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            MessageDigest md5 = ManifestBuilder.newMd5();
+            // RollingChecksum only takes arrays, each block is copied out of the mapping once
+            byte[] block = new byte[mBlockSize];
+            try {
+                for (int i = mFirstBlock; i < mFirstBlock + mBlockCount; i++) {
+                    int blockLength = mapped.remaining() < mBlockSize ? mapped.remaining() : mBlockSize;
+                    mapped.get(block, 0, blockLength);
+                    mWeakSums[i] = RollingChecksum.of(block, 0, blockLength);
+                    md5.update(block, 0, blockLength);
+                    md5.digest(mStrongSums, i * FileManifest.STRONG_SUM_LENGTH, FileManifest.STRONG_SUM_LENGTH);
+                }
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+            return null;
+        }
+    }
+
+    private static final class HasherThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "BlockHasher-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.delta;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Decides, before anything is uploaded, whether a file needs to be sent at all and if so
+ * whether a {@link DeltaPatch} against the last uploaded revision is enough.
+ * <p/>
+ * Files whose size and modification time match the manifest are skipped without being read,
+ * the others are hashed by a {@link BlockHasher} and compared block by block through their
+ * {@link MerkleTree}.
+ * Once the upload succeeded the change must be passed to {@link #commit(Change)} so that the
+ * next sync diffs against it.
+ */
+public class ChangeDetector {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    /**
+     * Patches stacked on top of a full upload before the next full upload, a restore has to
+     * replay all of them.
+     */
+    public static final int DEFAULT_MAX_PATCH_CHAIN = 30;
+    /**
+     * A patch bigger than this fraction of the file is not worth it, the file is sent in full.
+     */
+    private static final double MAX_PATCH_RATIO = 0.5;
+
+    public enum Type {
+        UNCHANGED, FULL, PATCH
+    }
+
+    /**
+     * Outcome of {@link #detect(File, File)}.
+     */
+    public static final class Change {
+
+        private final Type mType;
+        private final File mSource;
+        private final FileManifest mManifest;
+        private final File mPatchFile;
+        private final long mBytesToUpload;
+
+        Change(Type type, File source, FileManifest manifest, File patchFile, long bytesToUpload) {
+            mType = type;
+            mSource = source;
+            mManifest = manifest;
+            mPatchFile = patchFile;
+            mBytesToUpload = bytesToUpload;
+        }
+
+        public Type getType() {
+            return mType;
+        }
+
+        public File getSource() {
+            return mSource;
+        }
+
+        /**
+         * Manifest describing the file once this change is uploaded.
+         */
+        public FileManifest getManifest() {
+            return mManifest;
+        }
+
+        /**
+         * The patch to upload instead of the file, only for {@link Type#PATCH}.
+         */
+        public File getPatchFile() {
+            return mPatchFile;
+        }
+
+        /**
+         * Revision this change creates remotely, 0 for a full upload.
+         */
+        public int getRevision() {
+            return mManifest.getRevision();
+        }
+
+        public long getBytesToUpload() {
+            return mBytesToUpload;
+        }
+
+        @Override
+        public String toString() {
+            return "Change{" + mType + ", " + mBytesToUpload + " of " + mManifest.getLength() + " bytes, rev " + getRevision() + "}";
+        }
+    }
+
+    private final FileManifestStore mStore;
+    private final int mBlockSize;
+    private final int mMaxPatchChain;
+    private final BlockHasher mHasher;
+
+    public ChangeDetector(FileManifestStore store) {
+        this(store, DEFAULT_BLOCK_SIZE, DEFAULT_MAX_PATCH_CHAIN);
+    }
+
+    public ChangeDetector(FileManifestStore store, int blockSize, int maxPatchChain) {
+        this(store, blockSize, maxPatchChain, BlockHasher.getDefault());
+    }
+
+    public ChangeDetector(FileManifestStore store, int blockSize, int maxPatchChain, BlockHasher hasher) {
+        mStore = store;
+        mBlockSize = blockSize;
+        mMaxPatchChain = maxPatchChain;
+        mHasher = hasher;
+    }
+
+    /**
+     * @param patchFile where a patch is written when one is worth uploading
+     */
+    public Change detect(File source, File patchFile) throws IOException {
+        FileManifest previous = mStore.load(source.getAbsolutePath());
+        if (previous != null && previous.getBlockSize() == mBlockSize
+                && previous.getLength() == source.length() && previous.getLastModified() == source.lastModified()) {
+            return new Change(Type.UNCHANGED, source, previous, null, 0);
+        }
+
+        FileManifest current = mHasher.build(source, mBlockSize, 0);
+        if (previous == null || previous.getBlockSize() != mBlockSize) {
+            return full(source, current);
+        }
+        List<MerkleTree.BlockRange> changed = MerkleTree.of(current).diff(MerkleTree.of(previous));
+        if (changed.isEmpty() && current.equals(previous)) {
+            // Touched but not modified, remember the new timestamp so the next check is a stat
+            FileManifest refreshed = current.withRevision(previous.getRevision());
+            mStore.save(refreshed);
+            return new Change(Type.UNCHANGED, source, refreshed, null, 0);
+        }
+        if (previous.getRevision() >= mMaxPatchChain) {
+            return full(source, current);
+        }
+
+        // Only whole blocks can be skipped, a shorter last block is encoded even when unchanged
+        int sameLeadingBlocks = changed.isEmpty() ? current.getBlockCount() : changed.get(0).getFirstBlock();
+        while (sameLeadingBlocks > 0 && current.getBlockLength(sameLeadingBlocks - 1) != mBlockSize) {
+            sameLeadingBlocks--;
+        }
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(patchFile));
+        try {
+            new DeltaEncoder(previous).encode(source, sameLeadingBlocks, out);
+        } finally {
+            out.close();
+        }
+        if (patchFile.length() > current.getLength() * MAX_PATCH_RATIO) {
+            //noinspection ResultOfMethodCallIgnored
+            patchFile.delete();
+            return full(source, current);
+        }
+        return new Change(Type.PATCH, source, current.withRevision(previous.getRevision() + 1), patchFile,
+                patchFile.length());
+    }
+
+    /**
+     * Records a successfully uploaded change as the base for the next {@link #detect(File, File)}.
+     * If the file was modified while it was being uploaded the manifest is dropped instead,
+     * which forces a full upload next time rather than a patch against the wrong base.
+     */
+    public void commit(Change change) throws IOException {
+        if (change.getType() == Type.UNCHANGED) {
+            return;
+        }
+        File source = change.getSource();
+        FileManifest manifest = change.getManifest();
+        if (source.length() != manifest.getLength() || source.lastModified() != manifest.getLastModified()) {
+            mStore.remove(manifest.getPath());
+        } else {
+            mStore.save(manifest);
+        }
+        if (change.getPatchFile() != null) {
+            //noinspection ResultOfMethodCallIgnored
+            change.getPatchFile().delete();
+        }
+    }
+
+    /**
+     * Drops what is known about {@code source}, for when it was replaced by other content than
+     * it was last uploaded with. The next {@link #detect(File, File)} is a full upload.
+     */
+    public void forget(File source) {
+        mStore.remove(source.getAbsolutePath());
+    }
+
+    private static Change full(File source, FileManifest current) {
+        return new Change(Type.FULL, source, current, null, current.getLength());
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * rsync style encoder: slides a {@link RollingChecksum} over the new file looking for blocks of
+ * the base revision, emitting copies for the blocks it finds and literals for everything else.
+ * Blocks that moved, not only the ones that stayed in place, are found this way.
+ */
+final class DeltaEncoder {
+
+    private static final int MIN_BUFFER_SIZE = 1024 * 1024;
+
+    private final FileManifest mBase;
+    private final int mBlockSize;
+    // Open addressing table of the base's full blocks by weak sum, chained through mNext
+    private final int[] mHeads;
+    private final int[] mNext;
+    private final int mMask;
+
+    DeltaEncoder(FileManifest base) {
+        mBase = base;
+        mBlockSize = base.getBlockSize();
+        int fullBlocks = (int) (base.getLength() / mBlockSize);
+        int capacity = Integer.highestOneBit(Math.max(16, fullBlocks * 2) - 1) << 1;
+        mHeads = new int[capacity];
+        mNext = new int[fullBlocks];
+        mMask = capacity - 1;
+        for (int i = fullBlocks - 1; i >= 0; i--) {
+            int bucket = bucket(base.getWeakSum(i));
+            mNext[i] = mHeads[bucket];
+            mHeads[bucket] = i + 1;
+        }
+    }
+
+    /**
+     * Writes the patch from the base to {@code target}.
+     *
+     * @param sameLeadingBlocks number of leading blocks already known to be identical, they are
+     *                          copied without being read again
+     * @return the number of literal bytes in the patch
+     */
+    long encode(File target, int sameLeadingBlocks, OutputStream patch) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(target, "r");
+        try {
+            long targetLength = file.length();
+            DeltaPatch.Writer writer = new DeltaPatch.Writer(patch, mBlockSize, mBase.getLength(), targetLength);
+            if (sameLeadingBlocks > 0) {
+                writer.copy(0, sameLeadingBlocks);
+            }
+
+            byte[] buffer = new byte[Math.max(MIN_BUFFER_SIZE, mBlockSize * 4)];
+            byte[] digest = new byte[FileManifest.STRONG_SUM_LENGTH];
+            MessageDigest md5 = ManifestBuilder.newMd5();
+            RollingChecksum checksum = new RollingChecksum();
+
+            // buffer[0, bufferLength) holds the file from bufferStart
+            long bufferStart = (long) sameLeadingBlocks * mBlockSize;
+            int bufferLength = 0;
+            int position = 0;
+            int literalStart = 0;
+            boolean freshWindow = true;
+
+            while (true) {
+                // Keep the window plus the next byte in memory, unless the file ends first
+                if (position + mBlockSize + 1 > bufferLength && bufferStart + bufferLength < targetLength) {
+                    writer.literal(buffer, literalStart, position - literalStart);
+                    System.arraycopy(buffer, position, buffer, 0, bufferLength - position);
+                    bufferStart += position;
+                    bufferLength -= position;
+                    position = 0;
+                    literalStart = 0;
+                    bufferLength += fill(file, bufferStart + bufferLength, buffer, bufferLength);
+                }
+                if (position + mBlockSize > bufferLength) {
+                    break;
+                }
+                if (freshWindow) {
+                    checksum.reset(buffer, position, mBlockSize);
+                    freshWindow = false;
+                }
+
+                int match = findBlock(checksum.getValue(), buffer, position, md5, digest);
+                if (match >= 0) {
+                    writer.literal(buffer, literalStart, position - literalStart);
+                    writer.copy(match, 1);
+                    position += mBlockSize;
+                    literalStart = position;
+                    freshWindow = true;
+                } else {
+                    if (position + mBlockSize < bufferLength) {
+                        checksum.roll(buffer[position], buffer[position + mBlockSize]);
+                    } else {
+                        freshWindow = true;
+                    }
+                    position++;
+                }
+            }
+            writer.literal(buffer, literalStart, bufferLength - literalStart);
+            writer.finish();
+            return writer.getLiteralBytes();
+        } finally {
+            file.close();
+        }
+    }
+
+    private int findBlock(int weakSum, byte[] buffer, int offset, MessageDigest md5, byte[] digest) throws IOException {
+        boolean digested = false;
+        for (int i = mHeads[bucket(weakSum)] - 1; i >= 0; i = mNext[i] - 1) {
+            if (mBase.getWeakSum(i) != weakSum) {
+                continue;
+            }
+            if (!digested) {
+                md5.update(buffer, offset, mBlockSize);
+                try {
+                    md5.digest(digest, 0, digest.length);
+                } catch (DigestException e) {
+                    throw new IllegalStateException(e);
+                }
+                digested = true;
+            }
+            if (mBase.strongSumEquals(i, digest)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int bucket(int weakSum) {
+        return (weakSum ^ (weakSum >>> 16)) & mMask;
+    }
+
+    private static int fill(RandomAccessFile file, long position, byte[] buffer, int offset) throws IOException {
+        file.seek(position);
+        int total = 0;
+        while (offset + total < buffer.length) {
+            int read = file.read(buffer, offset + total, buffer.length - offset - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+}
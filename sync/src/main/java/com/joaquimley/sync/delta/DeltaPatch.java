@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.delta;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Block level patch that turns the previous revision of a file into the current one.
+ * <p/>
+ * The format is a header (magic, version, block size, base and target length) followed by
+ * operations: copy a run of blocks from the base, insert literal bytes, or end.
+ */
+public final class DeltaPatch {
+
+    static final int MAGIC = 0x47534450; // "GSDP"
+    static final int VERSION = 1;
+
+    static final byte OP_END = 0;
+    static final byte OP_COPY = 1;
+    static final byte OP_LITERAL = 2;
+
+    static final int MAX_LITERAL_LENGTH = 1024 * 1024;
+
+    private DeltaPatch() {
+    }
+
+    /**
+     * Rebuilds the target file from {@code base}, the revision the patch was computed against.
+     *
+     * @return the number of bytes written to {@code target}
+     */
+    public static long apply(File base, InputStream patch, OutputStream target) throws IOException {
+        DataInputStream in = new DataInputStream(patch);
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a delta patch");
+        }
+        int blockSize = in.readInt();
+        long baseLength = in.readLong();
+        long targetLength = in.readLong();
+
+        RandomAccessFile baseFile = new RandomAccessFile(base, "r");
+        try {
+            if (baseFile.length() != baseLength) {
+                throw new IOException("Patch expects a base of " + baseLength + " bytes, found " + baseFile.length());
+            }
+            byte[] buffer = new byte[Math.max(blockSize, 64 * 1024)];
+            long written = 0;
+            while (true) {
+                byte op = in.readByte();
+                if (op == OP_END) {
+                    break;
+                } else if (op == OP_COPY) {
+                    long offset = (long) in.readInt() * blockSize;
+                    long remaining = (long) in.readInt() * blockSize;
+                    baseFile.seek(offset);
+                    while (remaining > 0) {
+                        int length = (int) Math.min(buffer.length, remaining);
+                        baseFile.readFully(buffer, 0, length);
+                        target.write(buffer, 0, length);
+                        written += length;
+                        remaining -= length;
+                    }
+                } else if (op == OP_LITERAL) {
+                    int remaining = in.readInt();
+                    while (remaining > 0) {
+                        int length = Math.min(buffer.length, remaining);
+                        in.readFully(buffer, 0, length);
+                        target.write(buffer, 0, length);
+                        written += length;
+                        remaining -= length;
+                    }
+                } else {
+                    throw new IOException("Unknown patch operation " + op);
+                }
+            }
+            if (written != targetLength) {
+                throw new IOException("Patch produced " + written + " bytes, expected " + targetLength);
+            }
+            return written;
+        } finally {
+            baseFile.close();
+        }
+    }
+
+    /**
+     * Streams patch operations, merging consecutive block copies into a single run.
+     */
+    static final class Writer {
+
+        private final DataOutputStream mOut;
+        private int mCopyStart = -1;
+        private int mCopyCount;
+        private long mLiteralBytes;
+
+        Writer(OutputStream out, int blockSize, long baseLength, long targetLength) throws IOException {
+            mOut = new DataOutputStream(out);
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+            mOut.writeInt(blockSize);
+            mOut.writeLong(baseLength);
+            mOut.writeLong(targetLength);
+        }
+
+        void copy(int blockIndex, int count) throws IOException {
+            if (mCopyStart >= 0 && mCopyStart + mCopyCount == blockIndex) {
+                mCopyCount += count;
+                return;
+            }
+            flushCopy();
+            mCopyStart = blockIndex;
+            mCopyCount = count;
+        }
+
+        void literal(byte[] bytes, int offset, int length) throws IOException {
+            flushCopy();
+            while (length > 0) {
+                int run = Math.min(length, MAX_LITERAL_LENGTH);
+                mOut.writeByte(OP_LITERAL);
+                mOut.writeInt(run);
+                mOut.write(bytes, offset, run);
+                mLiteralBytes += run;
+                offset += run;
+                length -= run;
+            }
+        }
+
+        void finish() throws IOException {
+            flushCopy();
+            mOut.writeByte(OP_END);
+            mOut.flush();
+        }
+
+        long getLiteralBytes() {
+            return mLiteralBytes;
+        }
+
+        private void flushCopy() throws IOException {
+            if (mCopyStart < 0) {
+                return;
+            }
+            mOut.writeByte(OP_COPY);
+            mOut.writeInt(mCopyStart);
+            mOut.writeInt(mCopyCount);
+            mCopyStart = -1;
+            mCopyCount = 0;
+        }
+    }
+}
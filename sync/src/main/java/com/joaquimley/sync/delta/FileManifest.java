@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.delta;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * What we know about a file as it was last synced: size, modification time and a weak
+ * ({@link RollingChecksum}) plus strong (MD5) hash of every block.
+ * <p/>
+ * The revision counts how many patches were uploaded on top of the last full copy.
+ */
+public final class FileManifest {
+
+    static final int STRONG_SUM_LENGTH = 16;
+
+    private final String mPath;
+    private final long mLength;
+    private final long mLastModified;
+    private final int mBlockSize;
+    private final int mRevision;
+    private final int[] mWeakSums;
+    private final byte[] mStrongSums;
+
+    FileManifest(String path, long length, long lastModified, int blockSize, int revision,
+                 int[] weakSums, byte[] strongSums) {
+        mPath = path;
+        mLength = length;
+        mLastModified = lastModified;
+        mBlockSize = blockSize;
+        mRevision = revision;
+        mWeakSums = weakSums;
+        mStrongSums = strongSums;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    public long getLastModified() {
+        return mLastModified;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public int getRevision() {
+        return mRevision;
+    }
+
+    public int getBlockCount() {
+        return mWeakSums.length;
+    }
+
+    /**
+     * Length of block {@code index}, only the last block can be shorter than the block size.
+     */
+    public int getBlockLength(int index) {
+        return (int) Math.min(mBlockSize, mLength - (long) index * mBlockSize);
+    }
+
+    public int getWeakSum(int index) {
+        return mWeakSums[index];
+    }
+
+    public boolean strongSumEquals(int index, byte[] strongSum) {
+        int offset = index * STRONG_SUM_LENGTH;
+        for (int i = 0; i < STRONG_SUM_LENGTH; i++) {
+            if (mStrongSums[offset + i] != strongSum[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * True when block {@code index} of both manifests has the same length and hashes.
+     */
+    public boolean blockEquals(int index, FileManifest other) {
+        if (index >= getBlockCount() || index >= other.getBlockCount()
+                || getBlockLength(index) != other.getBlockLength(index)
+                || mWeakSums[index] != other.mWeakSums[index]) {
+            return false;
+        }
+        int offset = index * STRONG_SUM_LENGTH;
+        for (int i = 0; i < STRONG_SUM_LENGTH; i++) {
+            if (mStrongSums[offset + i] != other.mStrongSums[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The MD5 of every block back to back, shared rather than copied so not to be modified.
+     */
+    byte[] getStrongSums() {
+        return mStrongSums;
+    }
+
+    FileManifest withRevision(int revision) {
+        return new FileManifest(mPath, mLength, mLastModified, mBlockSize, revision, mWeakSums, mStrongSums);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeUTF(mPath);
+        out.writeLong(mLength);
+        out.writeLong(mLastModified);
+        out.writeInt(mBlockSize);
+        out.writeInt(mRevision);
+        out.writeInt(mWeakSums.length);
+        for (int weakSum : mWeakSums) {
+            out.writeInt(weakSum);
+        }
+        out.write(mStrongSums);
+    }
+
+    static FileManifest readFrom(DataInputStream in) throws IOException {
+        String path = in.readUTF();
+        long length = in.readLong();
+        long lastModified = in.readLong();
+        int blockSize = in.readInt();
+        int revision = in.readInt();
+        int blockCount = in.readInt();
+        if (blockSize <= 0 || blockCount < 0 || (long) blockCount * blockSize < length) {
+            throw new IOException("Corrupted manifest for " + path);
+        }
+        int[] weakSums = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            weakSums[i] = in.readInt();
+        }
+        byte[] strongSums = new byte[blockCount * STRONG_SUM_LENGTH];
+        in.readFully(strongSums);
+        return new FileManifest(path, length, lastModified, blockSize, revision, weakSums, strongSums);
+    }
+
+    /**
+     * Manifests are equal when they describe the same content, regardless of path or timestamps.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FileManifest)) {
+            return false;
+        }
+        FileManifest that = (FileManifest) o;
+        return mLength == that.mLength && mBlockSize == that.mBlockSize
+                && Arrays.equals(mWeakSums, that.mWeakSums) && Arrays.equals(mStrongSums, that.mStrongSums);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (int) (mLength ^ (mLength >>> 32)) + Arrays.hashCode(mWeakSums);
+    }
+
+    @Override
+    public String toString() {
+        return "FileManifest{" + mPath + ", " + mLength + " bytes, " + getBlockCount() + " blocks, rev " + mRevision + "}";
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.delta;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Keeps the {@link FileManifest} of every synced file in its own file inside a directory,
+ * replacing it atomically on every save.
+ */
+public class FileManifestStore {
+
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+
+    public FileManifestStore(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * @return the manifest of the last successful sync of {@code path}, or null if there is none
+     */
+    public synchronized FileManifest load(String path) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileFor(path))));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            FileManifest manifest = FileManifest.readFrom(in);
+            return path.equals(manifest.getPath()) ? manifest : null;
+        } catch (IOException e) {
+            // Unreadable manifest, the file will just be uploaded in full again
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    public synchronized void save(FileManifest manifest) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create manifest directory " + mDirectory);
+        }
+        File target = fileFor(manifest.getPath());
+        File temp = new File(mDirectory, target.getName() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        try {
+            out.writeInt(VERSION);
+            manifest.writeTo(out);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(target)) {
+            throw new IOException("Unable to commit manifest for " + manifest.getPath());
+        }
+    }
+
+    public synchronized void remove(String path) {
+        //noinspection ResultOfMethodCallIgnored
+        fileFor(path).delete();
+    }
+
+    private File fileFor(String path) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(path.getBytes(UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2 + 9);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return new File(mDirectory, name.append(".manifest").toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.delta;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Reads a file once and hashes each of its blocks into a {@link FileManifest}.
+ */
+public final class ManifestBuilder {
+
+    private ManifestBuilder() {
+    }
+
+    public static FileManifest build(File file, int blockSize, int revision) throws IOException {
+        // Stat before reading, a write racing with us then shows up as a changed mtime next time
+        long lastModified = file.lastModified();
+        long length = file.length();
+        int blockCount = (int) ((length + blockSize - 1) / blockSize);
+        int[] weakSums = new int[blockCount];
+        byte[] strongSums = new byte[blockCount * FileManifest.STRONG_SUM_LENGTH];
+
+        MessageDigest md5 = newMd5();
+        byte[] block = new byte[blockSize];
+        InputStream in = new FileInputStream(file);
+        try {
+            for (int i = 0; i < blockCount; i++) {
+                int blockLength = (int) Math.min(blockSize, length - (long) i * blockSize);
+                readFully(in, block, blockLength);
+                weakSums[i] = RollingChecksum.of(block, 0, blockLength);
+                md5.update(block, 0, blockLength);
+                md5.digest(strongSums, i * FileManifest.STRONG_SUM_LENGTH, FileManifest.STRONG_SUM_LENGTH);
+            }
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            in.close();
+        }
+        return new FileManifest(file.getAbsolutePath(), length, lastModified, blockSize, revision, weakSums, strongSums);
+    }
+
+    static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = in.read(buffer, total, length - total);
+            if (read < 0) {
+                throw new IOException("File shrank while it was being hashed");
+            }
+            total += read;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.delta;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hash tree over the blocks of a {@link FileManifest}: every leaf is the MD5 of a block and
+ * every node the MD5 of its two children, a node without a sibling being carried up as is.
+ * <p/>
+ * Nodes are addressed by level and index, node {@code (level, i)} covering blocks
+ * {@code i * 2^level} onwards in both trees of a {@link #diff}, so two versions of a file are
+ * compared from the root down and only subtrees that differ are visited: finding k changed
+ * blocks among n takes O(k log n) comparisons, nothing for an unchanged file.
+ */
+public final class MerkleTree {
+
+    private static final int HASH_LENGTH = FileManifest.STRONG_SUM_LENGTH;
+
+    /**
+     * Consecutive blocks that differ between two trees.
+     */
+    public static final class BlockRange {
+
+        private final int mFirstBlock;
+        private final int mBlockCount;
+
+        BlockRange(int firstBlock, int blockCount) {
+            mFirstBlock = firstBlock;
+            mBlockCount = blockCount;
+        }
+
+        public int getFirstBlock() {
+            return mFirstBlock;
+        }
+
+        public int getBlockCount() {
+            return mBlockCount;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BlockRange)) {
+                return false;
+            }
+            BlockRange that = (BlockRange) o;
+            return mFirstBlock == that.mFirstBlock && mBlockCount == that.mBlockCount;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mFirstBlock + mBlockCount;
+        }
+
+        @Override
+        public String toString() {
+            return "BlockRange{" + mFirstBlock + "+" + mBlockCount + "}";
+        }
+    }
+
+    private final int mBlockCount;
+    // Level 0 holds the leaves, the last level the root
+    private final byte[][] mLevels;
+
+    private MerkleTree(int blockCount, byte[][] levels) {
+        mBlockCount = blockCount;
+        mLevels = levels;
+    }
+
+    public static MerkleTree of(FileManifest manifest) {
+        List<byte[]> levels = new ArrayList<>();
+        byte[] level = manifest.getStrongSums();
+        levels.add(level);
+        MessageDigest md5 = ManifestBuilder.newMd5();
+        try {
+            for (int nodes = manifest.getBlockCount(); nodes > 1; nodes = (nodes + 1) / 2) {
+                byte[] parents = new byte[(nodes + 1) / 2 * HASH_LENGTH];
+                for (int child = 0; child < nodes; child += 2) {
+                    int parent = child / 2 * HASH_LENGTH;
+                    if (child + 1 < nodes) {
+                        md5.update(level, child * HASH_LENGTH, 2 * HASH_LENGTH);
+                        md5.digest(parents, parent, HASH_LENGTH);
+                    } else {
+                        System.arraycopy(level, child * HASH_LENGTH, parents, parent, HASH_LENGTH);
+                    }
+                }
+                levels.add(parents);
+                level = parents;
+            }
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        return new MerkleTree(manifest.getBlockCount(), levels.toArray(new byte[levels.size()][]));
+    }
+
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    /**
+     * @return the hash of the whole tree, empty for an empty file
+     */
+    public byte[] getRootHash() {
+        return mLevels[mLevels.length - 1].clone();
+    }
+
+    /**
+     * @return the blocks whose hash differs or that only one of the trees has, in order
+     */
+    public List<BlockRange> diff(MerkleTree other) {
+        List<BlockRange> ranges = new ArrayList<>();
+        collect(other, Math.max(mLevels.length, other.mLevels.length) - 1, 0, ranges);
+        return ranges;
+    }
+
+    private void collect(MerkleTree other, int level, int index, List<BlockRange> ranges) {
+        if ((long) index << level >= Math.max(mBlockCount, other.mBlockCount) || sameNode(other, level, index)) {
+            return;
+        }
+        if (level == 0) {
+            BlockRange last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && last.mFirstBlock + last.mBlockCount == index) {
+                ranges.set(ranges.size() - 1, new BlockRange(last.mFirstBlock, last.mBlockCount + 1));
+            } else {
+                ranges.add(new BlockRange(index, 1));
+            }
+            return;
+        }
+        collect(other, level - 1, 2 * index, ranges);
+        collect(other, level - 1, 2 * index + 1, ranges);
+    }
+
+    /**
+     * Nodes only compare when they cover the same blocks, their subtrees then have the same shape.
+     */
+    private boolean sameNode(MerkleTree other, int level, int index) {
+        int covered = coveredBlocks(level, index);
+        if (covered == 0 || covered != other.coveredBlocks(level, index)
+                || level >= mLevels.length || level >= other.mLevels.length) {
+            return false;
+        }
+        int offset = index * HASH_LENGTH;
+        byte[] mine = mLevels[level];
+        byte[] theirs = other.mLevels[level];
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            if (mine[offset + i] != theirs[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int coveredBlocks(int level, int index) {
+        long first = (long) index << level;
+        return (int) Math.max(0, Math.min(first + (1L << level), mBlockCount) - first);
+    }
+
+    /**
+     * Trees are equal when their files have the same blocks.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MerkleTree)) {
+            return false;
+        }
+        MerkleTree that = (MerkleTree) o;
+        return mBlockCount == that.mBlockCount && Arrays.equals(getRootHash(), that.getRootHash());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mLevels[mLevels.length - 1]);
+    }
+
+    @Override
+    public String toString() {
+        return "MerkleTree{" + mBlockCount + " blocks, " + mLevels.length + " levels}";
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.delta;
+
+/**
+ * The rsync weak checksum: cheap to slide one byte at a time over a window of fixed length,
+ * so every offset of a file can be looked up against the known blocks.
+ */
+public final class RollingChecksum {
+
+    private int mA;
+    private int mB;
+    private int mLength;
+
+    /**
+     * Starts over on the window {@code bytes[offset, offset + length)}.
+     */
+    public void reset(byte[] bytes, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = bytes[offset + i] & 0xFF;
+            a += value;
+            b += (length - i) * value;
+        }
+        mA = a;
+        mB = b;
+        mLength = length;
+    }
+
+    /**
+     * Slides the window one byte forward, {@code out} leaves it and {@code in} enters it.
+     */
+    public void roll(byte out, byte in) {
+        int outValue = out & 0xFF;
+        mA += (in & 0xFF) - outValue;
+        mB += mA - mLength * outValue;
+    }
+
+    public int getValue() {
+        return (mA & 0xFFFF) | (mB << 16);
+    }
+
+    public static int of(byte[] bytes, int offset, int length) {
+        RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(bytes, offset, length);
+        return checksum.getValue();
+    }
+}
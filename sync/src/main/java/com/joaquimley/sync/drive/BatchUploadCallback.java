@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive;
+
+import java.io.File;
+
+/**
+ * Results of a {@link BatchUploader} run, called from the uploader's worker threads.
+ */
+public interface BatchUploadCallback {
+
+    /**
+     * @return the callback receiving the events of {@code file}, or null to ignore them
+     */
+    DriveTaskCallback getFileCallback(File file);
+
+    void onBatchFinished(BatchUploadResult result);
+
+}
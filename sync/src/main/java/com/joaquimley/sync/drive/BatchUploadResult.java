@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Aggregate outcome of a {@link BatchUploader} run.
+ */
+public final class BatchUploadResult {
+
+    private final int mFileCount;
+    private final Map<File, String> mUploaded;
+    private final Map<File, String> mFailures;
+    private final long mBytesUploaded;
+    private final long mElapsedMillis;
+
+    BatchUploadResult(int fileCount, Map<File, String> uploaded, Map<File, String> failures, long bytesUploaded,
+                      long elapsedMillis) {
+        mFileCount = fileCount;
+        mUploaded = Collections.unmodifiableMap(uploaded);
+        mFailures = Collections.unmodifiableMap(failures);
+        mBytesUploaded = bytesUploaded;
+        mElapsedMillis = elapsedMillis;
+    }
+
+    public int getFileCount() {
+        return mFileCount;
+    }
+
+    public int getSuccessCount() {
+        return mUploaded.size();
+    }
+
+    public int getFailureCount() {
+        return mFailures.size();
+    }
+
+    public boolean isSuccess() {
+        return mFailures.isEmpty() && mUploaded.size() == mFileCount;
+    }
+
+    /**
+     * Remote id of every uploaded file.
+     */
+    public Map<File, String> getUploaded() {
+        return mUploaded;
+    }
+
+    /**
+     * Error message of every file that failed.
+     */
+    public Map<File, String> getFailures() {
+        return mFailures;
+    }
+
+    public long getBytesUploaded() {
+        return mBytesUploaded;
+    }
+
+    public long getElapsedMillis() {
+        return mElapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchUploadResult{" + getSuccessCount() + "/" + mFileCount + " files, " + mBytesUploaded
+                + " bytes in " + mElapsedMillis + "ms}";
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive;
+
+import com.joaquimley.sync.buffer.BufferPool;
+import com.joaquimley.sync.metrics.SyncMetrics;
+import com.joaquimley.sync.retry.ErrorClassifier;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads many files to a {@link RemoteFolder} as a pipeline: a single reader thread streams
+ * and hashes files from disk while up to {@code workers} writer threads push the chunks it
+ * produced to the remote side. The reader stays at most one file ahead of the writers and each
+ * file buffers a handful of chunks, so memory is bounded no matter how many files are queued.
+ * The chunks are borrowed from a {@link BufferPool} and go back to it once written.
+ */
+public class BatchUploader {
+
+    public static final int DEFAULT_WORKERS = 4;
+    public static final int MAX_WORKERS = 16;
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    private static final String MIME_TYPE = "application/octet-stream";
+    private static final int QUEUED_CHUNKS_PER_FILE = 4;
+
+    private final RemoteFolder mRemoteFolder;
+    private final int mWorkers;
+    private final int mChunkSize;
+    private final SyncMetrics mMetrics;
+    private final BufferPool mBufferPool;
+
+    public BatchUploader(RemoteFolder remoteFolder) {
+        this(remoteFolder, DEFAULT_WORKERS, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param workers concurrent remote writes, capped at {@link #MAX_WORKERS}
+     */
+    public BatchUploader(RemoteFolder remoteFolder, int workers, int chunkSize) {
+        this(remoteFolder, workers, chunkSize, SyncMetrics.getGlobal());
+    }
+
+    /**
+     * @param metrics receives the stage timings, transferred bytes and failures of the batch
+     */
+    public BatchUploader(RemoteFolder remoteFolder, int workers, int chunkSize, SyncMetrics metrics) {
+        this(remoteFolder, workers, chunkSize, metrics, BufferPool.getDefault());
+    }
+
+    /**
+     * @param bufferPool where the chunks are borrowed from
+     */
+    public BatchUploader(RemoteFolder remoteFolder, int workers, int chunkSize, SyncMetrics metrics,
+                         BufferPool bufferPool) {
+        if (workers <= 0 || chunkSize <= 0) {
+            throw new IllegalArgumentException("Workers and chunk size must be positive");
+        }
+        mRemoteFolder = remoteFolder;
+        mWorkers = Math.min(workers, MAX_WORKERS);
+        mChunkSize = chunkSize;
+        mMetrics = metrics;
+        mBufferPool = bufferPool;
+    }
+
+    /**
+     * The regular files directly inside {@code directory}, sorted by name.
+     */
+    public static List<File> listFiles(File directory) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(children);
+        List<File> files = new ArrayList<>(children.length);
+        for (File child : children) {
+            if (child.isFile()) {
+                files.add(child);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Uploads every file as a new remote file, blocking until all of them either succeeded or
+     * failed.
+     */
+    public BatchUploadResult upload(List<File> files, BatchUploadCallback callback) throws InterruptedException {
+        return upload(files, false, Collections.<File, String>emptyMap(), callback);
+    }
+
+    /**
+     * Like {@link #upload(List, BatchUploadCallback)}, but overwrites the remote file with the
+     * same name instead of creating another one, see {@link RemoteFolder#upsertFile}.
+     *
+     * @param remoteIds where files were uploaded to before, files missing from it are looked up
+     *                  by name
+     */
+    public BatchUploadResult upsert(List<File> files, Map<File, String> remoteIds, BatchUploadCallback callback)
+            throws InterruptedException {
+        return upload(files, true, remoteIds, callback);
+    }
+
+    private BatchUploadResult upload(List<File> files, boolean upsert, Map<File, String> remoteIds,
+                                     BatchUploadCallback callback) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        final Map<File, String> uploaded = Collections.synchronizedMap(new LinkedHashMap<File, String>());
+        final Map<File, String> failures = Collections.synchronizedMap(new LinkedHashMap<File, String>());
+        final AtomicLong bytesUploaded = new AtomicLong();
+        final CountDownLatch finished = new CountDownLatch(files.size());
+        // One file can be read ahead while every worker is busy writing
+        final Semaphore inFlight = new Semaphore(mWorkers + 1);
+
+        ExecutorService reader = Executors.newSingleThreadExecutor(new NamedThreadFactory("BatchUploader-read"));
+        ExecutorService writers = Executors.newFixedThreadPool(mWorkers, new NamedThreadFactory("BatchUploader-write"));
+        try {
+            for (File file : files) {
+                inFlight.acquire();
+                final FileJob job = new FileJob(file, upsert, remoteIds.get(file),
+                        callback != null ? callback.getFileCallback(file) : null);
+                reader.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        job.read();
+                    }
+                });
+                writers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            String remoteId = job.write();
+                            uploaded.put(job.mFile, remoteId);
+                            bytesUploaded.addAndGet(job.mBytesWritten);
+                            mMetrics.recordFileUploaded();
+                        } catch (IOException e) {
+                            failures.put(job.mFile, e.getMessage());
+                            mMetrics.recordError(job.mReadError != null ? SyncMetrics.ErrorCause.LOCAL_IO
+                                    : ErrorClassifier.causeOf(e, SyncMetrics.ErrorCause.REMOTE));
+                        } finally {
+                            inFlight.release();
+                            finished.countDown();
+                        }
+                    }
+                });
+            }
+            finished.await();
+        } finally {
+            reader.shutdownNow();
+            writers.shutdownNow();
+        }
+
+        BatchUploadResult result = new BatchUploadResult(files.size(), new LinkedHashMap<>(uploaded),
+                new LinkedHashMap<>(failures), bytesUploaded.get(), System.currentTimeMillis() - startTime);
+        if (callback != null) {
+            callback.onBatchFinished(result);
+        }
+        return result;
+    }
+
+    /**
+     * One file going through the pipeline, chunks travel from the reader to the writer through
+     * a small bounded queue which also makes the reader wait when the network is slower.
+     */
+    private final class FileJob {
+
+        private final File mFile;
+        private final boolean mUpsert;
+        private final String mRemoteId;
+        private final DriveTaskCallback mListener;
+        private final BlockingQueue<ByteBuffer> mChunks = new ArrayBlockingQueue<>(QUEUED_CHUNKS_PER_FILE);
+        private final ByteBuffer mEnd = ByteBuffer.allocate(0);
+
+        private volatile boolean mCancelled;
+        private volatile IOException mReadError;
+        private volatile String mMd5;
+        private long mBytesWritten;
+
+        FileJob(File file, boolean upsert, String remoteId, DriveTaskCallback listener) {
+            mFile = file;
+            mUpsert = upsert;
+            mRemoteId = remoteId;
+            mListener = listener;
+        }
+
+        void read() {
+            try {
+                MessageDigest md5 = MessageDigest.getInstance("MD5");
+                FileInputStream inputStream = new FileInputStream(mFile);
+                try {
+                    // Small files don't hold on to a whole chunk
+                    int chunkSize = (int) Math.max(1, Math.min(mChunkSize, mFile.length()));
+                    while (!mCancelled) {
+                        ByteBuffer chunk = mBufferPool.acquire(chunkSize);
+                        boolean queued = false;
+                        try {
+                            long readStart = System.nanoTime();
+                            int read = inputStream.getChannel().read(chunk);
+                            if (read < 0) {
+                                break;
+                            }
+                            mMetrics.record(SyncMetrics.Stage.READ, readStart);
+                            mMetrics.addBytesRead(read);
+                            chunk.flip();
+                            md5.update(chunk.array(), chunk.arrayOffset(), chunk.limit());
+                            mChunks.put(chunk);
+                            queued = true;
+                        } finally {
+                            if (!queued) {
+                                mBufferPool.release(chunk);
+                            }
+                        }
+                    }
+                } finally {
+                    inputStream.close();
+                    if (mCancelled) {
+                        // The writer is gone, it may have drained the queue before our last put
+                        releaseQueued();
+                    }
+                }
+                mMd5 = hex(md5.digest());
+            } catch (IOException e) {
+                mReadError = e;
+            } catch (NoSuchAlgorithmException e) {
+                mReadError = new IOException("MD5 not available", e);
+            } catch (InterruptedException e) {
+                mReadError = new IOException("Interrupted while reading " + mFile, e);
+                Thread.currentThread().interrupt();
+            } finally {
+                signalEnd();
+            }
+        }
+
+        /**
+         * Always lands: the writer either keeps draining the queue or cleared it when it aborted.
+         */
+        private void signalEnd() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mChunks.put(mEnd);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        String write() throws IOException {
+            if (mListener != null) {
+                mListener.onTaskStarted();
+            }
+            RemoteFolder.RemoteFile remoteFile = null;
+            try {
+                long contentsStart = System.nanoTime();
+                remoteFile = mUpsert ? mRemoteFolder.upsertFile(mFile.getName(), MIME_TYPE, mRemoteId)
+                        : mRemoteFolder.newFile(mFile.getName(), MIME_TYPE);
+                mMetrics.record(SyncMetrics.Stage.CONTENTS, contentsStart);
+                UploadTransport transport = remoteFile.getTransport();
+                transport.open(0);
+                boolean inProgressReported = false;
+                ByteBuffer chunk;
+                while ((chunk = mChunks.take()) != mEnd) {
+                    int length = chunk.remaining();
+                    long writeStart = System.nanoTime();
+                    try {
+                        transport.write(chunk);
+                        transport.commit();
+                    } finally {
+                        mBufferPool.release(chunk);
+                    }
+                    mMetrics.record(SyncMetrics.Stage.WRITE, writeStart);
+                    mMetrics.addBytesWritten(length);
+                    mBytesWritten += length;
+                    if (!inProgressReported && mListener != null) {
+                        mListener.onTaskInProgress();
+                        inProgressReported = true;
+                    }
+                }
+                transport.close();
+                if (mReadError != null) {
+                    throw mReadError;
+                }
+                String remoteId;
+                long createStart = System.nanoTime();
+                try {
+                    remoteId = remoteFile.commit(mMd5);
+                } finally {
+                    mMetrics.record(SyncMetrics.Stage.CREATE_FILE, createStart);
+                }
+                if (mListener != null) {
+                    mListener.onTaskSuccess(mFile.getName() + " uploaded!");
+                }
+                return remoteId;
+            } catch (IOException e) {
+                abort(remoteFile);
+                if (mListener != null) {
+                    mListener.onTaskError("Error uploading " + mFile.getName() + ": " + e.getMessage());
+                }
+                throw e;
+            } catch (InterruptedException e) {
+                abort(remoteFile);
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while uploading " + mFile, e);
+            }
+        }
+
+        private void abort(RemoteFolder.RemoteFile remoteFile) {
+            mCancelled = true;
+            // Unblock the reader if it is waiting for room in the queue
+            releaseQueued();
+            if (remoteFile != null) {
+                remoteFile.discard();
+            }
+        }
+
+        private void releaseQueued() {
+            ByteBuffer chunk;
+            while ((chunk = mChunks.poll()) != null) {
+                if (chunk != mEnd) {
+                    mBufferPool.release(chunk);
+                }
+            }
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, mName + "-" + mCount.incrementAndGet());
+        }
+    }
+}
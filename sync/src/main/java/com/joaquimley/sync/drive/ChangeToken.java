@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How far a sync has followed the changes of a Drive folder: the newest modification date it
+ * has seen, so the next sync only asks for files modified after it, and when it last listed the
+ * whole folder. Immutable.
+ * <p/>
+ * Asking by modification date can't see a file leave the folder, so the token expires
+ * {@link #DEFAULT_MAX_AGE_MILLIS} after the listing and the next sync lists everything again.
+ */
+public final class ChangeToken {
+
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    private static final int VERSION = 1;
+
+    private final long mModifiedSince;
+    private final long mListedAt;
+
+    ChangeToken(long modifiedSince, long listedAt) {
+        mModifiedSince = modifiedSince;
+        mListedAt = listedAt;
+    }
+
+    /**
+     * @param newestModified newest modification date of the listed files, 0 when there were none
+     */
+    public static ChangeToken afterFullListing(long newestModified, long now) {
+        return new ChangeToken(newestModified, now);
+    }
+
+    /**
+     * @return the token {@link #encode()} wrote, null when {@code encoded} is null or unreadable
+     */
+    public static ChangeToken parse(String encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        String[] fields = encoded.split(":");
+        if (fields.length != 3 || !String.valueOf(VERSION).equals(fields[0])) {
+            return null;
+        }
+        try {
+            return new ChangeToken(Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public String encode() {
+        return VERSION + ":" + mModifiedSince + ":" + mListedAt;
+    }
+
+    /**
+     * @return files modified after this date are the changes still to see
+     */
+    public long getModifiedSince() {
+        return mModifiedSince;
+    }
+
+    public long getListedAt() {
+        return mListedAt;
+    }
+
+    /**
+     * @return whether the folder must be listed again, also when the clock went back past the listing
+     */
+    public boolean isExpired(long now, long maxAgeMillis) {
+        return now < mListedAt || now - mListedAt > maxAgeMillis;
+    }
+
+    /**
+     * @param newestModified newest modification date of the changes just seen
+     */
+    public ChangeToken advance(long newestModified) {
+        return newestModified > mModifiedSince ? new ChangeToken(newestModified, mListedAt) : this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ChangeToken)) {
+            return false;
+        }
+        ChangeToken that = (ChangeToken) o;
+        return mModifiedSince == that.mModifiedSince && mListedAt == that.mListedAt;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (int) (mModifiedSince ^ (mModifiedSince >>> 32)) + (int) (mListedAt ^ (mListedAt >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeToken{modifiedSince=" + mModifiedSince + ", listedAt=" + mListedAt + "}";
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link UploadTransport} able to take bytes straight from the source file's channel, letting
+ * the kernel copy them without passing through the Java heap.
+ */
+public interface ChannelUploadTransport extends UploadTransport {
+
+    /**
+     * @return whether the next chunk can go through {@link #transferFrom(FileChannel, long, long)},
+     * otherwise it has to be given to {@link #write(java.nio.ByteBuffer)}
+     */
+    boolean canTransfer();
+
+    /**
+     * Writes {@code count} bytes of {@code source} starting at {@code position}.
+     *
+     * @return the number of bytes written, fewer than {@code count} only at the end of the source
+     */
+    long transferFrom(FileChannel source, long position, long count) throws IOException;
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import com.joaquimley.sync.buffer.BufferPool;
+import com.joaquimley.sync.metrics.SyncMetrics;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Streams a {@link DownloadSource} into a local part file in large chunks, the counterpart of
+ * {@link ChunkedUploader}.
+ * <p/>
+ * The part file is the checkpoint: bytes already in it are kept when the source can continue
+ * after them, so an interrupted download resumes where it stopped. The whole content is hashed
+ * on the way, what was kept included, and checked against the expected MD5 before the part file
+ * is handed over. Chunks go through a single direct buffer borrowed from a {@link BufferPool},
+ * the part file's channel writes it without a temporary copy.
+ */
+public class ChunkedDownloader {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private final int mChunkSize;
+    private final SyncMetrics mMetrics;
+    private final BufferPool mBufferPool;
+
+    public ChunkedDownloader() {
+        this(DEFAULT_CHUNK_SIZE, SyncMetrics.getGlobal());
+    }
+
+    /**
+     * @param chunkSize bytes read and written per step
+     * @param metrics   receives the read and write timings of every chunk
+     */
+    public ChunkedDownloader(int chunkSize, SyncMetrics metrics) {
+        this(chunkSize, metrics, BufferPool.getDefault());
+    }
+
+    /**
+     * @param bufferPool where the chunk buffer is borrowed from
+     */
+    public ChunkedDownloader(int chunkSize, SyncMetrics metrics, BufferPool bufferPool) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        mChunkSize = chunkSize;
+        mMetrics = metrics;
+        mBufferPool = bufferPool;
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * Downloads {@code source} into {@code partFile}, resuming after the bytes it already holds
+     * when the source allows it. The source is closed once done.
+     *
+     * @param expectedMd5 hex MD5 of the whole content, null to skip the check
+     * @return the number of bytes read from the source by this call
+     * @throws IOException when reading or writing fails, the part file is kept so a later call
+     *                     can resume, or when the content doesn't match {@code expectedMd5}, the
+     *                     part file is deleted then
+     */
+    public long fetch(DownloadSource source, File partFile, String expectedMd5) throws IOException {
+        RandomAccessFile file = null;
+        ByteBuffer buffer = mBufferPool.acquireDirect(mChunkSize);
+        try {
+            file = new RandomAccessFile(partFile, "rw");
+            FileChannel out = file.getChannel();
+            MessageDigest md5 = newMd5();
+            long position = source.open(out.size());
+            if (position < 0 || position > out.size()) {
+                throw new IOException("Source can't continue from offset " + position);
+            }
+            out.truncate(position);
+            // The digest covers the whole content, what was kept goes in first
+            hash(out, position, md5, buffer);
+
+            ReadableByteChannel in = source.getChannel();
+            long fetched = 0;
+            while (true) {
+                buffer.clear();
+                buffer.limit(mChunkSize);
+                long readStart = System.nanoTime();
+                int read = fill(in, buffer);
+                if (read <= 0) {
+                    break;
+                }
+                mMetrics.record(SyncMetrics.Stage.READ, readStart);
+                mMetrics.addBytesRead(read);
+                buffer.flip();
+                md5.update(buffer);
+                buffer.rewind();
+
+                long writeStart = System.nanoTime();
+                while (buffer.hasRemaining()) {
+                    position += out.write(buffer, position);
+                }
+                mMetrics.record(SyncMetrics.Stage.WRITE, writeStart);
+                mMetrics.addBytesWritten(read);
+                fetched += read;
+            }
+
+            String actualMd5 = hex(md5.digest());
+            if (expectedMd5 != null && !expectedMd5.equalsIgnoreCase(actualMd5)) {
+                file.close();
+                file = null;
+                partFile.delete();
+                throw new IOException("Checksum mismatch for " + partFile.getName() + ": expected " + expectedMd5
+                        + ", got " + actualMd5);
+            }
+            // Renaming the part file over the target next must not expose unwritten blocks
+            out.force(true);
+            return fetched;
+        } finally {
+            mBufferPool.release(buffer);
+            if (file != null) {
+                file.close();
+            }
+            source.close();
+        }
+    }
+
+    /**
+     * @return the hex MD5 of {@code file}
+     */
+    public String md5(File file) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        ByteBuffer buffer = mBufferPool.acquireDirect(mChunkSize);
+        try {
+            MessageDigest md5 = newMd5();
+            FileChannel channel = inputStream.getChannel();
+            hash(channel, channel.size(), md5, buffer);
+            return hex(md5.digest());
+        } finally {
+            mBufferPool.release(buffer);
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Feeds the first {@code length} bytes of {@code channel} to {@code md5}.
+     */
+    private void hash(FileChannel channel, long length, MessageDigest md5, ByteBuffer buffer) throws IOException {
+        long position = 0;
+        while (position < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(mChunkSize, length - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("File ended at " + position + " of " + length + " bytes");
+            }
+            buffer.flip();
+            md5.update(buffer);
+            position += read;
+        }
+    }
+
+    /**
+     * Reads until {@code buffer} is full or the channel ends, network backed channels hand out
+     * a few kilobytes per read.
+     *
+     * @return the number of bytes read, -1 when the channel had already ended
+     */
+    private static int fill(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer);
+            if (read < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static MessageDigest newMd5() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 not available", e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive;
+
+import com.joaquimley.sync.buffer.BufferPool;
+import com.joaquimley.sync.metrics.SyncMetrics;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Streams a local file to an {@link UploadTransport} in large chunks read through a
+ * {@link FileChannel}.
+ * <p/>
+ * Transports implementing {@link ChannelUploadTransport} get the chunks without a heap copy,
+ * see {@link ReadPath}, the others through a single buffer reused for the whole file and
+ * borrowed from a {@link BufferPool}. That buffer is direct for channel transports, so neither
+ * the read nor the write goes through a temporary copy, and on the heap for the stream ones.
+ * <p/>
+ * After every committed chunk an {@link UploadCheckpoint} is saved, so when the upload is
+ * interrupted the next call for the same file picks up from the last committed chunk, provided
+ * the file is unchanged. Uploads through transports that can't resume aren't checkpointed.
+ */
+public class ChunkedUploader {
+
+    public static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+    private static final int CHECKSUM_SCRATCH_SIZE = 16 * 1024;
+
+    /**
+     * How chunks reach a {@link ChannelUploadTransport}.
+     */
+    public enum ReadPath {
+        /**
+         * Read into a pooled direct buffer and written from there, the way every other
+         * transport gets them but for the buffer living on the heap.
+         */
+        HEAP,
+        /**
+         * Each chunk is memory-mapped and the mapping written to the transport.
+         */
+        MEMORY_MAPPED,
+        /**
+         * Each chunk is handed to the transport's channel with {@link FileChannel#transferTo}.
+         */
+        TRANSFER_TO
+    }
+
+    public static final ReadPath DEFAULT_READ_PATH = ReadPath.TRANSFER_TO;
+
+    private final int mChunkSize;
+    private final UploadCheckpointStore mCheckpointStore;
+    private final SyncMetrics mMetrics;
+    private final ReadPath mReadPath;
+    private final BufferPool mBufferPool;
+
+    public ChunkedUploader() {
+        this(DEFAULT_CHUNK_SIZE, null);
+    }
+
+    /**
+     * @param chunkSize       bytes read and committed per step
+     * @param checkpointStore where progress is recorded, null to always upload from the start
+     */
+    public ChunkedUploader(int chunkSize, UploadCheckpointStore checkpointStore) {
+        this(chunkSize, checkpointStore, SyncMetrics.getGlobal());
+    }
+
+    /**
+     * @param metrics receives the read and write timings of every chunk
+     */
+    public ChunkedUploader(int chunkSize, UploadCheckpointStore checkpointStore, SyncMetrics metrics) {
+        this(chunkSize, checkpointStore, metrics, DEFAULT_READ_PATH);
+    }
+
+    /**
+     * @param readPath used with transports implementing {@link ChannelUploadTransport}
+     */
+    public ChunkedUploader(int chunkSize, UploadCheckpointStore checkpointStore, SyncMetrics metrics, ReadPath readPath) {
+        this(chunkSize, checkpointStore, metrics, readPath, BufferPool.getDefault());
+    }
+
+    /**
+     * @param bufferPool where the chunk and checksum buffers are borrowed from
+     */
+    public ChunkedUploader(int chunkSize, UploadCheckpointStore checkpointStore, SyncMetrics metrics, ReadPath readPath,
+                           BufferPool bufferPool) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        mChunkSize = chunkSize;
+        mCheckpointStore = checkpointStore;
+        mMetrics = metrics;
+        mReadPath = readPath;
+        mBufferPool = bufferPool;
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * Uploads {@code source}, resuming from its checkpoint when possible.
+     *
+     * @return the number of bytes written to the transport by this call
+     * @throws IOException when reading or writing fails, the checkpoint of the last committed
+     *                     chunk is kept so a later call can resume, or when the file gets
+     *                     shorter during the upload
+     */
+    public long upload(File source, UploadTransport transport) throws IOException {
+        final String key = source.getAbsolutePath();
+        FileInputStream inputStream = new FileInputStream(source);
+        ByteBuffer buffer = null;
+        ByteBuffer scratch = null;
+        // A checkpoint costs a synced write per chunk, only worth it when it can be resumed from
+        UploadCheckpointStore checkpointStore = transport.supportsResume() ? mCheckpointStore : null;
+        try {
+            FileChannel channel = inputStream.getChannel();
+            long length = channel.size();
+            long lastModified = source.lastModified();
+            CRC32 crc = checkpointStore != null ? new CRC32() : null;
+
+            long resumeOffset = findResumeOffset(checkpointStore, key, channel, crc, length, lastModified);
+            long position = transport.open(resumeOffset);
+            if (position < 0 || position > resumeOffset) {
+                throw new IOException("Transport can't continue from offset " + position);
+            }
+
+            ChannelUploadTransport channelTransport = mReadPath != ReadPath.HEAP && transport instanceof ChannelUploadTransport
+                    ? (ChannelUploadTransport) transport : null;
+            long bytesSent = 0;
+            while (position < length) {
+                int sent;
+                if (channelTransport != null && channelTransport.canTransfer()) {
+                    if (scratch == null && checkpointStore != null) {
+                        scratch = mBufferPool.acquire(CHECKSUM_SCRATCH_SIZE);
+                    }
+                    sent = sendChunk(channel, position, length, channelTransport, crc, scratch);
+                } else {
+                    if (buffer == null) {
+                        buffer = transport instanceof ChannelUploadTransport
+                                ? mBufferPool.acquireDirect(mChunkSize) : mBufferPool.acquire(mChunkSize);
+                    }
+                    if (scratch == null && crc != null && !buffer.hasArray()) {
+                        scratch = mBufferPool.acquire(CHECKSUM_SCRATCH_SIZE);
+                    }
+                    sent = sendChunk(channel, position, buffer, transport, crc, scratch);
+                }
+                if (sent <= 0) {
+                    // The file got shorter while we were reading it, what was sent is no upload of it
+                    if (checkpointStore != null) {
+                        checkpointStore.clear(key);
+                    }
+                    throw new IOException(source + " got shorter while uploading it, ended at " + position
+                            + " of " + length + " bytes");
+                }
+                position += sent;
+                bytesSent += sent;
+
+                if (checkpointStore != null) {
+                    checkpointStore.save(key, new UploadCheckpoint(length, lastModified, position, sent, crc.getValue()));
+                }
+            }
+
+            if (checkpointStore != null) {
+                checkpointStore.clear(key);
+            }
+            return bytesSent;
+        } finally {
+            mBufferPool.release(buffer);
+            mBufferPool.release(scratch);
+            inputStream.close();
+            transport.close();
+        }
+    }
+
+    /**
+     * Reads the chunk at {@code position} into {@code buffer} and writes it from there.
+     *
+     * @param crc     takes the checksum of the chunk, null when it isn't checkpointed
+     * @param scratch the checksum of a direct buffer goes through, null otherwise
+     * @return the number of bytes sent, 0 at the end of the file
+     */
+    private int sendChunk(FileChannel channel, long position, ByteBuffer buffer, UploadTransport transport, CRC32 crc,
+                          ByteBuffer scratch) throws IOException {
+        // The pooled buffer may be larger than a chunk
+        buffer.clear();
+        buffer.limit(mChunkSize);
+        long readStart = System.nanoTime();
+        int read = readChunk(channel, buffer, position);
+        if (read <= 0) {
+            return 0;
+        }
+        mMetrics.record(SyncMetrics.Stage.READ, readStart);
+        mMetrics.addBytesRead(read);
+        if (crc != null) {
+            checksum(buffer, crc, scratch);
+        }
+
+        long writeStart = System.nanoTime();
+        transport.write(buffer);
+        transport.commit();
+        mMetrics.record(SyncMetrics.Stage.WRITE, writeStart);
+        mMetrics.addBytesWritten(read);
+        return read;
+    }
+
+    /**
+     * Sends the chunk at {@code position} along {@link #mReadPath} without a heap copy, only
+     * the checksum of a checkpointed upload goes through {@code scratch}. The checksum covers
+     * what the transport took, which can be less than the chunk.
+     *
+     * @return the number of bytes sent, 0 at the end of the file
+     */
+    private int sendChunk(FileChannel channel, long position, long length, ChannelUploadTransport transport, CRC32 crc,
+                          ByteBuffer scratch) throws IOException {
+        // Mapping past the end of a file that shrank would fault, so the size is checked again
+        int count = (int) Math.min(mChunkSize, Math.min(length, channel.size()) - position);
+        if (count <= 0) {
+            return 0;
+        }
+        MappedByteBuffer mapped = null;
+        if (mReadPath == ReadPath.MEMORY_MAPPED || scratch != null) {
+            long readStart = System.nanoTime();
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, count);
+            mMetrics.record(SyncMetrics.Stage.READ, readStart);
+        }
+        mMetrics.addBytesRead(count);
+
+        long writeStart = System.nanoTime();
+        int sent;
+        if (mReadPath == ReadPath.MEMORY_MAPPED) {
+            transport.write(mapped);
+            sent = count;
+        } else {
+            sent = (int) transport.transferFrom(channel, position, count);
+        }
+        transport.commit();
+        mMetrics.record(SyncMetrics.Stage.WRITE, writeStart);
+        mMetrics.addBytesWritten(sent);
+        if (scratch != null && sent > 0) {
+            ByteBuffer sentBytes = mapped.duplicate();
+            sentBytes.limit(sent);
+            checksum(sentBytes, crc, scratch);
+        }
+        return sent;
+    }
+
+    /**
+     * Takes the checksum of the remaining bytes, leaving the position where it was. CRC32 only
+     * takes arrays before API 26, the bytes of a direct buffer go through a small reused array.
+     */
+    private static void checksum(ByteBuffer bytes, CRC32 crc, ByteBuffer scratch) {
+        crc.reset();
+        if (bytes.hasArray()) {
+            crc.update(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            return;
+        }
+        int start = bytes.position();
+        byte[] array = scratch.array();
+        int offset = scratch.arrayOffset();
+        while (bytes.hasRemaining()) {
+            int length = Math.min(bytes.remaining(), scratch.limit());
+            bytes.get(array, offset, length);
+            crc.update(array, offset, length);
+        }
+        bytes.position(start);
+    }
+
+    /**
+     * Validates the saved checkpoint against the file: same length and modification time and
+     * the last committed chunk still hashes to the recorded checksum.
+     */
+    private long findResumeOffset(UploadCheckpointStore checkpointStore, String key, FileChannel channel, CRC32 crc,
+                                  long length, long lastModified) throws IOException {
+        if (checkpointStore == null) {
+            return 0;
+        }
+        UploadCheckpoint checkpoint = checkpointStore.load(key);
+        if (checkpoint == null) {
+            return 0;
+        }
+        long committed = checkpoint.getBytesCommitted();
+        int chunkLength = checkpoint.getChunkLength();
+        if (checkpoint.getFileLength() != length || checkpoint.getLastModified() != lastModified
+                || committed > length || chunkLength <= 0 || chunkLength > committed) {
+            checkpointStore.clear(key);
+            return 0;
+        }
+
+        ByteBuffer chunk = mBufferPool.acquire(chunkLength);
+        try {
+            if (readChunk(channel, chunk, committed - chunkLength) != chunkLength) {
+                checkpointStore.clear(key);
+                return 0;
+            }
+            crc.reset();
+            crc.update(chunk.array(), chunk.arrayOffset(), chunkLength);
+        } finally {
+            mBufferPool.release(chunk);
+        }
+        if (crc.getValue() != checkpoint.getChunkChecksum()) {
+            checkpointStore.clear(key);
+            return 0;
+        }
+        return committed;
+    }
+
+    /**
+     * Fills {@code buffer} up to its limit reading from {@code position}, stopping early only at
+     * the end of the file. The buffer is left flipped, ready to be written.
+     */
+    private static int readChunk(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        buffer.flip();
+        return total;
+    }
+}
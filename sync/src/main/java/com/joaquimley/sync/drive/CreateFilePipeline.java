@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import com.joaquimley.sync.buffer.BufferPool;
+import com.joaquimley.sync.metrics.SyncMetrics;
+import com.joaquimley.sync.retry.ErrorClassifier;
+import com.joaquimley.sync.retry.Retrier;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Creates a file as a chain of {@link DriveBackend} calls: new contents, write, createFile,
+ * then getMetadata. No thread waits on the network in between, so a couple of threads can
+ * keep many uploads in flight.
+ * <p/>
+ * Every step has its own timeout and cancelling the returned future stops the step running.
+ * A failed step is retried from the first step that hasn't succeeded, as the {@link Retrier}
+ * says, so a created file is never created twice. The listener gets the usual
+ * {@link DriveTaskCallback} events, once for all attempts.
+ */
+public class CreateFilePipeline {
+
+    public static final long DEFAULT_STEP_TIMEOUT_SECONDS = 30;
+
+    private final DriveBackend mBackend;
+    private final Executor mExecutor;
+    private final ScheduledExecutorService mTimer;
+    private final long mStepTimeout;
+    private final TimeUnit mStepTimeoutUnit;
+    private final SyncMetrics mMetrics;
+    private final Retrier mRetrier;
+
+    /**
+     * @param executor runs the steps in between the Drive calls, such as writing the contents
+     * @param timer    enforces the step timeouts
+     */
+    public CreateFilePipeline(DriveBackend backend, Executor executor, ScheduledExecutorService timer,
+                              long stepTimeout, TimeUnit unit, SyncMetrics metrics) {
+        this(backend, executor, timer, stepTimeout, unit, metrics, Retrier.noRetries(metrics));
+    }
+
+    /**
+     * @param timer   enforces the step timeouts and waits out the backoff between attempts
+     * @param retrier decides whether a failed step is tried again, it should record into
+     *                {@code metrics} too
+     */
+    public CreateFilePipeline(DriveBackend backend, Executor executor, ScheduledExecutorService timer,
+                              long stepTimeout, TimeUnit unit, SyncMetrics metrics, Retrier retrier) {
+        mBackend = backend;
+        mExecutor = executor;
+        mTimer = timer;
+        mStepTimeout = stepTimeout;
+        mStepTimeoutUnit = unit;
+        mMetrics = metrics;
+        mRetrier = retrier;
+    }
+
+    /**
+     * @param folderId encoded DriveId of the parent folder, null for the root folder
+     * @param listener may be null
+     */
+    public DriveFuture<DriveBackend.FileInfo> createFile(String folderId, String title, String mimeType, byte[] content,
+                                                         DriveTaskCallback listener) {
+        return createFile(folderId, title, mimeType, ByteBuffer.wrap(content), null, listener);
+    }
+
+    /**
+     * @param content     the bytes between its position and limit are uploaded, it must be a heap buffer
+     * @param contentPool gets {@code content} back once the file is created or the upload failed, null
+     *                    when it doesn't come from a pool
+     * @param listener    may be null
+     */
+    public DriveFuture<DriveBackend.FileInfo> createFile(String folderId, String title, String mimeType,
+                                                         ByteBuffer content, BufferPool contentPool,
+                                                         DriveTaskCallback listener) {
+        return new Run(folderId, title, mimeType, content, contentPool, listener).start();
+    }
+
+    /**
+     * State of a single file going through the pipeline.
+     */
+    private final class Run {
+
+        private final String mFolderId;
+        private final String mTitle;
+        private final String mMimeType;
+        // Cleared once the content is handed back to its pool
+        private final AtomicReference<ByteBuffer> mContent;
+        private final BufferPool mContentPool;
+        private final DriveTaskCallback mListener;
+        // Completes once the last attempt is over
+        private final DriveFuture<DriveBackend.FileInfo> mResult = new DriveFuture<>();
+
+        private volatile SyncMetrics.Stage mStage;
+        private volatile long mStageStart;
+        private volatile DriveBackend.Contents mContents;
+        // Set once the file exists, later attempts only fetch its metadata
+        private volatile String mDriveId;
+        private volatile DriveFuture<DriveBackend.FileInfo> mAttempt;
+        private volatile ScheduledFuture<?> mPendingRetry;
+        private volatile boolean mInProgressReported;
+        // Only touched by the callback of the attempt that just finished
+        private int mFailures;
+
+        Run(String folderId, String title, String mimeType, ByteBuffer content, BufferPool contentPool,
+            DriveTaskCallback listener) {
+            mFolderId = folderId;
+            mTitle = title;
+            mMimeType = mimeType;
+            mContent = new AtomicReference<>(content);
+            mContentPool = contentPool;
+            mListener = listener;
+        }
+
+        DriveFuture<DriveBackend.FileInfo> start() {
+            if (mListener != null) {
+                mListener.onTaskStarted();
+            }
+            mResult.setCancellationHandler(new Runnable() {
+                @Override
+                public void run() {
+                    ScheduledFuture<?> pendingRetry = mPendingRetry;
+                    if (pendingRetry != null && pendingRetry.cancel(false)) {
+                        onFailed(new CancellationException(), null);
+                    }
+                    DriveFuture<DriveBackend.FileInfo> attempt = mAttempt;
+                    if (attempt != null) {
+                        attempt.cancel(false);
+                    }
+                }
+            });
+            attempt();
+            return mResult;
+        }
+
+        private void attempt() {
+            mPendingRetry = null;
+            DriveFuture<DriveBackend.FileInfo> attempt = mDriveId == null ? createAndFetchMetadata() : fetchMetadata(mDriveId);
+            mAttempt = attempt;
+            if (mResult.isCancelled()) {
+                // Cancelled while the attempt was starting
+                attempt.cancel(false);
+            }
+            attempt.addCallback(new DriveFuture.Callback<DriveBackend.FileInfo>() {
+                @Override
+                public void onSuccess(DriveBackend.FileInfo info) {
+                    endStage();
+                    releaseContent(mContent.getAndSet(null));
+                    mMetrics.recordFileUploaded();
+                    if (mListener != null) {
+                        mListener.onTaskSuccess(mTitle + " uploaded!");
+                    }
+                    mResult.complete(info);
+                }
+
+                @Override
+                public void onFailure(Throwable error) {
+                    onAttemptFailed(error);
+                }
+            }, mExecutor);
+        }
+
+        private DriveFuture<DriveBackend.FileInfo> createAndFetchMetadata() {
+            beginStage(SyncMetrics.Stage.CONTENTS);
+            return timed(mBackend.newContents())
+                    .then(new DriveFuture.Continuation<DriveBackend.Contents, String>() {
+                        @Override
+                        public DriveFuture<String> then(DriveBackend.Contents contents) throws IOException {
+                            mContents = contents;
+                            endStage();
+                            if (mListener != null && !mInProgressReported) {
+                                mInProgressReported = true;
+                                mListener.onTaskInProgress();
+                            }
+                            write(contents);
+                            beginStage(SyncMetrics.Stage.CREATE_FILE);
+                            return timed(mBackend.createFile(mFolderId, mTitle, mMimeType, contents));
+                        }
+                    }, mExecutor)
+                    .then(new DriveFuture.Continuation<String, DriveBackend.FileInfo>() {
+                        @Override
+                        public DriveFuture<DriveBackend.FileInfo> then(String driveId) {
+                            mDriveId = driveId;
+                            mContents = null;
+                            // Committed, no attempt needs the content anymore
+                            releaseContent(mContent.getAndSet(null));
+                            endStage();
+                            return fetchMetadata(driveId);
+                        }
+                    }, mExecutor);
+        }
+
+        private DriveFuture<DriveBackend.FileInfo> fetchMetadata(String driveId) {
+            beginStage(SyncMetrics.Stage.METADATA);
+            return timed(mBackend.getMetadata(driveId));
+        }
+
+        private void write(DriveBackend.Contents contents) throws IOException {
+            ByteBuffer content = mContent.get();
+            if (content == null) {
+                throw new IOException(mTitle + " was already given up on");
+            }
+            beginStage(SyncMetrics.Stage.WRITE);
+            int length = content.remaining();
+            OutputStream outputStream = contents.getOutputStream();
+            outputStream.write(content.array(), content.arrayOffset() + content.position(), length);
+            outputStream.flush();
+            mMetrics.addBytesWritten(length);
+            endStage();
+        }
+
+        private void releaseContent(ByteBuffer content) {
+            if (content != null && mContentPool != null) {
+                mContentPool.release(content);
+            }
+        }
+
+        private void onAttemptFailed(Throwable error) {
+            SyncMetrics.Stage stage = mStage;
+            if (stage != null) {
+                endStage();
+            }
+            DriveBackend.Contents contents = mContents;
+            mContents = null;
+            if (contents != null) {
+                contents.discard();
+            }
+            if (!mResult.isDone()) {
+                long delayMillis = mRetrier.nextDelayMillis(error, ++mFailures);
+                if (delayMillis != Retrier.GIVE_UP) {
+                    mPendingRetry = mTimer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            attempt();
+                        }
+                    }, delayMillis, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+            onFailed(error, stage);
+        }
+
+        private void onFailed(Throwable error, SyncMetrics.Stage stage) {
+            releaseContent(mContent.getAndSet(null));
+            if (error instanceof TimeoutException) {
+                mMetrics.recordError(SyncMetrics.ErrorCause.TIMEOUT);
+            } else if (stage == SyncMetrics.Stage.WRITE) {
+                mMetrics.recordError(SyncMetrics.ErrorCause.LOCAL_IO);
+            } else if (!(error instanceof CancellationException)) {
+                mMetrics.recordError(ErrorClassifier.causeOf(error, SyncMetrics.ErrorCause.REMOTE));
+            }
+            if (mListener != null) {
+                mListener.onTaskError(mTitle + " " + (stage != null ? stage.name().toLowerCase() + " " : "")
+                        + "failed: " + describe(error));
+            }
+            mResult.fail(error);
+        }
+
+        private <T> DriveFuture<T> timed(DriveFuture<T> step) {
+            return step.withTimeout(mStepTimeout, mStepTimeoutUnit, mTimer);
+        }
+
+        private void beginStage(SyncMetrics.Stage stage) {
+            mStageStart = System.nanoTime();
+            mStage = stage;
+        }
+
+        private void endStage() {
+            SyncMetrics.Stage stage = mStage;
+            if (stage != null) {
+                mMetrics.record(stage, mStageStart);
+                mStage = null;
+            }
+        }
+    }
+
+    private static String describe(Throwable error) {
+        if (error instanceof CancellationException) {
+            return "cancelled";
+        }
+        return error.getMessage() != null ? error.getMessage() : error.getClass().getSimpleName();
+    }
+}
@@ -3,96 +3,132 @@ package com.joaquimley.sync.drive;
 import android.support.annotation.Nullable;
 
 import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.drive.Drive;
-import com.google.android.gms.drive.DriveApi;
-import com.google.android.gms.drive.DriveContents;
-import com.google.android.gms.drive.DriveFolder;
-import com.google.android.gms.drive.DriveResource;
-import com.google.android.gms.drive.MetadataChangeSet;
+import com.joaquimley.sync.buffer.BufferPool;
+import com.joaquimley.sync.executor.SyncExecutor;
+import com.joaquimley.sync.metrics.SyncMetrics;
+import com.joaquimley.sync.retry.Retrier;
+import com.joaquimley.sync.retry.RetryBudget;
+import com.joaquimley.sync.retry.RetryPolicy;
 
-import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Creates a file to GoogleApiClient's Drive Root folder (demo purpose only)
+ * <p/>
+ * The constructor only starts the work, the Drive calls are chained through a
+ * {@link CreateFilePipeline} and the listener hears back once the file and its metadata exist.
  */
 public class CreateFileTask {
 
     private static final String MIME_TYPE = "text/plain";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Only fires the step timeouts and retries, the steps run on the sync executor
+    private static final ScheduledExecutorService sTimer = Executors.newSingleThreadScheduledExecutor();
+
+    private final DriveFuture<DriveBackend.FileInfo> mResult;
 
     public CreateFileTask(String title, String text, GoogleApiClient googleApiClient) {
-        new CreateFileTask(title, text, googleApiClient, null);
+        this(title, text, googleApiClient, null);
     }
 
     public CreateFileTask(String title, String text, GoogleApiClient googleApiClient, @Nullable DriveTaskCallback listener) {
+        this(title, text, googleApiClient, new Retrier(new RetryPolicy(), new RetryBudget(), SyncMetrics.getGlobal()),
+                listener);
+    }
 
-        if (listener != null) {
-            listener.onTaskStarted();
-        }
-
-        DriveApi.DriveContentsResult driveContentsResult =
-                Drive.DriveApi.newDriveContents(googleApiClient).await();
-        if (!driveContentsResult.getStatus().isSuccess()) {
-            // We failed, stop the task and return.
-            if (listener != null) {
-                listener.onTaskError(driveContentsResult.getStatus().getStatusMessage());
-            }
-            return;
-        }
-
-        if (listener != null) {
-            listener.onTaskInProgress();
-        }
+    /**
+     * @param retrier retries the failed steps, usually the one of the sync so they share its budget
+     */
+    public CreateFileTask(String title, String text, GoogleApiClient googleApiClient, Retrier retrier,
+                          @Nullable DriveTaskCallback listener) {
+        this(title, text, googleApiClient, retrier, SyncExecutor.Priority.PERIODIC, listener);
+    }
 
-        // Read the contents and open its output stream for writing, then
-        // write a @param text.
-        DriveContents originalContents = driveContentsResult.getDriveContents();
-        OutputStream os = originalContents.getOutputStream();
+    /**
+     * @param priority what the steps are queued with on the {@link SyncExecutor}, usually the one
+     *                 of the sync
+     */
+    public CreateFileTask(final String title, final String text, GoogleApiClient googleApiClient, Retrier retrier,
+                          SyncExecutor.Priority priority, @Nullable final DriveTaskCallback listener) {
+        SyncExecutor executor = SyncExecutor.getDefault();
+        final CreateFilePipeline pipeline = new CreateFilePipeline(new PlayServicesDriveBackend(googleApiClient),
+                executor.asContinuationExecutor(priority), sTimer,
+                CreateFilePipeline.DEFAULT_STEP_TIMEOUT_SECONDS, TimeUnit.SECONDS, SyncMetrics.getGlobal(), retrier);
+        final BufferPool bufferPool = BufferPool.getDefault();
+        // Encoding is admitted like any new work, the steps after it are continuations
+        DriveFuture<ByteBuffer> encoded;
         try {
-            os.write(text.getBytes());
-        } catch (IOException e) {
-            e.printStackTrace();
+            encoded = executor.submit(priority, new Callable<ByteBuffer>() {
+                @Override
+                public ByteBuffer call() {
+                    return encode(text, bufferPool);
+                }
+            });
+        } catch (RejectedExecutionException e) {
             if (listener != null) {
-                listener.onTaskError("IO error: " + e.getMessage());
+                listener.onTaskError(e.getMessage());
             }
+            mResult = DriveFuture.failed(e);
             return;
         }
+        encoded.addCallback(new DriveFuture.Callback<ByteBuffer>() {
+            @Override
+            public void onSuccess(ByteBuffer content) {
+            }
 
-        // Create the metadata for the new file including title and MIME type.
-        MetadataChangeSet originalMetadata = new MetadataChangeSet.Builder()
-                .setTitle(title)
-                .setMimeType(MIME_TYPE).build();
+            @Override
+            public void onFailure(Throwable error) {
+                // Cancelled before the pipeline started, it reports everything after
+                if (listener != null) {
+                    listener.onTaskError(String.valueOf(error));
+                }
+            }
+        }, DriveFuture.DIRECT);
+        mResult = encoded.then(new DriveFuture.Continuation<ByteBuffer, DriveBackend.FileInfo>() {
+            @Override
+            public DriveFuture<DriveBackend.FileInfo> then(ByteBuffer content) {
+                // Create the file in the root folder
+                // TODO: 21/09/16 Pass folder
+                return pipeline.createFile(null, title, MIME_TYPE, content, bufferPool, listener);
+            }
+        }, DriveFuture.DIRECT);
+    }
 
-        // Create the file in the root folder, again calling await() to
-        // block until the request finishes.
-        // TODO: 21/09/16 Pass folder
-        DriveFolder rootFolder = Drive.DriveApi.getRootFolder(googleApiClient);
-        DriveFolder.DriveFileResult fileResult = rootFolder.createFile(
-                googleApiClient, originalMetadata, originalContents).await();
+    /**
+     * Encodes {@code text} as UTF-8 straight into a pooled buffer, the pipeline releases it.
+     */
+    private static ByteBuffer encode(String text, BufferPool bufferPool) {
+        CharsetEncoder encoder = UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer buffer = bufferPool.acquire((int) Math.ceil(text.length() * (double) encoder.maxBytesPerChar()));
+        encoder.encode(CharBuffer.wrap(text), buffer, true);
+        encoder.flush(buffer);
+        buffer.flip();
+        return buffer;
+    }
 
-        if (!fileResult.getStatus().isSuccess()) {
-            // We failed, stop the task and return.
-            if (listener != null) {
-                listener.onTaskError(fileResult.getStatus().getStatusMessage());
-            }
-            return;
-        }
+    /**
+     * @return the metadata of the created file once it is uploaded
+     */
+    public DriveFuture<DriveBackend.FileInfo> getResult() {
+        return mResult;
+    }
 
-        // Finally, fetch the metadata for the newly created file, again
-        // calling await to block until the request finishes.
-        DriveResource.MetadataResult metadataResult = fileResult.getDriveFile()
-                .getMetadata(googleApiClient)
-                .await();
-        if (!metadataResult.getStatus().isSuccess()) {
-            if (listener != null) {
-                listener.onTaskError(metadataResult.getStatus().getStatusMessage());
-            }
-            // We failed, stop the task and return.
-            return;
-        }
-        // We succeeded, return the newly created metadata.
-        if (listener != null) {
-            listener.onTaskSuccess(title + " uploaded!");
-        }
+    /**
+     * Stops the upload at the step it is in, the listener gets an error.
+     */
+    public void cancel() {
+        mResult.cancel(false);
     }
 }
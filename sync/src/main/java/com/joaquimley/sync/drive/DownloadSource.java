@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Origin of a {@link ChunkedDownloader}, read from one chunk at a time.
+ */
+public interface DownloadSource {
+
+    /**
+     * Prepares the source to be read from {@code offset}.
+     *
+     * @return the offset {@link #getChannel()} actually continues from, 0 when it can't resume
+     */
+    long open(long offset) throws IOException;
+
+    /**
+     * @return the content from the offset returned by {@link #open(long)} on
+     */
+    ReadableByteChannel getChannel();
+
+    void close() throws IOException;
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import java.io.OutputStream;
+
+/**
+ * The asynchronous Drive calls the task pipelines are built from, none of them block.
+ */
+public interface DriveBackend {
+
+    /**
+     * New file contents waiting to be written and committed by {@link #createFile}.
+     */
+    interface Contents {
+
+        OutputStream getOutputStream();
+
+        void discard();
+    }
+
+    interface FileInfo {
+
+        /**
+         * @return the encoded DriveId
+         */
+        String getDriveId();
+
+        String getTitle();
+
+        long getFileSize();
+    }
+
+    DriveFuture<Contents> newContents();
+
+    /**
+     * @param folderId encoded DriveId of the parent folder, null for the root folder
+     * @return the encoded DriveId of the new file
+     */
+    DriveFuture<String> createFile(String folderId, String title, String mimeType, Contents contents);
+
+    DriveFuture<FileInfo> getMetadata(String driveId);
+
+}
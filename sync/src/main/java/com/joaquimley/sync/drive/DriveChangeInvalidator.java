@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.events.ChangeEvent;
+import com.google.android.gms.drive.events.ChangeListener;
+
+/**
+ * Drops the files changed or deleted on Drive from a {@link MetadataCache}.
+ */
+public class DriveChangeInvalidator implements ChangeListener {
+
+    private final MetadataCache mCache;
+
+    public DriveChangeInvalidator(MetadataCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Listens to the file's changes for as long as the client stays connected, and subscribes to
+     * them so a change made elsewhere also wakes the app's DriveEventService later on.
+     */
+    public void watch(GoogleApiClient googleApiClient, DriveId driveId) {
+        driveId.asDriveResource().addChangeListener(googleApiClient, this);
+        driveId.asDriveResource().addChangeSubscription(googleApiClient);
+    }
+
+    @Override
+    public void onChange(ChangeEvent event) {
+        mCache.invalidate(event.getDriveId().encodeToString());
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.drive.DriveApi;
+import com.google.android.gms.drive.DriveContents;
+import com.google.android.gms.drive.DriveFile;
+import com.google.android.gms.drive.DriveId;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * {@link DownloadSource} reading a Drive file opened in read mode, blocks with await().
+ * <p/>
+ * Drive downloads the whole content into a local copy before handing it out, reading then goes
+ * through that copy's file descriptor, which is what lets a download continue from any offset.
+ */
+public class DriveDownloadSource implements DownloadSource {
+
+    private final GoogleApiClient mGoogleApiClient;
+    private final String mDriveId;
+    private DriveContents mDriveContents;
+    private FileChannelDownloadSource mSource;
+
+    public DriveDownloadSource(GoogleApiClient googleApiClient, String driveId) {
+        mGoogleApiClient = googleApiClient;
+        mDriveId = driveId;
+    }
+
+    @Override
+    public long open(long offset) throws IOException {
+        DriveFile driveFile;
+        try {
+            driveFile = DriveId.decodeFromString(mDriveId).asDriveFile();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid DriveId " + mDriveId, e);
+        }
+        DriveApi.DriveContentsResult result = driveFile.open(mGoogleApiClient, DriveFile.MODE_READ_ONLY, null).await();
+        if (!result.getStatus().isSuccess()) {
+            throw DriveStatusClassifier.exception("Error while trying to open " + mDriveId, result.getStatus());
+        }
+        mDriveContents = result.getDriveContents();
+        mSource = new FileChannelDownloadSource(new FileInputStream(mDriveContents.getParcelFileDescriptor().getFileDescriptor()));
+        return mSource.open(offset);
+    }
+
+    @Override
+    public ReadableByteChannel getChannel() {
+        return mSource.getChannel();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mDriveContents == null) {
+            return;
+        }
+        try {
+            mSource.close();
+        } finally {
+            mDriveContents.discard(mGoogleApiClient);
+            mDriveContents = null;
+        }
+    }
+}
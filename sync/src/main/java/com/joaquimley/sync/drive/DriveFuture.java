@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of an asynchronous Drive call that later steps can be chained onto without parking a
+ * thread while waiting.
+ * <p/>
+ * Cancelling a future, or letting it time out, also cancels the work behind it through its
+ * cancellation handler, and cancelling a chained future cancels whichever step is running.
+ */
+public class DriveFuture<T> implements Future<T> {
+
+    public interface Callback<T> {
+
+        void onSuccess(T result);
+
+        /**
+         * @param error a {@link CancellationException} when the future was cancelled
+         */
+        void onFailure(Throwable error);
+    }
+
+    public interface Continuation<T, R> {
+
+        /**
+         * @return the next step, started from the result of the previous one
+         */
+        DriveFuture<R> then(T result) throws Exception;
+    }
+
+    /**
+     * Runs callbacks on the thread completing the future, only for callbacks that don't block.
+     */
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    // Guarded by this
+    private int mState = PENDING;
+    private T mResult;
+    private Throwable mError;
+    private List<Runnable> mListeners = new ArrayList<>();
+    private Runnable mCancellationHandler;
+
+    public static <T> DriveFuture<T> succeeded(T result) {
+        DriveFuture<T> future = new DriveFuture<>();
+        future.complete(result);
+        return future;
+    }
+
+    public static <T> DriveFuture<T> failed(Throwable error) {
+        DriveFuture<T> future = new DriveFuture<>();
+        future.fail(error);
+        return future;
+    }
+
+    /**
+     * @return false when the future was already done
+     */
+    public boolean complete(T result) {
+        return finish(SUCCEEDED, result, null);
+    }
+
+    /**
+     * @return false when the future was already done
+     */
+    public boolean fail(Throwable error) {
+        return finish(FAILED, null, error);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!finish(CANCELLED, null, new CancellationException())) {
+            return false;
+        }
+        runCancellationHandler();
+        return true;
+    }
+
+    /**
+     * Called when the future is cancelled or times out, to stop the work producing it. Runs
+     * straight away when that already happened.
+     */
+    public void setCancellationHandler(Runnable handler) {
+        boolean abandoned;
+        synchronized (this) {
+            mCancellationHandler = handler;
+            abandoned = mState == CANCELLED || mError instanceof TimeoutException;
+        }
+        if (abandoned) {
+            runCancellationHandler();
+        }
+    }
+
+    /**
+     * Fails the future with a {@link TimeoutException} and cancels its work when it isn't done
+     * within {@code timeout}.
+     *
+     * @return this future
+     */
+    public DriveFuture<T> withTimeout(final long timeout, final TimeUnit unit, ScheduledExecutorService timer) {
+        final ScheduledFuture<?> timeoutTask = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (fail(new TimeoutException("Timed out after " + timeout + " " + unit.toString().toLowerCase()))) {
+                    runCancellationHandler();
+                }
+            }
+        }, timeout, unit);
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                timeoutTask.cancel(false);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                timeoutTask.cancel(false);
+            }
+        }, DIRECT);
+        return this;
+    }
+
+    /**
+     * Calls back once the future is done, right away when it already is.
+     */
+    public void addCallback(final Callback<? super T> callback, final Executor executor) {
+        Runnable listener = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatch(callback);
+                    }
+                });
+            }
+        };
+        synchronized (this) {
+            if (mState == PENDING) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Starts the next step on {@code executor} once this one succeeded. Failures skip the
+     * continuation and go straight to the returned future.
+     */
+    public <R> DriveFuture<R> then(final Continuation<? super T, R> continuation, Executor executor) {
+        final DriveFuture<R> next = new DriveFuture<>();
+        next.setCancellationHandler(new Runnable() {
+            @Override
+            public void run() {
+                cancel(false);
+            }
+        });
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                if (next.isDone()) {
+                    return;
+                }
+                DriveFuture<R> step;
+                try {
+                    step = continuation.then(result);
+                } catch (Exception e) {
+                    next.fail(e);
+                    return;
+                }
+                next.follow(step);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                next.fail(error);
+            }
+        }, executor);
+        return next;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != PENDING;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (mState == PENDING) {
+            wait();
+        }
+        return getDone();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (mState == PENDING) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getDone();
+    }
+
+    /**
+     * Completes this future like {@code step}, and cancels {@code step} when this is cancelled.
+     */
+    private void follow(final DriveFuture<T> step) {
+        setCancellationHandler(new Runnable() {
+            @Override
+            public void run() {
+                step.cancel(false);
+            }
+        });
+        step.addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                complete(result);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                fail(error);
+            }
+        }, DIRECT);
+    }
+
+    private boolean finish(int state, T result, Throwable error) {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (mState != PENDING) {
+                return false;
+            }
+            mState = state;
+            mResult = result;
+            mError = error;
+            listeners = mListeners;
+            mListeners = null;
+            notifyAll();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+        return true;
+    }
+
+    private void runCancellationHandler() {
+        Runnable handler;
+        synchronized (this) {
+            handler = mCancellationHandler;
+            mCancellationHandler = null;
+        }
+        if (handler != null) {
+            handler.run();
+        }
+    }
+
+    private void dispatch(Callback<? super T> callback) {
+        T result;
+        Throwable error;
+        synchronized (this) {
+            result = mResult;
+            error = mError;
+        }
+        if (error == null) {
+            callback.onSuccess(result);
+        } else {
+            callback.onFailure(error);
+        }
+    }
+
+    private T getDone() throws ExecutionException {
+        if (mState == CANCELLED) {
+            throw new CancellationException();
+        }
+        if (mState == FAILED) {
+            throw new ExecutionException(mError);
+        }
+        return mResult;
+    }
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive;
+
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.Drive;
+import com.google.android.gms.drive.DriveApi;
+import com.google.android.gms.drive.DriveContents;
+import com.google.android.gms.drive.DriveFile;
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.DriveResource;
+import com.google.android.gms.drive.DriveStatusCodes;
+import com.google.android.gms.drive.Metadata;
+import com.google.android.gms.drive.MetadataChangeSet;
+import com.google.android.gms.drive.metadata.CustomPropertyKey;
+import com.google.android.gms.drive.query.Filters;
+import com.google.android.gms.drive.query.Query;
+import com.google.android.gms.drive.query.SearchableField;
+import com.google.android.gms.drive.query.SortOrder;
+import com.google.android.gms.drive.query.SortableField;
+import com.joaquimley.sync.compress.CompressionCodec;
+import com.joaquimley.sync.compress.CompressionCodecs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link RemoteFolder} backed by a Drive folder, every call blocks with await(). With a
+ * {@link MetadataCache} upserts find files they or earlier syncs wrote without asking Drive.
+ */
+public class DriveRemoteFolder implements RemoteFolder, FileRestorer.Sources {
+
+    private static final String TAG = "DriveRemoteFolder";
+
+    public static final CustomPropertyKey PROPERTY_MD5 = new CustomPropertyKey("syncMd5", CustomPropertyKey.PRIVATE);
+
+    private static final List<String> NO_SURPLUS = Collections.emptyList();
+
+    private final GoogleApiClient mGoogleApiClient;
+    private final DriveFolder mDriveFolder;
+    private final String mFolderId;
+    private final MetadataCache mCache;
+    private final DriveChangeInvalidator mInvalidator;
+    private final int mKeepRevisions;
+
+    public DriveRemoteFolder(GoogleApiClient googleApiClient, DriveFolder driveFolder) {
+        mGoogleApiClient = googleApiClient;
+        mDriveFolder = driveFolder;
+        mFolderId = null;
+        mCache = null;
+        mInvalidator = null;
+        mKeepRevisions = UpsertPlan.DEFAULT_KEEP_REVISIONS;
+    }
+
+    /**
+     * @param folderId encoded DriveId of the folder
+     * @throws IllegalArgumentException if the folder id can't be decoded
+     */
+    public DriveRemoteFolder(GoogleApiClient googleApiClient, String folderId, MetadataCache cache) {
+        this(googleApiClient, folderId, cache, UpsertPlan.DEFAULT_KEEP_REVISIONS);
+    }
+
+    /**
+     * @param keepRevisions files kept for every title written by {@link #upsertFile}, see
+     *                      {@link UpsertPlan}
+     */
+    public DriveRemoteFolder(GoogleApiClient googleApiClient, String folderId, MetadataCache cache, int keepRevisions) {
+        if (keepRevisions < 1) {
+            throw new IllegalArgumentException("At least one revision is kept: " + keepRevisions);
+        }
+        mGoogleApiClient = googleApiClient;
+        mDriveFolder = DriveId.decodeFromString(folderId).asDriveFolder();
+        mFolderId = folderId;
+        mCache = cache;
+        mInvalidator = new DriveChangeInvalidator(cache);
+        mKeepRevisions = keepRevisions;
+    }
+
+    @Override
+    public WritableFile newFile(String title, String mimeType) throws IOException {
+        return createFile(title, mimeType, NO_SURPLUS);
+    }
+
+    /**
+     * Keeping a single revision the remote id and the cache are tried first, in order, and the
+     * folder is only queried when both miss. Keeping more than one always queries, the revisions
+     * of the title are needed to pick the one to overwrite.
+     */
+    @Override
+    public WritableFile upsertFile(String title, String mimeType, String remoteId) throws IOException {
+        if (mKeepRevisions == 1) {
+            WritableFile file = openExisting(remoteId, true, title, mimeType, NO_SURPLUS);
+            if (file != null) {
+                return file;
+            }
+            MetadataCache.Entry cached = mCache != null ? mCache.find(mFolderId, title) : null;
+            file = cached != null ? openExisting(cached.getDriveId(), true, title, mimeType, NO_SURPLUS) : null;
+            if (file != null) {
+                return file;
+            }
+        }
+
+        UpsertPlan plan = UpsertPlan.of(queryRevisions(title), mKeepRevisions);
+        // The query only returns untrashed children of the folder
+        WritableFile file = openExisting(plan.getTarget(), false, title, mimeType, plan.getSurplus());
+        // Nothing to overwrite, or the target vanished since the query
+        return file != null ? file : createFile(title, mimeType, plan.getSurplus());
+    }
+
+    /**
+     * @return the most recently modified file called {@code title}, null when there is none
+     * @throws IOException when the query fails or the file was stored with an unknown codec
+     */
+    public RemoteVersion findLatest(String title) throws IOException {
+        DriveApi.MetadataBufferResult result = queryChildren(title);
+        try {
+            if (result.getMetadataBuffer().getCount() == 0) {
+                return null;
+            }
+            return toRemoteVersion(result.getMetadataBuffer().get(0));
+        } finally {
+            result.release();
+        }
+    }
+
+    /**
+     * @return the {@link PatchChain} uploaded on top of {@code base}, the latest version of the
+     * file called {@code title}
+     * @throws IOException when the query fails, a patch was stored with an unknown codec or a
+     *                     patch of the chain is missing
+     */
+    public List<RemoteVersion> findPatches(String title, RemoteVersion base) throws IOException {
+        Query query = new Query.Builder()
+                .addFilter(Filters.and(Filters.contains(SearchableField.TITLE, title + PatchChain.SUFFIX),
+                        Filters.eq(SearchableField.TRASHED, false)))
+                .setSortOrder(new SortOrder.Builder().addSortDescending(SortableField.MODIFIED_DATE).build())
+                .build();
+        DriveApi.MetadataBufferResult result = mDriveFolder.queryChildren(mGoogleApiClient, query).await();
+        if (!result.getStatus().isSuccess()) {
+            throw DriveStatusClassifier.exception("Error while looking up the patches of " + title, result.getStatus());
+        }
+        Map<Integer, RemoteVersion> patches = new HashMap<>();
+        try {
+            for (Metadata metadata : result.getMetadataBuffer()) {
+                int revision = PatchChain.revisionOf(title, metadata.getTitle());
+                // Most recently modified first, older copies of a revision are surplus ones
+                if (revision > 0 && !patches.containsKey(revision)) {
+                    patches.put(revision, toRemoteVersion(metadata));
+                }
+            }
+        } finally {
+            result.release();
+        }
+        return PatchChain.select(base, patches);
+    }
+
+    /**
+     * Lists the files of the folder modified after {@code modifiedSince}, trashed ones included
+     * so their removal is seen. With 0 the whole folder is listed instead, trashed files left out.
+     * Files stored with an unknown codec are left out too.
+     *
+     * @throws IOException when the query fails
+     */
+    public List<RemoteChange> listChanges(long modifiedSince) throws IOException {
+        Query.Builder query = new Query.Builder();
+        if (modifiedSince > 0) {
+            query.addFilter(Filters.greaterThan(SearchableField.MODIFIED_DATE, new Date(modifiedSince)));
+        } else {
+            query.addFilter(Filters.eq(SearchableField.TRASHED, false));
+        }
+        DriveApi.MetadataBufferResult result = mDriveFolder.queryChildren(mGoogleApiClient, query.build()).await();
+        if (!result.getStatus().isSuccess()) {
+            throw DriveStatusClassifier.exception("Error while listing the changes", result.getStatus());
+        }
+        List<RemoteChange> changes = new ArrayList<>();
+        try {
+            for (Metadata metadata : result.getMetadataBuffer()) {
+                if (metadata.isFolder()) {
+                    continue;
+                }
+                try {
+                    changes.add(new RemoteChange(metadata.getTitle(), toRemoteVersion(metadata), metadata.isTrashed()));
+                } catch (IOException e) {
+                    // Written by a newer version with a codec this one can't restore, nothing to do with it
+                }
+            }
+        } finally {
+            result.release();
+        }
+        return changes;
+    }
+
+    /**
+     * Subscribes to the changes of the folder's children, Drive keeps delivering them to the
+     * app's DriveEventService after the client disconnects.
+     */
+    public void subscribe() throws IOException {
+        Status status = mDriveFolder.addChangeSubscription(mGoogleApiClient).await();
+        if (!status.isSuccess()) {
+            throw DriveStatusClassifier.exception("Error while subscribing to the folder", status);
+        }
+    }
+
+    private static RemoteVersion toRemoteVersion(Metadata metadata) throws IOException {
+        Map<CustomPropertyKey, String> properties = metadata.getCustomProperties();
+        CompressionCodec codec = CompressionCodecs.NONE;
+        String codecName = properties.get(UploadToFolderTask.PROPERTY_CODEC);
+        if (codecName != null) {
+            try {
+                codec = CompressionCodecs.forName(codecName);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(metadata.getTitle() + " was stored with the unknown codec " + codecName, e);
+            }
+        }
+        // Our own MD5 is of the uncompressed content, Drive's of what it stores
+        String contentMd5 = properties.get(PROPERTY_MD5);
+        String md5 = codec == CompressionCodecs.NONE ? contentMd5 : null;
+        return new RemoteVersion(metadata.getDriveId().encodeToString(), metadata.getFileSize(),
+                md5 != null ? md5 : metadata.getMd5Checksum(), metadata.getModifiedDate().getTime(), codec, contentMd5);
+    }
+
+    /**
+     * @return a source reading the content of {@code version}
+     */
+    @Override
+    public DownloadSource openForDownload(RemoteVersion version) {
+        return new DriveDownloadSource(mGoogleApiClient, version.getDriveId());
+    }
+
+    /**
+     * @return the DriveIds of the files called {@code title}, most recently modified first
+     */
+    private List<String> queryRevisions(String title) throws IOException {
+        DriveApi.MetadataBufferResult result = queryChildren(title);
+        List<String> driveIds = new ArrayList<>();
+        try {
+            for (Metadata metadata : result.getMetadataBuffer()) {
+                driveIds.add(metadata.getDriveId().encodeToString());
+            }
+        } finally {
+            result.release();
+        }
+        return driveIds;
+    }
+
+    /**
+     * @return the files called {@code title} that aren't trashed, most recently modified first,
+     * to be released by the caller
+     */
+    private DriveApi.MetadataBufferResult queryChildren(String title) throws IOException {
+        Query query = new Query.Builder()
+                .addFilter(Filters.and(Filters.eq(SearchableField.TITLE, title), Filters.eq(SearchableField.TRASHED, false)))
+                .setSortOrder(new SortOrder.Builder().addSortDescending(SortableField.MODIFIED_DATE).build())
+                .build();
+        DriveApi.MetadataBufferResult result = mDriveFolder.queryChildren(mGoogleApiClient, query).await();
+        if (!result.getStatus().isSuccess()) {
+            throw DriveStatusClassifier.exception("Error while looking up " + title, result.getStatus());
+        }
+        return result;
+    }
+
+    /**
+     * @param verify check the file is still an untrashed child of the folder first, Drive opens
+     *               trashed files too, which stored and cached ids may point to
+     * @return the file opened for overwriting, null when there is none with this id in the
+     * folder anymore
+     * @throws IOException when Drive fails to answer, overwriting something else would leave a
+     *                     duplicate behind
+     */
+    private WritableFile openExisting(String driveId, boolean verify, String title, String mimeType, List<String> surplus)
+            throws IOException {
+        if (driveId == null) {
+            return null;
+        }
+        DriveFile driveFile;
+        try {
+            driveFile = DriveId.decodeFromString(driveId).asDriveFile();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (verify && !isInFolder(driveFile)) {
+            forget(driveId);
+            return null;
+        }
+        DriveApi.DriveContentsResult result = driveFile.open(mGoogleApiClient, DriveFile.MODE_WRITE_ONLY, null).await();
+        if (isGone(result.getStatus())) {
+            forget(driveId);
+            return null;
+        }
+        if (!result.getStatus().isSuccess()) {
+            throw DriveStatusClassifier.exception("Error while trying to open " + title, result.getStatus());
+        }
+        return new ExistingFile(driveId, title, mimeType, result.getDriveContents(), surplus);
+    }
+
+    /**
+     * @return whether {@code driveFile} still exists untrashed among the children of the folder
+     */
+    private boolean isInFolder(DriveFile driveFile) throws IOException {
+        DriveResource.MetadataResult metadataResult = driveFile.getMetadata(mGoogleApiClient).await();
+        if (isGone(metadataResult.getStatus())) {
+            return false;
+        }
+        if (!metadataResult.getStatus().isSuccess()) {
+            throw DriveStatusClassifier.exception("Error while reading the metadata of a file", metadataResult.getStatus());
+        }
+        if (metadataResult.getMetadata().isTrashed()) {
+            return false;
+        }
+        DriveApi.MetadataBufferResult parents = driveFile.listParents(mGoogleApiClient).await();
+        if (!parents.getStatus().isSuccess()) {
+            throw DriveStatusClassifier.exception("Error while listing the parents of a file", parents.getStatus());
+        }
+        try {
+            for (Metadata parent : parents.getMetadataBuffer()) {
+                if (parent.getDriveId().equals(mDriveFolder.getDriveId())) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            parents.release();
+        }
+    }
+
+    /**
+     * Deleted since its id was stored, anything else is a failure to retry.
+     */
+    private static boolean isGone(Status status) {
+        return status.getStatusCode() == DriveStatusCodes.DRIVE_RESOURCE_NOT_AVAILABLE;
+    }
+
+    private void forget(String driveId) {
+        if (mCache != null) {
+            mCache.invalidate(driveId);
+        }
+    }
+
+    private WritableFile createFile(String title, String mimeType, List<String> surplus) throws IOException {
+        DriveApi.DriveContentsResult result = Drive.DriveApi.newDriveContents(mGoogleApiClient).await();
+        if (!result.getStatus().isSuccess()) {
+            throw DriveStatusClassifier.exception("Error while trying to create new file contents", result.getStatus());
+        }
+        return new NewFile(title, mimeType, result.getDriveContents(), surplus);
+    }
+
+    /**
+     * Best effort, a revision left behind is trashed by the next upsert of its title.
+     */
+    private void trash(List<String> driveIds) {
+        for (String driveId : driveIds) {
+            Status status = DriveId.decodeFromString(driveId).asDriveResource().trash(mGoogleApiClient).await();
+            if (!status.isSuccess()) {
+                Log.w(TAG, "Unable to trash surplus revision " + driveId + ": " + status.getStatusMessage());
+                continue;
+            }
+            if (mCache != null) {
+                mCache.invalidate(driveId);
+            }
+        }
+    }
+
+    /**
+     * A file of the folder being written. Its content goes through the transport, the metadata
+     * can be amended until it is committed, which also trashes the revisions the upsert left
+     * over.
+     */
+    public abstract class WritableFile implements RemoteFile {
+
+        final String mTitle;
+        final DriveContents mDriveContents;
+        private final UploadTransport mTransport;
+        private final List<String> mSurplus;
+        private final Map<CustomPropertyKey, String> mProperties = new HashMap<>();
+        private String mMimeType;
+
+        WritableFile(String title, String mimeType, DriveContents driveContents, List<String> surplus) {
+            mTitle = title;
+            mMimeType = mimeType;
+            mDriveContents = driveContents;
+            // The contents stream is a file, uncompressed chunks reach it without a heap copy
+            mTransport = FileChannelUploadTransport.wrap(driveContents.getOutputStream());
+            mSurplus = surplus;
+        }
+
+        public void setMimeType(String mimeType) {
+            mMimeType = mimeType;
+        }
+
+        public void setCustomProperty(CustomPropertyKey key, String value) {
+            mProperties.put(key, value);
+        }
+
+        @Override
+        public UploadTransport getTransport() {
+            return mTransport;
+        }
+
+        /**
+         * @param md5 hex MD5 of the uploaded content, null when it isn't known
+         */
+        @Override
+        public String commit(String md5) throws IOException {
+            MetadataChangeSet.Builder changeSet = new MetadataChangeSet.Builder()
+                    .setTitle(mTitle)
+                    .setMimeType(mMimeType);
+            if (md5 != null) {
+                changeSet.setCustomProperty(PROPERTY_MD5, md5);
+            }
+            for (Map.Entry<CustomPropertyKey, String> property : mProperties.entrySet()) {
+                changeSet.setCustomProperty(property.getKey(), property.getValue());
+            }
+            String driveId = commit(changeSet.build(), md5);
+            trash(mSurplus);
+            return driveId;
+        }
+
+        /**
+         * @return whether committing creates the file rather than overwrite one
+         */
+        public abstract boolean isNew();
+
+        abstract String commit(MetadataChangeSet changeSet, String md5) throws IOException;
+
+        @Override
+        public void discard() {
+            mDriveContents.discard(mGoogleApiClient);
+        }
+    }
+
+    private final class NewFile extends WritableFile {
+
+        NewFile(String title, String mimeType, DriveContents driveContents, List<String> surplus) {
+            super(title, mimeType, driveContents, surplus);
+        }
+
+        @Override
+        public boolean isNew() {
+            return true;
+        }
+
+        @Override
+        String commit(MetadataChangeSet changeSet, String md5) throws IOException {
+            DriveFolder.DriveFileResult fileResult =
+                    mDriveFolder.createFile(mGoogleApiClient, changeSet, mDriveContents).await();
+            if (!fileResult.getStatus().isSuccess()) {
+                throw DriveStatusClassifier.exception("Error while trying to create the file", fileResult.getStatus());
+            }
+            DriveId driveId = fileResult.getDriveFile().getDriveId();
+            if (mCache != null) {
+                mCache.put(new MetadataCache.Entry(driveId.encodeToString(), mFolderId, mTitle, md5));
+                mInvalidator.watch(mGoogleApiClient, driveId);
+            }
+            return driveId.encodeToString();
+        }
+    }
+
+    /**
+     * A file opened for writing, committing replaces its content and keeps its DriveId.
+     */
+    private final class ExistingFile extends WritableFile {
+
+        private final String mDriveId;
+
+        ExistingFile(String driveId, String title, String mimeType, DriveContents driveContents, List<String> surplus) {
+            super(title, mimeType, driveContents, surplus);
+            mDriveId = driveId;
+        }
+
+        @Override
+        public boolean isNew() {
+            return false;
+        }
+
+        @Override
+        String commit(MetadataChangeSet changeSet, String md5) throws IOException {
+            Status status = mDriveContents.commit(mGoogleApiClient, changeSet).await();
+            if (!status.isSuccess()) {
+                if (mCache != null) {
+                    mCache.invalidate(mDriveId);
+                }
+                throw DriveStatusClassifier.exception("Error while trying to update the file", status);
+            }
+            if (mCache != null) {
+                mCache.put(new MetadataCache.Entry(mDriveId, mFolderId, mTitle, md5));
+            }
+            return mDriveId;
+        }
+    }
+}
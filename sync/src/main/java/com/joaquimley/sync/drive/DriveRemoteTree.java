@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.MetadataChangeSet;
+import com.joaquimley.sync.mirror.RemoteTree;
+
+import java.io.IOException;
+
+/**
+ * {@link RemoteTree} backed by Drive, every call blocks with await(). Ids are encoded DriveIds.
+ */
+public class DriveRemoteTree implements RemoteTree {
+
+    private final GoogleApiClient mGoogleApiClient;
+    private final MetadataCache mCache;
+
+    public DriveRemoteTree(GoogleApiClient googleApiClient, MetadataCache cache) {
+        mGoogleApiClient = googleApiClient;
+        mCache = cache;
+    }
+
+    @Override
+    public String createFolder(String parentId, String title) throws IOException {
+        MetadataChangeSet changeSet = new MetadataChangeSet.Builder().setTitle(title).build();
+        DriveFolder.DriveFolderResult result = decode(parentId).asDriveFolder()
+                .createFolder(mGoogleApiClient, changeSet).await();
+        if (!result.getStatus().isSuccess()) {
+            throw DriveStatusClassifier.exception("Error while creating folder " + title, result.getStatus());
+        }
+        return result.getDriveFolder().getDriveId().encodeToString();
+    }
+
+    @Override
+    public RemoteFolder getFolder(String folderId) throws IOException {
+        try {
+            return new DriveRemoteFolder(mGoogleApiClient, folderId, mCache);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid folder id " + folderId, e);
+        }
+    }
+
+    @Override
+    public void trash(String remoteId) throws IOException {
+        Status status = decode(remoteId).asDriveResource().trash(mGoogleApiClient).await();
+        if (!status.isSuccess()) {
+            throw DriveStatusClassifier.exception("Error while trashing " + remoteId, status);
+        }
+    }
+
+    private static DriveId decode(String id) throws IOException {
+        try {
+            return DriveId.decodeFromString(id);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid DriveId " + id, e);
+        }
+    }
+}
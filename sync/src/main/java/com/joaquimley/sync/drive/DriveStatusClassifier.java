@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.DriveStatusCodes;
+import com.joaquimley.sync.retry.ErrorClass;
+import com.joaquimley.sync.retry.StatusException;
+
+/**
+ * Classifies the status codes of the Drive API, the retry package itself knows nothing about
+ * Play Services.
+ */
+public final class DriveStatusClassifier {
+
+    private DriveStatusClassifier() {
+    }
+
+    public static ErrorClass classify(int statusCode) {
+        switch (statusCode) {
+            case CommonStatusCodes.SIGN_IN_REQUIRED:
+            case CommonStatusCodes.INVALID_ACCOUNT:
+            case CommonStatusCodes.RESOLUTION_REQUIRED:
+            case CommonStatusCodes.SERVICE_DISABLED:
+            case CommonStatusCodes.SERVICE_VERSION_UPDATE_REQUIRED:
+                return ErrorClass.AUTH;
+            case DriveStatusCodes.DRIVE_RATE_LIMIT_EXCEEDED:
+                return ErrorClass.QUOTA;
+            case CommonStatusCodes.DEVELOPER_ERROR:
+            case CommonStatusCodes.CANCELED:
+            case DriveStatusCodes.DRIVE_RESOURCE_NOT_AVAILABLE:
+            case DriveStatusCodes.DRIVE_CONTENTS_TOO_LARGE:
+            case DriveStatusCodes.DRIVE_EXTERNAL_STORAGE_REQUIRED:
+                return ErrorClass.PERMANENT;
+            default:
+                // Network errors, timeouts, interruptions and the service's internal errors
+                return ErrorClass.TRANSIENT;
+        }
+    }
+
+    /**
+     * @param message what failed, the status message is appended
+     */
+    public static StatusException exception(String message, Status status) {
+        return new StatusException(message + ": " + status.getStatusMessage(), status.getStatusCode(),
+                classify(status.getStatusCode()));
+    }
+}
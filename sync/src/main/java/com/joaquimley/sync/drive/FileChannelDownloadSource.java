@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * {@link DownloadSource} reading a local file, such as the copy Drive hands out for file
+ * contents opened in read mode. It can continue from any offset.
+ */
+public class FileChannelDownloadSource implements DownloadSource {
+
+    private final FileChannel mChannel;
+
+    public FileChannelDownloadSource(FileChannel channel) {
+        mChannel = channel;
+    }
+
+    public FileChannelDownloadSource(FileInputStream inputStream) {
+        this(inputStream.getChannel());
+    }
+
+    @Override
+    public long open(long offset) throws IOException {
+        long position = Math.min(offset, mChannel.size());
+        mChannel.position(position);
+        return position;
+    }
+
+    @Override
+    public ReadableByteChannel getChannel() {
+        return mChannel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link ChannelUploadTransport} writing to a {@link FileChannel}, such as the one behind the
+ * {@code FileOutputStream} returned by {@code DriveContents.getOutputStream()}.
+ * <p/>
+ * Like {@link OutputStreamUploadTransport} it always restarts from offset 0.
+ */
+public class FileChannelUploadTransport implements ChannelUploadTransport {
+
+    private final FileChannel mChannel;
+
+    public FileChannelUploadTransport(FileChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * @return a transport over the stream's channel when it is a file, otherwise over the stream
+     */
+    public static UploadTransport wrap(OutputStream outputStream) {
+        if (outputStream instanceof FileOutputStream) {
+            return new FileChannelUploadTransport(((FileOutputStream) outputStream).getChannel());
+        }
+        return new OutputStreamUploadTransport(outputStream);
+    }
+
+    @Override
+    public long open(long offset) {
+        return 0;
+    }
+
+    @Override
+    public boolean supportsResume() {
+        return false;
+    }
+
+    @Override
+    public void write(ByteBuffer chunk) throws IOException {
+        while (chunk.hasRemaining()) {
+            mChannel.write(chunk);
+        }
+    }
+
+    @Override
+    public boolean canTransfer() {
+        return true;
+    }
+
+    @Override
+    public long transferFrom(FileChannel source, long position, long count) throws IOException {
+        long total = 0;
+        while (total < count) {
+            long sent = source.transferTo(position + total, count - total, mChannel);
+            if (sent <= 0) {
+                // transferTo() only stops short at the end of the source
+                break;
+            }
+            total += sent;
+        }
+        return total;
+    }
+
+    @Override
+    public void commit() {
+        // Channel writes aren't buffered in the process, the contents are only read once closed
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import com.joaquimley.sync.compress.CompressionCodecs;
+import com.joaquimley.sync.delta.DeltaPatch;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Brings a remote file back over its local copy: downloads it into a part file next to the
+ * target with a {@link ChunkedDownloader}, decompresses it when it was uploaded compressed and
+ * renames the result over the target, so the target is never seen half written. The
+ * {@link PatchChain} uploaded since the remote file is replayed over it before the rename.
+ * <p/>
+ * A local copy changed since the last sync is a conflict, settled by the {@link ConflictPolicy}.
+ */
+public class FileRestorer {
+
+    private static final String PART_SUFFIX = ".part";
+    private static final String RESTORE_SUFFIX = ".restore";
+    private static final String PATCHED_SUFFIX = ".patched-";
+    private static final String CONFLICT_INFIX = ".conflict-";
+
+    /**
+     * What to do when the local copy changed since the last sync.
+     */
+    public enum ConflictPolicy {
+        /**
+         * The copy modified last is kept, the remote one wins ties.
+         */
+        LAST_WRITER_WINS,
+        /**
+         * The remote copy is restored and the local one renamed next to it.
+         */
+        KEEP_BOTH,
+        /**
+         * The {@link ConflictResolver} decides, the local copy is kept without one.
+         */
+        CALLBACK
+    }
+
+    public enum Resolution {
+        KEEP_LOCAL,
+        TAKE_REMOTE,
+        KEEP_BOTH
+    }
+
+    public enum Outcome {
+        /**
+         * The remote copy is now the local one.
+         */
+        RESTORED,
+        /**
+         * The local copy already had the remote content.
+         */
+        UNCHANGED,
+        /**
+         * The conflict was settled for the local copy, nothing was downloaded.
+         */
+        KEPT_LOCAL
+    }
+
+    /**
+     * Settles conflicts under {@link ConflictPolicy#CALLBACK}, called on the sync thread.
+     */
+    public interface ConflictResolver {
+
+        Resolution resolve(File local, RemoteVersion remote);
+    }
+
+    /**
+     * Opens the patches of a restore, only once their turn comes.
+     */
+    public interface Sources {
+
+        DownloadSource openForDownload(RemoteVersion version);
+    }
+
+    public static final class Result {
+
+        private final Outcome mOutcome;
+        private final long mBytesFetched;
+        private final File mConflictFile;
+
+        Result(Outcome outcome, long bytesFetched, File conflictFile) {
+            mOutcome = outcome;
+            mBytesFetched = bytesFetched;
+            mConflictFile = conflictFile;
+        }
+
+        public Outcome getOutcome() {
+            return mOutcome;
+        }
+
+        /**
+         * @return bytes downloaded by this restore, resumed ones not included
+         */
+        public long getBytesFetched() {
+            return mBytesFetched;
+        }
+
+        /**
+         * @return where the local copy was moved to under {@link Resolution#KEEP_BOTH}, null otherwise
+         */
+        public File getConflictFile() {
+            return mConflictFile;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" + mOutcome + ", " + mBytesFetched + " bytes fetched"
+                    + (mConflictFile != null ? ", local copy kept as " + mConflictFile.getName() : "") + "}";
+        }
+    }
+
+    private final ChunkedDownloader mDownloader;
+    private final ConflictPolicy mConflictPolicy;
+    private final ConflictResolver mConflictResolver;
+
+    public FileRestorer(ConflictPolicy conflictPolicy) {
+        this(new ChunkedDownloader(), conflictPolicy, null);
+    }
+
+    /**
+     * @param conflictResolver consulted under {@link ConflictPolicy#CALLBACK}, may be null
+     */
+    public FileRestorer(ChunkedDownloader downloader, ConflictPolicy conflictPolicy, ConflictResolver conflictResolver) {
+        mDownloader = downloader;
+        mConflictPolicy = conflictPolicy;
+        mConflictResolver = conflictResolver;
+    }
+
+    /**
+     * Restores {@code remote} over {@code target}. An interrupted download of the same version
+     * resumes from its part file on the next call.
+     *
+     * @param syncedAt when {@code target} was last uploaded or restored, a later local
+     *                 modification is a conflict, 0 when it never was
+     */
+    public Result restore(DownloadSource source, RemoteVersion remote, File target, long syncedAt) throws IOException {
+        return restore(source, remote, Collections.<RemoteVersion>emptyList(), null, target, syncedAt);
+    }
+
+    /**
+     * Restores {@code remote} with {@code patches} replayed over it. Nothing is renamed over
+     * {@code target} unless every patch applied.
+     *
+     * @param patches      the {@link PatchChain} of {@code remote}, in order
+     * @param patchSources where the patches are downloaded from, may be null without patches
+     */
+    public Result restore(DownloadSource source, RemoteVersion remote, List<RemoteVersion> patches,
+                          Sources patchSources, File target, long syncedAt) throws IOException {
+        // The newest link carries the content's modification time
+        RemoteVersion latest = patches.isEmpty() ? remote : patches.get(patches.size() - 1);
+        Resolution resolution = Resolution.TAKE_REMOTE;
+        if (target.exists()) {
+            if (patches.isEmpty() && isSameContent(target, remote)) {
+                source.close();
+                return new Result(Outcome.UNCHANGED, 0, null);
+            }
+            if (target.lastModified() > syncedAt) {
+                resolution = resolve(target, latest);
+            }
+        }
+        if (resolution == Resolution.KEEP_LOCAL) {
+            source.close();
+            return new Result(Outcome.KEPT_LOCAL, 0, null);
+        }
+
+        File partFile = new File(target.getPath() + "." + remote.getVersionKey() + PART_SUFFIX);
+        deleteStaleParts(target, partFile);
+        long fetched = mDownloader.fetch(source, partFile, remote.getMd5());
+
+        File restored = partFile;
+        if (remote.getCodec() != CompressionCodecs.NONE) {
+            restored = new File(target.getPath() + RESTORE_SUFFIX);
+            decompress(remote, partFile, restored);
+            partFile.delete();
+        }
+        for (int i = 0; i < patches.size(); i++) {
+            RemoteVersion patch = patches.get(i);
+            File patchFile = new File(target.getPath() + "." + patch.getVersionKey() + PART_SUFFIX);
+            File patched = new File(target.getPath() + PATCHED_SUFFIX + (i + 1));
+            try {
+                fetched += mDownloader.fetch(patchSources.openForDownload(patch), patchFile, patch.getMd5());
+                applyPatch(patch, patchFile, restored, patched);
+            } catch (IOException e) {
+                // A base without all of its patches is older content, nothing is kept of it
+                restored.delete();
+                patched.delete();
+                throw e;
+            } finally {
+                patchFile.delete();
+            }
+            restored.delete();
+            restored = patched;
+        }
+
+        File conflictFile = null;
+        if (resolution == Resolution.KEEP_BOTH && target.exists()) {
+            conflictFile = new File(target.getPath() + CONFLICT_INFIX + target.lastModified());
+            if (!target.renameTo(conflictFile)) {
+                throw new IOException("Can't move " + target + " aside to " + conflictFile.getName());
+            }
+        }
+        if (!restored.renameTo(target)) {
+            throw new IOException("Can't rename " + restored.getName() + " over " + target);
+        }
+        return new Result(Outcome.RESTORED, fetched, conflictFile);
+    }
+
+    private Resolution resolve(File local, RemoteVersion remote) {
+        switch (mConflictPolicy) {
+            case LAST_WRITER_WINS:
+                return local.lastModified() > remote.getModifiedTime() ? Resolution.KEEP_LOCAL : Resolution.TAKE_REMOTE;
+            case KEEP_BOTH:
+                return Resolution.KEEP_BOTH;
+            default:
+                Resolution resolution = mConflictResolver != null ? mConflictResolver.resolve(local, remote) : null;
+                return resolution != null ? resolution : Resolution.KEEP_LOCAL;
+        }
+    }
+
+    /**
+     * A compressed remote copy is compared by the MD5 its upload recorded of the content, and
+     * downloaded when there is none.
+     */
+    private boolean isSameContent(File local, RemoteVersion remote) throws IOException {
+        return remote.getContentMd5() != null
+                && (remote.getCodec() != CompressionCodecs.NONE || local.length() == remote.getSize())
+                && remote.getContentMd5().equalsIgnoreCase(mDownloader.md5(local));
+    }
+
+    /**
+     * Part files of other remote versions can't be resumed anymore.
+     */
+    private static void deleteStaleParts(File target, File keep) {
+        File directory = target.getAbsoluteFile().getParentFile();
+        File[] files = directory != null ? directory.listFiles() : null;
+        if (files == null) {
+            return;
+        }
+        String prefix = target.getName() + ".";
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(prefix) && name.endsWith(PART_SUFFIX) && !name.equals(keep.getName())) {
+                file.delete();
+            }
+        }
+    }
+
+    private void decompress(RemoteVersion remote, File from, File to) throws IOException {
+        InputStream in = remote.getCodec().decompress(new FileInputStream(from));
+        FileOutputStream out = new FileOutputStream(to);
+        try {
+            copy(in, out, new byte[mDownloader.getChunkSize()]);
+            out.getFD().sync();
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private void applyPatch(RemoteVersion patch, File patchFile, File base, File to) throws IOException {
+        InputStream in = patch.getCodec().decompress(new FileInputStream(patchFile));
+        FileOutputStream out = new FileOutputStream(to);
+        try {
+            DeltaPatch.apply(base, new BufferedInputStream(in, mDownloader.getChunkSize()), out);
+            out.getFD().sync();
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * {@link UploadCheckpointStore} keeping one small file per uploaded path inside a directory,
+ * e.g. {@code new File(context.getFilesDir(), "upload_checkpoints")}.
+ * <p/>
+ * Every save goes to a temporary file that is then renamed over the previous one, so a crash
+ * leaves either the old or the new checkpoint behind, never a torn one.
+ */
+public class FileUploadCheckpointStore implements UploadCheckpointStore {
+
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+
+    public FileUploadCheckpointStore(File directory) {
+        mDirectory = directory;
+    }
+
+    @Override
+    public synchronized UploadCheckpoint load(String path) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new FileInputStream(fileFor(path)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (in.readInt() != VERSION || !path.equals(in.readUTF())) {
+                return null;
+            }
+            return new UploadCheckpoint(in.readLong(), in.readLong(), in.readLong(), in.readInt(), in.readLong());
+        } catch (IOException e) {
+            // A truncated or foreign file is the same as no checkpoint at all
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public synchronized void save(String path, UploadCheckpoint checkpoint) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create checkpoint directory " + mDirectory);
+        }
+        File target = fileFor(path);
+        File temp = new File(mDirectory, target.getName() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(fileOut);
+        try {
+            out.writeInt(VERSION);
+            out.writeUTF(path);
+            out.writeLong(checkpoint.getFileLength());
+            out.writeLong(checkpoint.getLastModified());
+            out.writeLong(checkpoint.getBytesCommitted());
+            out.writeInt(checkpoint.getChunkLength());
+            out.writeLong(checkpoint.getChunkChecksum());
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(target)) {
+            throw new IOException("Unable to commit checkpoint for " + path);
+        }
+    }
+
+    @Override
+    public synchronized void clear(String path) throws IOException {
+        File file = fileFor(path);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to clear checkpoint for " + path);
+        }
+    }
+
+    private File fileFor(String path) {
+        return new File(mDirectory, hex(md5(path.getBytes(UTF_8))));
+    }
+
+    private static byte[] md5(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+}
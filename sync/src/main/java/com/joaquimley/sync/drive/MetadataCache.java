@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What the sync learned about remote files, so deciding between updating a file and creating
+ * it doesn't need a round trip to Drive.
+ * <p/>
+ * Entries are found by DriveId or by title within their folder. They expire {@code ttlMillis}
+ * after being put, the least recently used ones are evicted beyond {@code maxEntries}, and a
+ * Drive change event for a file drops it through {@link #invalidate(String)}. A stale entry
+ * only costs a failed open, the caller invalidates it and falls back to creating the file.
+ */
+public class MetadataCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+    public static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+
+    interface Clock {
+
+        long currentTimeMillis();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private static MetadataCache sDefault;
+
+    private final int mMaxEntries;
+    private final long mTtlMillis;
+    private final Clock mClock;
+    private final Map<String, CachedEntry> mById;
+    private final Map<TitleKey, String> mByTitle = new HashMap<>();
+
+    private long mHits;
+    private long mMisses;
+    private long mExpirations;
+    private long mEvictions;
+    private long mInvalidations;
+
+    public MetadataCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+    }
+
+    public MetadataCache(int maxEntries, long ttlMillis) {
+        this(maxEntries, ttlMillis, SYSTEM_CLOCK);
+    }
+
+    MetadataCache(final int maxEntries, long ttlMillis, Clock clock) {
+        if (maxEntries <= 0 || ttlMillis <= 0) {
+            throw new IllegalArgumentException("Max entries and TTL must be positive");
+        }
+        mMaxEntries = maxEntries;
+        mTtlMillis = ttlMillis;
+        mClock = clock;
+        mById = new LinkedHashMap<String, CachedEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedEntry> eldest) {
+                if (size() <= mMaxEntries) {
+                    return false;
+                }
+                mByTitle.remove(eldest.getValue().mTitleKey);
+                mEvictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * The cache the drive tasks use unless told otherwise. DriveIds are unique across accounts
+     * and so are the folders titles are looked up in, every account can share it.
+     */
+    public static synchronized MetadataCache getDefault() {
+        if (sDefault == null) {
+            sDefault = new MetadataCache();
+        }
+        return sDefault;
+    }
+
+    /**
+     * Replaces the default cache, to be called before any sync work starts.
+     */
+    public static synchronized void setDefault(MetadataCache cache) {
+        sDefault = cache;
+    }
+
+    /**
+     * @return the file with this DriveId, null when unknown or expired
+     */
+    public synchronized Entry get(String driveId) {
+        CachedEntry cached = mById.get(driveId);
+        if (cached == null || isExpired(cached)) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return cached.mEntry;
+    }
+
+    /**
+     * @return the file called {@code title} in the folder, null when unknown or expired
+     */
+    public synchronized Entry find(String folderId, String title) {
+        String driveId = mByTitle.get(new TitleKey(folderId, title));
+        return driveId != null ? get(driveId) : countMiss();
+    }
+
+    /**
+     * Remembers a file, replacing what was known under its DriveId or its title in the folder.
+     */
+    public synchronized void put(Entry entry) {
+        remove(entry.getDriveId());
+        TitleKey titleKey = new TitleKey(entry.getFolderId(), entry.getTitle());
+        String previous = mByTitle.get(titleKey);
+        if (previous != null) {
+            remove(previous);
+        }
+        mByTitle.put(titleKey, entry.getDriveId());
+        mById.put(entry.getDriveId(), new CachedEntry(entry, titleKey, mClock.currentTimeMillis() + mTtlMillis));
+    }
+
+    /**
+     * Forgets a file that changed remotely or turned out stale.
+     */
+    public synchronized void invalidate(String driveId) {
+        if (remove(driveId)) {
+            mInvalidations++;
+        }
+    }
+
+    /**
+     * Forgets the folder and every file known in it.
+     */
+    public synchronized void invalidateFolder(String folderId) {
+        invalidate(folderId);
+        Iterator<CachedEntry> iterator = mById.values().iterator();
+        while (iterator.hasNext()) {
+            CachedEntry cached = iterator.next();
+            if (folderId.equals(cached.mEntry.getFolderId())) {
+                iterator.remove();
+                mByTitle.remove(cached.mTitleKey);
+                mInvalidations++;
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        mInvalidations += mById.size();
+        mById.clear();
+        mByTitle.clear();
+    }
+
+    public synchronized Metrics getMetrics() {
+        return new Metrics(mHits, mMisses, mExpirations, mEvictions, mInvalidations, mById.size());
+    }
+
+    private boolean isExpired(CachedEntry cached) {
+        if (mClock.currentTimeMillis() < cached.mExpiresAt) {
+            return false;
+        }
+        remove(cached.mEntry.getDriveId());
+        mExpirations++;
+        return true;
+    }
+
+    private boolean remove(String driveId) {
+        CachedEntry cached = mById.remove(driveId);
+        if (cached == null) {
+            return false;
+        }
+        mByTitle.remove(cached.mTitleKey);
+        return true;
+    }
+
+    private Entry countMiss() {
+        mMisses++;
+        return null;
+    }
+
+    /**
+     * A remote file as last seen by the sync.
+     */
+    public static class Entry {
+
+        private final String mDriveId;
+        private final String mFolderId;
+        private final String mTitle;
+        private final String mMd5;
+
+        /**
+         * @param md5 hex MD5 of the content, null when unknown
+         */
+        public Entry(String driveId, String folderId, String title, String md5) {
+            if (driveId == null || folderId == null || title == null) {
+                throw new IllegalArgumentException("DriveId, folder id and title are required");
+            }
+            mDriveId = driveId;
+            mFolderId = folderId;
+            mTitle = title;
+            mMd5 = md5;
+        }
+
+        public String getDriveId() {
+            return mDriveId;
+        }
+
+        public String getFolderId() {
+            return mFolderId;
+        }
+
+        public String getTitle() {
+            return mTitle;
+        }
+
+        public String getMd5() {
+            return mMd5;
+        }
+
+        @Override
+        public String toString() {
+            return "MetadataCache.Entry{" + mTitle + " " + mDriveId + " in " + mFolderId + "}";
+        }
+    }
+
+    private static final class CachedEntry {
+
+        private final Entry mEntry;
+        private final TitleKey mTitleKey;
+        private final long mExpiresAt;
+
+        CachedEntry(Entry entry, TitleKey titleKey, long expiresAt) {
+            mEntry = entry;
+            mTitleKey = titleKey;
+            mExpiresAt = expiresAt;
+        }
+    }
+
+    private static final class TitleKey {
+
+        private final String mFolderId;
+        private final String mTitle;
+
+        TitleKey(String folderId, String title) {
+            mFolderId = folderId;
+            mTitle = title;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TitleKey)) {
+                return false;
+            }
+            TitleKey other = (TitleKey) o;
+            return mFolderId.equals(other.mFolderId) && mTitle.equals(other.mTitle);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mFolderId.hashCode() + mTitle.hashCode();
+        }
+    }
+
+    public static class Metrics {
+
+        private final long mHits;
+        private final long mMisses;
+        private final long mExpirations;
+        private final long mEvictions;
+        private final long mInvalidations;
+        private final int mSize;
+
+        Metrics(long hits, long misses, long expirations, long evictions, long invalidations, int size) {
+            mHits = hits;
+            mMisses = misses;
+            mExpirations = expirations;
+            mEvictions = evictions;
+            mInvalidations = invalidations;
+            mSize = size;
+        }
+
+        public long getHits() {
+            return mHits;
+        }
+
+        /**
+         * @return lookups of unknown files, expired ones included
+         */
+        public long getMisses() {
+            return mMisses;
+        }
+
+        public long getExpirations() {
+            return mExpirations;
+        }
+
+        public long getEvictions() {
+            return mEvictions;
+        }
+
+        public long getInvalidations() {
+            return mInvalidations;
+        }
+
+        public int getSize() {
+            return mSize;
+        }
+
+        public double getHitRate() {
+            long lookups = mHits + mMisses;
+            return lookups == 0 ? 0 : (double) mHits / lookups;
+        }
+
+        /**
+         * @return remote queries the hits stood in for, one each
+         */
+        public long getSavedRoundTrips() {
+            return mHits;
+        }
+
+        @Override
+        public String toString() {
+            return "MetadataCache.Metrics{hits=" + mHits
+                    + " misses=" + mMisses
+                    + " expirations=" + mExpirations
+                    + " evictions=" + mEvictions
+                    + " invalidations=" + mInvalidations
+                    + " size=" + mSize + "}";
+        }
+    }
+}
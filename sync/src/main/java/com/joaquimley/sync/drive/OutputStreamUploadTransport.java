@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link UploadTransport} writing to a plain {@link OutputStream}, such as the one returned by
+ * {@code DriveContents.getOutputStream()}.
+ * <p/>
+ * A fresh stream has no previous bytes to append to, so it always restarts from offset 0.
+ */
+public class OutputStreamUploadTransport implements UploadTransport {
+
+    private final OutputStream mOutputStream;
+
+    public OutputStreamUploadTransport(OutputStream outputStream) {
+        mOutputStream = outputStream;
+    }
+
+    @Override
+    public long open(long offset) {
+        return 0;
+    }
+
+    @Override
+    public boolean supportsResume() {
+        return false;
+    }
+
+    @Override
+    public void write(ByteBuffer chunk) throws IOException {
+        if (chunk.hasArray()) {
+            mOutputStream.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+            chunk.position(chunk.limit());
+            return;
+        }
+        byte[] bytes = new byte[chunk.remaining()];
+        chunk.get(bytes);
+        mOutputStream.write(bytes);
+    }
+
+    @Override
+    public void commit() throws IOException {
+        mOutputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOutputStream.close();
+    }
+}
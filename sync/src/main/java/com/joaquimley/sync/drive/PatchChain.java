@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive;
+
+import com.joaquimley.sync.delta.ChangeDetector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The patches uploaded on top of a full upload, {@code <title>.patch-<revision>} with the
+ * revision counting up from 1 after every full upload, see {@link ChangeDetector}.
+ * <p/>
+ * Patches of an older chain stay in the folder until overwritten, a link of the current chain
+ * is told apart by being modified after the link before it.
+ */
+public final class PatchChain {
+
+    public static final String SUFFIX = ".patch-";
+
+    private PatchChain() {
+    }
+
+    public static String titleOf(String title, int revision) {
+        return title + SUFFIX + revision;
+    }
+
+    /**
+     * @return the revision {@code patchTitle} patches {@code title} to, 0 when it's no patch of it
+     */
+    public static int revisionOf(String title, String patchTitle) {
+        String prefix = title + SUFFIX;
+        if (patchTitle == null || !patchTitle.startsWith(prefix)) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(patchTitle.substring(prefix.length())));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Orders the patches to replay over {@code base}.
+     *
+     * @param patches the most recent patch of every revision found
+     * @return the patches in revision order, empty when the base is the latest content
+     * @throws IOException when a patch of the chain is missing, the base alone would silently
+     *                     restore older content
+     */
+    public static List<RemoteVersion> select(RemoteVersion base, Map<Integer, RemoteVersion> patches)
+            throws IOException {
+        List<RemoteVersion> chain = new ArrayList<>();
+        long previousModified = base.getModifiedTime();
+        for (int revision = 1; ; revision++) {
+            RemoteVersion patch = patches.get(revision);
+            if (patch == null || patch.getModifiedTime() < previousModified) {
+                break;
+            }
+            chain.add(patch);
+            previousModified = patch.getModifiedTime();
+        }
+        for (Map.Entry<Integer, RemoteVersion> patch : patches.entrySet()) {
+            if (patch.getKey() > chain.size() + 1 && patch.getValue().getModifiedTime() >= base.getModifiedTime()) {
+                throw new IOException("Patch " + (chain.size() + 1) + " of the chain up to " + patch.getKey()
+                        + " is missing");
+            }
+        }
+        return chain;
+    }
+}
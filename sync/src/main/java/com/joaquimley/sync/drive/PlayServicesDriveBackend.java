@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import android.support.annotation.NonNull;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.Result;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.Drive;
+import com.google.android.gms.drive.DriveApi;
+import com.google.android.gms.drive.DriveContents;
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.DriveResource;
+import com.google.android.gms.drive.Metadata;
+import com.google.android.gms.drive.MetadataChangeSet;
+import com.joaquimley.sync.retry.StatusException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * {@link DriveBackend} on top of the Drive Android API. Results arrive through
+ * setResultCallback() on the client's looper, so the continuations chained onto them should
+ * run on an executor of their own.
+ */
+public class PlayServicesDriveBackend implements DriveBackend {
+
+    private final GoogleApiClient mGoogleApiClient;
+
+    public PlayServicesDriveBackend(GoogleApiClient googleApiClient) {
+        mGoogleApiClient = googleApiClient;
+    }
+
+    @Override
+    public DriveFuture<Contents> newContents() {
+        return adapt(Drive.DriveApi.newDriveContents(mGoogleApiClient), new Converter<DriveApi.DriveContentsResult, Contents>() {
+            @Override
+            public Contents convert(DriveApi.DriveContentsResult result) {
+                return new PlayServicesContents(result.getDriveContents());
+            }
+        });
+    }
+
+    @Override
+    public DriveFuture<String> createFile(String folderId, String title, String mimeType, Contents contents) {
+        DriveFolder folder;
+        try {
+            folder = folderId == null ? Drive.DriveApi.getRootFolder(mGoogleApiClient)
+                    : DriveId.decodeFromString(folderId).asDriveFolder();
+        } catch (IllegalArgumentException e) {
+            return DriveFuture.failed(new IOException("Invalid folder id " + folderId, e));
+        }
+        MetadataChangeSet changeSet = new MetadataChangeSet.Builder()
+                .setTitle(title)
+                .setMimeType(mimeType)
+                .build();
+        DriveContents driveContents = ((PlayServicesContents) contents).mDriveContents;
+        return adapt(folder.createFile(mGoogleApiClient, changeSet, driveContents), new Converter<DriveFolder.DriveFileResult, String>() {
+            @Override
+            public String convert(DriveFolder.DriveFileResult result) {
+                return result.getDriveFile().getDriveId().encodeToString();
+            }
+        });
+    }
+
+    @Override
+    public DriveFuture<FileInfo> getMetadata(String driveId) {
+        PendingResult<DriveResource.MetadataResult> pendingResult;
+        try {
+            pendingResult = DriveId.decodeFromString(driveId).asDriveFile().getMetadata(mGoogleApiClient);
+        } catch (IllegalArgumentException e) {
+            return DriveFuture.failed(new IOException("Invalid file id " + driveId, e));
+        }
+        return adapt(pendingResult, new Converter<DriveResource.MetadataResult, FileInfo>() {
+            @Override
+            public FileInfo convert(DriveResource.MetadataResult result) {
+                final Metadata metadata = result.getMetadata();
+                return new FileInfo() {
+                    @Override
+                    public String getDriveId() {
+                        return metadata.getDriveId().encodeToString();
+                    }
+
+                    @Override
+                    public String getTitle() {
+                        return metadata.getTitle();
+                    }
+
+                    @Override
+                    public long getFileSize() {
+                        return metadata.getFileSize();
+                    }
+                };
+            }
+        });
+    }
+
+    private static <R extends Result, T> DriveFuture<T> adapt(final PendingResult<R> pendingResult, final Converter<R, T> converter) {
+        final DriveFuture<T> future = new DriveFuture<>();
+        future.setCancellationHandler(new Runnable() {
+            @Override
+            public void run() {
+                pendingResult.cancel();
+            }
+        });
+        pendingResult.setResultCallback(new ResultCallback<R>() {
+            @Override
+            public void onResult(@NonNull R result) {
+                if (!result.getStatus().isSuccess()) {
+                    Status status = result.getStatus();
+                    future.fail(new StatusException(status.getStatusMessage(), status.getStatusCode(),
+                            DriveStatusClassifier.classify(status.getStatusCode())));
+                    return;
+                }
+                future.complete(converter.convert(result));
+            }
+        });
+        return future;
+    }
+
+    private interface Converter<R, T> {
+
+        T convert(R result);
+    }
+
+    private final class PlayServicesContents implements Contents {
+
+        private final DriveContents mDriveContents;
+
+        PlayServicesContents(DriveContents driveContents) {
+            mDriveContents = driveContents;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mDriveContents.getOutputStream();
+        }
+
+        @Override
+        public void discard() {
+            mDriveContents.discard(mGoogleApiClient);
+        }
+    }
+}
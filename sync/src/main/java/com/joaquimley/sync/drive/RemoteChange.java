@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+/**
+ * A file of a Drive folder modified since a {@link ChangeToken}. Immutable.
+ */
+public final class RemoteChange {
+
+    private final String mTitle;
+    private final RemoteVersion mVersion;
+    private final boolean mTrashed;
+
+    public RemoteChange(String title, RemoteVersion version, boolean trashed) {
+        mTitle = title;
+        mVersion = version;
+        mTrashed = trashed;
+    }
+
+    public String getTitle() {
+        return mTitle;
+    }
+
+    public RemoteVersion getVersion() {
+        return mVersion;
+    }
+
+    public boolean isTrashed() {
+        return mTrashed;
+    }
+
+    @Override
+    public String toString() {
+        return "RemoteChange{" + mTitle + ", " + mVersion + (mTrashed ? ", trashed" : "") + "}";
+    }
+}
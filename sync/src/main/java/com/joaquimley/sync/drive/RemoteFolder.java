@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive;
+
+import java.io.IOException;
+
+/**
+ * A remote folder files can be created in, implemented on top of Drive by
+ * {@link DriveRemoteFolder}. Methods block, call them from a worker thread.
+ */
+public interface RemoteFolder {
+
+    RemoteFile newFile(String title, String mimeType) throws IOException;
+
+    /**
+     * Opens the file called {@code title} for overwriting, committing replaces its content and
+     * keeps its remote id. The file is created when the folder has none.
+     *
+     * @param remoteId where the file was uploaded to before, tried ahead of looking it up by
+     *                 title, may be null
+     */
+    RemoteFile upsertFile(String title, String mimeType, String remoteId) throws IOException;
+
+    /**
+     * A file being written, it only shows up remotely once committed.
+     */
+    interface RemoteFile {
+
+        UploadTransport getTransport();
+
+        /**
+         * @param md5 hex MD5 of the uploaded content, kept with the remote file
+         * @return the remote id of the created file
+         */
+        String commit(String md5) throws IOException;
+
+        void discard();
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import com.joaquimley.sync.compress.CompressionCodec;
+import com.joaquimley.sync.compress.CompressionCodecs;
+
+/**
+ * The remote file a restore downloads, as its metadata describes it.
+ */
+public final class RemoteVersion {
+
+    private final String mDriveId;
+    private final long mSize;
+    private final String mMd5;
+    private final String mContentMd5;
+    private final long mModifiedTime;
+    private final CompressionCodec mCodec;
+
+    /**
+     * @param size  stored bytes, compressed ones when {@code codec} isn't {@link CompressionCodecs#NONE}
+     * @param md5   hex MD5 of the stored bytes, null when unknown
+     * @param codec what the content was stored with, null for {@link CompressionCodecs#NONE}
+     */
+    public RemoteVersion(String driveId, long size, String md5, long modifiedTime, CompressionCodec codec) {
+        this(driveId, size, md5, modifiedTime, codec, null);
+    }
+
+    /**
+     * @param contentMd5 hex MD5 of the uncompressed content, null when unknown or the content
+     *                   isn't compressed
+     */
+    public RemoteVersion(String driveId, long size, String md5, long modifiedTime, CompressionCodec codec,
+                         String contentMd5) {
+        mDriveId = driveId;
+        mSize = size;
+        mMd5 = md5;
+        mContentMd5 = contentMd5;
+        mModifiedTime = modifiedTime;
+        mCodec = codec != null ? codec : CompressionCodecs.NONE;
+    }
+
+    public String getDriveId() {
+        return mDriveId;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public String getMd5() {
+        return mMd5;
+    }
+
+    /**
+     * @return hex MD5 of the content once decompressed, what a local copy is compared with
+     */
+    public String getContentMd5() {
+        return mCodec == CompressionCodecs.NONE ? mMd5 : mContentMd5;
+    }
+
+    public long getModifiedTime() {
+        return mModifiedTime;
+    }
+
+    public CompressionCodec getCodec() {
+        return mCodec;
+    }
+
+    /**
+     * @return a name telling this version of the content apart from others, for partial downloads
+     */
+    String getVersionKey() {
+        return mMd5 != null ? mMd5 : mSize + "-" + mModifiedTime;
+    }
+
+    @Override
+    public String toString() {
+        return "RemoteVersion{" + mDriveId + ", " + mSize + " bytes, md5=" + mMd5 + ", codec=" + mCodec.getName() + "}";
+    }
+}
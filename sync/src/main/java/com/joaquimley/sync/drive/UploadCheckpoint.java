@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive;
+
+/**
+ * Progress of an interrupted upload: how many bytes were committed and the checksum of the
+ * last committed chunk, so a later run can tell whether the source is still the same file.
+ */
+public final class UploadCheckpoint {
+
+    private final long mFileLength;
+    private final long mLastModified;
+    private final long mBytesCommitted;
+    private final int mChunkLength;
+    private final long mChunkChecksum;
+
+    public UploadCheckpoint(long fileLength, long lastModified, long bytesCommitted, int chunkLength,
+                            long chunkChecksum) {
+        mFileLength = fileLength;
+        mLastModified = lastModified;
+        mBytesCommitted = bytesCommitted;
+        mChunkLength = chunkLength;
+        mChunkChecksum = chunkChecksum;
+    }
+
+    public long getFileLength() {
+        return mFileLength;
+    }
+
+    public long getLastModified() {
+        return mLastModified;
+    }
+
+    public long getBytesCommitted() {
+        return mBytesCommitted;
+    }
+
+    /**
+     * Length of the last committed chunk, which ends at {@link #getBytesCommitted()}.
+     */
+    public int getChunkLength() {
+        return mChunkLength;
+    }
+
+    /**
+     * CRC32 of the last committed chunk.
+     */
+    public long getChunkChecksum() {
+        return mChunkChecksum;
+    }
+
+    @Override
+    public String toString() {
+        return "UploadCheckpoint{" + mBytesCommitted + "/" + mFileLength + " bytes, crc=" + mChunkChecksum + "}";
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive;
+
+import java.io.IOException;
+
+/**
+ * Persists one {@link UploadCheckpoint} per local file path.
+ */
+public interface UploadCheckpointStore {
+
+    /**
+     * @return the saved checkpoint, or null if there is none
+     */
+    UploadCheckpoint load(String path) throws IOException;
+
+    void save(String path, UploadCheckpoint checkpoint) throws IOException;
+
+    void clear(String path) throws IOException;
+
+}
@@ -1,46 +1,145 @@
 package com.joaquimley.sync.drive;
 
 import android.os.Bundle;
-import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.drive.Drive;
-import com.google.android.gms.drive.DriveApi;
-import com.google.android.gms.drive.DriveContents;
-import com.google.android.gms.drive.DriveFolder;
-import com.google.android.gms.drive.DriveId;
-import com.google.android.gms.drive.MetadataChangeSet;
+import com.google.android.gms.drive.metadata.CustomPropertyKey;
+import com.joaquimley.sync.compress.CompressingUploadTransport;
+import com.joaquimley.sync.compress.CompressionCodec;
+import com.joaquimley.sync.compress.CompressionCodecs;
+import com.joaquimley.sync.executor.SyncExecutor;
+import com.joaquimley.sync.metrics.SyncMetrics;
+import com.joaquimley.sync.retry.ErrorClassifier;
+import com.joaquimley.sync.retry.Retrier;
+import com.joaquimley.sync.retry.RetryBudget;
+import com.joaquimley.sync.retry.RetryPolicy;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Creates a file to GoogleApiClient's Drive account
+ * Upserts a file to GoogleApiClient's Drive account through {@link DriveRemoteFolder#upsertFile}:
+ * the file with that title in the folder is overwritten, found through the {@link MetadataCache}
+ * or a query, and created when there is none. Up to {@code keepRevisions} files with the title
+ * are kept, see {@link UpsertPlan}. A failed attempt starts over from the lookup as the
+ * {@link Retrier} says, the listener only hears about the last one.
  */
-public class UploadToFolderTask implements ResultCallback<DriveApi.DriveContentsResult>, GoogleApiClient.ConnectionCallbacks {
+public class UploadToFolderTask implements GoogleApiClient.ConnectionCallbacks {
 
     private static final String TAG = "UploadToFolderTask";
     private static final String MIME_TYPE = "text/plain";
 
+    /**
+     * Name of the {@link CompressionCodec} the content was stored with, see {@link CompressionCodecs#forName(String)}
+     */
+    public static final CustomPropertyKey PROPERTY_CODEC = new CustomPropertyKey("syncCodec", CustomPropertyKey.PRIVATE);
+    public static final CustomPropertyKey PROPERTY_ORIGINAL_SIZE = new CustomPropertyKey("syncOriginalSize", CustomPropertyKey.PRIVATE);
+    public static final CustomPropertyKey PROPERTY_COMPRESSED_SIZE = new CustomPropertyKey("syncCompressedSize", CustomPropertyKey.PRIVATE);
+
     private DriveTaskCallback mListener;
 
     private GoogleApiClient mGoogleApiClient;
-    private DriveFolder mDriveFolder;
+    private DriveRemoteFolder mRemoteFolder;
     private String mLocalFilePath;
     private String mFileTitle;
+    private ChunkedUploader mUploader;
+    private CompressionCodec mCodec;
+    // Only waits out the backoff between attempts, the attempts run on the sync executor
+    private static final ScheduledExecutorService sTimer = Executors.newSingleThreadScheduledExecutor();
+
+    private SyncMetrics mMetrics;
+    private final MetadataCache mCache = MetadataCache.getDefault();
+    private Retrier mRetrier;
+    private SyncExecutor.Priority mPriority;
+    // Attempts that failed so far, each one starts over from the lookup
+    private int mFailures;
+    // The client calls onConnected() again after every suspension, the upload only runs once
+    private final AtomicBoolean mStarted = new AtomicBoolean();
 
     public UploadToFolderTask(String driveFileTitle, String localFilePath, String folderDriveId, GoogleApiClient googleApiClient, @Nullable DriveTaskCallback listener) {
+        this(driveFileTitle, localFilePath, folderDriveId, googleApiClient, null, listener);
+    }
+
+    /**
+     * @param checkpointStore records the progress of the local copy so an interrupted upload
+     *                        can be resumed by transports that support it, may be null
+     */
+    public UploadToFolderTask(String driveFileTitle, String localFilePath, String folderDriveId, GoogleApiClient googleApiClient,
+                              @Nullable UploadCheckpointStore checkpointStore, @Nullable DriveTaskCallback listener) {
+        this(driveFileTitle, localFilePath, folderDriveId, googleApiClient, checkpointStore, null, listener);
+    }
+
+    /**
+     * @param codec compresses the content on its way up unless the first chunk looks
+     *              incompressible, the raw bytes are sent when null
+     */
+    public UploadToFolderTask(String driveFileTitle, String localFilePath, String folderDriveId, GoogleApiClient googleApiClient,
+                              @Nullable UploadCheckpointStore checkpointStore, @Nullable CompressionCodec codec,
+                              @Nullable DriveTaskCallback listener) {
+        this(driveFileTitle, localFilePath, folderDriveId, googleApiClient, checkpointStore, codec,
+                UpsertPlan.DEFAULT_KEEP_REVISIONS, listener);
+    }
+
+    /**
+     * @param keepRevisions files kept with the title, the oldest is overwritten once there are
+     *                      that many
+     */
+    public UploadToFolderTask(String driveFileTitle, String localFilePath, String folderDriveId, GoogleApiClient googleApiClient,
+                              @Nullable UploadCheckpointStore checkpointStore, @Nullable CompressionCodec codec,
+                              int keepRevisions, @Nullable DriveTaskCallback listener) {
+        this(driveFileTitle, localFilePath, folderDriveId, googleApiClient, checkpointStore, codec, keepRevisions,
+                new Retrier(new RetryPolicy(), new RetryBudget(), SyncMetrics.getGlobal()), listener);
+    }
+
+    /**
+     * @param retrier retries the failed attempts, usually the one of the sync so they share its
+     *                budget
+     */
+    public UploadToFolderTask(String driveFileTitle, String localFilePath, String folderDriveId, GoogleApiClient googleApiClient,
+                              @Nullable UploadCheckpointStore checkpointStore, @Nullable CompressionCodec codec,
+                              int keepRevisions, Retrier retrier, @Nullable DriveTaskCallback listener) {
+        this(driveFileTitle, localFilePath, folderDriveId, googleApiClient, checkpointStore, codec, keepRevisions, retrier,
+                SyncMetrics.getGlobal(), listener);
+    }
+
+    /**
+     * @param metrics receives the timings, bytes and errors of the upload, usually the ones of
+     *                the sync so its result accounts for it
+     */
+    public UploadToFolderTask(String driveFileTitle, String localFilePath, String folderDriveId, GoogleApiClient googleApiClient,
+                              @Nullable UploadCheckpointStore checkpointStore, @Nullable CompressionCodec codec,
+                              int keepRevisions, Retrier retrier, SyncMetrics metrics, @Nullable DriveTaskCallback listener) {
+        this(driveFileTitle, localFilePath, folderDriveId, googleApiClient, checkpointStore, codec, keepRevisions, retrier,
+                metrics, SyncExecutor.Priority.PERIODIC, listener);
+    }
+
+    /**
+     * @param priority what the upload is queued with on the {@link SyncExecutor}, usually the
+     *                 one of the sync
+     */
+    public UploadToFolderTask(String driveFileTitle, String localFilePath, String folderDriveId, GoogleApiClient googleApiClient,
+                              @Nullable UploadCheckpointStore checkpointStore, @Nullable CompressionCodec codec,
+                              int keepRevisions, Retrier retrier, SyncMetrics metrics, SyncExecutor.Priority priority,
+                              @Nullable DriveTaskCallback listener) {
 
         if (listener != null) {
             mListener = listener;
         }
+        mMetrics = metrics;
+        mPriority = priority;
+        mUploader = new ChunkedUploader(ChunkedUploader.DEFAULT_CHUNK_SIZE, checkpointStore, metrics);
+        mCodec = codec;
+        mRetrier = retrier;
 
         mGoogleApiClient = googleApiClient;
         if (TextUtils.isEmpty(folderDriveId)) {
@@ -50,7 +149,14 @@ public class UploadToFolderTask implements ResultCallback<DriveApi.DriveContents
             return;
         }
 
-        mDriveFolder = DriveId.decodeFromString(folderDriveId).asDriveFolder();
+        try {
+            mRemoteFolder = new DriveRemoteFolder(googleApiClient, folderDriveId, mCache, Math.max(1, keepRevisions));
+        } catch (IllegalArgumentException e) {
+            if (mListener != null) {
+                mListener.onTaskError("Invalid folder id " + folderDriveId);
+            }
+            return;
+        }
         mFileTitle = driveFileTitle;
         mLocalFilePath = localFilePath;
 
@@ -58,79 +164,142 @@ public class UploadToFolderTask implements ResultCallback<DriveApi.DriveContents
             mGoogleApiClient.registerConnectionCallbacks(this);
             return;
         }
-        Drive.DriveApi.newDriveContents(mGoogleApiClient).setResultCallback(this);
+        requestContents();
     }
 
     @Override
-    public void onResult(@NonNull DriveApi.DriveContentsResult result) {
-        if (!result.getStatus().isSuccess()) {
-            if (mListener != null) {
-                mListener.onTaskError("Error while trying to create new file contents");
-            }
+    public void onConnected(@Nullable Bundle bundle) {
+        mGoogleApiClient.unregisterConnectionCallbacks(this);
+        requestContents();
+    }
+
+    private void requestContents() {
+        if (!mStarted.compareAndSet(false, true)) {
             return;
         }
-
-        final DriveContents driveContents = result.getDriveContents();
-        // write content to DriveContents
-        OutputStream outputStream = driveContents.getOutputStream();
-
-        FileInputStream inputStream = null;
+        // The first attempt waits for room in the queue like any new work, retries were admitted with it
         try {
-            inputStream = new FileInputStream(new File(mLocalFilePath));
-        } catch (FileNotFoundException e) {
+            SyncExecutor.getDefault().submit(mPriority, newAttempt());
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, e.getMessage());
+            // The queue stayed full
+            mMetrics.recordError(SyncMetrics.ErrorCause.TIMEOUT);
             if (mListener != null) {
-                mListener.onTaskError("Error uploading backup from drive, file not found");
-                Log.e(TAG, "FileNotFound: " + e.getMessage());
+                mListener.onTaskError(e.getMessage());
             }
         }
+    }
 
-        byte[] buf = new byte[1024];
-        int bytesRead;
-        try {
-            if (inputStream != null) {
-                while ((bytesRead = inputStream.read(buf)) > 0) {
-                    outputStream.write(buf, 0, bytesRead);
+    /**
+     * The remote folder blocks on every call, the attempts run on the sync executor.
+     */
+    private Callable<Void> newAttempt() {
+        return new Callable<Void>() {
+            @Override
+            public Void call() {
+                try {
+                    upload();
+                } catch (RuntimeException e) {
+                    // Such as the client disconnecting under a Drive call, the future alone would swallow it
+                    Log.e(TAG, "Upload of " + mFileTitle + " failed: " + e);
+                    mMetrics.recordError(SyncMetrics.ErrorCause.REMOTE);
+                    if (mListener != null) {
+                        mListener.onTaskError(e.toString());
+                    }
                 }
+                return null;
             }
+        };
+    }
+
+    private void upload() {
+        DriveRemoteFolder.WritableFile file;
+        long contentsStart = System.nanoTime();
+        try {
+            file = mRemoteFolder.upsertFile(mFileTitle, MIME_TYPE, null);
         } catch (IOException e) {
-            if (mListener != null) {
-                mListener.onTaskError("Error writing inputStream: " + e.getMessage());
-                Log.e(TAG, "inputStream: " + e.getMessage());
-            }
+            onFailed(e, SyncMetrics.ErrorCause.REMOTE, "Error while trying to open " + mFileTitle);
+            return;
+        } finally {
+            mMetrics.record(SyncMetrics.Stage.CONTENTS, contentsStart);
         }
 
+        // write content to the file
+        UploadTransport transport = file.getTransport();
+        CompressingUploadTransport compressingTransport = null;
+        if (mCodec != null) {
+            compressingTransport = new CompressingUploadTransport(transport, mCodec, true);
+            transport = compressingTransport;
+        }
+        try {
+            mUploader.upload(new File(mLocalFilePath), transport);
+        } catch (FileNotFoundException e) {
+            file.discard();
+            Log.e(TAG, "FileNotFound: " + e.getMessage());
+            onFailed(e, SyncMetrics.ErrorCause.LOCAL_IO, "Error uploading backup from drive, file not found");
+            return;
+        } catch (IOException e) {
+            file.discard();
+            Log.e(TAG, "inputStream: " + e.getMessage());
+            onFailed(e, SyncMetrics.ErrorCause.LOCAL_IO, "Error writing inputStream: " + e.getMessage());
+            return;
+        }
 
-        MetadataChangeSet changeSet = new MetadataChangeSet.Builder()
-                .setTitle(mFileTitle)
-                .setMimeType(MIME_TYPE)
-                .build();
-
-        // create a file in selected mDriveFolder
-        mDriveFolder.createFile(mGoogleApiClient, changeSet, driveContents)
-                .setResultCallback(new ResultCallback<DriveFolder.DriveFileResult>() {
-                    @Override
-                    public void onResult(@NonNull DriveFolder.DriveFileResult result) {
-                        if (!result.getStatus().isSuccess()) {
-                            if (mListener != null) {
-                                mListener.onTaskError("Error while trying to create the file");
-                                Log.d(TAG, "Error while trying to create the file");
-                            }
-                            return;
-                        }
-                        if (mListener != null) {
-                            mListener.onTaskSuccess("File created!");
-                        }
-                    }
-                });
+        if (compressingTransport != null) {
+            CompressionCodec selectedCodec = compressingTransport.getSelectedCodec();
+            Log.d(TAG, mFileTitle + ": " + selectedCodec.getName() + " " + compressingTransport.getUncompressedBytes()
+                    + " -> " + compressingTransport.getCompressedBytes() + " bytes");
+            if (selectedCodec != CompressionCodecs.NONE) {
+                file.setMimeType(selectedCodec.getMimeType());
+            }
+            file.setCustomProperty(PROPERTY_CODEC, selectedCodec.getName());
+            file.setCustomProperty(PROPERTY_ORIGINAL_SIZE, String.valueOf(compressingTransport.getUncompressedBytes()));
+            file.setCustomProperty(PROPERTY_COMPRESSED_SIZE, String.valueOf(compressingTransport.getCompressedBytes()));
+        }
+
+        boolean created = file.isNew();
+        long createStart = System.nanoTime();
+        try {
+            // Recorded so this upload coming back as a remote change is recognized as the same content
+            file.commit(compressingTransport != null ? compressingTransport.getUncompressedMd5() : null);
+        } catch (IOException e) {
+            Log.d(TAG, e.getMessage());
+            onFailed(e, SyncMetrics.ErrorCause.REMOTE, e.getMessage());
+            return;
+        } finally {
+            mMetrics.record(SyncMetrics.Stage.CREATE_FILE, createStart);
+        }
+        mMetrics.recordFileUploaded();
+        if (mListener != null) {
+            mListener.onTaskSuccess(created ? "File created!" : "File updated!");
+        }
     }
 
-    @Override
-    public void onConnected(@Nullable Bundle bundle) {
-        Drive.DriveApi.newDriveContents(mGoogleApiClient).setResultCallback(this);
+    /**
+     * Starts over from the lookup once the backoff is over when {@code error} is worth retrying,
+     * reports {@code message} to the listener otherwise.
+     */
+    private void onFailed(IOException error, SyncMetrics.ErrorCause cause, String message) {
+        long delayMillis = mRetrier.nextDelayMillis(error, ++mFailures);
+        if (delayMillis != Retrier.GIVE_UP) {
+            Log.d(TAG, message + ", retrying in " + delayMillis + "ms");
+            sTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // The revisions might have changed meanwhile, the lookup is done again
+                    SyncExecutor.getDefault().submitContinuation(mPriority, newAttempt());
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        mMetrics.recordError(ErrorClassifier.causeOf(error, cause));
+        if (mListener != null) {
+            mListener.onTaskError(message);
+        }
     }
 
     @Override
     public void onConnectionSuspended(int i) {
         Log.d(TAG, "onConnectionSuspended() " + i);
     }
-}
\ No newline at end of file
+}
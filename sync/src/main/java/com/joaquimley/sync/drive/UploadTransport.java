@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Destination of a {@link ChunkedUploader}, written to one chunk at a time.
+ */
+public interface UploadTransport {
+
+    /**
+     * Prepares the transport to receive bytes starting at {@code offset}.
+     *
+     * @return the offset the transport will actually continue from, 0 when it can't resume
+     */
+    long open(long offset) throws IOException;
+
+    /**
+     * @return whether {@link #open(long)} can ever continue past 0, uploads through a transport
+     * that can't aren't checkpointed
+     */
+    boolean supportsResume();
+
+    /**
+     * Writes all the remaining bytes of {@code chunk}.
+     */
+    void write(ByteBuffer chunk) throws IOException;
+
+    /**
+     * Makes every byte written so far durable, once this returns the chunk counts as committed.
+     */
+    void commit() throws IOException;
+
+    void close() throws IOException;
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Which of the remote files sharing a title an upsert overwrites, and which ones go.
+ * <p/>
+ * Every revision of a file is a remote file with the same title, the most recently modified one
+ * being the current revision. Up to {@code keepRevisions} of them are kept: while there are
+ * fewer a new one is created, otherwise the oldest kept revision is overwritten, which makes it
+ * the newest, and the ones beyond the limit are trashed.
+ */
+public final class UpsertPlan {
+
+    public static final int DEFAULT_KEEP_REVISIONS = 1;
+
+    private final String mTarget;
+    private final List<String> mSurplus;
+
+    private UpsertPlan(String target, List<String> surplus) {
+        mTarget = target;
+        mSurplus = surplus;
+    }
+
+    /**
+     * @param newestFirst DriveIds of the files with the title, most recently modified first
+     */
+    public static UpsertPlan of(List<String> newestFirst, int keepRevisions) {
+        if (keepRevisions < 1) {
+            throw new IllegalArgumentException("At least one revision is kept: " + keepRevisions);
+        }
+        if (newestFirst.size() < keepRevisions) {
+            return new UpsertPlan(null, Collections.<String>emptyList());
+        }
+        return new UpsertPlan(newestFirst.get(keepRevisions - 1),
+                Collections.unmodifiableList(new ArrayList<>(newestFirst.subList(keepRevisions, newestFirst.size()))));
+    }
+
+    /**
+     * @return the file to overwrite, null to create a new one
+     */
+    public String getTarget() {
+        return mTarget;
+    }
+
+    /**
+     * @return the revisions beyond the limit, to trash once the upsert committed
+     */
+    public List<String> getSurplus() {
+        return mSurplus;
+    }
+
+    @Override
+    public String toString() {
+        return "UpsertPlan{target=" + mTarget + ", surplus=" + mSurplus.size() + "}";
+    }
+}
@@ -18,63 +18,82 @@ package com.joaquimley.sync.drive.async;
 
 import android.content.Context;
 import android.os.AsyncTask;
-import android.os.Bundle;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
-import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.drive.Drive;
+import com.joaquimley.sync.drive.client.ApiClientManager;
+import com.joaquimley.sync.executor.SyncExecutor;
 
-import java.util.concurrent.CountDownLatch;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
- * An AsyncTask that maintains a connected client.
+ * An AsyncTask that holds a connected client from {@link ApiClientManager} while it runs.
+ * <p/>
+ * Start it with {@link #executeOnSyncExecutor(Object[])} to keep it off AsyncTask's serial
+ * executor, {@link #execute(Object[])} still works but queues behind the app's own tasks.
  */
 public abstract class ApiClientAsyncTask<Params, Progress, Result>
         extends AsyncTask<Params, Progress, Result> {
 
+    private static final String TAG = "ApiClientAsyncTask";
+    private static final long CONNECT_TIMEOUT_SECONDS = 30;
+
+    private final ApiClientManager mClientManager;
+    private final String mAccountName;
+    private final SyncExecutor.Priority mPriority;
     private GoogleApiClient mClient;
 
     public ApiClientAsyncTask(Context context) {
-        GoogleApiClient.Builder builder = new GoogleApiClient.Builder(context)
-                .addApi(Drive.API)
-                .addScope(Drive.SCOPE_FILE);
-        mClient = builder.build();
+        this(context, null);
+    }
+
+    /**
+     * @param accountName the Drive account to use, the default one when null
+     */
+    public ApiClientAsyncTask(Context context, @Nullable String accountName) {
+        this(context, accountName, SyncExecutor.Priority.USER_INITIATED);
+    }
+
+    /**
+     * @param priority where the task queues on the {@link SyncExecutor}
+     */
+    public ApiClientAsyncTask(Context context, @Nullable String accountName, SyncExecutor.Priority priority) {
+        mClientManager = ApiClientManager.getInstance(context);
+        mAccountName = accountName;
+        mPriority = priority;
+    }
+
+    /**
+     * Runs the task on {@link SyncExecutor#getDefault()}.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException when the sync queue stays full
+     */
+    @SafeVarargs
+    // Only hands the array on to executeOnExecutor(), which doesn't store into it either
+    @SuppressWarnings("varargs")
+    public final AsyncTask<Params, Progress, Result> executeOnSyncExecutor(Params... params) {
+        return executeOnExecutor(SyncExecutor.getDefault().asExecutor(mPriority), params);
     }
 
+    @SafeVarargs
     @Override
     protected final Result doInBackground(Params... params) {
-        Log.d("TAG", "in background");
-        final CountDownLatch latch = new CountDownLatch(1);
-        mClient.registerConnectionCallbacks(new GoogleApiClient.ConnectionCallbacks() {
-            @Override
-            public void onConnectionSuspended(int cause) {
-            }
-
-            @Override
-            public void onConnected(Bundle arg0) {
-                latch.countDown();
-            }
-        });
-        mClient.registerConnectionFailedListener(new GoogleApiClient.OnConnectionFailedListener() {
-            @Override
-            public void onConnectionFailed(ConnectionResult arg0) {
-                latch.countDown();
-            }
-        });
-        mClient.connect();
         try {
-            latch.await();
-        } catch (InterruptedException e) {
+            mClient = mClientManager.acquire(mAccountName, CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (IOException | TimeoutException e) {
+            Log.e(TAG, "Unable to connect: " + e.getMessage());
             return null;
-        }
-        if (!mClient.isConnected()) {
+        } catch (InterruptedException e) {
             return null;
         }
         try {
             return doInBackgroundConnected(params);
         } finally {
-            mClient.disconnect();
+            mClient = null;
+            mClientManager.release(mAccountName);
         }
     }
 
@@ -82,10 +101,13 @@ public abstract class ApiClientAsyncTask<Params, Progress, Result>
      * Override this method to perform a computation on a background thread, while the client is
      * connected.
      */
+    // Abstract methods can't be @SafeVarargs, AsyncTask's own doInBackground() has the same warning
+    @SuppressWarnings("unchecked")
     protected abstract Result doInBackgroundConnected(Params... params);
 
     /**
-     * Gets the GoogleApiClient owned by this async task.
+     * Gets the GoogleApiClient held by this async task, only valid within
+     * {@link #doInBackgroundConnected(Object[])}.
      */
     protected GoogleApiClient getGoogleApiClient() {
         return mClient;
@@ -19,6 +19,7 @@ package com.joaquimley.sync.drive.async;
 import android.content.Context;
 import android.util.Log;
 
+import com.google.android.gms.common.api.Result;
 import com.google.android.gms.drive.Drive;
 import com.google.android.gms.drive.DriveApi;
 import com.google.android.gms.drive.DriveContents;
@@ -26,50 +27,96 @@ import com.google.android.gms.drive.DriveFolder;
 import com.google.android.gms.drive.DriveResource;
 import com.google.android.gms.drive.Metadata;
 import com.google.android.gms.drive.MetadataChangeSet;
+import com.joaquimley.sync.drive.DriveStatusClassifier;
+import com.joaquimley.sync.metrics.SyncMetrics;
+import com.joaquimley.sync.retry.Retrier;
+import com.joaquimley.sync.retry.RetryBudget;
+import com.joaquimley.sync.retry.RetryPolicy;
+import com.joaquimley.sync.retry.StatusException;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
 
 /**
  * An async task that creates a new text file by creating new contents and
  * metadata entities on user's root folder. A number of blocking tasks are
  * performed serially in a thread. Each time, await() is called on the
- * result which blocks until the request has been completed.
+ * result which blocks until the request has been completed. Failed requests
+ * are retried as the {@link Retrier} says.
  */
 public class CreateFileAsyncTask extends ApiClientAsyncTask<Void, Void, Metadata> {
 
+    private static final String TAG = "CreateFileAsyncTask";
     private static final String MIME_TYPE = "text/plain";
+    // Encoded once, every file gets the same message
+    private static final byte[] CONTENT = "Hello world!\n".getBytes(Charset.forName("UTF-8"));
 
     private final String mFileName;
     private final AsyncTaskCallbacks mListener;
+    private final Retrier mRetrier;
 
     public CreateFileAsyncTask(Context context, String fileName, AsyncTaskCallbacks listener) {
+        this(context, fileName, listener, new Retrier(new RetryPolicy(), new RetryBudget(), SyncMetrics.getGlobal()));
+    }
+
+    /**
+     * @param retrier retries the failed steps, waiting on the task's thread in between
+     */
+    public CreateFileAsyncTask(Context context, String fileName, AsyncTaskCallbacks listener, Retrier retrier) {
         super(context);
         mFileName = fileName;
         mListener = listener;
+        mRetrier = retrier;
     }
 
     @Override
     protected Metadata doInBackgroundConnected(Void... arg0) {
         mListener.onTaskInProgress();
-        // First we start by creating a new contents, and blocking on the
-        // result by calling await().
-        DriveApi.DriveContentsResult driveContentsResult =
-                Drive.DriveApi.newDriveContents(getGoogleApiClient()).await();
-        if (!driveContentsResult.getStatus().isSuccess()) {
-            // We failed, stop the task and return.
+        try {
+            // The file is created at most once, only fetching its metadata is retried after that
+            final DriveFolder.DriveFileResult fileResult = mRetrier.run(new Retrier.Attempt<DriveFolder.DriveFileResult>() {
+                @Override
+                public DriveFolder.DriveFileResult run() throws IOException {
+                    return createFile();
+                }
+            });
+
+            // Finally, fetch the metadata for the newly created file, again
+            // calling await to block until the request finishes.
+            DriveResource.MetadataResult metadataResult = mRetrier.run(new Retrier.Attempt<DriveResource.MetadataResult>() {
+                @Override
+                public DriveResource.MetadataResult run() throws IOException {
+                    return check(fileResult.getDriveFile().getMetadata(getGoogleApiClient()).await(),
+                            "Error while fetching the metadata of " + mFileName);
+                }
+            });
+            // We succeeded, return the newly created metadata.
+            return metadataResult.getMetadata();
+        } catch (IOException e) {
+            // We failed for good, stop the task and return.
+            Log.e(TAG, e.getMessage());
             return null;
         }
+    }
+
+    /**
+     * A single attempt at creating the file, blocking on every request with await().
+     */
+    private DriveFolder.DriveFileResult createFile() throws IOException {
+        // First we start by creating a new contents.
+        DriveApi.DriveContentsResult driveContentsResult = check(
+                Drive.DriveApi.newDriveContents(getGoogleApiClient()).await(), "Error while creating new file contents");
 
         // Read the contents and open its output stream for writing, then
         // write a short message.
         DriveContents originalContents = driveContentsResult.getDriveContents();
         OutputStream os = originalContents.getOutputStream();
         try {
-            os.write("Hello world!\n".getBytes());
+            os.write(CONTENT);
         } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+            originalContents.discard(getGoogleApiClient());
+            throw e;
         }
 
         // Create the metadata for the new file including title and MIME
@@ -78,27 +125,17 @@ public class CreateFileAsyncTask extends ApiClientAsyncTask<Void, Void, Metadata
                 .setTitle(mFileName)
                 .setMimeType(MIME_TYPE).build();
 
-        // Create the file in the root folder, again calling await() to
-        // block until the request finishes.
+        // Create the file in the root folder.
         DriveFolder rootFolder = Drive.DriveApi.getRootFolder(getGoogleApiClient());
-        DriveFolder.DriveFileResult fileResult = rootFolder.createFile(
-                getGoogleApiClient(), originalMetadata, originalContents).await();
-        if (!fileResult.getStatus().isSuccess()) {
-            // We failed, stop the task and return.
-            return null;
-        }
+        return check(rootFolder.createFile(getGoogleApiClient(), originalMetadata, originalContents).await(),
+                "Error while creating " + mFileName);
+    }
 
-        // Finally, fetch the metadata for the newly created file, again
-        // calling await to block until the request finishes.
-        DriveResource.MetadataResult metadataResult = fileResult.getDriveFile()
-                .getMetadata(getGoogleApiClient())
-                .await();
-        if (!metadataResult.getStatus().isSuccess()) {
-            // We failed, stop the task and return.
-            return null;
+    private static <R extends Result> R check(R result, String message) throws StatusException {
+        if (!result.getStatus().isSuccess()) {
+            throw DriveStatusClassifier.exception(message, result.getStatus());
         }
-        // We succeeded, return the newly created metadata.
-        return metadataResult.getMetadata();
+        return result;
     }
 
     @Override
@@ -106,7 +143,7 @@ public class CreateFileAsyncTask extends ApiClientAsyncTask<Void, Void, Metadata
         super.onPostExecute(result);
         if (result == null) {
             // The creation failed somehow, so show a message.
-            Log.e("createFileAsyncTask", "Error while creating the file.");
+            Log.e(TAG, "Error while creating the file.");
             mListener.onPostExecute(null);
             return;
         }
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive.client;
+
+import com.google.android.gms.common.ConnectionResult;
+
+import java.io.IOException;
+
+/**
+ * A GoogleApiClient failed to connect, the {@link ConnectionResult} may carry a resolution.
+ */
+public class ApiClientConnectionException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ConnectionResult mConnectionResult;
+
+    public ApiClientConnectionException(ConnectionResult connectionResult) {
+        super("GoogleApiClient connection failed: " + connectionResult);
+        mConnectionResult = connectionResult;
+    }
+
+    public ConnectionResult getConnectionResult() {
+        return mConnectionResult;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive.client;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.drive.Drive;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Process wide owner of the Drive GoogleApiClients, one per account, shared by the sync
+ * adapter and the tasks instead of each building and connecting its own.
+ * <p/>
+ * Every successful acquire must be paired with a release, the client stays connected for
+ * {@link #DEFAULT_IDLE_TIMEOUT_MILLIS} after the last release in case another run needs it.
+ */
+public class ApiClientManager implements ClientProvider<GoogleApiClient> {
+
+    private static final String TAG = "ApiClientManager";
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    /**
+     * Key of the client built without an account name, Drive then uses the default account.
+     */
+    public static final String DEFAULT_ACCOUNT = "";
+
+    private static ApiClientManager sInstance;
+    private static final Object sInstanceLock = new Object();
+
+    private final ConnectionPool<GoogleApiClient> mPool;
+
+    public static ApiClientManager getInstance(Context context) {
+        synchronized (sInstanceLock) {
+            if (sInstance == null) {
+                sInstance = new ApiClientManager(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private ApiClientManager(Context context) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mPool = new ConnectionPool<>(new GoogleApiClientConnector(context), scheduler,
+                DEFAULT_IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void setIdleTimeout(long idleTimeout, TimeUnit unit) {
+        mPool.setIdleTimeout(idleTimeout, unit);
+    }
+
+    /**
+     * Callbacks run on the main thread unless the client is already connected.
+     *
+     * @param accountName null or {@link #DEFAULT_ACCOUNT} for the default account
+     */
+    public void acquire(@Nullable String accountName, ConnectionPool.AcquireCallback<GoogleApiClient> callback) {
+        mPool.acquire(keyOf(accountName), callback);
+    }
+
+    /**
+     * Blocks until the client is connected, never call it from the main thread.
+     *
+     * @throws ApiClientConnectionException when the connection failed, it may have a resolution
+     */
+    @Override
+    public GoogleApiClient acquire(@Nullable String accountName, long timeout, TimeUnit unit)
+            throws IOException, InterruptedException, TimeoutException {
+        return mPool.acquire(keyOf(accountName), timeout, unit);
+    }
+
+    /**
+     * Keeps an already held client connected for asynchronous work, pair it with a release.
+     */
+    public void retain(@Nullable String accountName) {
+        mPool.retain(keyOf(accountName));
+    }
+
+    @Override
+    public void release(@Nullable String accountName) {
+        mPool.release(keyOf(accountName));
+    }
+
+    public ConnectionPool.Metrics getMetrics() {
+        return mPool.getMetrics();
+    }
+
+    private static String keyOf(@Nullable String accountName) {
+        return accountName == null ? DEFAULT_ACCOUNT : accountName;
+    }
+
+    private static class GoogleApiClientConnector implements ConnectionPool.Connector<GoogleApiClient> {
+
+        private final Context mContext;
+
+        GoogleApiClientConnector(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        public GoogleApiClient create(final String accountName, final ConnectionPool.ConnectCallback callback) {
+            GoogleApiClient.Builder builder = new GoogleApiClient.Builder(mContext)
+                    .addApi(Drive.API)
+                    .addScope(Drive.SCOPE_FILE)
+                    .addConnectionCallbacks(new GoogleApiClient.ConnectionCallbacks() {
+                        @Override
+                        public void onConnected(@Nullable Bundle bundle) {
+                            callback.onConnected();
+                        }
+
+                        @Override
+                        public void onConnectionSuspended(int cause) {
+                            // The client reconnects by itself, acquires meanwhile start a connect
+                            Log.d(TAG, "onConnectionSuspended() " + accountName + " " + cause);
+                        }
+                    })
+                    .addOnConnectionFailedListener(new GoogleApiClient.OnConnectionFailedListener() {
+                        @Override
+                        public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
+                            Log.d(TAG, "onConnectionFailed() " + accountName + " " + connectionResult);
+                            callback.onConnectionFailed(new ApiClientConnectionException(connectionResult));
+                        }
+                    });
+            if (!TextUtils.isEmpty(accountName)) {
+                builder.setAccountName(accountName);
+            }
+            return builder.build();
+        }
+
+        @Override
+        public void connect(GoogleApiClient client) {
+            client.connect();
+        }
+
+        @Override
+        public boolean isConnected(GoogleApiClient client) {
+            return client.isConnected();
+        }
+
+        @Override
+        public void disconnect(GoogleApiClient client) {
+            client.disconnect();
+        }
+    }
+}
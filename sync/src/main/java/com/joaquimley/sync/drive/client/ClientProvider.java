@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive.client;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Hands out connected clients by key (an account name), every successful acquire must be
+ * paired with a release.
+ */
+public interface ClientProvider<C> {
+
+    /**
+     * Blocks until the client for {@code key} is connected, at most {@code timeout}.
+     *
+     * @throws TimeoutException when the client didn't connect in time, no reference is kept
+     */
+    C acquire(String key, long timeout, TimeUnit unit) throws IOException, InterruptedException, TimeoutException;
+
+    void release(String key);
+}
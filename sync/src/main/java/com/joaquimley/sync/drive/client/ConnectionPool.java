@@ -0,0 +1,416 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Keeps one connected client per key (an account name) and hands it out by reference count.
+ * <p/>
+ * Callers acquiring while a connect is in flight are queued and answered together once it
+ * completes, so the handshake is paid once for all of them. A client nobody holds is only
+ * disconnected after the idle timeout, letting back to back sync runs and tasks reuse it.
+ */
+public class ConnectionPool<C> implements ClientProvider<C> {
+
+    /**
+     * Creates and drives clients, results of {@link #connect(Object)} come back through the
+     * {@link ConnectCallback} given on creation.
+     */
+    public interface Connector<C> {
+
+        C create(String key, ConnectCallback callback);
+
+        void connect(C client);
+
+        boolean isConnected(C client);
+
+        void disconnect(C client);
+    }
+
+    public interface ConnectCallback {
+
+        void onConnected();
+
+        void onConnectionFailed(IOException cause);
+    }
+
+    public interface AcquireCallback<C> {
+
+        void onAcquired(C client);
+
+        /**
+         * Nothing is held after a failure, {@link #release(String)} must not be called.
+         */
+        void onAcquireFailed(IOException cause);
+    }
+
+    private final Connector<C> mConnector;
+    private final ScheduledExecutorService mScheduler;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private volatile long mIdleTimeoutMillis;
+
+    // Metrics, guarded by this
+    private long mAcquisitions;
+    private long mReuseHits;
+    private long mQueuedAcquisitions;
+    private long mConnects;
+    private long mConnectFailures;
+    private long mTotalConnectNanos;
+    private long mMaxConnectNanos;
+    private long mIdleDisconnects;
+
+    /**
+     * @param scheduler runs the idle disconnects, it is not shut down by the pool
+     */
+    public ConnectionPool(Connector<C> connector, ScheduledExecutorService scheduler, long idleTimeout, TimeUnit unit) {
+        mConnector = connector;
+        mScheduler = scheduler;
+        mIdleTimeoutMillis = unit.toMillis(idleTimeout);
+    }
+
+    /**
+     * Applies to clients released from now on.
+     */
+    public void setIdleTimeout(long idleTimeout, TimeUnit unit) {
+        mIdleTimeoutMillis = unit.toMillis(idleTimeout);
+    }
+
+    /**
+     * Takes a reference on the client for {@code key}, connecting it first if needed. The
+     * callback runs on the calling thread when the client is already connected, otherwise on
+     * the thread delivering the connect result.
+     */
+    public void acquire(String key, AcquireCallback<C> callback) {
+        C connected = null;
+        boolean startConnect = false;
+        Entry entry;
+        synchronized (this) {
+            mAcquisitions++;
+            entry = mEntries.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                entry.mClient = mConnector.create(key, entry);
+                mEntries.put(key, entry);
+            }
+            entry.mReferences++;
+            entry.cancelIdleDisconnect();
+            if (!entry.mConnecting && mConnector.isConnected(entry.mClient)) {
+                mReuseHits++;
+                connected = entry.mClient;
+            } else {
+                entry.mWaiters.add(callback);
+                if (entry.mConnecting) {
+                    mQueuedAcquisitions++;
+                } else {
+                    entry.mConnecting = true;
+                    entry.mConnectStartNanos = System.nanoTime();
+                    startConnect = true;
+                }
+            }
+        }
+        if (connected != null) {
+            callback.onAcquired(connected);
+        } else if (startConnect) {
+            mConnector.connect(entry.mClient);
+        }
+    }
+
+    /**
+     * Blocking form of {@link #acquire(String, AcquireCallback)}, must not be called from the
+     * thread that delivers connect results.
+     *
+     * @throws TimeoutException when the client didn't connect in time, no reference is kept
+     */
+    @Override
+    public C acquire(final String key, long timeout, TimeUnit unit) throws IOException, InterruptedException, TimeoutException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Object[] client = new Object[1];
+        final IOException[] failure = new IOException[1];
+        final boolean[] abandoned = new boolean[1];
+        acquire(key, new AcquireCallback<C>() {
+            @Override
+            public void onAcquired(C acquired) {
+                synchronized (latch) {
+                    client[0] = acquired;
+                    latch.countDown();
+                    if (!abandoned[0]) {
+                        return;
+                    }
+                }
+                // The caller gave up waiting, give the reference back
+                release(key);
+            }
+
+            @Override
+            public void onAcquireFailed(IOException cause) {
+                failure[0] = cause;
+                latch.countDown();
+            }
+        });
+        boolean done = false;
+        try {
+            done = latch.await(timeout, unit);
+        } finally {
+            if (!done) {
+                synchronized (latch) {
+                    abandoned[0] = client[0] == null;
+                }
+                if (client[0] != null) {
+                    release(key);
+                }
+            }
+        }
+        if (!done) {
+            throw new TimeoutException("Client for " + key + " not connected after " + unit.toMillis(timeout) + "ms");
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        @SuppressWarnings("unchecked")
+        C result = (C) client[0];
+        return result;
+    }
+
+    /**
+     * Takes one more reference on a client the caller already holds, for work that outlives
+     * the caller's own hold. Not counted as an acquisition.
+     */
+    public void retain(String key) {
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            if (entry == null || entry.mReferences == 0) {
+                throw new IllegalStateException("Client for " + key + " retained without being held");
+            }
+            entry.mReferences++;
+        }
+    }
+
+    /**
+     * Drops a reference taken by a successful acquire, the last one starts the idle timeout.
+     */
+    @Override
+    public void release(String key) {
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            if (entry == null || entry.mReferences == 0) {
+                throw new IllegalStateException("Client for " + key + " released more often than acquired");
+            }
+            entry.mReferences--;
+            if (entry.mReferences == 0) {
+                entry.scheduleIdleDisconnect();
+            }
+        }
+    }
+
+    /**
+     * Disconnects every client right away, whether held or not.
+     */
+    public void disconnectAll() {
+        List<C> clients = new ArrayList<>();
+        synchronized (this) {
+            for (Entry entry : mEntries.values()) {
+                entry.cancelIdleDisconnect();
+                clients.add(entry.mClient);
+            }
+            mEntries.clear();
+        }
+        for (C client : clients) {
+            mConnector.disconnect(client);
+        }
+    }
+
+    public synchronized int getReferenceCount(String key) {
+        Entry entry = mEntries.get(key);
+        return entry == null ? 0 : entry.mReferences;
+    }
+
+    public synchronized Metrics getMetrics() {
+        return new Metrics(mAcquisitions, mReuseHits, mQueuedAcquisitions, mConnects, mConnectFailures,
+                mTotalConnectNanos, mMaxConnectNanos, mIdleDisconnects);
+    }
+
+    /**
+     * Per key state, also receives the connect results of its client.
+     */
+    private final class Entry implements ConnectCallback, Runnable {
+
+        private final String mKey;
+        private final List<AcquireCallback<C>> mWaiters = new ArrayList<>();
+        private C mClient;
+        private int mReferences;
+        private boolean mConnecting;
+        private long mConnectStartNanos;
+        private ScheduledFuture<?> mIdleDisconnect;
+
+        Entry(String key) {
+            mKey = key;
+        }
+
+        @Override
+        public void onConnected() {
+            List<AcquireCallback<C>> waiters;
+            synchronized (ConnectionPool.this) {
+                if (!mConnecting) {
+                    // Reconnected by the client itself after a suspension
+                    return;
+                }
+                mConnecting = false;
+                long nanos = System.nanoTime() - mConnectStartNanos;
+                mConnects++;
+                mTotalConnectNanos += nanos;
+                mMaxConnectNanos = Math.max(mMaxConnectNanos, nanos);
+                waiters = new ArrayList<>(mWaiters);
+                mWaiters.clear();
+            }
+            for (AcquireCallback<C> waiter : waiters) {
+                waiter.onAcquired(mClient);
+            }
+        }
+
+        @Override
+        public void onConnectionFailed(IOException cause) {
+            List<AcquireCallback<C>> waiters;
+            synchronized (ConnectionPool.this) {
+                mConnecting = false;
+                mConnectFailures++;
+                waiters = new ArrayList<>(mWaiters);
+                mWaiters.clear();
+                mReferences -= waiters.size();
+                if (mReferences == 0) {
+                    scheduleIdleDisconnect();
+                }
+            }
+            for (AcquireCallback<C> waiter : waiters) {
+                waiter.onAcquireFailed(cause);
+            }
+        }
+
+        /**
+         * Idle timeout expired.
+         */
+        @Override
+        public void run() {
+            synchronized (ConnectionPool.this) {
+                if (mReferences > 0 || mConnecting || mEntries.get(mKey) != this) {
+                    return;
+                }
+                mEntries.remove(mKey);
+                mIdleDisconnects++;
+            }
+            mConnector.disconnect(mClient);
+        }
+
+        void scheduleIdleDisconnect() {
+            cancelIdleDisconnect();
+            mIdleDisconnect = mScheduler.schedule(this, mIdleTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        void cancelIdleDisconnect() {
+            if (mIdleDisconnect != null) {
+                mIdleDisconnect.cancel(false);
+                mIdleDisconnect = null;
+            }
+        }
+    }
+
+    /**
+     * Snapshot of the pool counters.
+     */
+    public static class Metrics {
+
+        private final long mAcquisitions;
+        private final long mReuseHits;
+        private final long mQueuedAcquisitions;
+        private final long mConnects;
+        private final long mConnectFailures;
+        private final long mTotalConnectNanos;
+        private final long mMaxConnectNanos;
+        private final long mIdleDisconnects;
+
+        Metrics(long acquisitions, long reuseHits, long queuedAcquisitions, long connects, long connectFailures,
+                long totalConnectNanos, long maxConnectNanos, long idleDisconnects) {
+            mAcquisitions = acquisitions;
+            mReuseHits = reuseHits;
+            mQueuedAcquisitions = queuedAcquisitions;
+            mConnects = connects;
+            mConnectFailures = connectFailures;
+            mTotalConnectNanos = totalConnectNanos;
+            mMaxConnectNanos = maxConnectNanos;
+            mIdleDisconnects = idleDisconnects;
+        }
+
+        public long getAcquisitions() {
+            return mAcquisitions;
+        }
+
+        /**
+         * @return acquisitions answered by an already connected client
+         */
+        public long getReuseHits() {
+            return mReuseHits;
+        }
+
+        /**
+         * @return acquisitions that waited on a connect started by someone else
+         */
+        public long getQueuedAcquisitions() {
+            return mQueuedAcquisitions;
+        }
+
+        public long getConnects() {
+            return mConnects;
+        }
+
+        public long getConnectFailures() {
+            return mConnectFailures;
+        }
+
+        public double getReuseRatio() {
+            return mAcquisitions == 0 ? 0 : (double) mReuseHits / mAcquisitions;
+        }
+
+        public long getAverageConnectMillis() {
+            return mConnects == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(mTotalConnectNanos / mConnects);
+        }
+
+        public long getMaxConnectMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(mMaxConnectNanos);
+        }
+
+        public long getIdleDisconnects() {
+            return mIdleDisconnects;
+        }
+
+        @Override
+        public String toString() {
+            return "Metrics{acquisitions=" + mAcquisitions + ", reuseHits=" + mReuseHits
+                    + ", queued=" + mQueuedAcquisitions + ", connects=" + mConnects
+                    + ", connectFailures=" + mConnectFailures + ", avgConnectMs=" + getAverageConnectMillis()
+                    + ", maxConnectMs=" + getMaxConnectMillis() + ", idleDisconnects=" + mIdleDisconnects + "}";
+        }
+    }
+}
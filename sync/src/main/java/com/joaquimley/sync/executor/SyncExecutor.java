@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.executor;
+
+import com.joaquimley.sync.drive.DriveFuture;
+import com.joaquimley.sync.metrics.LatencyHistogram;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded thread pool for the drive tasks, so uploads neither queue behind the app's own
+ * AsyncTasks nor hold them up.
+ * <p/>
+ * Queued work runs by {@link Priority}, then in submission order. New work waits for room
+ * when {@code queueCapacity} tasks are already queued and is rejected if none frees up in time.
+ * Continuations of work already admitted, such as the next step of an upload, skip that
+ * check so an upload in flight is never dropped halfway.
+ */
+public class SyncExecutor {
+
+    public enum Priority {
+        USER_INITIATED,
+        PERIODIC
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    public static final long DEFAULT_OFFER_TIMEOUT_MILLIS = 10 * 1000;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static SyncExecutor sDefault;
+
+    private final ThreadPoolExecutor mPool;
+    private final Semaphore mCapacity;
+    private final long mOfferTimeoutMillis;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private final LatencyHistogram[] mWaits;
+    private final LatencyHistogram mExecutions = new LatencyHistogram();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+
+    /**
+     * @param threads            upper bound of concurrently running tasks, idle threads go away
+     * @param queueCapacity      new tasks allowed to wait for a thread
+     * @param offerTimeoutMillis how long a submission waits for room before being rejected
+     */
+    public SyncExecutor(int threads, int queueCapacity, long offerTimeoutMillis) {
+        if (threads <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("Threads and queue capacity must be positive");
+        }
+        mPool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new SyncThreadFactory());
+        mPool.allowCoreThreadTimeOut(true);
+        mCapacity = new Semaphore(queueCapacity);
+        mOfferTimeoutMillis = offerTimeoutMillis;
+        mWaits = new LatencyHistogram[Priority.values().length];
+        for (int i = 0; i < mWaits.length; i++) {
+            mWaits[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * The executor the drive tasks use unless told otherwise.
+     */
+    public static synchronized SyncExecutor getDefault() {
+        if (sDefault == null) {
+            int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+            sDefault = new SyncExecutor(threads, DEFAULT_QUEUE_CAPACITY, DEFAULT_OFFER_TIMEOUT_MILLIS);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Replaces the default executor, to be called before any sync work starts.
+     */
+    public static synchronized void setDefault(SyncExecutor executor) {
+        sDefault = executor;
+    }
+
+    /**
+     * Queues new work, waiting for room in the queue when it is full.
+     *
+     * @return the result of {@code task}, cancelling it removes the task from the queue
+     * @throws RejectedExecutionException when the queue stayed full or the executor is shut down
+     */
+    public <T> DriveFuture<T> submit(Priority priority, Callable<T> task) {
+        boolean admitted;
+        try {
+            admitted = mCapacity.tryAcquire(mOfferTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            admitted = false;
+        }
+        if (!admitted) {
+            mRejected.incrementAndGet();
+            throw new RejectedExecutionException("Sync queue full, " + getQueueDepth() + " tasks waiting");
+        }
+        return enqueue(priority, task, true);
+    }
+
+    /**
+     * Queues the next step of work that was already admitted, never waits or gets rejected for
+     * lack of room.
+     */
+    public <T> DriveFuture<T> submitContinuation(Priority priority, Callable<T> task) {
+        return enqueue(priority, task, false);
+    }
+
+    /**
+     * @return an {@link Executor} submitting new work through {@link #submit(Priority, Callable)}
+     */
+    public Executor asExecutor(final Priority priority) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                submit(priority, callable(command));
+            }
+        };
+    }
+
+    /**
+     * @return an {@link Executor} for continuations, such as the steps chained onto a
+     * {@link DriveFuture}
+     */
+    public Executor asContinuationExecutor(final Priority priority) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                submitContinuation(priority, callable(command));
+            }
+        };
+    }
+
+    public int getQueueDepth() {
+        return mPool.getQueue().size();
+    }
+
+    public void shutdown() {
+        mPool.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mPool.awaitTermination(timeout, unit);
+    }
+
+    public Metrics getMetrics() {
+        LatencyHistogram.Snapshot[] waits = new LatencyHistogram.Snapshot[mWaits.length];
+        for (int i = 0; i < waits.length; i++) {
+            waits[i] = mWaits[i].snapshot();
+        }
+        return new Metrics(getQueueDepth(), mMaxQueueDepth.get(), mPool.getActiveCount(), mSubmitted.get(),
+                mRejected.get(), mFailed.get(), waits, mExecutions.snapshot());
+    }
+
+    private <T> DriveFuture<T> enqueue(Priority priority, Callable<T> callable, boolean holdsCapacity) {
+        final PrioritizedTask<T> task = new PrioritizedTask<>(priority, mSequence.getAndIncrement(), callable, holdsCapacity);
+        task.mFuture.setCancellationHandler(new Runnable() {
+            @Override
+            public void run() {
+                if (mPool.remove(task)) {
+                    task.releaseCapacity();
+                }
+            }
+        });
+        try {
+            mPool.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.releaseCapacity();
+            mRejected.incrementAndGet();
+            throw e;
+        }
+        mSubmitted.incrementAndGet();
+        int depth = getQueueDepth();
+        int max;
+        while ((max = mMaxQueueDepth.get()) < depth && !mMaxQueueDepth.compareAndSet(max, depth)) {
+            // Retry until the maximum is recorded
+        }
+        return task.mFuture;
+    }
+
+    private static Callable<Void> callable(final Runnable command) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() {
+                command.run();
+                return null;
+            }
+        };
+    }
+
+    private final class PrioritizedTask<T> implements Runnable, Comparable<PrioritizedTask<?>> {
+
+        private final Priority mPriority;
+        private final long mSequence;
+        private final Callable<T> mCallable;
+        private final long mQueuedAt = System.nanoTime();
+        private final DriveFuture<T> mFuture = new DriveFuture<>();
+        private final AtomicInteger mCapacityHeld;
+
+        PrioritizedTask(Priority priority, long sequence, Callable<T> callable, boolean holdsCapacity) {
+            mPriority = priority;
+            mSequence = sequence;
+            mCallable = callable;
+            mCapacityHeld = new AtomicInteger(holdsCapacity ? 1 : 0);
+        }
+
+        @Override
+        public void run() {
+            releaseCapacity();
+            mWaits[mPriority.ordinal()].record(System.nanoTime() - mQueuedAt);
+            if (mFuture.isDone()) {
+                return;
+            }
+            long start = System.nanoTime();
+            T result = null;
+            Throwable error = null;
+            try {
+                result = mCallable.call();
+            } catch (Throwable t) {
+                error = t;
+            }
+            // Recorded before completing, whoever waits on the future sees it counted
+            mExecutions.record(System.nanoTime() - start);
+            if (error != null) {
+                mFailed.incrementAndGet();
+                mFuture.fail(error);
+            } else {
+                mFuture.complete(result);
+            }
+        }
+
+        void releaseCapacity() {
+            if (mCapacityHeld.getAndSet(0) == 1) {
+                mCapacity.release();
+            }
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask<?> other) {
+            int byPriority = mPriority.compareTo(other.mPriority);
+            if (byPriority != 0) {
+                return byPriority;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    public static class Metrics {
+
+        private final int mQueueDepth;
+        private final int mMaxQueueDepth;
+        private final int mActiveCount;
+        private final long mSubmitted;
+        private final long mRejected;
+        private final long mFailed;
+        private final LatencyHistogram.Snapshot[] mWaits;
+        private final LatencyHistogram.Snapshot mExecutions;
+
+        Metrics(int queueDepth, int maxQueueDepth, int activeCount, long submitted, long rejected, long failed,
+                LatencyHistogram.Snapshot[] waits, LatencyHistogram.Snapshot executions) {
+            mQueueDepth = queueDepth;
+            mMaxQueueDepth = maxQueueDepth;
+            mActiveCount = activeCount;
+            mSubmitted = submitted;
+            mRejected = rejected;
+            mFailed = failed;
+            mWaits = waits;
+            mExecutions = executions;
+        }
+
+        public int getQueueDepth() {
+            return mQueueDepth;
+        }
+
+        public int getMaxQueueDepth() {
+            return mMaxQueueDepth;
+        }
+
+        public int getActiveCount() {
+            return mActiveCount;
+        }
+
+        public long getSubmitted() {
+            return mSubmitted;
+        }
+
+        public long getRejected() {
+            return mRejected;
+        }
+
+        public long getFailed() {
+            return mFailed;
+        }
+
+        /**
+         * @return time spent queued by the tasks of {@code priority}
+         */
+        public LatencyHistogram.Snapshot getWaitTime(Priority priority) {
+            return mWaits[priority.ordinal()];
+        }
+
+        public LatencyHistogram.Snapshot getExecutionTime() {
+            return mExecutions;
+        }
+
+        @Override
+        public String toString() {
+            return "SyncExecutor.Metrics{queued=" + mQueueDepth
+                    + ", maxQueued=" + mMaxQueueDepth
+                    + ", active=" + mActiveCount
+                    + ", submitted=" + mSubmitted
+                    + ", rejected=" + mRejected
+                    + ", failed=" + mFailed
+                    + ", userWait=" + getWaitTime(Priority.USER_INITIATED)
+                    + ", periodicWait=" + getWaitTime(Priority.PERIODIC)
+                    + ", execution=" + mExecutions
+                    + '}';
+        }
+    }
+
+    private static final class SyncThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SyncExecutor-" + mCount.incrementAndGet());
+            // Background priority, like AsyncTask's threads
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations with power of two microsecond buckets, bucket {@code i}
+ * holds durations shorter than 2^i microseconds. Recording neither locks nor allocates.
+ */
+public class LatencyHistogram {
+
+    public static final int BUCKET_COUNT = 32;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mBuckets.incrementAndGet(bucketOf(nanos));
+        mCount.incrementAndGet();
+        mTotalNanos.addAndGet(nanos);
+        long max;
+        while ((max = mMaxNanos.get()) < nanos && !mMaxNanos.compareAndSet(max, nanos)) {
+            // Another thread raised the maximum, check against the new value
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = mBuckets.get(i);
+        }
+        return new Snapshot(buckets, mCount.get(), mTotalNanos.get(), mMaxNanos.get());
+    }
+
+    static int bucketOf(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * Upper bound of bucket {@code index} in microseconds.
+     */
+    static long bucketLimitMicros(int index) {
+        return 1L << index;
+    }
+
+    /**
+     * The histogram at some point in time, the fields are read one by one so a snapshot taken
+     * while recording may be off by the samples in flight.
+     */
+    public static class Snapshot {
+
+        private final long[] mBuckets;
+        private final long mCount;
+        private final long mTotalNanos;
+        private final long mMaxNanos;
+
+        Snapshot(long[] buckets, long count, long totalNanos, long maxNanos) {
+            mBuckets = buckets;
+            mCount = count;
+            mTotalNanos = totalNanos;
+            mMaxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getTotalMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(mTotalNanos);
+        }
+
+        public long getMeanMicros() {
+            return mCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(mTotalNanos / mCount);
+        }
+
+        public long getMaxMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(mMaxNanos);
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return upper bound of the bucket holding the percentile, capped at the maximum seen
+         */
+        public long getPercentileMicros(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(mCount * percentile / 100d);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(bucketLimitMicros(i), getMaxMicros());
+                }
+            }
+            return getMaxMicros();
+        }
+
+        public long[] getBucketCounts() {
+            return mBuckets.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount
+                    + " mean=" + getMeanMicros() + "us"
+                    + " p50=" + getPercentileMicros(50) + "us"
+                    + " p99=" + getPercentileMicros(99) + "us"
+                    + " max=" + getMaxMicros() + "us";
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings and counters of the sync pipeline.
+ * <p/>
+ * Callers take {@link System#nanoTime()} before a stage and hand it to
+ * {@link #record(Stage, long)} afterwards. Recording only touches atomics, nothing is allocated
+ * or locked, so it can sit inside the copy loops. A metrics instance created with a parent, such
+ * as the one of a single sync, also records everything into the parent.
+ */
+public class SyncMetrics {
+
+    public enum Stage {
+        CONNECT,
+        CONTENTS,
+        READ,
+        WRITE,
+        CREATE_FILE,
+        METADATA
+    }
+
+    public enum ErrorCause {
+        CONNECTION,
+        AUTH,
+        TIMEOUT,
+        LOCAL_IO,
+        REMOTE,
+        QUOTA,
+        DATABASE
+    }
+
+    private static final SyncMetrics sGlobal = new SyncMetrics(null);
+
+    private final SyncMetrics mParent;
+    private final LatencyHistogram[] mStages;
+    private final AtomicLongArray mErrors = new AtomicLongArray(ErrorCause.values().length);
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mFilesUploaded = new AtomicLong();
+    private final AtomicLong mFilesSkipped = new AtomicLong();
+    private final AtomicLong mBackoffUntilMillis = new AtomicLong();
+
+    public SyncMetrics() {
+        this(null);
+    }
+
+    public SyncMetrics(SyncMetrics parent) {
+        mParent = parent;
+        mStages = new LatencyHistogram[Stage.values().length];
+        for (int i = 0; i < mStages.length; i++) {
+            mStages[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Everything recorded in this process, the host app reads it through {@link #snapshot()}.
+     */
+    public static SyncMetrics getGlobal() {
+        return sGlobal;
+    }
+
+    /**
+     * @param startNanos {@link System#nanoTime()} taken when the stage started
+     */
+    public void record(Stage stage, long startNanos) {
+        recordNanos(stage, System.nanoTime() - startNanos);
+    }
+
+    public void recordNanos(Stage stage, long nanos) {
+        mStages[stage.ordinal()].record(nanos);
+        if (mParent != null) {
+            mParent.recordNanos(stage, nanos);
+        }
+    }
+
+    public void addBytesRead(long bytes) {
+        mBytesRead.addAndGet(bytes);
+        if (mParent != null) {
+            mParent.addBytesRead(bytes);
+        }
+    }
+
+    public void addBytesWritten(long bytes) {
+        mBytesWritten.addAndGet(bytes);
+        if (mParent != null) {
+            mParent.addBytesWritten(bytes);
+        }
+    }
+
+    public void recordRetry() {
+        mRetries.incrementAndGet();
+        if (mParent != null) {
+            mParent.recordRetry();
+        }
+    }
+
+    public void recordError(ErrorCause cause) {
+        mErrors.incrementAndGet(cause.ordinal());
+        if (mParent != null) {
+            mParent.recordError(cause);
+        }
+    }
+
+    public void recordFileUploaded() {
+        mFilesUploaded.incrementAndGet();
+        if (mParent != null) {
+            mParent.recordFileUploaded();
+        }
+    }
+
+    /**
+     * A file given up on without trying, such as one queued for a folder that doesn't exist.
+     */
+    public void recordFileSkipped() {
+        mFilesSkipped.incrementAndGet();
+        if (mParent != null) {
+            mParent.recordFileSkipped();
+        }
+    }
+
+    /**
+     * Asks for the service to be left alone until {@code untilMillis}, the latest such hint wins.
+     *
+     * @param untilMillis wall clock time in milliseconds
+     */
+    public void recordBackoff(long untilMillis) {
+        long current;
+        while ((current = mBackoffUntilMillis.get()) < untilMillis
+                && !mBackoffUntilMillis.compareAndSet(current, untilMillis)) {
+            // Retry until the latest hint is recorded
+        }
+        if (mParent != null) {
+            mParent.recordBackoff(untilMillis);
+        }
+    }
+
+    public Snapshot snapshot() {
+        Map<Stage, LatencyHistogram.Snapshot> stages = new EnumMap<>(Stage.class);
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, mStages[stage.ordinal()].snapshot());
+        }
+        Map<ErrorCause, Long> errors = new EnumMap<>(ErrorCause.class);
+        for (ErrorCause cause : ErrorCause.values()) {
+            errors.put(cause, mErrors.get(cause.ordinal()));
+        }
+        return new Snapshot(stages, errors, mBytesRead.get(), mBytesWritten.get(), mRetries.get(),
+                mFilesUploaded.get(), mFilesSkipped.get(), mBackoffUntilMillis.get());
+    }
+
+    public static class Snapshot {
+
+        private final Map<Stage, LatencyHistogram.Snapshot> mStages;
+        private final Map<ErrorCause, Long> mErrors;
+        private final long mBytesRead;
+        private final long mBytesWritten;
+        private final long mRetries;
+        private final long mFilesUploaded;
+        private final long mFilesSkipped;
+        private final long mBackoffUntilMillis;
+
+        Snapshot(Map<Stage, LatencyHistogram.Snapshot> stages, Map<ErrorCause, Long> errors, long bytesRead,
+                 long bytesWritten, long retries, long filesUploaded, long filesSkipped, long backoffUntilMillis) {
+            mStages = stages;
+            mErrors = errors;
+            mBytesRead = bytesRead;
+            mBytesWritten = bytesWritten;
+            mRetries = retries;
+            mFilesUploaded = filesUploaded;
+            mFilesSkipped = filesSkipped;
+            mBackoffUntilMillis = backoffUntilMillis;
+        }
+
+        public LatencyHistogram.Snapshot getStage(Stage stage) {
+            return mStages.get(stage);
+        }
+
+        public long getErrorCount(ErrorCause cause) {
+            return mErrors.get(cause);
+        }
+
+        public long getErrorCount() {
+            long total = 0;
+            for (long count : mErrors.values()) {
+                total += count;
+            }
+            return total;
+        }
+
+        public long getBytesRead() {
+            return mBytesRead;
+        }
+
+        public long getBytesWritten() {
+            return mBytesWritten;
+        }
+
+        public long getRetries() {
+            return mRetries;
+        }
+
+        public long getFilesUploaded() {
+            return mFilesUploaded;
+        }
+
+        public long getFilesSkipped() {
+            return mFilesSkipped;
+        }
+
+        /**
+         * @return wall clock time in milliseconds the service asked to be left alone until, 0
+         * when it didn't
+         */
+        public long getBackoffUntilMillis() {
+            return mBackoffUntilMillis;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("SyncMetrics{")
+                    .append("read=").append(mBytesRead)
+                    .append("B written=").append(mBytesWritten)
+                    .append("B uploaded=").append(mFilesUploaded)
+                    .append(" skipped=").append(mFilesSkipped)
+                    .append(" retries=").append(mRetries)
+                    .append(" backoffUntil=").append(mBackoffUntilMillis)
+                    .append(" errors=").append(mErrors);
+            for (Map.Entry<Stage, LatencyHistogram.Snapshot> stage : mStages.entrySet()) {
+                if (stage.getValue().getCount() > 0) {
+                    builder.append(", ").append(stage.getKey()).append(": ").append(stage.getValue());
+                }
+            }
+            return builder.append('}').toString();
+        }
+    }
+}
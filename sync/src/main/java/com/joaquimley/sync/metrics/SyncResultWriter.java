@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.metrics;
+
+import android.content.SyncResult;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills the {@link SyncResult} the framework uses to decide about retries and backoff.
+ */
+public final class SyncResultWriter {
+
+    private SyncResultWriter() {
+    }
+
+    /**
+     * Adds the counts of {@code snapshot}, which should cover a single sync, to {@code result}.
+     */
+    public static void applyTo(SyncMetrics.Snapshot snapshot, SyncResult result) {
+        result.stats.numAuthExceptions += snapshot.getErrorCount(SyncMetrics.ErrorCause.AUTH);
+        result.stats.numIoExceptions += snapshot.getErrorCount(SyncMetrics.ErrorCause.CONNECTION)
+                + snapshot.getErrorCount(SyncMetrics.ErrorCause.TIMEOUT)
+                + snapshot.getErrorCount(SyncMetrics.ErrorCause.LOCAL_IO)
+                + snapshot.getErrorCount(SyncMetrics.ErrorCause.REMOTE)
+                + snapshot.getErrorCount(SyncMetrics.ErrorCause.QUOTA);
+        if (snapshot.getErrorCount(SyncMetrics.ErrorCause.DATABASE) > 0) {
+            result.databaseError = true;
+        }
+        result.stats.numInserts += snapshot.getFilesUploaded();
+        result.stats.numSkippedEntries += snapshot.getFilesSkipped();
+        result.stats.numEntries += snapshot.getFilesUploaded() + snapshot.getFilesSkipped()
+                + snapshot.getErrorCount(SyncMetrics.ErrorCause.LOCAL_IO)
+                + snapshot.getErrorCount(SyncMetrics.ErrorCause.REMOTE)
+                + snapshot.getErrorCount(SyncMetrics.ErrorCause.QUOTA);
+        // Without it the framework retries an I/O failure after its own, much shorter, backoff
+        if (snapshot.getBackoffUntilMillis() > 0) {
+            result.delayUntil = Math.max(result.delayUntil,
+                    TimeUnit.MILLISECONDS.toSeconds(snapshot.getBackoffUntilMillis()));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.mirror;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Walks a directory tree and describes every file in it. Only files whose size or modification
+ * time differ from the previous {@link MirrorSnapshot} are read to hash them, the others cost a
+ * lookup of their attributes, so a rescan of a large tree reads about as much as changed.
+ * <p/>
+ * Modification times are coarse on some file systems, a file modified within
+ * {@link #MODIFIED_GRANULARITY_MILLIS} of the previous scan may have changed again without its
+ * time moving and is read anyway.
+ */
+public class DirectoryScanner {
+
+    public static final long MODIFIED_GRANULARITY_MILLIS = 2000;
+
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    private final byte[] mBuffer = new byte[HASH_BUFFER_SIZE];
+
+    /**
+     * Not thread-safe, the hash buffer is reused from file to file.
+     */
+    public LocalTree scan(File root, MirrorSnapshot previous) throws IOException {
+        if (!root.isDirectory()) {
+            throw new IOException(root + " isn't a directory");
+        }
+        long scannedAt = System.currentTimeMillis();
+        long trustedBefore = previous.getScannedAt() - MODIFIED_GRANULARITY_MILLIS;
+        SortedMap<String, MirrorSnapshot.FileEntry> files = new TreeMap<>();
+        SortedSet<String> folders = new TreeSet<>();
+        int hashed = 0;
+
+        // Iterative so deep trees can't overflow the stack
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push("");
+        while (!pending.isEmpty()) {
+            String folder = pending.pop();
+            File[] children = (folder.isEmpty() ? root : new File(root, folder)).listFiles();
+            if (children == null) {
+                continue;
+            }
+            for (File child : children) {
+                String path = folder.isEmpty() ? child.getName() : folder + "/" + child.getName();
+                if (child.isDirectory()) {
+                    folders.add(path);
+                    pending.push(path);
+                    continue;
+                }
+                long size = child.length();
+                long modified = child.lastModified();
+                MirrorSnapshot.FileEntry known = previous.getFile(path);
+                if (known != null && known.getSize() == size && known.getModified() == modified
+                        && modified < trustedBefore) {
+                    files.put(path, known);
+                    continue;
+                }
+                String md5;
+                try {
+                    md5 = md5(child);
+                } catch (IOException e) {
+                    // Deleted or replaced by a directory meanwhile, the next scan sees what it became
+                    continue;
+                }
+                hashed++;
+                files.put(path, new MirrorSnapshot.FileEntry(size, modified, md5, known != null ? known.getRemoteId() : null));
+            }
+        }
+        return new LocalTree(scannedAt, files, folders, hashed);
+    }
+
+    private String md5(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 not available", e);
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(mBuffer)) != -1) {
+                digest.update(mBuffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        byte[] bytes = digest.digest();
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.mirror;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+/**
+ * A local directory as {@link DirectoryScanner} found it, paths as in {@link MirrorSnapshot}.
+ * Immutable.
+ */
+public final class LocalTree {
+
+    private final long mScannedAt;
+    private final SortedMap<String, MirrorSnapshot.FileEntry> mFiles;
+    private final SortedSet<String> mFolders;
+    private final int mHashedCount;
+
+    LocalTree(long scannedAt, SortedMap<String, MirrorSnapshot.FileEntry> files, SortedSet<String> folders,
+              int hashedCount) {
+        mScannedAt = scannedAt;
+        mFiles = Collections.unmodifiableSortedMap(files);
+        mFolders = Collections.unmodifiableSortedSet(folders);
+        mHashedCount = hashedCount;
+    }
+
+    public long getScannedAt() {
+        return mScannedAt;
+    }
+
+    /**
+     * @return every file below the directory by path, remote ids are those of the snapshot the
+     * scan started from
+     */
+    public Map<String, MirrorSnapshot.FileEntry> getFiles() {
+        return mFiles;
+    }
+
+    /**
+     * @return every folder below the directory, the directory itself left out, parents first
+     */
+    public SortedSet<String> getFolders() {
+        return mFolders;
+    }
+
+    /**
+     * @return the files the scan had to read, the others were only looked up
+     */
+    public int getHashedCount() {
+        return mHashedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "LocalTree{" + mFiles.size() + " files, " + mFolders.size() + " folders, " + mHashedCount + " hashed}";
+    }
+}
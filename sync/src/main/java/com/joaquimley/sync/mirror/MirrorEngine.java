@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.mirror;
+
+import com.joaquimley.sync.drive.ChunkedUploader;
+import com.joaquimley.sync.drive.RemoteFolder;
+import com.joaquimley.sync.metrics.SyncMetrics;
+import com.joaquimley.sync.retry.ErrorClassifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mirrors a local directory tree into a remote folder: folders are created and files uploaded
+ * where they are new or changed, and whatever was removed locally is trashed remotely.
+ * <p/>
+ * The remote tree is never listed, the {@link MirrorSnapshot} of the last run stands for it, so an
+ * unchanged tree costs a stat per file and no network round trip. Steps run on a pool of workers,
+ * a file or folder starting as soon as the folder it goes into exists; deletes only start once
+ * every write is done. A step that fails leaves the snapshot as it was so the next run retries it.
+ */
+public class MirrorEngine {
+
+    public static final int DEFAULT_WORKERS = 4;
+
+    private static final String MIME_TYPE = "application/octet-stream";
+    private static final String PARENT_FAILED = "Parent folder couldn't be created";
+
+    private final RemoteTree mRemoteTree;
+    private final int mWorkers;
+    private final ChunkedUploader mUploader;
+    private final SyncMetrics mMetrics;
+
+    public MirrorEngine(RemoteTree remoteTree) {
+        this(remoteTree, DEFAULT_WORKERS, ChunkedUploader.DEFAULT_CHUNK_SIZE, SyncMetrics.getGlobal());
+    }
+
+    public MirrorEngine(RemoteTree remoteTree, int workers, int chunkSize, SyncMetrics metrics) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("At least one worker is needed");
+        }
+        mRemoteTree = remoteTree;
+        mWorkers = workers;
+        mUploader = new ChunkedUploader(chunkSize, null, metrics);
+        mMetrics = metrics;
+    }
+
+    /**
+     * Brings the remote folder in line with the local directory, blocking until every step ran.
+     *
+     * @param root          directory to mirror
+     * @param rootFolderId  remote folder its content goes into
+     * @param snapshotStore where the state of the last run is kept
+     */
+    public MirrorResult mirror(File root, String rootFolderId, MirrorSnapshotStore snapshotStore)
+            throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        MirrorSnapshot snapshot = snapshotStore.load(root, rootFolderId);
+        LocalTree local = new DirectoryScanner().scan(root, snapshot);
+        MirrorPlan plan = MirrorPlan.of(local, snapshot);
+
+        Run run = new Run(root, rootFolderId, snapshot);
+        run.execute(plan);
+
+        for (Map.Entry<String, MirrorSnapshot.FileEntry> touched : plan.getTouched().entrySet()) {
+            snapshot.putFile(touched.getKey(), touched.getValue());
+        }
+        snapshot.setScannedAt(local.getScannedAt());
+        if (!plan.isEmpty() || !plan.getTouched().isEmpty() || local.getHashedCount() > 0) {
+            snapshotStore.save(root, rootFolderId, snapshot);
+        }
+        return new MirrorResult(local.getFiles().size(), local.getHashedCount(), run.mFoldersCreated.get(),
+                run.mFilesUploaded.get(), run.mDeleted.get(), run.mFailures, run.mBytesUploaded.get(),
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * State of a single {@link #mirror} call.
+     */
+    private final class Run {
+
+        private final File mRoot;
+        private final MirrorSnapshot mSnapshot;
+        private final Object mLock = new Object();
+        // Guarded by mLock
+        private final Map<String, String> mFolderIds;
+        private final Set<String> mCreatedFolders = new HashSet<>();
+        private final Set<String> mFailedFolders = new HashSet<>();
+        private final Map<String, List<MirrorOperation>> mWaiting = new HashMap<>();
+
+        private final Map<String, String> mFailures = Collections.synchronizedMap(new LinkedHashMap<String, String>());
+        private final AtomicInteger mFoldersCreated = new AtomicInteger();
+        private final AtomicInteger mFilesUploaded = new AtomicInteger();
+        private final AtomicInteger mDeleted = new AtomicInteger();
+        private final AtomicLong mBytesUploaded = new AtomicLong();
+
+        private ExecutorService mExecutor;
+
+        Run(File root, String rootFolderId, MirrorSnapshot snapshot) {
+            mRoot = root;
+            mSnapshot = snapshot;
+            mFolderIds = new HashMap<>(snapshot.getFolders());
+            mFolderIds.put("", rootFolderId);
+        }
+
+        void execute(MirrorPlan plan) throws InterruptedException {
+            if (plan.isEmpty()) {
+                return;
+            }
+            mExecutor = Executors.newFixedThreadPool(mWorkers, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "MirrorEngine-" + mCount.incrementAndGet());
+                }
+            });
+            try {
+                CountDownLatch writes = new CountDownLatch(plan.getWrites().size());
+                for (MirrorOperation operation : plan.getWrites()) {
+                    schedule(operation, writes);
+                }
+                writes.await();
+
+                // Trashing last, a run cut short leaves stale files remotely rather than missing ones
+                CountDownLatch deletes = new CountDownLatch(plan.getDeletes().size());
+                for (MirrorOperation operation : plan.getDeletes()) {
+                    submit(operation, null, deletes);
+                }
+                deletes.await();
+            } finally {
+                mExecutor.shutdownNow();
+            }
+        }
+
+        private void schedule(MirrorOperation operation, CountDownLatch latch) {
+            String parentId;
+            synchronized (mLock) {
+                String parent = operation.getParent();
+                if (mFailedFolders.contains(parent)) {
+                    parentId = null;
+                } else {
+                    parentId = mFolderIds.get(parent);
+                    if (parentId == null) {
+                        // The parent is still being created
+                        List<MirrorOperation> waiting = mWaiting.get(parent);
+                        if (waiting == null) {
+                            waiting = new ArrayList<>();
+                            mWaiting.put(parent, waiting);
+                        }
+                        waiting.add(operation);
+                        return;
+                    }
+                }
+            }
+            if (parentId != null) {
+                submit(operation, parentId, latch);
+            } else {
+                skip(operation, latch);
+            }
+        }
+
+        private void submit(final MirrorOperation operation, final String parentId, final CountDownLatch latch) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        perform(operation, parentId, latch);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        private void perform(MirrorOperation operation, String parentId, CountDownLatch latch) {
+            String path = operation.getPath();
+            try {
+                switch (operation.getType()) {
+                    case CREATE_FOLDER:
+                        String folderId = mRemoteTree.createFolder(parentId, operation.getTitle());
+                        mSnapshot.putFolder(path, folderId);
+                        mFoldersCreated.incrementAndGet();
+                        onFolderDone(path, folderId, latch);
+                        break;
+                    case UPLOAD:
+                        String fileId = upload(operation, parentId);
+                        mSnapshot.putFile(path, operation.getEntry().withRemoteId(fileId));
+                        mFilesUploaded.incrementAndGet();
+                        mMetrics.recordFileUploaded();
+                        break;
+                    case DELETE_FILE:
+                        mRemoteTree.trash(operation.getRemoteId());
+                        mSnapshot.removeFile(path);
+                        mDeleted.incrementAndGet();
+                        break;
+                    case DELETE_FOLDER:
+                        mRemoteTree.trash(operation.getRemoteId());
+                        mSnapshot.removeFolder(path);
+                        mDeleted.incrementAndGet();
+                        break;
+                }
+            } catch (IOException e) {
+                mFailures.put(path, String.valueOf(e.getMessage()));
+                mMetrics.recordError(ErrorClassifier.causeOf(e, SyncMetrics.ErrorCause.REMOTE));
+                if (operation.getType() == MirrorOperation.Type.CREATE_FOLDER) {
+                    onFolderDone(path, null, latch);
+                }
+            }
+        }
+
+        private String upload(MirrorOperation operation, String parentId) throws IOException {
+            boolean created;
+            synchronized (mLock) {
+                created = mCreatedFolders.contains(operation.getParent());
+            }
+            RemoteFolder folder = mRemoteTree.getFolder(parentId);
+            // Nothing to update in a folder this run just created
+            RemoteFolder.RemoteFile remoteFile = created
+                    ? folder.newFile(operation.getTitle(), MIME_TYPE)
+                    : folder.upsertFile(operation.getTitle(), MIME_TYPE, operation.getRemoteId());
+            try {
+                mBytesUploaded.addAndGet(mUploader.upload(new File(mRoot, operation.getPath()), remoteFile.getTransport()));
+                return remoteFile.commit(operation.getEntry().getMd5());
+            } catch (IOException e) {
+                remoteFile.discard();
+                throw e;
+            }
+        }
+
+        /**
+         * Releases what waited on a folder, {@code folderId} being null when it couldn't be created.
+         */
+        private void onFolderDone(String path, String folderId, CountDownLatch latch) {
+            List<MirrorOperation> waiting;
+            synchronized (mLock) {
+                if (folderId != null) {
+                    mFolderIds.put(path, folderId);
+                    mCreatedFolders.add(path);
+                } else {
+                    mFailedFolders.add(path);
+                }
+                waiting = mWaiting.remove(path);
+            }
+            if (waiting == null) {
+                return;
+            }
+            for (MirrorOperation operation : waiting) {
+                if (folderId != null) {
+                    submit(operation, folderId, latch);
+                } else {
+                    skip(operation, latch);
+                }
+            }
+        }
+
+        private void skip(MirrorOperation operation, CountDownLatch latch) {
+            mFailures.put(operation.getPath(), PARENT_FAILED);
+            mMetrics.recordFileSkipped();
+            if (operation.getType() == MirrorOperation.Type.CREATE_FOLDER) {
+                onFolderDone(operation.getPath(), null, latch);
+            }
+            latch.countDown();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.mirror;
+
+/**
+ * A single remote step of a {@link MirrorPlan}. Immutable.
+ */
+public final class MirrorOperation {
+
+    public enum Type {
+        CREATE_FOLDER,
+        /**
+         * Creates the file, or overwrites it when it has a remote id.
+         */
+        UPLOAD,
+        DELETE_FILE,
+        /**
+         * Removes the folder with everything below it.
+         */
+        DELETE_FOLDER
+    }
+
+    private final Type mType;
+    private final String mPath;
+    private final MirrorSnapshot.FileEntry mEntry;
+    private final String mRemoteId;
+
+    /**
+     * @param entry    what is uploaded, null for the other types
+     * @param remoteId the file or folder deleted, or the file overwritten, null otherwise
+     */
+    MirrorOperation(Type type, String path, MirrorSnapshot.FileEntry entry, String remoteId) {
+        mType = type;
+        mPath = path;
+        mEntry = entry;
+        mRemoteId = remoteId;
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public MirrorSnapshot.FileEntry getEntry() {
+        return mEntry;
+    }
+
+    public String getRemoteId() {
+        return mRemoteId;
+    }
+
+    /**
+     * @return the path of the folder holding this one, "" for the mirrored directory
+     */
+    public String getParent() {
+        int slash = mPath.lastIndexOf('/');
+        return slash < 0 ? "" : mPath.substring(0, slash);
+    }
+
+    public String getTitle() {
+        return mPath.substring(mPath.lastIndexOf('/') + 1);
+    }
+
+    @Override
+    public String toString() {
+        return mType + " " + mPath;
+    }
+}
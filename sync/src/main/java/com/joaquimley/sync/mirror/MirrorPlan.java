@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.mirror;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The remote steps turning the folder a {@link MirrorSnapshot} describes into a copy of a
+ * {@link LocalTree}. Working from the snapshot instead of listing the remote folder, planning
+ * costs a lookup per local file and only changed ones lead to remote work.
+ */
+public final class MirrorPlan {
+
+    private final List<MirrorOperation> mWrites;
+    private final List<MirrorOperation> mDeletes;
+    private final Map<String, MirrorSnapshot.FileEntry> mTouched;
+
+    private MirrorPlan(List<MirrorOperation> writes, List<MirrorOperation> deletes,
+                       Map<String, MirrorSnapshot.FileEntry> touched) {
+        mWrites = Collections.unmodifiableList(writes);
+        mDeletes = Collections.unmodifiableList(deletes);
+        mTouched = Collections.unmodifiableMap(touched);
+    }
+
+    public static MirrorPlan of(LocalTree local, MirrorSnapshot snapshot) {
+        List<MirrorOperation> writes = new ArrayList<>();
+        List<MirrorOperation> deletes = new ArrayList<>();
+        Map<String, MirrorSnapshot.FileEntry> touched = new HashMap<>();
+
+        // Sorted, so a folder always comes before what it holds
+        for (String folder : local.getFolders()) {
+            if (snapshot.getFolderId(folder) == null) {
+                writes.add(new MirrorOperation(MirrorOperation.Type.CREATE_FOLDER, folder, null, null));
+            }
+        }
+        for (Map.Entry<String, MirrorSnapshot.FileEntry> file : local.getFiles().entrySet()) {
+            MirrorSnapshot.FileEntry known = snapshot.getFile(file.getKey());
+            MirrorSnapshot.FileEntry entry = file.getValue();
+            if (known == null || known.getRemoteId() == null || !known.getMd5().equals(entry.getMd5())) {
+                writes.add(new MirrorOperation(MirrorOperation.Type.UPLOAD, file.getKey(), entry,
+                        known != null ? known.getRemoteId() : null));
+            } else if (known.getSize() != entry.getSize() || known.getModified() != entry.getModified()) {
+                // Touched without changing, only the snapshot needs to learn the new attributes
+                touched.put(file.getKey(), entry);
+            }
+        }
+
+        // A removed folder takes everything below it along, nothing inside needs its own delete.
+        // Sorted, so a removed folder is seen before the folders inside it
+        Set<String> removedFolders = new HashSet<>();
+        for (Map.Entry<String, String> folder : new TreeMap<>(snapshot.getFolders()).entrySet()) {
+            if (!local.getFolders().contains(folder.getKey()) && !isBelowAny(folder.getKey(), removedFolders)) {
+                removedFolders.add(folder.getKey());
+                deletes.add(new MirrorOperation(MirrorOperation.Type.DELETE_FOLDER, folder.getKey(), null,
+                        folder.getValue()));
+            }
+        }
+        for (Map.Entry<String, MirrorSnapshot.FileEntry> file : snapshot.getFiles().entrySet()) {
+            String remoteId = file.getValue().getRemoteId();
+            if (!local.getFiles().containsKey(file.getKey()) && remoteId != null
+                    && !isBelowAny(file.getKey(), removedFolders)) {
+                deletes.add(new MirrorOperation(MirrorOperation.Type.DELETE_FILE, file.getKey(), null, remoteId));
+            }
+        }
+        return new MirrorPlan(writes, deletes, touched);
+    }
+
+    private static boolean isBelowAny(String path, Set<String> folders) {
+        for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+            if (folders.contains(path.substring(0, slash))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return folders to create and files to upload, every folder ahead of its content
+     */
+    public List<MirrorOperation> getWrites() {
+        return mWrites;
+    }
+
+    /**
+     * @return files and folders to remove, to run once the writes are over
+     */
+    public List<MirrorOperation> getDeletes() {
+        return mDeletes;
+    }
+
+    /**
+     * @return files with new attributes but the same content, nothing to upload for them
+     */
+    public Map<String, MirrorSnapshot.FileEntry> getTouched() {
+        return mTouched;
+    }
+
+    public boolean isEmpty() {
+        return mWrites.isEmpty() && mDeletes.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "MirrorPlan{" + mWrites.size() + " writes, " + mDeletes.size() + " deletes, " + mTouched.size() + " touched}";
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.mirror;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * What a {@link MirrorEngine} run did. Immutable.
+ */
+public final class MirrorResult {
+
+    private final int mFileCount;
+    private final int mHashedCount;
+    private final int mFoldersCreated;
+    private final int mFilesUploaded;
+    private final int mDeleted;
+    private final Map<String, String> mFailures;
+    private final long mBytesUploaded;
+    private final long mElapsedMillis;
+
+    MirrorResult(int fileCount, int hashedCount, int foldersCreated, int filesUploaded, int deleted,
+                 Map<String, String> failures, long bytesUploaded, long elapsedMillis) {
+        mFileCount = fileCount;
+        mHashedCount = hashedCount;
+        mFoldersCreated = foldersCreated;
+        mFilesUploaded = filesUploaded;
+        mDeleted = deleted;
+        mFailures = Collections.unmodifiableMap(failures);
+        mBytesUploaded = bytesUploaded;
+        mElapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * @return files found in the directory
+     */
+    public int getFileCount() {
+        return mFileCount;
+    }
+
+    /**
+     * @return files read to find whether they changed
+     */
+    public int getHashedCount() {
+        return mHashedCount;
+    }
+
+    public int getFoldersCreated() {
+        return mFoldersCreated;
+    }
+
+    public int getFilesUploaded() {
+        return mFilesUploaded;
+    }
+
+    /**
+     * @return files and folders removed, a folder counting once whatever it held
+     */
+    public int getDeleted() {
+        return mDeleted;
+    }
+
+    /**
+     * @return the reason of every step that failed or was skipped by path, they are tried again
+     * by the next run
+     */
+    public Map<String, String> getFailures() {
+        return mFailures;
+    }
+
+    public long getBytesUploaded() {
+        return mBytesUploaded;
+    }
+
+    public long getElapsedMillis() {
+        return mElapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "MirrorResult{" + mFileCount + " files, " + mHashedCount + " hashed, " + mFoldersCreated + " folders created, "
+                + mFilesUploaded + " uploaded, " + mDeleted + " deleted, " + mFailures.size() + " failed, "
+                + mBytesUploaded + " bytes in " + mElapsedMillis + "ms}";
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.mirror;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * What the last mirroring of a directory left on Drive: the size, modification time and MD5 of
+ * every file when it was uploaded, and the remote id of every file and folder. Paths are
+ * relative to the mirrored directory and separated by '/', the directory itself is "".
+ * <p/>
+ * Files whose size and modification time still match are taken as unchanged without reading
+ * them, see {@link DirectoryScanner}. Changes are applied by the {@link MirrorEngine} workers,
+ * so the mutators are synchronized.
+ */
+public final class MirrorSnapshot {
+
+    private static final String NO_ID = "";
+
+    public static final class FileEntry {
+
+        private final long mSize;
+        private final long mModified;
+        private final String mMd5;
+        private final String mRemoteId;
+
+        /**
+         * @param remoteId where the file was uploaded to, null when it wasn't yet
+         */
+        public FileEntry(long size, long modified, String md5, String remoteId) {
+            mSize = size;
+            mModified = modified;
+            mMd5 = md5;
+            mRemoteId = remoteId;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public long getModified() {
+            return mModified;
+        }
+
+        public String getMd5() {
+            return mMd5;
+        }
+
+        public String getRemoteId() {
+            return mRemoteId;
+        }
+
+        FileEntry withRemoteId(String remoteId) {
+            return new FileEntry(mSize, mModified, mMd5, remoteId);
+        }
+
+        @Override
+        public String toString() {
+            return "FileEntry{" + mSize + " bytes, modified=" + mModified + ", md5=" + mMd5 + ", remoteId=" + mRemoteId + "}";
+        }
+    }
+
+    private final Map<String, FileEntry> mFiles;
+    private final Map<String, String> mFolders;
+    private long mScannedAt;
+
+    public MirrorSnapshot() {
+        this(new HashMap<String, FileEntry>(), new HashMap<String, String>(), 0);
+    }
+
+    private MirrorSnapshot(Map<String, FileEntry> files, Map<String, String> folders, long scannedAt) {
+        mFiles = files;
+        mFolders = folders;
+        mScannedAt = scannedAt;
+    }
+
+    public synchronized FileEntry getFile(String path) {
+        return mFiles.get(path);
+    }
+
+    /**
+     * @return the remote id of the folder mirroring {@code path}, null when there is none
+     */
+    public synchronized String getFolderId(String path) {
+        return mFolders.get(path);
+    }
+
+    public synchronized Map<String, FileEntry> getFiles() {
+        return Collections.unmodifiableMap(new HashMap<>(mFiles));
+    }
+
+    public synchronized Map<String, String> getFolders() {
+        return Collections.unmodifiableMap(new HashMap<>(mFolders));
+    }
+
+    public synchronized int getFileCount() {
+        return mFiles.size();
+    }
+
+    /**
+     * @return when the directory was scanned for this snapshot, files modified around then can't
+     * be trusted to be unchanged by their modification time alone
+     */
+    public synchronized long getScannedAt() {
+        return mScannedAt;
+    }
+
+    synchronized void setScannedAt(long scannedAt) {
+        mScannedAt = scannedAt;
+    }
+
+    synchronized void putFile(String path, FileEntry entry) {
+        mFiles.put(path, entry);
+    }
+
+    synchronized void putFolder(String path, String remoteId) {
+        mFolders.put(path, remoteId);
+    }
+
+    synchronized void removeFile(String path) {
+        mFiles.remove(path);
+    }
+
+    /**
+     * Removes the folder along with every file and folder below it.
+     */
+    synchronized void removeFolder(String path) {
+        mFolders.remove(path);
+        String prefix = path + "/";
+        for (Iterator<String> iterator = mFiles.keySet().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().startsWith(prefix)) {
+                iterator.remove();
+            }
+        }
+        for (Iterator<String> iterator = mFolders.keySet().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().startsWith(prefix)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    synchronized void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(mScannedAt);
+        out.writeInt(mFolders.size());
+        for (Map.Entry<String, String> folder : mFolders.entrySet()) {
+            out.writeUTF(folder.getKey());
+            out.writeUTF(folder.getValue());
+        }
+        out.writeInt(mFiles.size());
+        for (Map.Entry<String, FileEntry> file : mFiles.entrySet()) {
+            FileEntry entry = file.getValue();
+            out.writeUTF(file.getKey());
+            out.writeLong(entry.mSize);
+            out.writeLong(entry.mModified);
+            out.writeUTF(entry.mMd5);
+            out.writeUTF(entry.mRemoteId != null ? entry.mRemoteId : NO_ID);
+        }
+    }
+
+    static MirrorSnapshot readFrom(DataInputStream in) throws IOException {
+        long scannedAt = in.readLong();
+        int folderCount = in.readInt();
+        Map<String, String> folders = new HashMap<>(folderCount * 4 / 3 + 1);
+        for (int i = 0; i < folderCount; i++) {
+            folders.put(in.readUTF(), in.readUTF());
+        }
+        int fileCount = in.readInt();
+        Map<String, FileEntry> files = new HashMap<>(fileCount * 4 / 3 + 1);
+        for (int i = 0; i < fileCount; i++) {
+            String path = in.readUTF();
+            long size = in.readLong();
+            long modified = in.readLong();
+            String md5 = in.readUTF();
+            String remoteId = in.readUTF();
+            files.put(path, new FileEntry(size, modified, md5, NO_ID.equals(remoteId) ? null : remoteId));
+        }
+        return new MirrorSnapshot(files, folders, scannedAt);
+    }
+}
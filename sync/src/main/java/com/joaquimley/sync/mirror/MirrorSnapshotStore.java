@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.mirror;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Keeps the {@link MirrorSnapshot} of every mirrored directory and Drive folder pair in its own
+ * file inside a directory, replacing it atomically on every save.
+ */
+public class MirrorSnapshotStore {
+
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mDirectory;
+
+    public MirrorSnapshotStore(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * @return the snapshot of the last mirroring of {@code root} to {@code folderId}, an empty one
+     * when there is none or it can't be read, everything is then uploaded again
+     */
+    public synchronized MirrorSnapshot load(File root, String folderId) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileFor(root, folderId)), BUFFER_SIZE));
+        } catch (FileNotFoundException e) {
+            return new MirrorSnapshot();
+        }
+        try {
+            if (in.readInt() != VERSION || !keyOf(root, folderId).equals(in.readUTF())) {
+                return new MirrorSnapshot();
+            }
+            return MirrorSnapshot.readFrom(in);
+        } catch (IOException e) {
+            return new MirrorSnapshot();
+        } finally {
+            in.close();
+        }
+    }
+
+    public synchronized void save(File root, String folderId, MirrorSnapshot snapshot) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create snapshot directory " + mDirectory);
+        }
+        File target = fileFor(root, folderId);
+        File temp = new File(mDirectory, target.getName() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, BUFFER_SIZE));
+        try {
+            out.writeInt(VERSION);
+            out.writeUTF(keyOf(root, folderId));
+            snapshot.writeTo(out);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(target)) {
+            throw new IOException("Unable to commit the snapshot of " + root);
+        }
+    }
+
+    private static String keyOf(File root, String folderId) {
+        return root.getAbsolutePath() + "|" + folderId;
+    }
+
+    private File fileFor(File root, String folderId) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(keyOf(root, folderId).getBytes(UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2 + 9);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return new File(mDirectory, name.append(".snapshot").toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.mirror;
+
+import com.joaquimley.sync.drive.RemoteFolder;
+
+import java.io.IOException;
+
+/**
+ * A remote folder hierarchy a directory is mirrored into, implemented on top of Drive by
+ * {@link com.joaquimley.sync.drive.DriveRemoteTree}. Methods block and are called from several
+ * worker threads at once.
+ */
+public interface RemoteTree {
+
+    /**
+     * @return the remote id of the new folder
+     */
+    String createFolder(String parentId, String title) throws IOException;
+
+    /**
+     * @return the folder files are uploaded into
+     */
+    RemoteFolder getFolder(String folderId) throws IOException;
+
+    /**
+     * Removes a file, or a folder along with its content.
+     */
+    void trash(String remoteId) throws IOException;
+
+}
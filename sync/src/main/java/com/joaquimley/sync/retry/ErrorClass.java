@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.retry;
+
+/**
+ * What a failed remote call says about trying it again, see {@link ErrorClassifier}.
+ */
+public enum ErrorClass {
+
+    /**
+     * The network or the service had a moment, the same call is likely to work shortly.
+     */
+    TRANSIENT,
+
+    /**
+     * The account needs the user, such as signing in again. Retrying won't help.
+     */
+    AUTH,
+
+    /**
+     * The service is rate limiting the app, worth trying again only after a long pause.
+     */
+    QUOTA,
+
+    /**
+     * The call itself is wrong, such as a missing file or one too large for the service.
+     */
+    PERMANENT;
+
+    public boolean isRetryable() {
+        return this == TRANSIENT || this == QUOTA;
+    }
+}
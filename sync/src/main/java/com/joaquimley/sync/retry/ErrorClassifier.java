@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.retry;
+
+import com.joaquimley.sync.metrics.SyncMetrics;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sorts failures into {@link ErrorClass}es. Statuses are classified where they are turned into
+ * a {@link StatusException}, anything else goes by its type: I/O trouble and timeouts are
+ * transient, a missing local file, an invalid id, an interruption or a bug is not.
+ */
+public final class ErrorClassifier {
+
+    private ErrorClassifier() {
+    }
+
+    public static ErrorClass classify(Throwable error) {
+        if (error instanceof ExecutionException && error.getCause() != null) {
+            return classify(error.getCause());
+        }
+        if (error instanceof StatusException) {
+            return ((StatusException) error).getErrorClass();
+        }
+        Throwable cause = error.getCause();
+        // Invalid ids are wrapped into IOExceptions too
+        if (error instanceof FileNotFoundException || cause instanceof IllegalArgumentException
+                || cause instanceof InterruptedException
+                || (error instanceof InterruptedIOException && !(error instanceof SocketTimeoutException))) {
+            return ErrorClass.PERMANENT;
+        }
+        if (error instanceof IOException || error instanceof TimeoutException) {
+            return ErrorClass.TRANSIENT;
+        }
+        return ErrorClass.PERMANENT;
+    }
+
+    /**
+     * The cause {@code error} is recorded under, {@code fallback} unless it's about the account
+     * or the quota.
+     */
+    public static SyncMetrics.ErrorCause causeOf(Throwable error, SyncMetrics.ErrorCause fallback) {
+        switch (classify(error)) {
+            case AUTH:
+                return SyncMetrics.ErrorCause.AUTH;
+            case QUOTA:
+                return SyncMetrics.ErrorCause.QUOTA;
+            default:
+                return fallback;
+        }
+    }
+}
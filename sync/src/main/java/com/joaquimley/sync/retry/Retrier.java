@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.retry;
+
+import com.joaquimley.sync.metrics.SyncMetrics;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Retries failed calls as the {@link RetryPolicy} says, taking every retry from the sync's
+ * {@link RetryBudget}. Blocking calls go through {@link #run(Attempt)}, asynchronous ones ask
+ * {@link #nextDelayMillis(Throwable, int)} and schedule the retry themselves.
+ * <p/>
+ * Retries are counted in the {@link SyncMetrics}. Giving up on a quota failure, or because the
+ * budget ran out, records how long the service should be left alone as a backoff hint.
+ */
+public class Retrier {
+
+    public static final long GIVE_UP = -1;
+
+    private final RetryPolicy mPolicy;
+    private final RetryBudget mBudget;
+    private final SyncMetrics mMetrics;
+    private final Sleeper mSleeper;
+
+    public Retrier(RetryPolicy policy, RetryBudget budget, SyncMetrics metrics) {
+        this(policy, budget, metrics, new Sleeper() {
+            @Override
+            public void sleep(long millis) throws InterruptedException {
+                Thread.sleep(millis);
+            }
+        });
+    }
+
+    Retrier(RetryPolicy policy, RetryBudget budget, SyncMetrics metrics, Sleeper sleeper) {
+        mPolicy = policy;
+        mBudget = budget;
+        mMetrics = metrics;
+        mSleeper = sleeper;
+    }
+
+    /**
+     * Gives up on the first failure.
+     */
+    public static Retrier noRetries(SyncMetrics metrics) {
+        return new Retrier(RetryPolicy.NO_RETRIES, new RetryBudget(0), metrics);
+    }
+
+    /**
+     * Decides about another attempt after {@code error}, taking a retry from the budget when
+     * there is one.
+     *
+     * @param failures failed attempts so far, including this one
+     * @return how long to wait before the next attempt, {@link #GIVE_UP} when there is none
+     */
+    public long nextDelayMillis(Throwable error, int failures) {
+        ErrorClass errorClass = ErrorClassifier.classify(error);
+        if (!mPolicy.shouldRetry(errorClass, failures)) {
+            if (errorClass == ErrorClass.QUOTA) {
+                recordBackoff(mPolicy.computeDelayMillis(errorClass, failures));
+            }
+            return GIVE_UP;
+        }
+        long delayMillis = mPolicy.computeDelayMillis(errorClass, failures);
+        if (!mBudget.tryAcquire()) {
+            // The service failed this sync often enough, the framework waits for it instead
+            recordBackoff(delayMillis);
+            return GIVE_UP;
+        }
+        mMetrics.recordRetry();
+        return delayMillis;
+    }
+
+    /**
+     * Runs {@code attempt} until it succeeds or isn't worth retrying, sleeping in between.
+     *
+     * @throws IOException the last failure, or an {@link InterruptedIOException} when
+     *                     interrupted while backing off
+     */
+    public <T> T run(Attempt<T> attempt) throws IOException {
+        for (int failures = 1; ; failures++) {
+            try {
+                return attempt.run();
+            } catch (IOException e) {
+                long delayMillis = nextDelayMillis(e, failures);
+                if (delayMillis == GIVE_UP) {
+                    throw e;
+                }
+                try {
+                    mSleeper.sleep(delayMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    InterruptedIOException error = new InterruptedIOException("Interrupted while retrying: " + e.getMessage());
+                    error.initCause(e);
+                    throw error;
+                }
+            }
+        }
+    }
+
+    private void recordBackoff(long delayMillis) {
+        mMetrics.recordBackoff(System.currentTimeMillis() + delayMillis);
+    }
+
+    /**
+     * A call that can be made again after it failed.
+     */
+    public interface Attempt<T> {
+
+        T run() throws IOException;
+    }
+
+    interface Sleeper {
+
+        void sleep(long millis) throws InterruptedException;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.retry;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Retries a single sync may spend across all of its calls. Once the service fails that often the
+ * sync gives up and leaves the rest to the framework's backoff, instead of every call retrying
+ * on its own.
+ */
+public class RetryBudget {
+
+    public static final int DEFAULT_RETRIES_PER_SYNC = 20;
+
+    private final AtomicInteger mRemaining;
+
+    public RetryBudget() {
+        this(DEFAULT_RETRIES_PER_SYNC);
+    }
+
+    public RetryBudget(int retries) {
+        mRemaining = new AtomicInteger(Math.max(0, retries));
+    }
+
+    /**
+     * @return whether a retry was left, it is spent when there was
+     */
+    public boolean tryAcquire() {
+        int remaining;
+        do {
+            remaining = mRemaining.get();
+            if (remaining == 0) {
+                return false;
+            }
+        } while (!mRemaining.compareAndSet(remaining, remaining - 1));
+        return true;
+    }
+
+    public int getRemaining() {
+        return mRemaining.get();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.retry;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How often and how late each {@link ErrorClass} is retried. Transient failures are retried a
+ * few times within seconds, quota failures fewer times over a minute, and auth or permanent
+ * failures never.
+ */
+public class RetryPolicy {
+
+    public static final Backoff DEFAULT_TRANSIENT = new Backoff(4, 500, TimeUnit.SECONDS.toMillis(8));
+    public static final Backoff DEFAULT_QUOTA = new Backoff(3, TimeUnit.SECONDS.toMillis(5), TimeUnit.MINUTES.toMillis(1));
+
+    /**
+     * Gives up on the first failure, for callers that retry on their own.
+     */
+    public static final RetryPolicy NO_RETRIES = new RetryPolicy(Backoff.NONE, Backoff.NONE, new Random());
+
+    private final Backoff mTransient;
+    private final Backoff mQuota;
+    private final Random mRandom;
+
+    public RetryPolicy() {
+        this(new Random());
+    }
+
+    /**
+     * @param random source of the backoff jitter, seed it to replay the delays
+     */
+    public RetryPolicy(Random random) {
+        this(DEFAULT_TRANSIENT, DEFAULT_QUOTA, random);
+    }
+
+    public RetryPolicy(Backoff transientBackoff, Backoff quotaBackoff, Random random) {
+        mTransient = transientBackoff;
+        mQuota = quotaBackoff;
+        mRandom = random;
+    }
+
+    /**
+     * @param failures failed attempts so far, including the one that just failed
+     */
+    public boolean shouldRetry(ErrorClass errorClass, int failures) {
+        Backoff backoff = getBackoff(errorClass);
+        return backoff != null && failures < backoff.getMaxAttempts();
+    }
+
+    /**
+     * Exponential backoff with equal jitter: half of the delay is fixed, the other half random,
+     * so calls failing together don't retry together.
+     */
+    public long computeDelayMillis(ErrorClass errorClass, int failures) {
+        Backoff backoff = getBackoff(errorClass);
+        if (backoff == null) {
+            return 0;
+        }
+        int exponent = Math.min(Math.max(failures - 1, 0), 30);
+        long delay = Math.min(backoff.getMaxDelayMillis(), backoff.getBaseDelayMillis() << exponent);
+        long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * (delay - half));
+    }
+
+    private Backoff getBackoff(ErrorClass errorClass) {
+        switch (errorClass) {
+            case TRANSIENT:
+                return mTransient;
+            case QUOTA:
+                return mQuota;
+            default:
+                return null;
+        }
+    }
+
+    public static final class Backoff {
+
+        public static final Backoff NONE = new Backoff(1, 0, 0);
+
+        private final int mMaxAttempts;
+        private final long mBaseDelayMillis;
+        private final long mMaxDelayMillis;
+
+        /**
+         * @param maxAttempts attempts in total, 1 never retries
+         */
+        public Backoff(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+            mMaxAttempts = Math.max(1, maxAttempts);
+            mBaseDelayMillis = baseDelayMillis;
+            mMaxDelayMillis = maxDelayMillis;
+        }
+
+        public int getMaxAttempts() {
+            return mMaxAttempts;
+        }
+
+        public long getBaseDelayMillis() {
+            return mBaseDelayMillis;
+        }
+
+        public long getMaxDelayMillis() {
+            return mMaxDelayMillis;
+        }
+    }
+}
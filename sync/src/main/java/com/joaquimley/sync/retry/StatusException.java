@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.retry;
+
+import java.io.IOException;
+
+/**
+ * A remote call that answered with an unsuccessful status, classified when it was thrown.
+ */
+public class StatusException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int mStatusCode;
+    private final ErrorClass mErrorClass;
+
+    public StatusException(String message, int statusCode, ErrorClass errorClass) {
+        super(message);
+        mStatusCode = statusCode;
+        mErrorClass = errorClass;
+    }
+
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    public ErrorClass getErrorClass() {
+        return mErrorClass;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.schedule;
+
+/**
+ * Exponentially weighted rate of local data changes, older observations fade out with the
+ * configured half life whatever the spacing between syncs.
+ */
+public class ChurnEstimator {
+
+    public static final long DEFAULT_HALF_LIFE_SECONDS = 24 * 60 * 60;
+
+    private final double mHalfLifeSeconds;
+    private double mBytesPerSecond;
+    private boolean mInitialized;
+
+    public ChurnEstimator() {
+        this(DEFAULT_HALF_LIFE_SECONDS, -1);
+    }
+
+    /**
+     * @param bytesPerSecond a previously saved rate, negative when there is none yet
+     */
+    public ChurnEstimator(double halfLifeSeconds, double bytesPerSecond) {
+        mHalfLifeSeconds = halfLifeSeconds;
+        mInitialized = bytesPerSecond >= 0;
+        mBytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * @param changedBytes   data that changed since the previous observation
+     * @param elapsedSeconds time since the previous observation
+     */
+    public void update(long changedBytes, long elapsedSeconds) {
+        if (elapsedSeconds <= 0) {
+            return;
+        }
+        double sample = (double) changedBytes / elapsedSeconds;
+        if (!mInitialized) {
+            mBytesPerSecond = sample;
+            mInitialized = true;
+            return;
+        }
+        double weight = 1 - Math.pow(2, -elapsedSeconds / mHalfLifeSeconds);
+        mBytesPerSecond += weight * (sample - mBytesPerSecond);
+    }
+
+    public double getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.schedule;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges requests submitted under the same key within a window into a single dispatch.
+ * <p/>
+ * The first request for a key goes out right away and opens the window, the ones following it
+ * within the window are merged and go out together when it closes, which opens the next
+ * window. Nothing waits unless a request for the same key was just dispatched, and a steady
+ * stream of requests still goes out once per window, however urgent each of them is.
+ */
+public class RequestCoalescer<K, V> {
+
+    public interface Merger<V> {
+
+        /**
+         * @return the request standing for both, {@code incoming} being the most recent one
+         */
+        V merge(V pending, V incoming);
+    }
+
+    public interface Dispatcher<K, V> {
+
+        /**
+         * @param requestCount how many submitted requests {@code value} stands for
+         */
+        void dispatch(K key, V value, int requestCount);
+    }
+
+    private final ScheduledExecutorService mScheduler;
+    private final Merger<V> mMerger;
+    private final Dispatcher<K, V> mDispatcher;
+    private final Map<K, Window<V>> mWindows = new LinkedHashMap<>();
+    private volatile long mWindowMillis;
+
+    // Guarded by this
+    private long mSubmitted;
+    private long mDispatched;
+
+    /**
+     * @param scheduler closes the windows and dispatches their followers, it is not shut down by
+     *                  the coalescer
+     */
+    public RequestCoalescer(ScheduledExecutorService scheduler, long windowMillis, Merger<V> merger, Dispatcher<K, V> dispatcher) {
+        mScheduler = scheduler;
+        mWindowMillis = windowMillis;
+        mMerger = merger;
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * Applies to windows opened from now on, 0 dispatches every request on its own.
+     */
+    public void setWindow(long windowMillis) {
+        mWindowMillis = windowMillis;
+    }
+
+    public void submit(K key, V value) {
+        synchronized (this) {
+            mSubmitted++;
+            Window<V> window = mWindows.get(key);
+            if (window != null) {
+                window.mFollowers = window.mFollowers != null ? mMerger.merge(window.mFollowers, value) : value;
+                window.mCount++;
+                return;
+            }
+            openWindow(key);
+            mDispatched++;
+        }
+        mDispatcher.dispatch(key, value, 1);
+    }
+
+    /**
+     * Dispatches the followers waiting for their window right away and closes every window.
+     */
+    public void flushAll() {
+        List<K> keys;
+        synchronized (this) {
+            keys = new ArrayList<>(mWindows.keySet());
+        }
+        for (K key : keys) {
+            Window<V> window;
+            synchronized (this) {
+                window = mWindows.remove(key);
+                if (window == null || window.mFollowers == null) {
+                    continue;
+                }
+                mDispatched++;
+            }
+            mDispatcher.dispatch(key, window.mFollowers, window.mCount);
+        }
+    }
+
+    /**
+     * @return requests that didn't cause a dispatch of their own
+     */
+    public synchronized long getCoalescedCount() {
+        return mSubmitted - mDispatched - getPendingDispatchCount();
+    }
+
+    public synchronized long getSubmittedCount() {
+        return mSubmitted;
+    }
+
+    public synchronized long getDispatchedCount() {
+        return mDispatched;
+    }
+
+    /**
+     * Guarded by this.
+     */
+    private void openWindow(final K key) {
+        long windowMillis = mWindowMillis;
+        if (windowMillis <= 0) {
+            return;
+        }
+        final Window<V> window = new Window<>();
+        mWindows.put(key, window);
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                close(key, window);
+            }
+        }, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void close(K key, Window<V> window) {
+        V followers;
+        int requestCount;
+        synchronized (this) {
+            // Flushed meanwhile, the key may have a newer window by now
+            if (mWindows.get(key) != window) {
+                return;
+            }
+            mWindows.remove(key);
+            followers = window.mFollowers;
+            if (followers == null) {
+                return;
+            }
+            requestCount = window.mCount;
+            // The followers going out now hold back the next ones for another window
+            openWindow(key);
+            mDispatched++;
+        }
+        mDispatcher.dispatch(key, followers, requestCount);
+    }
+
+    /**
+     * Keys with followers will each take one dispatch, their other requests already count as
+     * coalesced.
+     */
+    private int getPendingDispatchCount() {
+        int count = 0;
+        for (Window<V> window : mWindows.values()) {
+            if (window.mFollowers != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static final class Window<V> {
+
+        // Requests received since the last dispatch of the key, merged
+        private V mFollowers;
+        private int mCount;
+    }
+}
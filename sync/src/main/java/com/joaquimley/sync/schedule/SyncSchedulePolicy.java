@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.schedule;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the periodic sync interval from what the last syncs observed: how fast the data
+ * changes, how many uploads are still queued, how many syncs failed in a row and whether the
+ * network is metered. Has no Android dependencies so it can be simulated on the JVM.
+ */
+public class SyncSchedulePolicy {
+
+    public static final long DEFAULT_MIN_INTERVAL_SECONDS = TimeUnit.MINUTES.toSeconds(15);
+    public static final long DEFAULT_MAX_INTERVAL_SECONDS = TimeUnit.DAYS.toSeconds(1);
+    /**
+     * Amount of changed data worth a sync on its own.
+     */
+    public static final long DEFAULT_TARGET_BYTES_PER_SYNC = 1024 * 1024;
+    /**
+     * A new interval is only worth registering when it moves by more than this fraction.
+     */
+    public static final double RESCHEDULE_THRESHOLD = 0.25;
+
+    static final long OUTBOX_INTERVAL_SECONDS = TimeUnit.MINUTES.toSeconds(15);
+    static final int METERED_FACTOR = 4;
+    static final long BASE_BACKOFF_SECONDS = TimeUnit.MINUTES.toSeconds(5);
+    static final long MAX_BACKOFF_SECONDS = TimeUnit.HOURS.toSeconds(12);
+
+    private final long mMinIntervalSeconds;
+    private final long mMaxIntervalSeconds;
+    private final long mTargetBytesPerSync;
+    private final Random mRandom;
+
+    public SyncSchedulePolicy(Random random) {
+        this(DEFAULT_MIN_INTERVAL_SECONDS, DEFAULT_MAX_INTERVAL_SECONDS, DEFAULT_TARGET_BYTES_PER_SYNC, random);
+    }
+
+    /**
+     * @param random source of the backoff jitter, seed it to replay a schedule
+     */
+    public SyncSchedulePolicy(long minIntervalSeconds, long maxIntervalSeconds, long targetBytesPerSync, Random random) {
+        if (minIntervalSeconds <= 0 || maxIntervalSeconds < minIntervalSeconds) {
+            throw new IllegalArgumentException("Invalid interval range " + minIntervalSeconds + "-" + maxIntervalSeconds);
+        }
+        mMinIntervalSeconds = minIntervalSeconds;
+        mMaxIntervalSeconds = maxIntervalSeconds;
+        mTargetBytesPerSync = targetBytesPerSync;
+        mRandom = random;
+    }
+
+    /**
+     * @param churnBytesPerSecond estimated rate at which local data changes, see {@link ChurnEstimator}
+     * @param outboxDepth         uploads still waiting after the last sync
+     * @param consecutiveFailures syncs that failed since the last successful one
+     * @param metered             whether the active network is metered
+     * @return the next periodic interval, in seconds
+     */
+    public long computeInterval(double churnBytesPerSecond, int outboxDepth, int consecutiveFailures, boolean metered) {
+        long interval = churnBytesPerSecond <= 0
+                ? mMaxIntervalSeconds
+                : (long) Math.min(mMaxIntervalSeconds, mTargetBytesPerSync / churnBytesPerSecond);
+        if (outboxDepth > 0) {
+            interval = Math.min(interval, OUTBOX_INTERVAL_SECONDS);
+        }
+        if (metered) {
+            interval *= METERED_FACTOR;
+        }
+        if (consecutiveFailures > 0) {
+            interval = Math.max(interval, computeBackoff(consecutiveFailures));
+        }
+        return Math.max(mMinIntervalSeconds, Math.min(mMaxIntervalSeconds, interval));
+    }
+
+    /**
+     * Exponential backoff with equal jitter: half of the delay is fixed, the other half random,
+     * so clients failing together don't retry together.
+     */
+    public long computeBackoff(int consecutiveFailures) {
+        int exponent = Math.min(consecutiveFailures - 1, 30);
+        long backoff = Math.min(MAX_BACKOFF_SECONDS, BASE_BACKOFF_SECONDS << exponent);
+        long half = backoff / 2;
+        return half + (long) (mRandom.nextDouble() * (backoff - half));
+    }
+
+    public static long getFlexTime(long intervalSeconds) {
+        return intervalSeconds / 3;
+    }
+
+    /**
+     * @return whether moving from {@code currentSeconds} to {@code proposedSeconds} is worth
+     * re-registering the periodic sync, small oscillations are ignored
+     */
+    public static boolean isSignificantChange(long currentSeconds, long proposedSeconds) {
+        return currentSeconds <= 0 || Math.abs(proposedSeconds - currentSeconds) > currentSeconds * RESCHEDULE_THRESHOLD;
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.service;
+
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+
+import com.joaquimley.sync.changelog.ChangeRecord;
+import com.joaquimley.sync.changelog.ChangeSegment;
+import com.joaquimley.sync.service.SyncContract.Changes;
+import com.joaquimley.sync.service.SyncContract.Segments;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sync adapter side of the change log of one account: what it has not uploaded yet and the
+ * segments it uploaded, see {@link SyncContract.Changes} and {@link SyncContract.Segments}.
+ */
+public class ChangeLogStore {
+
+    private static final int PAGE_SIZE = 500;
+    private static final String[] CHANGE_PROJECTION = {Changes._ID, Changes.COLUMN_COLLECTION, Changes.COLUMN_RECORD_ID,
+            Changes.COLUMN_OPERATION, Changes.COLUMN_DATA, Changes.COLUMN_CREATED_AT};
+    // Keep in line with ChangeRecord.getApproximateSize()
+    private static final String APPROXIMATE_SIZE = "SUM(32 + LENGTH(" + Changes.COLUMN_COLLECTION + ") + LENGTH("
+            + Changes.COLUMN_RECORD_ID + ") + IFNULL(LENGTH(" + Changes.COLUMN_DATA + "), 0))";
+
+    private final ContentProviderClient mProvider;
+    private final Uri mChangesUri;
+    private final Uri mSegmentsUri;
+    private final String mAccountName;
+
+    public ChangeLogStore(Context context, ContentProviderClient provider, String accountName) {
+        mProvider = provider;
+        mChangesUri = SyncContract.asSyncAdapter(Changes.getContentUri(context));
+        mSegmentsUri = SyncContract.asSyncAdapter(Segments.getContentUri(context));
+        mAccountName = accountName;
+    }
+
+    /**
+     * @return the id of the last change the account uploaded, 0 before its first snapshot
+     */
+    public long getWatermark() throws RemoteException {
+        return queryLong(mSegmentsUri, "MAX(" + Segments.COLUMN_LAST_CHANGE + ")", Segments.COLUMN_ACCOUNT + "=?",
+                new String[]{mAccountName});
+    }
+
+    /**
+     * @return the changes made after {@code watermark}
+     */
+    public Pending getPending(long watermark) throws RemoteException {
+        Cursor cursor = mProvider.query(mChangesUri, new String[]{"COUNT(*)", APPROXIMATE_SIZE,
+                        "MIN(" + Changes.COLUMN_CREATED_AT + ")", "MAX(" + Changes._ID + ")"},
+                Changes._ID + ">?", new String[]{String.valueOf(watermark)}, null);
+        if (cursor == null) {
+            return new Pending(0, 0, 0, watermark);
+        }
+        try {
+            if (!cursor.moveToFirst() || cursor.getInt(0) == 0) {
+                return new Pending(0, 0, 0, watermark);
+            }
+            return new Pending(cursor.getInt(0), cursor.getLong(1), cursor.getLong(2), cursor.getLong(3));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads the changes after {@code afterId} in log order until they add up to
+     * {@code maxBytes}, at least one is read so an oversized change still makes it out.
+     *
+     * @param upToId last change to read, changes appended meanwhile wait for the next segment
+     */
+    public List<ChangeRecord> readChanges(long afterId, long upToId, long maxBytes) throws RemoteException {
+        List<ChangeRecord> changes = new ArrayList<>();
+        long bytes = 0;
+        long lastId = afterId;
+        while (bytes < maxBytes) {
+            List<ChangeRecord> page = queryChanges(Changes._ID + ">? AND " + Changes._ID + "<=?",
+                    new String[]{String.valueOf(lastId), String.valueOf(upToId)});
+            if (page.isEmpty()) {
+                break;
+            }
+            for (ChangeRecord change : page) {
+                if (bytes >= maxBytes) {
+                    break;
+                }
+                changes.add(change);
+                bytes += change.getApproximateSize();
+                lastId = change.getId();
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Collects every record alive at {@code upToId}, the content of a snapshot.
+     */
+    public List<ChangeRecord> readLiveRecords(long upToId) throws RemoteException {
+        List<ChangeRecord> records = new ArrayList<>();
+        long lastId = 0;
+        List<ChangeRecord> page;
+        while (!(page = queryChanges(Changes._ID + ">? AND " + Changes._ID + "<=? AND " + Changes.COLUMN_OPERATION + "="
+                + Changes.OPERATION_UPSERT, new String[]{String.valueOf(lastId), String.valueOf(upToId)})).isEmpty()) {
+            records.addAll(page);
+            lastId = page.get(page.size() - 1).getId();
+        }
+        return records;
+    }
+
+    /**
+     * @return what the account uploaded since its last snapshot
+     */
+    public SnapshotState getSnapshotState() throws RemoteException {
+        Cursor cursor = mProvider.query(mSegmentsUri, new String[]{Segments._ID, Segments.COLUMN_SIZE},
+                Segments.COLUMN_ACCOUNT + "=? AND " + Segments.COLUMN_KIND + "=" + Segments.KIND_SNAPSHOT,
+                new String[]{mAccountName}, Segments._ID + " DESC");
+        long snapshotId = 0;
+        long snapshotBytes = -1;
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    snapshotId = cursor.getLong(0);
+                    snapshotBytes = cursor.getLong(1);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        cursor = mProvider.query(mSegmentsUri, new String[]{"COUNT(*)", "IFNULL(SUM(" + Segments.COLUMN_SIZE + "), 0)"},
+                Segments.COLUMN_ACCOUNT + "=? AND " + Segments._ID + ">?",
+                new String[]{mAccountName, String.valueOf(snapshotId)}, null);
+        if (cursor == null) {
+            return new SnapshotState(snapshotBytes, 0, 0);
+        }
+        try {
+            cursor.moveToFirst();
+            return new SnapshotState(snapshotBytes, cursor.getInt(0), cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Records an uploaded segment, moving the account's watermark to its last change.
+     */
+    public void recordUpload(ChangeSegment segment, long size, String driveId) throws RemoteException {
+        ContentValues values = new ContentValues();
+        values.put(Segments.COLUMN_ACCOUNT, mAccountName);
+        values.put(Segments.COLUMN_KIND, segment.getKind() == ChangeSegment.Kind.SNAPSHOT
+                ? Segments.KIND_SNAPSHOT : Segments.KIND_SEGMENT);
+        values.put(Segments.COLUMN_FIRST_CHANGE, segment.getFirstId());
+        values.put(Segments.COLUMN_LAST_CHANGE, segment.getLastId());
+        values.put(Segments.COLUMN_RECORD_COUNT, segment.getRecords().size());
+        values.put(Segments.COLUMN_SIZE, size);
+        values.put(Segments.COLUMN_DRIVE_ID, driveId);
+        mProvider.insert(mSegmentsUri, values);
+    }
+
+    /**
+     * Forgets the segments older than the account's last snapshot, a restore starts from it.
+     *
+     * @return the number of segments forgotten
+     */
+    public int purgeSegmentsBeforeSnapshot() throws RemoteException {
+        return mProvider.delete(mSegmentsUri, Segments.COLUMN_ACCOUNT + "=? AND " + Segments._ID + "<(SELECT MAX("
+                        + Segments._ID + ") FROM " + Segments.TABLE_NAME + " WHERE " + Segments.COLUMN_ACCOUNT + "=? AND "
+                        + Segments.COLUMN_KIND + "=" + Segments.KIND_SNAPSHOT + ")",
+                new String[]{mAccountName, mAccountName});
+    }
+
+    /**
+     * Deletes the deletions every account has uploaded, a snapshot taken afterwards simply
+     * doesn't hold the record. Accounts that never uploaded don't count, they start with a
+     * snapshot.
+     *
+     * @return the number of deletions dropped
+     */
+    public int purgeUploadedDeletions() throws RemoteException {
+        return mProvider.delete(mChangesUri, Changes.COLUMN_OPERATION + "=" + Changes.OPERATION_DELETE + " AND "
+                + Changes._ID + "<=(SELECT MIN(watermark) FROM (SELECT MAX(" + Segments.COLUMN_LAST_CHANGE
+                + ") AS watermark FROM " + Segments.TABLE_NAME + " GROUP BY " + Segments.COLUMN_ACCOUNT + "))", null);
+    }
+
+    private List<ChangeRecord> queryChanges(String selection, String[] selectionArgs) throws RemoteException {
+        Uri uri = mChangesUri.buildUpon().appendQueryParameter(SyncContract.QUERY_PARAMETER_LIMIT, String.valueOf(PAGE_SIZE)).build();
+        List<ChangeRecord> changes = new ArrayList<>();
+        Cursor cursor = mProvider.query(uri, CHANGE_PROJECTION, selection, selectionArgs, Changes._ID);
+        if (cursor == null) {
+            return changes;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                changes.add(new ChangeRecord(cursor.getLong(0), cursor.getString(1), cursor.getString(2),
+                        cursor.getInt(3) == Changes.OPERATION_DELETE, cursor.getString(4), cursor.getLong(5)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return changes;
+    }
+
+    private long queryLong(Uri uri, String expression, String selection, String[] selectionArgs) throws RemoteException {
+        Cursor cursor = mProvider.query(uri, new String[]{expression}, selection, selectionArgs, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Changes not uploaded by the account yet.
+     */
+    public static class Pending {
+
+        private final int mCount;
+        private final long mApproximateBytes;
+        private final long mOldestCreatedAt;
+        private final long mLastId;
+
+        Pending(int count, long approximateBytes, long oldestCreatedAt, long lastId) {
+            mCount = count;
+            mApproximateBytes = approximateBytes;
+            mOldestCreatedAt = oldestCreatedAt;
+            mLastId = lastId;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public long getApproximateBytes() {
+            return mApproximateBytes;
+        }
+
+        public long getOldestCreatedAt() {
+            return mOldestCreatedAt;
+        }
+
+        /**
+         * @return the id of the newest change, where the next upload stops
+         */
+        public long getLastId() {
+            return mLastId;
+        }
+
+        @Override
+        public String toString() {
+            return "Pending{count=" + mCount + ", bytes~" + mApproximateBytes + ", lastId=" + mLastId + "}";
+        }
+    }
+
+    public static class SnapshotState {
+
+        private final long mSnapshotBytes;
+        private final int mSegmentCount;
+        private final long mSegmentBytes;
+
+        SnapshotState(long snapshotBytes, int segmentCount, long segmentBytes) {
+            mSnapshotBytes = snapshotBytes;
+            mSegmentCount = segmentCount;
+            mSegmentBytes = segmentBytes;
+        }
+
+        /**
+         * @return the size of the last snapshot, -1 when the account has none
+         */
+        public long getSnapshotBytes() {
+            return mSnapshotBytes;
+        }
+
+        public int getSegmentCount() {
+            return mSegmentCount;
+        }
+
+        public long getSegmentBytes() {
+            return mSegmentBytes;
+        }
+    }
+}
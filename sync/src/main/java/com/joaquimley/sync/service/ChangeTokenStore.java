@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.joaquimley.sync.drive.ChangeToken;
+
+/**
+ * Keeps the {@link ChangeToken} of every account's folder in shared preferences. Only the sync
+ * process writes them.
+ */
+public class ChangeTokenStore {
+
+    private static final String PREFERENCES_NAME = "googleSyncServiceChangeTokens";
+
+    private final SharedPreferences mPreferences;
+
+    public ChangeTokenStore(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the token of the account's last sync of {@code folderId}, null when there is none
+     */
+    public ChangeToken load(String accountName, String folderId) {
+        return ChangeToken.parse(mPreferences.getString(keyOf(accountName, folderId), null));
+    }
+
+    public void save(String accountName, String folderId, ChangeToken token) {
+        mPreferences.edit().putString(keyOf(accountName, folderId), token.encode()).apply();
+    }
+
+    private static String keyOf(String accountName, String folderId) {
+        return accountName + "|" + folderId;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.service;
+
+import android.util.Log;
+
+import com.google.android.gms.drive.events.ChangeEvent;
+import com.google.android.gms.drive.events.DriveEventService;
+import com.joaquimley.sync.SyncHelper;
+
+/**
+ * Receives the changes of the folders and files the syncs subscribed to, even while the app
+ * isn't running, and requests a sync fetching them. Bursts of changes end up in a single sync.
+ */
+public class DriveChangeService extends DriveEventService {
+
+    private static final String TAG = "DriveChangeService";
+
+    @Override
+    public void onChange(ChangeEvent event) {
+        Log.d(TAG, "onChange(): " + event.getDriveId());
+        SyncHelper.syncRemoteChanges(this);
+    }
+}
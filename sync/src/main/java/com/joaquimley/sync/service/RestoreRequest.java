@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.service;
+
+import com.joaquimley.sync.drive.FileRestorer;
+
+/**
+ * A remote file a sync brings back over its local copy. Immutable.
+ */
+public final class RestoreRequest {
+
+    private final String mTitle;
+    private final String mLocalPath;
+    private final FileRestorer.ConflictPolicy mConflictPolicy;
+
+    /**
+     * @param title     title of the file in the sync's folder, its most recent revision is restored
+     * @param localPath absolute path the file is restored to
+     */
+    public RestoreRequest(String title, String localPath, FileRestorer.ConflictPolicy conflictPolicy) {
+        mTitle = title;
+        mLocalPath = localPath;
+        mConflictPolicy = conflictPolicy;
+    }
+
+    public String getTitle() {
+        return mTitle;
+    }
+
+    public String getLocalPath() {
+        return mLocalPath;
+    }
+
+    public FileRestorer.ConflictPolicy getConflictPolicy() {
+        return mConflictPolicy;
+    }
+
+    @Override
+    public String toString() {
+        return "RestoreRequest{" + mTitle + " -> " + mLocalPath + ", " + mConflictPolicy + "}";
+    }
+}
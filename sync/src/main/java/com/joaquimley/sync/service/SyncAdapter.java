@@ -22,8 +22,10 @@ import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.IntentSender;
+import android.content.OperationApplicationException;
 import android.content.SyncResult;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
@@ -34,26 +36,91 @@ import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.drive.Drive;
 import com.google.android.gms.drive.DriveFolder;
 import com.joaquimley.sync.SyncHelper;
+import com.joaquimley.sync.SyncScheduler;
+import com.joaquimley.sync.changelog.ChangeLogPolicy;
+import com.joaquimley.sync.changelog.ChangeRecord;
+import com.joaquimley.sync.changelog.ChangeSegment;
+import com.joaquimley.sync.compress.CompressionCodec;
+import com.joaquimley.sync.compress.CompressionCodecs;
+import com.joaquimley.sync.delta.ChangeDetector;
+import com.joaquimley.sync.delta.FileManifestStore;
+import com.joaquimley.sync.drive.BatchUploadResult;
+import com.joaquimley.sync.drive.BatchUploader;
+import com.joaquimley.sync.drive.ChangeToken;
+import com.joaquimley.sync.drive.ChunkedDownloader;
+import com.joaquimley.sync.drive.ChunkedUploader;
 import com.joaquimley.sync.drive.CreateFileTask;
+import com.joaquimley.sync.drive.DriveRemoteFolder;
+import com.joaquimley.sync.drive.DriveRemoteTree;
+import com.joaquimley.sync.drive.DriveTaskCallback;
+import com.joaquimley.sync.drive.FileRestorer;
+import com.joaquimley.sync.drive.FileUploadCheckpointStore;
+import com.joaquimley.sync.drive.MetadataCache;
+import com.joaquimley.sync.drive.PatchChain;
+import com.joaquimley.sync.drive.RemoteChange;
+import com.joaquimley.sync.drive.RemoteVersion;
+import com.joaquimley.sync.drive.UploadCheckpointStore;
 import com.joaquimley.sync.drive.UploadToFolderTask;
+import com.joaquimley.sync.drive.client.ApiClientConnectionException;
+import com.joaquimley.sync.drive.client.ApiClientManager;
+import com.joaquimley.sync.executor.SyncExecutor;
+import com.joaquimley.sync.metrics.SyncMetrics;
+import com.joaquimley.sync.metrics.SyncResultWriter;
+import com.joaquimley.sync.mirror.MirrorEngine;
+import com.joaquimley.sync.mirror.MirrorResult;
+import com.joaquimley.sync.mirror.MirrorSnapshotStore;
+import com.joaquimley.sync.retry.ErrorClassifier;
+import com.joaquimley.sync.retry.Retrier;
+import com.joaquimley.sync.retry.RetryBudget;
+import com.joaquimley.sync.retry.RetryPolicy;
 import com.joaquimley.sync.view.FolderPickerActivity;
 import com.joaquimley.sync.view.SignInResolutionActivity;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Handle the transfer of data between a server and an
  * app, using the Android sync adapter framework.
  */
-public class SyncAdapter extends AbstractThreadedSyncAdapter implements GoogleApiClient.OnConnectionFailedListener,
-        GoogleApiClient.ConnectionCallbacks {
+public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
     private String TAG = "SyncAdapter";
+    private static final String UPLOAD_CHECKPOINTS_DIR = "upload_checkpoints";
+    private static final String MANIFESTS_DIR = "sync_manifests";
+    private static final String CHANGE_LOG_DIR = "change_log";
+    private static final String PATCHES_DIR = "patches";
+    private static final String MIRROR_SNAPSHOTS_DIR = "mirror_snapshots";
+    private static final int UPLOAD_COMPRESSION_LEVEL = 6;
+    private static final CompressionCodec UPLOAD_CODEC = CompressionCodecs.gzip(UPLOAD_COMPRESSION_LEVEL);
+    private static final long CONNECT_TIMEOUT_SECONDS = 30;
+    private static final long COMPLETION_TIMEOUT_SECONDS = 10 * 60;
+    private static final int OUTBOX_BATCH_SIZE = 20;
+    // Also settles a file's own upload coming back as a change, the local copy is the newer one
+    private static final FileRestorer.ConflictPolicy REMOTE_CHANGE_POLICY = FileRestorer.ConflictPolicy.LAST_WRITER_WINS;
 
-    // Global variables
+    // Global variables, shared by the syncs of every account running in parallel
     // Define a variable to contain a content resolver instance
     private ContentResolver mContentResolver;
-    private GoogleApiClient mGoogleApiClient;
-    private boolean mIsUploadToFolder;
-    private String mFolderId;
+    private ApiClientManager mClientManager;
+    private SyncRunner<GoogleApiClient> mRunner;
+    private SyncScheduler mScheduler;
+    private final ChangeLogPolicy mChangeLogPolicy = new ChangeLogPolicy();
+    private ChangeTokenStore mChangeTokens;
+    // Checkpoints and manifests describe what an account's Drive holds, each account keeps its own
+    private final ConcurrentMap<String, UploadCheckpointStore> mCheckpointStores = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ChangeDetector> mChangeDetectors = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, MirrorSnapshotStore> mMirrorSnapshotStores = new ConcurrentHashMap<>();
 
     /**
      * Set up the sync adapter
@@ -65,6 +132,10 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter implements GoogleAp
          * from the incoming Context
          */
         mContentResolver = context.getContentResolver();
+        mClientManager = ApiClientManager.getInstance(context);
+        mRunner = new SyncRunner<>(mClientManager, CONNECT_TIMEOUT_SECONDS, COMPLETION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        mScheduler = new SyncScheduler(context);
+        mChangeTokens = new ChangeTokenStore(context);
     }
 
     /**
@@ -79,47 +150,121 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter implements GoogleAp
          * from the incoming Context
          */
         mContentResolver = context.getContentResolver();
+        mClientManager = ApiClientManager.getInstance(context);
+        mRunner = new SyncRunner<>(mClientManager, CONNECT_TIMEOUT_SECONDS, COMPLETION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        mScheduler = new SyncScheduler(context);
+        mChangeTokens = new ChangeTokenStore(context);
     }
 
     @Override
-    public void onPerformSync(Account account, Bundle bundle, String s, ContentProviderClient contentProviderClient, SyncResult syncResult) {
-        Log.d(TAG, "on perform sync");
-        if (mGoogleApiClient == null || !mGoogleApiClient.isConnected()) {
-            initGoogleApiClient(getContext(), account.name);
-            mGoogleApiClient.connect();
-        }
-        mIsUploadToFolder = bundle.getBoolean(SyncHelper.SYNC_IS_TO_UPLOAD_TO_FOLDER, false);
-        mFolderId = bundle.getString(SyncHelper.SYNC_DRIVE_FOLDER_ID, "");
+    public void onPerformSync(final Account account, Bundle bundle, String s, final ContentProviderClient contentProviderClient,
+                              SyncResult syncResult) {
+        SyncContext context = newSyncContext(account, bundle);
+        Log.d(TAG, "on perform sync " + context);
+        final SyncMetrics metrics = new SyncMetrics(SyncMetrics.getGlobal());
+        final AtomicLong changedBytes = new AtomicLong();
+        final UploadOutbox outbox = new UploadOutbox(getContext(), contentProviderClient, account.name);
+        final ChangeLogStore changeLog = new ChangeLogStore(getContext(), contentProviderClient, account.name);
 
-        if (!mGoogleApiClient.isConnected()) {
+        final long connectStart = System.nanoTime();
+        try {
+            boolean completed = mRunner.run(context, new SyncRunner.Work<GoogleApiClient>() {
+                @Override
+                public void run(SyncContext context, GoogleApiClient client, SyncRunner.Tasks tasks) {
+                    metrics.record(SyncMetrics.Stage.CONNECT, connectStart);
+                    sync(new AccountSync(account, context, client, tasks, metrics, changedBytes), outbox,
+                            new SyncItemStore(getContext(), contentProviderClient), changeLog);
+                }
+            });
+            if (!completed) {
+                Log.e(TAG, "onPerformSync(): tasks still running after " + COMPLETION_TIMEOUT_SECONDS + "s");
+                metrics.recordError(SyncMetrics.ErrorCause.TIMEOUT);
+            }
+        } catch (ApiClientConnectionException e) {
+            // Failing to connect is a failed sync for the scheduler's backoff too
+            onConnectionFailed(e.getConnectionResult());
+            metrics.recordError(e.getConnectionResult().hasResolution()
+                    ? SyncMetrics.ErrorCause.AUTH : SyncMetrics.ErrorCause.CONNECTION);
+        } catch (TimeoutException e) {
+            Log.e(TAG, "onPerformSync(): " + e.getMessage());
+            metrics.recordError(SyncMetrics.ErrorCause.TIMEOUT);
+        } catch (IOException e) {
+            Log.e(TAG, "onPerformSync(): " + e.getMessage());
+            metrics.recordError(SyncMetrics.ErrorCause.CONNECTION);
+        } catch (InterruptedException e) {
+            // Cancelled while connecting or waiting for the tasks
+            Thread.currentThread().interrupt();
+            metrics.recordError(SyncMetrics.ErrorCause.TIMEOUT);
+            finishSync(metrics, syncResult);
             return;
         }
-        sync();
+        Log.d(TAG, "onPerformSync(): " + mClientManager.getMetrics());
+        Log.d(TAG, "onPerformSync(): " + SyncExecutor.getDefault().getMetrics());
+        Log.d(TAG, "onPerformSync(): " + MetadataCache.getDefault().getMetrics());
+        finishSync(metrics, syncResult);
+        reschedule(account, changedBytes.get(), outbox, changeLog, syncResult);
     }
 
-    private void initGoogleApiClient(Context context, String accountName) {
-        mGoogleApiClient = new GoogleApiClient.Builder(context)
-                .addApi(Drive.API)
-                .addScope(Drive.SCOPE_FILE)
-                .setAccountName(accountName)
-                .addConnectionCallbacks(this)
-                .addOnConnectionFailedListener(this)
-                .build();
+    /**
+     * Reads the extras once, periodic syncs carry no folder and upload to the one the account picked.
+     */
+    private SyncContext newSyncContext(Account account, Bundle bundle) {
+        String folderId = bundle.getString(SyncHelper.SYNC_DRIVE_FOLDER_ID);
+        return new SyncContext(account.name,
+                bundle.getBoolean(SyncHelper.SYNC_IS_TO_UPLOAD_TO_FOLDER, false),
+                folderId != null ? folderId : SyncHelper.getDriveFolderId(getContext(), account),
+                bundle.getStringArrayList(SyncHelper.SYNC_LOCAL_FILE_PATHS),
+                bundle.getString(SyncHelper.SYNC_LOCAL_DIRECTORY),
+                bundle.getInt(SyncHelper.SYNC_COALESCED_REQUESTS, 1),
+                SyncHelper.getKeepRevisions(getContext()),
+                newRestoreRequest(bundle),
+                bundle.getBoolean(SyncHelper.SYNC_REMOTE_CHANGES, false),
+                bundle.getString(SyncHelper.SYNC_MIRROR_DIRECTORY),
+                bundle.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false)
+                        || bundle.getBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, false)
+                        ? SyncExecutor.Priority.USER_INITIATED : SyncExecutor.Priority.PERIODIC);
     }
 
-    @Override
-    public void onConnected(@Nullable Bundle bundle) {
-        Log.d(TAG, "onConnected()");
-        sync();
+    private RestoreRequest newRestoreRequest(Bundle bundle) {
+        String title = bundle.getString(SyncHelper.SYNC_RESTORE_TITLE);
+        String localPath = bundle.getString(SyncHelper.SYNC_RESTORE_LOCAL_PATH);
+        if (title == null || localPath == null) {
+            return null;
+        }
+        FileRestorer.ConflictPolicy policy = FileRestorer.ConflictPolicy.KEEP_BOTH;
+        try {
+            policy = FileRestorer.ConflictPolicy.valueOf(bundle.getString(SyncHelper.SYNC_CONFLICT_POLICY));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            Log.e(TAG, "newRestoreRequest(): no valid conflict policy, keeping both copies");
+        }
+        return new RestoreRequest(title, localPath, policy);
     }
 
-    @Override
-    public void onConnectionSuspended(int i) {
-        Log.d(TAG, "onConnectionSuspended() " + i);
+    /**
+     * Reports what the sync did to the framework, which decides about retries from it.
+     */
+    private void finishSync(SyncMetrics metrics, SyncResult syncResult) {
+        SyncMetrics.Snapshot snapshot = metrics.snapshot();
+        SyncResultWriter.applyTo(snapshot, syncResult);
+        Log.d(TAG, "finishSync(): " + snapshot);
     }
 
-    @Override
-    public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
+    /**
+     * Changes held back by the change log count as queued uploads, so a sync comes soon enough
+     * to roll them by age.
+     */
+    private void reschedule(Account account, long changedBytes, UploadOutbox outbox, ChangeLogStore changeLog,
+                            SyncResult syncResult) {
+        int outboxDepth = 0;
+        try {
+            outboxDepth = outbox.getPendingCount() + changeLog.getPending(changeLog.getWatermark()).getCount();
+        } catch (RemoteException e) {
+            Log.e(TAG, "reschedule(): " + e.getMessage());
+        }
+        mScheduler.onSyncFinished(account, changedBytes, outboxDepth, !syncResult.hasError());
+    }
+
+    private void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
         Log.d(TAG, "GoogleApiClient connection failed: " + connectionResult.toString());
         if (connectionResult.hasResolution()) {
             getContext().startActivity(SignInResolutionActivity.newStartIntent(getContext(), connectionResult));
@@ -129,34 +274,603 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter implements GoogleAp
     }
 
     /**
-     * Where the magic happens, extracted to a method due to GoogleApiClient connection
-     * connected, this way we can control what happens when the client gets connected without
-     * 2x code.
+     * Where the magic happens, runs once on the sync thread with the connected client. A client
+     * reconnecting meanwhile doesn't run it again, the tasks it starts are tracked so the sync
+     * only ends when they are over.
      */
-    private void sync() {
-        if (mIsUploadToFolder) {
-            if (TextUtils.isEmpty(mFolderId) && mGoogleApiClient.isConnected()) {
-                startPickerActivity();
-                Log.e(TAG, "onPerformSync(): startPickerActivity");
+    private void sync(AccountSync sync, UploadOutbox outbox, SyncItemStore items, ChangeLogStore changeLog) {
+        if (sync.mContext.isUploadToFolder() && TextUtils.isEmpty(sync.mContext.getFolderId())
+                && sync.mGoogleApiClient.isConnected()) {
+            startPickerActivity(sync);
+            Log.e(TAG, "onPerformSync(): startPickerActivity");
+            return;
+        }
+
+        // Whatever is queued gets uploaded on every sync, including what a killed sync left behind
+        boolean hasBatch = sync.mContext.hasBatch();
+        if (hasBatch) {
+            enqueueBatchFiles(sync, outbox);
+        }
+        enqueueDirtyItems(sync, items, outbox);
+        drainOutbox(sync, outbox, items);
+        uploadChangeLog(sync, changeLog);
+        fetchRemoteChanges(sync, items);
+
+        if (sync.mContext.getRestoreRequest() != null) {
+            restoreFile(sync, sync.mContext.getRestoreRequest(), items);
+            return;
+        }
+        if (sync.mContext.isRemoteChanges()) {
+            return;
+        }
+        if (sync.mContext.getMirrorDirectory() != null) {
+            mirrorDirectory(sync, sync.mContext.getMirrorDirectory());
+            return;
+        }
+
+        if (sync.mContext.isUploadToFolder()) {
+            if (hasBatch) {
+                Log.e(TAG, "onPerformSync(): uploadingBatchToFolder");
                 return;
             }
 
-            new UploadToFolderTask("glucosio.realm", "blabla", mFolderId, mGoogleApiClient, null);
+            uploadIfChanged(sync, "glucosio.realm", "blabla");
             Log.e(TAG, "onPerformSync(): uploadingToFolder");
             return;
         }
 
         Log.e(TAG, "onPerformSync(): not to upload to folder");
-        new CreateFileTask("This Callbacks FileTask", "Hello world baby " + System.currentTimeMillis(), mGoogleApiClient);
+        new CreateFileTask("This Callbacks FileTask", "Hello world baby " + System.currentTimeMillis(), sync.mGoogleApiClient,
+                sync.mRetrier, sync.mContext.getPriority(), sync.mTasks.track(null));
+    }
+
+    /**
+     * Moves the files passed as extras into the outbox, for callers that don't enqueue themselves.
+     */
+    private void enqueueBatchFiles(AccountSync sync, UploadOutbox outbox) {
+        List<String> paths = new ArrayList<>();
+        if (sync.mContext.getLocalFilePaths() != null) {
+            paths.addAll(sync.mContext.getLocalFilePaths());
+        }
+        if (sync.mContext.getLocalDirectory() != null) {
+            for (File file : BatchUploader.listFiles(new File(sync.mContext.getLocalDirectory()))) {
+                paths.add(file.getAbsolutePath());
+            }
+        }
+        try {
+            for (String path : paths) {
+                outbox.enqueue(path, sync.mContext.getFolderId());
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "enqueueBatchFiles(): " + e.getMessage());
+            sync.mMetrics.recordError(SyncMetrics.ErrorCause.DATABASE);
+        }
+    }
+
+    /**
+     * Moves the items changed by the app since the last sync into the outbox.
+     */
+    private void enqueueDirtyItems(AccountSync sync, SyncItemStore items, UploadOutbox outbox) {
+        try {
+            List<SyncItemStore.DirtyItem> dirtyItems = items.getDirtyItems();
+            if (dirtyItems.isEmpty()) {
+                return;
+            }
+            for (SyncItemStore.DirtyItem item : dirtyItems) {
+                outbox.enqueue(item.getPath(), item.getFolderId());
+            }
+            items.clearDirty(dirtyItems);
+            Log.d(TAG, "enqueueDirtyItems(): " + dirtyItems.size() + " dirty items queued");
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "enqueueDirtyItems(): " + e.getMessage());
+            sync.mMetrics.recordError(SyncMetrics.ErrorCause.DATABASE);
+        }
+    }
+
+    /**
+     * Uploads the outbox in batches of {@link #OUTBOX_BATCH_SIZE}, each entry is tried once per
+     * sync. Entries still marked in progress belong to a sync that died and are replayed.
+     */
+    private void drainOutbox(AccountSync sync, UploadOutbox outbox, SyncItemStore items) {
+        try {
+            int interrupted = outbox.recoverInterrupted();
+            if (interrupted > 0) {
+                Log.d(TAG, "drainOutbox(): replaying " + interrupted + " interrupted uploads");
+            }
+            long afterId = 0;
+            List<UploadOutbox.Entry> batch;
+            while (!(batch = outbox.claimBatch(afterId, OUTBOX_BATCH_SIZE)).isEmpty()) {
+                afterId = batch.get(batch.size() - 1).getId();
+                uploadOutboxBatch(sync, outbox, items, batch);
+            }
+            outbox.purgeDone();
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "drainOutbox(): " + e.getMessage());
+            sync.mMetrics.recordError(SyncMetrics.ErrorCause.DATABASE);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "drainOutbox(): interrupted");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void uploadOutboxBatch(AccountSync sync, UploadOutbox outbox, SyncItemStore items, List<UploadOutbox.Entry> batch)
+            throws RemoteException, InterruptedException {
+        Map<String, Map<File, UploadOutbox.Entry>> entriesByFolder = new LinkedHashMap<>();
+        for (UploadOutbox.Entry entry : batch) {
+            if (entry.getAttempts() > 0) {
+                sync.mMetrics.recordRetry();
+            }
+            Map<File, UploadOutbox.Entry> entries = entriesByFolder.get(entry.getFolderId());
+            if (entries == null) {
+                entries = new LinkedHashMap<>();
+                entriesByFolder.put(entry.getFolderId(), entries);
+            }
+            entries.put(new File(entry.getPath()), entry);
+        }
+
+        for (Map.Entry<String, Map<File, UploadOutbox.Entry>> folder : entriesByFolder.entrySet()) {
+            Map<File, UploadOutbox.Entry> entries = folder.getValue();
+            BatchUploadResult result;
+            try {
+                DriveRemoteFolder remoteFolder = new DriveRemoteFolder(sync.mGoogleApiClient, folder.getKey(),
+                        MetadataCache.getDefault(), sync.mContext.getKeepRevisions());
+                result = new BatchUploader(remoteFolder, BatchUploader.DEFAULT_WORKERS, BatchUploader.DEFAULT_CHUNK_SIZE,
+                        sync.mMetrics)
+                        .upsert(new ArrayList<>(entries.keySet()), getDriveIds(items, folder.getKey(), entries), null);
+            } catch (IllegalArgumentException e) {
+                for (UploadOutbox.Entry entry : entries.values()) {
+                    outbox.markFailed(entry, "Invalid folder id: " + e.getMessage());
+                    sync.mMetrics.recordFileSkipped();
+                }
+                continue;
+            }
+            Log.d(TAG, "uploadOutboxBatch(): " + result);
+            sync.mChangedBytes.addAndGet(result.getBytesUploaded());
+            for (Map.Entry<File, UploadOutbox.Entry> entry : entries.entrySet()) {
+                String driveId = result.getUploaded().get(entry.getKey());
+                if (driveId != null) {
+                    outbox.markDone(entry.getValue());
+                    items.recordUpload(entry.getValue().getPath(), driveId);
+                } else {
+                    // Counted by the uploader along with its cause
+                    outbox.markFailed(entry.getValue(), result.getFailures().get(entry.getKey()));
+                }
+            }
+        }
     }
 
-    private void startPickerActivity() {
+    /**
+     * Where the entries' files were uploaded to, their upserts try it before looking them up.
+     */
+    private Map<File, String> getDriveIds(SyncItemStore items, String folderId, Map<File, UploadOutbox.Entry> entries)
+            throws RemoteException {
+        List<String> paths = new ArrayList<>(entries.size());
+        for (UploadOutbox.Entry entry : entries.values()) {
+            paths.add(entry.getPath());
+        }
+        Map<String, String> driveIdsByPath = items.getDriveIds(folderId, paths);
+        Map<File, String> driveIds = new HashMap<>();
+        for (Map.Entry<File, UploadOutbox.Entry> entry : entries.entrySet()) {
+            driveIds.put(entry.getKey(), driveIdsByPath.get(entry.getValue().getPath()));
+        }
+        return driveIds;
+    }
+
+    /**
+     * Uploads the changes the app appended since the account's last segment, once the policy
+     * says they are worth a segment, or a compacted snapshot in their place when it is time
+     * for one. Segments are recorded in log order and the first failure stops the recording,
+     * so the account's watermark never skips changes.
+     */
+    private void uploadChangeLog(AccountSync sync, ChangeLogStore changeLog) {
+        String folderId = sync.mContext.getFolderId();
+        if (TextUtils.isEmpty(folderId)) {
+            return;
+        }
+        File directory = new File(new File(getContext().getCacheDir(), CHANGE_LOG_DIR), sync.mAccount.name);
+        Map<File, ChangeSegment> files = new LinkedHashMap<>();
+        try {
+            long watermark = changeLog.getWatermark();
+            ChangeLogStore.Pending pending = changeLog.getPending(watermark);
+            if (!mChangeLogPolicy.shouldRoll(pending.getApproximateBytes(), pending.getOldestCreatedAt(),
+                    System.currentTimeMillis())) {
+                if (pending.getCount() > 0) {
+                    Log.d(TAG, "uploadChangeLog(): holding back " + pending);
+                }
+                return;
+            }
+            for (ChangeSegment segment : newSegments(changeLog, watermark, pending)) {
+                files.put(segment.writeTo(directory), segment);
+            }
+
+            DriveRemoteFolder remoteFolder = new DriveRemoteFolder(sync.mGoogleApiClient, folderId,
+                    MetadataCache.getDefault());
+            BatchUploadResult result = new BatchUploader(remoteFolder, BatchUploader.DEFAULT_WORKERS,
+                    BatchUploader.DEFAULT_CHUNK_SIZE, sync.mMetrics)
+                    .upload(new ArrayList<>(files.keySet()), null);
+            Log.d(TAG, "uploadChangeLog(): " + result);
+            sync.mChangedBytes.addAndGet(result.getBytesUploaded());
+
+            boolean snapshotUploaded = false;
+            for (Map.Entry<File, ChangeSegment> file : files.entrySet()) {
+                String driveId = result.getUploaded().get(file.getKey());
+                if (driveId == null) {
+                    break;
+                }
+                changeLog.recordUpload(file.getValue(), file.getKey().length(), driveId);
+                snapshotUploaded |= file.getValue().getKind() == ChangeSegment.Kind.SNAPSHOT;
+            }
+            if (snapshotUploaded) {
+                changeLog.purgeSegmentsBeforeSnapshot();
+            }
+            changeLog.purgeUploadedDeletions();
+        } catch (RemoteException e) {
+            Log.e(TAG, "uploadChangeLog(): " + e.getMessage());
+            sync.mMetrics.recordError(SyncMetrics.ErrorCause.DATABASE);
+        } catch (IOException e) {
+            Log.e(TAG, "uploadChangeLog(): " + e.getMessage());
+            sync.mMetrics.recordError(SyncMetrics.ErrorCause.LOCAL_IO);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "uploadChangeLog(): invalid folder id " + folderId);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "uploadChangeLog(): interrupted");
+            Thread.currentThread().interrupt();
+        } finally {
+            for (File file : files.keySet()) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Splits the pending changes into segments of the policy's size, or takes a snapshot of
+     * every live record instead when the policy asks for one.
+     */
+    private List<ChangeSegment> newSegments(ChangeLogStore changeLog, long watermark, ChangeLogStore.Pending pending)
+            throws RemoteException {
+        List<ChangeSegment> segments = new ArrayList<>();
+        long maxBytes = mChangeLogPolicy.getMaxSegmentBytes();
+        ChangeLogStore.SnapshotState state = changeLog.getSnapshotState();
+        int segmentCount = (int) ((pending.getApproximateBytes() + maxBytes - 1) / maxBytes);
+        if (mChangeLogPolicy.shouldSnapshot(state.getSnapshotBytes(), state.getSegmentCount() + segmentCount,
+                state.getSegmentBytes() + pending.getApproximateBytes())) {
+            segments.add(new ChangeSegment(ChangeSegment.Kind.SNAPSHOT, 0, pending.getLastId(),
+                    changeLog.readLiveRecords(pending.getLastId())));
+            return segments;
+        }
+        long afterId = watermark;
+        while (afterId < pending.getLastId()) {
+            List<ChangeRecord> changes = changeLog.readChanges(afterId, pending.getLastId(), maxBytes);
+            if (changes.isEmpty()) {
+                break;
+            }
+            long bytes = 0;
+            for (ChangeRecord change : changes) {
+                bytes += change.getApproximateSize();
+            }
+            // A segment that didn't fill up read everything left, including changes replaced meanwhile
+            long lastId = bytes < maxBytes ? pending.getLastId() : changes.get(changes.size() - 1).getId();
+            segments.add(new ChangeSegment(ChangeSegment.Kind.SEGMENT, afterId, lastId, changes));
+            afterId = lastId;
+        }
+        return segments;
+    }
+
+    /**
+     * Downloads the most recent revision of the requested file over its local copy. A local
+     * copy modified after its last sync is a conflict for the request's policy to settle.
+     */
+    private void restoreFile(AccountSync sync, RestoreRequest request, SyncItemStore items) {
+        String folderId = sync.mContext.getFolderId();
+        if (TextUtils.isEmpty(folderId)) {
+            Log.e(TAG, "restoreFile(): no folder to restore " + request.getTitle() + " from");
+            return;
+        }
+        try {
+            DriveRemoteFolder remoteFolder = new DriveRemoteFolder(sync.mGoogleApiClient, folderId,
+                    MetadataCache.getDefault());
+            RemoteVersion remote = remoteFolder.findLatest(request.getTitle());
+            if (remote == null) {
+                Log.e(TAG, "restoreFile(): " + request.getTitle() + " isn't in the folder");
+                sync.mMetrics.recordFileSkipped();
+                return;
+            }
+            restore(sync, items, remoteFolder, request.getTitle(), remote, request.getLocalPath(),
+                    request.getConflictPolicy());
+        } catch (RemoteException e) {
+            Log.e(TAG, "restoreFile(): " + e.getMessage());
+            sync.mMetrics.recordError(SyncMetrics.ErrorCause.DATABASE);
+        } catch (IOException e) {
+            Log.e(TAG, "restoreFile(): " + e.getMessage());
+            sync.mMetrics.recordError(ErrorClassifier.causeOf(e, SyncMetrics.ErrorCause.REMOTE));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "restoreFile(): invalid folder id " + folderId);
+        }
+    }
+
+    /**
+     * Mirrors a directory tree into the folder on the sync thread. Steps that failed are left to
+     * the next mirror of the directory, which only looks at what changed since this one.
+     */
+    private void mirrorDirectory(AccountSync sync, String localDirectory) {
+        String folderId = sync.mContext.getFolderId();
+        if (TextUtils.isEmpty(folderId)) {
+            Log.e(TAG, "mirrorDirectory(): no folder to mirror " + localDirectory + " into");
+            return;
+        }
+        MirrorEngine engine = new MirrorEngine(new DriveRemoteTree(sync.mGoogleApiClient, MetadataCache.getDefault()),
+                MirrorEngine.DEFAULT_WORKERS, ChunkedUploader.DEFAULT_CHUNK_SIZE, sync.mMetrics);
+        try {
+            MirrorResult result = engine.mirror(new File(localDirectory), folderId,
+                    getMirrorSnapshotStore(sync.mAccount));
+            sync.mChangedBytes.addAndGet(result.getBytesUploaded());
+            Log.d(TAG, "mirrorDirectory(): " + result);
+            for (Map.Entry<String, String> failure : result.getFailures().entrySet()) {
+                Log.e(TAG, "mirrorDirectory(): " + failure.getKey() + ": " + failure.getValue());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "mirrorDirectory(): " + e.getMessage());
+            sync.mMetrics.recordError(SyncMetrics.ErrorCause.LOCAL_IO);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Fetches the files of the folder modified since the account's {@link ChangeToken}, when the
+     * sync was requested for them or the folder was never or too long ago listed, which the
+     * fetch then does in full. Synced files whose remote copy changed are restored, the newest
+     * copy winning, and the metadata cache learns about every other change.
+     */
+    private void fetchRemoteChanges(AccountSync sync, SyncItemStore items) {
+        String folderId = sync.mContext.getFolderId();
+        if (TextUtils.isEmpty(folderId)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        ChangeToken token = mChangeTokens.load(sync.mAccount.name, folderId);
+        boolean fullListing = token == null || token.isExpired(now, ChangeToken.DEFAULT_MAX_AGE_MILLIS);
+        if (!fullListing && !sync.mContext.isRemoteChanges()) {
+            return;
+        }
+        MetadataCache cache = MetadataCache.getDefault();
+        try {
+            final DriveRemoteFolder remoteFolder = new DriveRemoteFolder(sync.mGoogleApiClient, folderId, cache);
+            if (fullListing) {
+                // Renewed with every listing in case Drive dropped it
+                remoteFolder.subscribe();
+                cache.invalidateFolder(folderId);
+            }
+            final long modifiedSince = fullListing ? 0 : token.getModifiedSince();
+            List<RemoteChange> changes = sync.mRetrier.run(new Retrier.Attempt<List<RemoteChange>>() {
+                @Override
+                public List<RemoteChange> run() throws IOException {
+                    return remoteFolder.listChanges(modifiedSince);
+                }
+            });
+            List<String> driveIds = new ArrayList<>(changes.size());
+            for (RemoteChange change : changes) {
+                driveIds.add(change.getVersion().getDriveId());
+            }
+            Map<String, String> paths = items.getPaths(driveIds);
+
+            long newestModified = fullListing ? 0 : token.getModifiedSince();
+            // The token stops short of the first change that failed so the next fetch retries it
+            long retryFrom = Long.MAX_VALUE;
+            for (RemoteChange change : changes) {
+                RemoteVersion remote = change.getVersion();
+                newestModified = Math.max(newestModified, remote.getModifiedTime());
+                if (change.isTrashed()) {
+                    cache.invalidate(remote.getDriveId());
+                    continue;
+                }
+                cache.put(new MetadataCache.Entry(remote.getDriveId(), folderId, change.getTitle(), remote.getContentMd5()));
+                String path = paths.get(remote.getDriveId());
+                if (path == null) {
+                    continue;
+                }
+                try {
+                    restore(sync, items, remoteFolder, change.getTitle(), remote, path, REMOTE_CHANGE_POLICY);
+                } catch (IOException e) {
+                    Log.e(TAG, "fetchRemoteChanges(): restoring " + path + " failed: " + e.getMessage());
+                    sync.mMetrics.recordError(ErrorClassifier.causeOf(e, SyncMetrics.ErrorCause.REMOTE));
+                    retryFrom = Math.min(retryFrom, remote.getModifiedTime());
+                }
+            }
+            newestModified = Math.min(newestModified, retryFrom - 1);
+            mChangeTokens.save(sync.mAccount.name, folderId, fullListing
+                    ? ChangeToken.afterFullListing(newestModified, now) : token.advance(newestModified));
+            Log.d(TAG, "fetchRemoteChanges(): " + changes.size() + (fullListing ? " files listed" : " changes")
+                    + ", " + paths.size() + " of them synced");
+        } catch (RemoteException e) {
+            Log.e(TAG, "fetchRemoteChanges(): " + e.getMessage());
+            sync.mMetrics.recordError(SyncMetrics.ErrorCause.DATABASE);
+        } catch (IOException e) {
+            // The token is left as it was, the next sync fetches the same changes again
+            Log.e(TAG, "fetchRemoteChanges(): " + e.getMessage());
+            sync.mMetrics.recordError(ErrorClassifier.causeOf(e, SyncMetrics.ErrorCause.REMOTE));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "fetchRemoteChanges(): invalid folder id " + folderId);
+        }
+    }
+
+    /**
+     * Restores {@code remote} with the patches uploaded since replayed over it. The restored
+     * content isn't what the local manifest describes, the next upload of it is a full one.
+     */
+    private void restore(AccountSync sync, SyncItemStore items, DriveRemoteFolder remoteFolder, String title,
+                         RemoteVersion remote, String localPath, FileRestorer.ConflictPolicy conflictPolicy)
+            throws IOException, RemoteException {
+        List<RemoteVersion> patches = remoteFolder.findPatches(title, remote);
+        FileRestorer restorer = new FileRestorer(new ChunkedDownloader(ChunkedDownloader.DEFAULT_CHUNK_SIZE,
+                sync.mMetrics), conflictPolicy, SyncHelper.getConflictResolver());
+        File target = new File(localPath);
+        FileRestorer.Result result = restorer.restore(remoteFolder.openForDownload(remote), remote, patches,
+                remoteFolder, target, items.getSyncedAt(localPath));
+        Log.d(TAG, "restore(): " + localPath + " " + result + ", " + patches.size() + " patches");
+        if (result.getOutcome() == FileRestorer.Outcome.RESTORED) {
+            sync.mChangeDetector.forget(target);
+        }
+        if (result.getOutcome() != FileRestorer.Outcome.KEPT_LOCAL) {
+            items.recordUpload(localPath, remote.getDriveId());
+        }
+    }
+
+    /**
+     * Change detection stage ahead of the upload, sends nothing when the file is unchanged and
+     * only a patch against the last uploaded revision when that is enough. Patches are staged in
+     * the account's own directory, parallel syncs of other accounts stage the same titles.
+     */
+    private void uploadIfChanged(AccountSync sync, String driveFileTitle, String localFilePath) {
+        final ChangeDetector.Change change;
+        try {
+            File directory = new File(new File(getContext().getCacheDir(), PATCHES_DIR), sync.mAccount.name);
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create patch directory " + directory);
+            }
+            change = sync.mChangeDetector.detect(new File(localFilePath),
+                    new File(directory, driveFileTitle + PatchChain.SUFFIX + "pending"));
+        } catch (IOException e) {
+            Log.e(TAG, "Change detection failed, uploading the whole file: " + e.getMessage());
+            startUpload(sync, driveFileTitle, localFilePath, null);
+            return;
+        }
+
+        Log.d(TAG, "uploadIfChanged(): " + change);
+        sync.mChangedBytes.addAndGet(change.getBytesToUpload());
+        switch (change.getType()) {
+            case UNCHANGED:
+                return;
+            case PATCH:
+                startUpload(sync, PatchChain.titleOf(driveFileTitle, change.getRevision()), change.getPatchFile().getPath(),
+                        commitOnSuccess(sync, change));
+                return;
+            default:
+                startUpload(sync, driveFileTitle, localFilePath, commitOnSuccess(sync, change));
+        }
+    }
+
+    /**
+     * Starts an upload the sync waits for. A task that fails to start never calls back, it is
+     * reported failed here so the sync doesn't hold the client for it.
+     */
+    private void startUpload(AccountSync sync, String driveFileTitle, String localFilePath,
+                             @Nullable DriveTaskCallback callback) {
+        DriveTaskCallback tracked = sync.mTasks.track(callback);
+        try {
+            new UploadToFolderTask(driveFileTitle, localFilePath, sync.mContext.getFolderId(), sync.mGoogleApiClient,
+                    sync.mCheckpointStore, UPLOAD_CODEC, sync.mContext.getKeepRevisions(), sync.mRetrier, sync.mMetrics,
+                    sync.mContext.getPriority(), tracked);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to start the upload of " + localFilePath + ": " + e);
+            tracked.onTaskError(e.toString());
+        }
+    }
+
+    private DriveTaskCallback commitOnSuccess(final AccountSync sync, final ChangeDetector.Change change) {
+        return new DriveTaskCallback() {
+            @Override
+            public void onTaskStarted() {
+            }
+
+            @Override
+            public void onTaskInProgress() {
+            }
+
+            @Override
+            public void onTaskSuccess(String returnText) {
+                try {
+                    sync.mChangeDetector.commit(change);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to save manifest: " + e.getMessage());
+                }
+            }
+
+            @Override
+            public void onTaskError(String errorMessage) {
+                Log.e(TAG, "Upload failed, will diff against the previous revision next time: " + errorMessage);
+            }
+        };
+    }
+
+    private void startPickerActivity(AccountSync sync) {
         IntentSender folderPickerIntent = Drive.DriveApi
                 .newOpenFileActivityBuilder()
                 .setMimeType(new String[]{DriveFolder.MIME_TYPE})
-                .build(mGoogleApiClient);
+                .build(sync.mGoogleApiClient);
+
+        getContext().startActivity(FolderPickerActivity.newStartIntent(getContext(), folderPickerIntent, sync.mAccount));
+    }
 
-        getContext().startActivity(FolderPickerActivity.newStartIntent(getContext(), folderPickerIntent));
+    private UploadCheckpointStore getCheckpointStore(Account account) {
+        UploadCheckpointStore store = mCheckpointStores.get(account.name);
+        if (store == null) {
+            store = new FileUploadCheckpointStore(new File(new File(getContext().getFilesDir(), UPLOAD_CHECKPOINTS_DIR), account.name));
+            UploadCheckpointStore existing = mCheckpointStores.putIfAbsent(account.name, store);
+            if (existing != null) {
+                store = existing;
+            }
+        }
+        return store;
+    }
+
+    private MirrorSnapshotStore getMirrorSnapshotStore(Account account) {
+        MirrorSnapshotStore store = mMirrorSnapshotStores.get(account.name);
+        if (store == null) {
+            store = new MirrorSnapshotStore(new File(new File(getContext().getFilesDir(), MIRROR_SNAPSHOTS_DIR), account.name));
+            MirrorSnapshotStore existing = mMirrorSnapshotStores.putIfAbsent(account.name, store);
+            if (existing != null) {
+                store = existing;
+            }
+        }
+        return store;
+    }
+
+    private ChangeDetector getChangeDetector(Account account) {
+        ChangeDetector detector = mChangeDetectors.get(account.name);
+        if (detector == null) {
+            detector = new ChangeDetector(new FileManifestStore(new File(new File(getContext().getFilesDir(), MANIFESTS_DIR), account.name)));
+            ChangeDetector existing = mChangeDetectors.putIfAbsent(account.name, detector);
+            if (existing != null) {
+                detector = existing;
+            }
+        }
+        return detector;
+    }
+
+    /**
+     * What a single onPerformSync() call works with. Parallel syncs of different accounts each
+     * have their own, everything it holds is immutable or thread-safe so the tasks it starts can
+     * use it from their own threads.
+     */
+    private final class AccountSync {
+
+        private final Account mAccount;
+        private final SyncContext mContext;
+        private final GoogleApiClient mGoogleApiClient;
+        // The sync thread waits for these before onPerformSync() returns
+        private final SyncRunner.Tasks mTasks;
+        private final UploadCheckpointStore mCheckpointStore;
+        private final ChangeDetector mChangeDetector;
+        // What the sync did, also recorded into SyncMetrics.getGlobal()
+        private final SyncMetrics mMetrics;
+        // Shared by the sync's tasks, so they spend a single retry budget between them
+        private final Retrier mRetrier;
+        // Data found changed by the sync, feeds the scheduler's churn estimate
+        private final AtomicLong mChangedBytes;
+
+        AccountSync(Account account, SyncContext context, GoogleApiClient googleApiClient, SyncRunner.Tasks tasks,
+                    SyncMetrics metrics, AtomicLong changedBytes) {
+            mAccount = account;
+            mContext = context;
+            mGoogleApiClient = googleApiClient;
+            mTasks = tasks;
+            mCheckpointStore = getCheckpointStore(account);
+            mChangeDetector = getChangeDetector(account);
+            mMetrics = metrics;
+            mRetrier = new Retrier(new RetryPolicy(), new RetryBudget(), metrics);
+            mChangedBytes = changedBytes;
+        }
     }
 }
 
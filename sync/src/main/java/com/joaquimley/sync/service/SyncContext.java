@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.service;
+
+import com.joaquimley.sync.drive.UpsertPlan;
+import com.joaquimley.sync.executor.SyncExecutor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parameters of a single sync invocation, read once from the sync extras. Immutable, so the
+ * invocation and the tasks it starts can read it from any thread while other syncs run.
+ */
+public final class SyncContext {
+
+    private final String mAccountName;
+    private final boolean mUploadToFolder;
+    private final String mFolderId;
+    private final List<String> mLocalFilePaths;
+    private final String mLocalDirectory;
+    private final int mCoalescedRequests;
+    private final int mKeepRevisions;
+    private final RestoreRequest mRestoreRequest;
+    private final boolean mRemoteChanges;
+    private final String mMirrorDirectory;
+    private final SyncExecutor.Priority mPriority;
+
+    /**
+     * @param folderId       encoded DriveId of the destination folder, empty when none was picked
+     * @param localFilePaths files to upload, null when the sync wasn't given any
+     * @param localDirectory directory to upload, null when the sync wasn't given one
+     */
+    public SyncContext(String accountName, boolean uploadToFolder, String folderId, List<String> localFilePaths,
+                       String localDirectory, int coalescedRequests) {
+        this(accountName, uploadToFolder, folderId, localFilePaths, localDirectory, coalescedRequests,
+                UpsertPlan.DEFAULT_KEEP_REVISIONS);
+    }
+
+    /**
+     * @param keepRevisions remote files kept for every uploaded title
+     */
+    public SyncContext(String accountName, boolean uploadToFolder, String folderId, List<String> localFilePaths,
+                       String localDirectory, int coalescedRequests, int keepRevisions) {
+        this(accountName, uploadToFolder, folderId, localFilePaths, localDirectory, coalescedRequests, keepRevisions, null);
+    }
+
+    /**
+     * @param restoreRequest file to restore from the folder, null when the sync wasn't given one
+     */
+    public SyncContext(String accountName, boolean uploadToFolder, String folderId, List<String> localFilePaths,
+                       String localDirectory, int coalescedRequests, int keepRevisions, RestoreRequest restoreRequest) {
+        this(accountName, uploadToFolder, folderId, localFilePaths, localDirectory, coalescedRequests, keepRevisions,
+                restoreRequest, false);
+    }
+
+    /**
+     * @param remoteChanges whether the sync was requested to fetch the folder's changes
+     */
+    public SyncContext(String accountName, boolean uploadToFolder, String folderId, List<String> localFilePaths,
+                       String localDirectory, int coalescedRequests, int keepRevisions, RestoreRequest restoreRequest,
+                       boolean remoteChanges) {
+        this(accountName, uploadToFolder, folderId, localFilePaths, localDirectory, coalescedRequests, keepRevisions,
+                restoreRequest, remoteChanges, null);
+    }
+
+    /**
+     * @param mirrorDirectory directory tree to mirror into the folder, null when the sync wasn't given one
+     */
+    public SyncContext(String accountName, boolean uploadToFolder, String folderId, List<String> localFilePaths,
+                       String localDirectory, int coalescedRequests, int keepRevisions, RestoreRequest restoreRequest,
+                       boolean remoteChanges, String mirrorDirectory) {
+        this(accountName, uploadToFolder, folderId, localFilePaths, localDirectory, coalescedRequests, keepRevisions,
+                restoreRequest, remoteChanges, mirrorDirectory, SyncExecutor.Priority.PERIODIC);
+    }
+
+    /**
+     * @param priority what the sync's work is queued with, user initiated for manual and
+     *                 expedited syncs
+     */
+    public SyncContext(String accountName, boolean uploadToFolder, String folderId, List<String> localFilePaths,
+                       String localDirectory, int coalescedRequests, int keepRevisions, RestoreRequest restoreRequest,
+                       boolean remoteChanges, String mirrorDirectory, SyncExecutor.Priority priority) {
+        mAccountName = accountName;
+        mUploadToFolder = uploadToFolder;
+        mFolderId = folderId == null ? "" : folderId;
+        mLocalFilePaths = localFilePaths == null ? null
+                : Collections.unmodifiableList(new ArrayList<>(localFilePaths));
+        mLocalDirectory = localDirectory;
+        mCoalescedRequests = coalescedRequests;
+        mKeepRevisions = keepRevisions;
+        mRestoreRequest = restoreRequest;
+        mRemoteChanges = remoteChanges;
+        mMirrorDirectory = mirrorDirectory;
+        mPriority = priority;
+    }
+
+    public String getAccountName() {
+        return mAccountName;
+    }
+
+    public boolean isUploadToFolder() {
+        return mUploadToFolder;
+    }
+
+    public String getFolderId() {
+        return mFolderId;
+    }
+
+    public List<String> getLocalFilePaths() {
+        return mLocalFilePaths;
+    }
+
+    public String getLocalDirectory() {
+        return mLocalDirectory;
+    }
+
+    /**
+     * @return whether files or a directory to upload came with the sync
+     */
+    public boolean hasBatch() {
+        return mUploadToFolder && (mLocalFilePaths != null || mLocalDirectory != null);
+    }
+
+    public int getCoalescedRequests() {
+        return mCoalescedRequests;
+    }
+
+    public int getKeepRevisions() {
+        return mKeepRevisions;
+    }
+
+    public RestoreRequest getRestoreRequest() {
+        return mRestoreRequest;
+    }
+
+    public boolean isRemoteChanges() {
+        return mRemoteChanges;
+    }
+
+    public String getMirrorDirectory() {
+        return mMirrorDirectory;
+    }
+
+    public SyncExecutor.Priority getPriority() {
+        return mPriority;
+    }
+
+    @Override
+    public String toString() {
+        return "SyncContext{account=" + mAccountName + ", uploadToFolder=" + mUploadToFolder + ", folderId=" + mFolderId
+                + ", files=" + (mLocalFilePaths == null ? 0 : mLocalFilePaths.size()) + ", directory=" + mLocalDirectory
+                + ", coalescedRequests=" + mCoalescedRequests + ", keepRevisions=" + mKeepRevisions
+                + (mRestoreRequest != null ? ", restore=" + mRestoreRequest : "")
+                + (mRemoteChanges ? ", remoteChanges" : "")
+                + (mMirrorDirectory != null ? ", mirror=" + mMirrorDirectory : "")
+                + ", priority=" + mPriority + "}";
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.service;
+
+import android.content.Context;
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+import com.joaquimley.sync.R;
+
+/**
+ * Uris and columns exposed by {@link SyncProvider}.
+ */
+public final class SyncContract {
+
+    public static final String PATH_OUTBOX = "outbox";
+    public static final String PATH_ITEMS = "items";
+    public static final String PATH_CHANGES = "changes";
+    public static final String PATH_SEGMENTS = "segments";
+    /**
+     * Query parameter capping the number of rows returned by a query.
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+    /**
+     * Set to "true" by the sync adapter so its own writes neither mark rows dirty nor request
+     * another sync.
+     */
+    public static final String QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER = "caller_is_sync_adapter";
+
+    private SyncContract() {
+    }
+
+    public static Uri getAuthorityUri(Context context) {
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(context.getString(R.string.sync_authority))
+                .build();
+    }
+
+    public static Uri asSyncAdapter(Uri uri) {
+        return uri.buildUpon().appendQueryParameter(QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER, "true").build();
+    }
+
+    /**
+     * Uploads waiting to be picked up by the sync adapter. A local file is queued at most once
+     * per destination folder, enqueuing it again while it is in progress makes it run again
+     * once the current attempt is over. Entries without an account are picked up by the first
+     * account syncing.
+     */
+    public static final class Outbox implements BaseColumns {
+
+        public static final String TABLE_NAME = "outbox";
+
+        public static final String COLUMN_PATH = "path";
+        public static final String COLUMN_FOLDER_ID = "folder_id";
+        public static final String COLUMN_ACCOUNT = "account";
+        public static final String COLUMN_STATE = "state";
+        public static final String COLUMN_ATTEMPTS = "attempts";
+        public static final String COLUMN_REQUEUED = "requeued";
+        public static final String COLUMN_LAST_ERROR = "last_error";
+        public static final String COLUMN_ENQUEUED_AT = "enqueued_at";
+        public static final String COLUMN_UPDATED_AT = "updated_at";
+
+        public static final int STATE_PENDING = 0;
+        public static final int STATE_IN_PROGRESS = 1;
+        public static final int STATE_DONE = 2;
+        public static final int STATE_FAILED = 3;
+
+        private Outbox() {
+        }
+
+        public static Uri getContentUri(Context context) {
+            return getAuthorityUri(context).buildUpon().appendPath(PATH_OUTBOX).build();
+        }
+    }
+
+    /**
+     * Local files kept in sync, keyed by path. Rows written by the app are flagged dirty and
+     * request a sync, the sync adapter uploads them and records the DriveId they ended up at.
+     */
+    public static final class Items implements BaseColumns {
+
+        public static final String TABLE_NAME = "items";
+
+        public static final String COLUMN_PATH = "path";
+        public static final String COLUMN_FOLDER_ID = "folder_id";
+        public static final String COLUMN_DRIVE_ID = "drive_id";
+        public static final String COLUMN_HASH = "hash";
+        public static final String COLUMN_SIZE = "size";
+        public static final String COLUMN_MODIFIED = "modified";
+        public static final String COLUMN_DIRTY = "dirty";
+        public static final String COLUMN_SYNCED_AT = "synced_at";
+
+        private Items() {
+        }
+
+        public static Uri getContentUri(Context context) {
+            return getAuthorityUri(context).buildUpon().appendPath(PATH_ITEMS).build();
+        }
+    }
+
+    /**
+     * Record-level mutations appended by the app, the log the sync adapter uploads in segments.
+     * Appending a change for a record replaces the previous change of that record, so the table
+     * holds the latest state of every record plus the deletions not uploaded everywhere yet.
+     * Ids only grow, a change is pending for an account while its id is past the last segment
+     * the account uploaded.
+     */
+    public static final class Changes implements BaseColumns {
+
+        public static final String TABLE_NAME = "changes";
+
+        /**
+         * Kind of record, such as the name of the app's table.
+         */
+        public static final String COLUMN_COLLECTION = "collection";
+        public static final String COLUMN_RECORD_ID = "record_id";
+        public static final String COLUMN_OPERATION = "operation";
+        /**
+         * The record's content in whatever form the app restores it from, null for deletions.
+         */
+        public static final String COLUMN_DATA = "data";
+        public static final String COLUMN_CREATED_AT = "created_at";
+
+        public static final int OPERATION_UPSERT = 0;
+        public static final int OPERATION_DELETE = 1;
+
+        private Changes() {
+        }
+
+        public static Uri getContentUri(Context context) {
+            return getAuthorityUri(context).buildUpon().appendPath(PATH_CHANGES).build();
+        }
+    }
+
+    /**
+     * Change segments and snapshots each account uploaded, written by the sync adapter.
+     */
+    public static final class Segments implements BaseColumns {
+
+        public static final String TABLE_NAME = "segments";
+
+        public static final String COLUMN_ACCOUNT = "account";
+        public static final String COLUMN_KIND = "kind";
+        /**
+         * Id of the change the segment follows on, 0 for snapshots.
+         */
+        public static final String COLUMN_FIRST_CHANGE = "first_change";
+        public static final String COLUMN_LAST_CHANGE = "last_change";
+        public static final String COLUMN_RECORD_COUNT = "record_count";
+        public static final String COLUMN_SIZE = "size";
+        public static final String COLUMN_DRIVE_ID = "drive_id";
+        public static final String COLUMN_UPLOADED_AT = "uploaded_at";
+
+        public static final int KIND_SEGMENT = 0;
+        public static final int KIND_SNAPSHOT = 1;
+
+        private Segments() {
+        }
+
+        public static Uri getContentUri(Context context) {
+            return getAuthorityUri(context).buildUpon().appendPath(PATH_SEGMENTS).build();
+        }
+    }
+}
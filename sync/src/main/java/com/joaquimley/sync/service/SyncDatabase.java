@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.service;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.joaquimley.sync.service.SyncContract.Changes;
+import com.joaquimley.sync.service.SyncContract.Items;
+import com.joaquimley.sync.service.SyncContract.Outbox;
+import com.joaquimley.sync.service.SyncContract.Segments;
+
+/**
+ * Backing store of {@link SyncProvider}.
+ */
+public class SyncDatabase extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "sync.db";
+    private static final int DATABASE_VERSION = 4;
+
+    private static final String SQL_CREATE_OUTBOX = "CREATE TABLE " + Outbox.TABLE_NAME + " ("
+            + Outbox._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + Outbox.COLUMN_PATH + " TEXT NOT NULL, "
+            + Outbox.COLUMN_FOLDER_ID + " TEXT NOT NULL, "
+            + Outbox.COLUMN_ACCOUNT + " TEXT, "
+            + Outbox.COLUMN_STATE + " INTEGER NOT NULL DEFAULT " + Outbox.STATE_PENDING + ", "
+            + Outbox.COLUMN_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0, "
+            + Outbox.COLUMN_REQUEUED + " INTEGER NOT NULL DEFAULT 0, "
+            + Outbox.COLUMN_LAST_ERROR + " TEXT, "
+            + Outbox.COLUMN_ENQUEUED_AT + " INTEGER NOT NULL, "
+            + Outbox.COLUMN_UPDATED_AT + " INTEGER NOT NULL, "
+            + "UNIQUE (" + Outbox.COLUMN_PATH + ", " + Outbox.COLUMN_FOLDER_ID + "))";
+
+    // Rows queued before accounts were tracked keep a NULL account
+    private static final String SQL_ADD_OUTBOX_ACCOUNT = "ALTER TABLE " + Outbox.TABLE_NAME
+            + " ADD COLUMN " + Outbox.COLUMN_ACCOUNT + " TEXT";
+
+    private static final String SQL_CREATE_OUTBOX_STATE_INDEX = "CREATE INDEX outbox_state_index ON "
+            + Outbox.TABLE_NAME + " (" + Outbox.COLUMN_STATE + ", " + Outbox._ID + ")";
+
+    private static final String SQL_CREATE_ITEMS = "CREATE TABLE " + Items.TABLE_NAME + " ("
+            + Items._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + Items.COLUMN_PATH + " TEXT NOT NULL UNIQUE, "
+            + Items.COLUMN_FOLDER_ID + " TEXT, "
+            + Items.COLUMN_DRIVE_ID + " TEXT, "
+            + Items.COLUMN_HASH + " TEXT, "
+            + Items.COLUMN_SIZE + " INTEGER NOT NULL DEFAULT 0, "
+            + Items.COLUMN_MODIFIED + " INTEGER NOT NULL DEFAULT 0, "
+            + Items.COLUMN_DIRTY + " INTEGER NOT NULL DEFAULT 0, "
+            + Items.COLUMN_SYNCED_AT + " INTEGER NOT NULL DEFAULT 0)";
+
+    // Lookups by path use the UNIQUE index, these cover the sync adapter's other access paths
+    private static final String SQL_CREATE_ITEMS_DIRTY_INDEX = "CREATE INDEX items_dirty_index ON "
+            + Items.TABLE_NAME + " (" + Items.COLUMN_DIRTY + ", " + Items._ID + ")";
+    private static final String SQL_CREATE_ITEMS_DRIVE_ID_INDEX = "CREATE INDEX items_drive_id_index ON "
+            + Items.TABLE_NAME + " (" + Items.COLUMN_DRIVE_ID + ")";
+
+    private static final String SQL_CREATE_CHANGES = "CREATE TABLE " + Changes.TABLE_NAME + " ("
+            + Changes._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + Changes.COLUMN_COLLECTION + " TEXT NOT NULL, "
+            + Changes.COLUMN_RECORD_ID + " TEXT NOT NULL, "
+            + Changes.COLUMN_OPERATION + " INTEGER NOT NULL, "
+            + Changes.COLUMN_DATA + " TEXT, "
+            + Changes.COLUMN_CREATED_AT + " INTEGER NOT NULL, "
+            + "UNIQUE (" + Changes.COLUMN_COLLECTION + ", " + Changes.COLUMN_RECORD_ID + "))";
+
+    private static final String SQL_CREATE_SEGMENTS = "CREATE TABLE " + Segments.TABLE_NAME + " ("
+            + Segments._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + Segments.COLUMN_ACCOUNT + " TEXT NOT NULL, "
+            + Segments.COLUMN_KIND + " INTEGER NOT NULL, "
+            + Segments.COLUMN_FIRST_CHANGE + " INTEGER NOT NULL, "
+            + Segments.COLUMN_LAST_CHANGE + " INTEGER NOT NULL, "
+            + Segments.COLUMN_RECORD_COUNT + " INTEGER NOT NULL, "
+            + Segments.COLUMN_SIZE + " INTEGER NOT NULL, "
+            + Segments.COLUMN_DRIVE_ID + " TEXT, "
+            + Segments.COLUMN_UPLOADED_AT + " INTEGER NOT NULL)";
+
+    private static final String SQL_CREATE_SEGMENTS_ACCOUNT_INDEX = "CREATE INDEX segments_account_index ON "
+            + Segments.TABLE_NAME + " (" + Segments.COLUMN_ACCOUNT + ", " + Segments.COLUMN_LAST_CHANGE + ")";
+
+    public SyncDatabase(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_OUTBOX);
+        db.execSQL(SQL_CREATE_OUTBOX_STATE_INDEX);
+        createItems(db);
+        createChangeLog(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            createItems(db);
+        }
+        if (oldVersion < 3) {
+            db.execSQL(SQL_ADD_OUTBOX_ACCOUNT);
+        }
+        if (oldVersion < 4) {
+            createChangeLog(db);
+        }
+    }
+
+    private static void createItems(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_ITEMS);
+        db.execSQL(SQL_CREATE_ITEMS_DIRTY_INDEX);
+        db.execSQL(SQL_CREATE_ITEMS_DRIVE_ID_INDEX);
+    }
+
+    private static void createChangeLog(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_CHANGES);
+        db.execSQL(SQL_CREATE_SEGMENTS);
+        db.execSQL(SQL_CREATE_SEGMENTS_ACCOUNT_INDEX);
+    }
+}
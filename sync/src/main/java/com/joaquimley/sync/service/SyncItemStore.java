@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.service;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+
+import com.joaquimley.sync.service.SyncContract.Items;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sync adapter side of the items table, its writes don't mark rows dirty or request syncs.
+ */
+public class SyncItemStore {
+
+    private static final int MAX_SELECTION_ARGS = 500;
+    private static final String[] DIRTY_PROJECTION = {Items._ID, Items.COLUMN_PATH, Items.COLUMN_FOLDER_ID, Items.COLUMN_MODIFIED};
+
+    private final ContentProviderClient mProvider;
+    private final Uri mUri;
+
+    public SyncItemStore(Context context, ContentProviderClient provider) {
+        mProvider = provider;
+        mUri = SyncContract.asSyncAdapter(Items.getContentUri(context));
+    }
+
+    /**
+     * @return the dirty items that have a destination folder
+     */
+    public List<DirtyItem> getDirtyItems() throws RemoteException {
+        List<DirtyItem> items = new ArrayList<>();
+        Cursor cursor = mProvider.query(mUri, DIRTY_PROJECTION,
+                Items.COLUMN_DIRTY + "=1 AND " + Items.COLUMN_FOLDER_ID + " IS NOT NULL", null, Items._ID);
+        if (cursor == null) {
+            return items;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                items.add(new DirtyItem(cursor.getLong(0), cursor.getString(1), cursor.getString(2), cursor.getLong(3)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return items;
+    }
+
+    /**
+     * Clears the dirty flag of {@code items} in one transaction. Rows modified again since they
+     * were read keep it.
+     */
+    public void clearDirty(List<DirtyItem> items) throws RemoteException, OperationApplicationException {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(items.size());
+        for (DirtyItem item : items) {
+            operations.add(ContentProviderOperation.newUpdate(mUri)
+                    .withSelection(Items._ID + "=? AND " + Items.COLUMN_MODIFIED + "=?",
+                            new String[]{String.valueOf(item.getId()), String.valueOf(item.getModified())})
+                    .withValue(Items.COLUMN_DIRTY, 0)
+                    .withYieldAllowed(true)
+                    .build());
+        }
+        mProvider.applyBatch(operations);
+    }
+
+    /**
+     * Records where the file at {@code path} was uploaded to.
+     */
+    public void recordUpload(String path, String driveId) throws RemoteException {
+        ContentValues values = new ContentValues();
+        values.put(Items.COLUMN_DRIVE_ID, driveId);
+        values.put(Items.COLUMN_SYNCED_AT, System.currentTimeMillis());
+        mProvider.update(mUri, values, Items.COLUMN_PATH + "=?", new String[]{path});
+    }
+
+    /**
+     * @return the local path of each of {@code driveIds} that is a synced file, the others are left out
+     */
+    public Map<String, String> getPaths(Collection<String> driveIds) throws RemoteException {
+        Map<String, String> paths = new HashMap<>();
+        List<String> ids = new ArrayList<>(driveIds);
+        // A full listing can hold more ids than SQLite takes arguments
+        for (int from = 0; from < ids.size(); from += MAX_SELECTION_ARGS) {
+            List<String> chunk = ids.subList(from, Math.min(ids.size(), from + MAX_SELECTION_ARGS));
+            StringBuilder selection = new StringBuilder(Items.COLUMN_DRIVE_ID + " IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                selection.append(i == 0 ? "?" : ",?");
+            }
+            selection.append(')');
+            Cursor cursor = mProvider.query(mUri, new String[]{Items.COLUMN_DRIVE_ID, Items.COLUMN_PATH},
+                    selection.toString(), chunk.toArray(new String[chunk.size()]), null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    paths.put(cursor.getString(0), cursor.getString(1));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * @return when the file at {@code path} was last uploaded or restored, 0 when it never was
+     */
+    public long getSyncedAt(String path) throws RemoteException {
+        Cursor cursor = mProvider.query(mUri, new String[]{Items.COLUMN_SYNCED_AT},
+                Items.COLUMN_PATH + "=? AND " + Items.COLUMN_SYNCED_AT + " IS NOT NULL", new String[]{path}, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return where each of the files at {@code paths} going to {@code folderId} was last
+     * uploaded to, paths never uploaded are left out
+     */
+    public Map<String, String> getDriveIds(String folderId, Collection<String> paths) throws RemoteException {
+        Map<String, String> driveIds = new HashMap<>();
+        if (paths.isEmpty()) {
+            return driveIds;
+        }
+        StringBuilder selection = new StringBuilder(Items.COLUMN_DRIVE_ID + " IS NOT NULL AND " + Items.COLUMN_FOLDER_ID
+                + "=? AND " + Items.COLUMN_PATH + " IN (");
+        for (int i = 0; i < paths.size(); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(')');
+        List<String> selectionArgs = new ArrayList<>(paths.size() + 1);
+        selectionArgs.add(folderId);
+        selectionArgs.addAll(paths);
+        Cursor cursor = mProvider.query(mUri, new String[]{Items.COLUMN_PATH, Items.COLUMN_DRIVE_ID}, selection.toString(),
+                selectionArgs.toArray(new String[selectionArgs.size()]), null);
+        if (cursor == null) {
+            return driveIds;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                driveIds.put(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return driveIds;
+    }
+
+    public static class DirtyItem {
+
+        private final long mId;
+        private final String mPath;
+        private final String mFolderId;
+        private final long mModified;
+
+        DirtyItem(long id, String path, String folderId, long modified) {
+            mId = id;
+            mPath = path;
+            mFolderId = folderId;
+            mModified = modified;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+
+        public String getFolderId() {
+            return mFolderId;
+        }
+
+        public long getModified() {
+            return mModified;
+        }
+    }
+}
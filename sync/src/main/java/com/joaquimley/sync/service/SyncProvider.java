@@ -17,42 +17,431 @@
 package com.joaquimley.sync.service;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 
+import com.joaquimley.sync.R;
+import com.joaquimley.sync.service.SyncContract.Changes;
+import com.joaquimley.sync.service.SyncContract.Items;
+import com.joaquimley.sync.service.SyncContract.Outbox;
+import com.joaquimley.sync.service.SyncContract.Segments;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Exposes the sync items, the upload outbox and the change log kept in {@link SyncDatabase},
+ * see {@link SyncContract}.
+ * <p/>
+ * Batched writes through {@link #applyBatch(ArrayList)} and {@link #bulkInsert(Uri, ContentValues[])}
+ * run in a single transaction and notify once at the end.
+ */
 public class SyncProvider extends ContentProvider  {
+
+    private static final int OUTBOX = 100;
+    private static final int OUTBOX_ID = 101;
+    private static final int ITEMS = 200;
+    private static final int ITEMS_ID = 201;
+    private static final int CHANGES = 300;
+    private static final int CHANGES_ID = 301;
+    private static final int SEGMENTS = 400;
+    private static final int SEGMENTS_ID = 401;
+
+    private static final String OUTBOX_MIME_TYPE = "vnd.android.cursor.dir/vnd.com.joaquimley.sync.outbox";
+    private static final String OUTBOX_ITEM_MIME_TYPE = "vnd.android.cursor.item/vnd.com.joaquimley.sync.outbox";
+    private static final String ITEMS_MIME_TYPE = "vnd.android.cursor.dir/vnd.com.joaquimley.sync.item";
+    private static final String ITEMS_ITEM_MIME_TYPE = "vnd.android.cursor.item/vnd.com.joaquimley.sync.item";
+    private static final String CHANGES_MIME_TYPE = "vnd.android.cursor.dir/vnd.com.joaquimley.sync.change";
+    private static final String CHANGES_ITEM_MIME_TYPE = "vnd.android.cursor.item/vnd.com.joaquimley.sync.change";
+    private static final String SEGMENTS_MIME_TYPE = "vnd.android.cursor.dir/vnd.com.joaquimley.sync.segment";
+    private static final String SEGMENTS_ITEM_MIME_TYPE = "vnd.android.cursor.item/vnd.com.joaquimley.sync.segment";
+
+    private static final String SELECTION_PATH_AND_FOLDER = Outbox.COLUMN_PATH + "=? AND " + Outbox.COLUMN_FOLDER_ID + "=?";
+    private static final String SELECTION_ITEM_PATH = Items.COLUMN_PATH + "=?";
+    private static final String SELECTION_CHANGE_RECORD = Changes.COLUMN_COLLECTION + "=? AND " + Changes.COLUMN_RECORD_ID + "=?";
+
+    private final UriMatcher mUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+    /**
+     * Notifications held back until the batch running on this thread commits, by table uri
+     * with whether a sync to network was asked for.
+     */
+    private final ThreadLocal<Map<Uri, Boolean>> mBatchNotifications = new ThreadLocal<>();
+    private SyncDatabase mDatabase;
+
     @Override
     public boolean onCreate() {
+        String authority = getContext().getString(R.string.sync_authority);
+        mUriMatcher.addURI(authority, SyncContract.PATH_OUTBOX, OUTBOX);
+        mUriMatcher.addURI(authority, SyncContract.PATH_OUTBOX + "/#", OUTBOX_ID);
+        mUriMatcher.addURI(authority, SyncContract.PATH_ITEMS, ITEMS);
+        mUriMatcher.addURI(authority, SyncContract.PATH_ITEMS + "/#", ITEMS_ID);
+        mUriMatcher.addURI(authority, SyncContract.PATH_CHANGES, CHANGES);
+        mUriMatcher.addURI(authority, SyncContract.PATH_CHANGES + "/#", CHANGES_ID);
+        mUriMatcher.addURI(authority, SyncContract.PATH_SEGMENTS, SEGMENTS);
+        mUriMatcher.addURI(authority, SyncContract.PATH_SEGMENTS + "/#", SEGMENTS_ID);
+        mDatabase = new SyncDatabase(getContext());
         return true;
     }
 
     @Nullable
     @Override
-    public Cursor query(Uri uri, String[] strings, String s, String[] strings1, String s1) {
-        return null;
+    public Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        int match = match(uri);
+        String limit = uri.getQueryParameter(SyncContract.QUERY_PARAMETER_LIMIT);
+        Cursor cursor = mDatabase.getReadableDatabase().query(getTable(match), projection,
+                withIdSelection(match, uri, selection), selectionArgs, null, null, sortOrder, limit);
+        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        return cursor;
     }
 
     @Nullable
     @Override
-    public String getType(Uri uri) {
-        return null;
+    public String getType(@NonNull Uri uri) {
+        switch (mUriMatcher.match(uri)) {
+            case OUTBOX:
+                return OUTBOX_MIME_TYPE;
+            case OUTBOX_ID:
+                return OUTBOX_ITEM_MIME_TYPE;
+            case ITEMS:
+                return ITEMS_MIME_TYPE;
+            case ITEMS_ID:
+                return ITEMS_ITEM_MIME_TYPE;
+            case CHANGES:
+                return CHANGES_MIME_TYPE;
+            case CHANGES_ID:
+                return CHANGES_ITEM_MIME_TYPE;
+            case SEGMENTS:
+                return SEGMENTS_MIME_TYPE;
+            case SEGMENTS_ID:
+                return SEGMENTS_ITEM_MIME_TYPE;
+            default:
+                return null;
+        }
     }
 
     @Nullable
     @Override
-    public Uri insert(Uri uri, ContentValues contentValues) {
-        return null;
+    public Uri insert(@NonNull Uri uri, ContentValues contentValues) {
+        int match = match(uri);
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        long id;
+        db.beginTransaction();
+        try {
+            id = insertInTransaction(db, match, uri, contentValues);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        notifyChange(match, isDirtyWrite(match, uri, contentValues));
+        return ContentUris.withAppendedId(getTableUri(match), id);
+    }
+
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        int match = match(uri);
+        boolean dirty = false;
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (ContentValues contentValues : values) {
+                insertInTransaction(db, match, uri, contentValues);
+                dirty |= isDirtyWrite(match, uri, contentValues);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        notifyChange(match, dirty);
+        return values.length;
     }
 
+    @NonNull
     @Override
-    public int delete(Uri uri, String s, String[] strings) {
-        return 0;
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        Map<Uri, Boolean> notifications = new LinkedHashMap<>();
+        mBatchNotifications.set(notifications);
+        ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < operations.size(); i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed()) {
+                    db.yieldIfContendedSafely();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchNotifications.remove();
+        }
+        for (Map.Entry<Uri, Boolean> notification : notifications.entrySet()) {
+            getContext().getContentResolver().notifyChange(notification.getKey(), null, notification.getValue());
+        }
+        return results;
     }
 
     @Override
-    public int update(Uri uri, ContentValues contentValues, String s, String[] strings) {
-        return 0;
+    public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+        int match = match(uri);
+        int count = mDatabase.getWritableDatabase().delete(getTable(match), withIdSelection(match, uri, selection), selectionArgs);
+        if (count > 0) {
+            notifyChange(match, false);
+        }
+        return count;
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
+        int match = match(uri);
+        if (match == CHANGES || match == CHANGES_ID) {
+            // A change keeps its place in the log, append a new one instead
+            throw new UnsupportedOperationException("Changes can't be updated: " + uri);
+        }
+        ContentValues values = new ContentValues(contentValues);
+        if (isOutbox(match)) {
+            if (!values.containsKey(Outbox.COLUMN_UPDATED_AT)) {
+                values.put(Outbox.COLUMN_UPDATED_AT, System.currentTimeMillis());
+            }
+        } else if (isItems(match) && !isCallerSyncAdapter(uri) && !values.containsKey(Items.COLUMN_DIRTY)) {
+            values.put(Items.COLUMN_DIRTY, 1);
+        }
+        int count = mDatabase.getWritableDatabase().update(getTable(match), values,
+                withIdSelection(match, uri, selection), selectionArgs);
+        if (count > 0) {
+            notifyChange(match, isDirtyWrite(match, uri, values));
+        }
+        return count;
+    }
+
+    private long insertInTransaction(SQLiteDatabase db, int match, Uri uri, ContentValues contentValues) {
+        switch (match) {
+            case OUTBOX:
+                return insertOutbox(db, contentValues);
+            case ITEMS:
+                return insertItem(db, uri, contentValues);
+            case CHANGES:
+                return insertChange(db, contentValues);
+            case SEGMENTS:
+                return insertSegment(db, contentValues);
+            default:
+                throw new IllegalArgumentException("Unsupported uri " + uri);
+        }
+    }
+
+    /**
+     * Enqueues an upload. A row already queued for the same path and folder is reused: it goes
+     * back to pending when done or failed, and is flagged to run again when in progress.
+     */
+    private long insertOutbox(SQLiteDatabase db, ContentValues contentValues) {
+        String path = contentValues.getAsString(Outbox.COLUMN_PATH);
+        String folderId = contentValues.getAsString(Outbox.COLUMN_FOLDER_ID);
+        String account = contentValues.getAsString(Outbox.COLUMN_ACCOUNT);
+        if (TextUtils.isEmpty(path) || TextUtils.isEmpty(folderId)) {
+            throw new IllegalArgumentException("An outbox entry needs a path and a folder id");
+        }
+        long now = System.currentTimeMillis();
+        ContentValues values = new ContentValues();
+        values.put(Outbox.COLUMN_PATH, path);
+        values.put(Outbox.COLUMN_FOLDER_ID, folderId);
+        values.put(Outbox.COLUMN_ACCOUNT, account);
+        values.put(Outbox.COLUMN_STATE, Outbox.STATE_PENDING);
+        values.put(Outbox.COLUMN_ENQUEUED_AT, now);
+        values.put(Outbox.COLUMN_UPDATED_AT, now);
+
+        long id = db.insertWithOnConflict(Outbox.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        if (id != -1) {
+            return id;
+        }
+        String[] args = {path, folderId};
+        ContentValues reset = new ContentValues();
+        reset.put(Outbox.COLUMN_STATE, Outbox.STATE_PENDING);
+        reset.put(Outbox.COLUMN_ATTEMPTS, 0);
+        reset.putNull(Outbox.COLUMN_LAST_ERROR);
+        if (account != null) {
+            reset.put(Outbox.COLUMN_ACCOUNT, account);
+        }
+        reset.put(Outbox.COLUMN_ENQUEUED_AT, now);
+        reset.put(Outbox.COLUMN_UPDATED_AT, now);
+        db.update(Outbox.TABLE_NAME, reset, SELECTION_PATH_AND_FOLDER + " AND " + Outbox.COLUMN_STATE
+                + " IN (" + Outbox.STATE_DONE + "," + Outbox.STATE_FAILED + ")", args);
+
+        ContentValues requeue = new ContentValues();
+        requeue.put(Outbox.COLUMN_REQUEUED, 1);
+        requeue.put(Outbox.COLUMN_UPDATED_AT, now);
+        db.update(Outbox.TABLE_NAME, requeue, SELECTION_PATH_AND_FOLDER + " AND " + Outbox.COLUMN_STATE
+                + "=" + Outbox.STATE_IN_PROGRESS, args);
+        return findId(db, Outbox.TABLE_NAME, SELECTION_PATH_AND_FOLDER, args);
+    }
+
+    /**
+     * Inserts or updates the item with the same path, rows written by the app become dirty.
+     */
+    private long insertItem(SQLiteDatabase db, Uri uri, ContentValues contentValues) {
+        String path = contentValues.getAsString(Items.COLUMN_PATH);
+        if (TextUtils.isEmpty(path)) {
+            throw new IllegalArgumentException("An item needs a path");
+        }
+        ContentValues values = new ContentValues(contentValues);
+        if (!isCallerSyncAdapter(uri) && !values.containsKey(Items.COLUMN_DIRTY)) {
+            values.put(Items.COLUMN_DIRTY, 1);
+        }
+        long id = db.insertWithOnConflict(Items.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        if (id != -1) {
+            return id;
+        }
+        String[] args = {path};
+        db.update(Items.TABLE_NAME, values, SELECTION_ITEM_PATH, args);
+        return findId(db, Items.TABLE_NAME, SELECTION_ITEM_PATH, args);
+    }
+
+    /**
+     * Appends a change at the end of the log, the previous change of the same record goes away
+     * since only the latest one is ever uploaded.
+     */
+    private long insertChange(SQLiteDatabase db, ContentValues contentValues) {
+        String collection = contentValues.getAsString(Changes.COLUMN_COLLECTION);
+        String recordId = contentValues.getAsString(Changes.COLUMN_RECORD_ID);
+        if (TextUtils.isEmpty(collection) || TextUtils.isEmpty(recordId)) {
+            throw new IllegalArgumentException("A change needs a collection and a record id");
+        }
+        Integer operation = contentValues.getAsInteger(Changes.COLUMN_OPERATION);
+        boolean delete = operation != null && operation == Changes.OPERATION_DELETE;
+        ContentValues values = new ContentValues();
+        values.put(Changes.COLUMN_COLLECTION, collection);
+        values.put(Changes.COLUMN_RECORD_ID, recordId);
+        values.put(Changes.COLUMN_OPERATION, delete ? Changes.OPERATION_DELETE : Changes.OPERATION_UPSERT);
+        if (delete) {
+            values.putNull(Changes.COLUMN_DATA);
+        } else {
+            values.put(Changes.COLUMN_DATA, contentValues.getAsString(Changes.COLUMN_DATA));
+        }
+        Long createdAt = contentValues.getAsLong(Changes.COLUMN_CREATED_AT);
+        values.put(Changes.COLUMN_CREATED_AT, createdAt != null ? createdAt : System.currentTimeMillis());
+
+        db.delete(Changes.TABLE_NAME, SELECTION_CHANGE_RECORD, new String[]{collection, recordId});
+        return db.insertOrThrow(Changes.TABLE_NAME, null, values);
+    }
+
+    private long insertSegment(SQLiteDatabase db, ContentValues contentValues) {
+        ContentValues values = new ContentValues(contentValues);
+        if (!values.containsKey(Segments.COLUMN_UPLOADED_AT)) {
+            values.put(Segments.COLUMN_UPLOADED_AT, System.currentTimeMillis());
+        }
+        return db.insertOrThrow(Segments.TABLE_NAME, null, values);
+    }
+
+    private static long findId(SQLiteDatabase db, String table, String selection, String[] args) {
+        Cursor cursor = db.query(table, new String[]{"_id"}, selection, args, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Only app writes leaving an item dirty or appending a change ask the framework for an upload.
+     */
+    private boolean isDirtyWrite(int match, Uri uri, ContentValues values) {
+        if (isCallerSyncAdapter(uri)) {
+            return false;
+        }
+        if (match == CHANGES) {
+            return true;
+        }
+        if (!isItems(match)) {
+            return false;
+        }
+        Integer dirty = values.getAsInteger(Items.COLUMN_DIRTY);
+        return dirty == null || dirty != 0;
+    }
+
+    private void notifyChange(int match, boolean syncToNetwork) {
+        Uri uri = getTableUri(match);
+        Map<Uri, Boolean> notifications = mBatchNotifications.get();
+        if (notifications != null) {
+            Boolean pending = notifications.get(uri);
+            notifications.put(uri, syncToNetwork || (pending != null && pending));
+            return;
+        }
+        getContext().getContentResolver().notifyChange(uri, null, syncToNetwork);
+    }
+
+    private int match(Uri uri) {
+        int match = mUriMatcher.match(uri);
+        if (match == UriMatcher.NO_MATCH) {
+            throw new IllegalArgumentException("Unsupported uri " + uri);
+        }
+        return match;
+    }
+
+    private static boolean isOutbox(int match) {
+        return match == OUTBOX || match == OUTBOX_ID;
+    }
+
+    private static boolean isItems(int match) {
+        return match == ITEMS || match == ITEMS_ID;
+    }
+
+    private static boolean isCallerSyncAdapter(Uri uri) {
+        return Boolean.parseBoolean(uri.getQueryParameter(SyncContract.QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER));
+    }
+
+    private static String getTable(int match) {
+        switch (match) {
+            case OUTBOX:
+            case OUTBOX_ID:
+                return Outbox.TABLE_NAME;
+            case ITEMS:
+            case ITEMS_ID:
+                return Items.TABLE_NAME;
+            case CHANGES:
+            case CHANGES_ID:
+                return Changes.TABLE_NAME;
+            default:
+                return Segments.TABLE_NAME;
+        }
+    }
+
+    private Uri getTableUri(int match) {
+        switch (match) {
+            case OUTBOX:
+            case OUTBOX_ID:
+                return Outbox.getContentUri(getContext());
+            case ITEMS:
+            case ITEMS_ID:
+                return Items.getContentUri(getContext());
+            case CHANGES:
+            case CHANGES_ID:
+                return Changes.getContentUri(getContext());
+            default:
+                return Segments.getContentUri(getContext());
+        }
+    }
+
+    /**
+     * @return {@code selection} narrowed down to the row id of an item uri
+     */
+    private static String withIdSelection(int match, Uri uri, String selection) {
+        if (match != OUTBOX_ID && match != ITEMS_ID && match != CHANGES_ID && match != SEGMENTS_ID) {
+            return selection;
+        }
+        String idSelection = "_id=" + ContentUris.parseId(uri);
+        return TextUtils.isEmpty(selection) ? idSelection : idSelection + " AND (" + selection + ")";
     }
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.service;
+
+import com.joaquimley.sync.drive.DriveTaskCallback;
+import com.joaquimley.sync.drive.client.ClientProvider;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a sync invocation to completion on the calling thread: waits a bounded time for the
+ * account's client, runs the work, then waits for the asynchronous tasks it started before
+ * returning. Keeps no state between runs, syncs of different accounts share one runner.
+ * <p/>
+ * The client is held until the run and every tracked task are over, tasks outliving the
+ * completion timeout give it back themselves. Work that throws gives it back right away, the
+ * tasks it tracked may never have started.
+ */
+public class SyncRunner<C> {
+
+    /**
+     * The sync itself, runs on the sync thread once the client is connected.
+     */
+    public interface Work<C> {
+
+        void run(SyncContext context, C client, Tasks tasks);
+    }
+
+    private final ClientProvider<C> mClients;
+    private final long mConnectTimeoutMillis;
+    private final long mCompletionTimeoutMillis;
+
+    /**
+     * @param connectTimeout    longest wait for the client to connect
+     * @param completionTimeout longest wait for the tracked tasks once the work returned
+     */
+    public SyncRunner(ClientProvider<C> clients, long connectTimeout, long completionTimeout, TimeUnit unit) {
+        mClients = clients;
+        mConnectTimeoutMillis = unit.toMillis(connectTimeout);
+        mCompletionTimeoutMillis = unit.toMillis(completionTimeout);
+    }
+
+    /**
+     * @return false when tracked tasks were still running after the completion timeout
+     * @throws TimeoutException when the client didn't connect in time, the work didn't run
+     */
+    public boolean run(SyncContext context, Work<C> work) throws IOException, InterruptedException, TimeoutException {
+        C client = mClients.acquire(context.getAccountName(), mConnectTimeoutMillis, TimeUnit.MILLISECONDS);
+        Tasks tasks = new Tasks(mClients, context.getAccountName());
+        boolean workDone = false;
+        try {
+            work.run(context, client, tasks);
+            workDone = true;
+            return tasks.await(mCompletionTimeoutMillis);
+        } finally {
+            tasks.close(!workDone);
+        }
+    }
+
+    /**
+     * Asynchronous tasks started by one run.
+     */
+    public static final class Tasks {
+
+        private final ClientProvider<?> mClients;
+        private final String mKey;
+        // Guarded by this
+        private int mPending;
+        private boolean mClosed;
+        private boolean mReleased;
+
+        Tasks(ClientProvider<?> clients, String key) {
+            mClients = clients;
+            mKey = key;
+        }
+
+        /**
+         * Counts a task the run has to wait for, the returned callback must be given to it. A
+         * task that fails to start must be reported through the callback's onTaskError().
+         *
+         * @param callback notified before the run is told the task is over, may be null
+         */
+        public DriveTaskCallback track(final DriveTaskCallback callback) {
+            synchronized (this) {
+                if (mClosed) {
+                    throw new IllegalStateException("Sync for " + mKey + " is already over");
+                }
+                mPending++;
+            }
+            return new DriveTaskCallback() {
+
+                private final AtomicBoolean mFinished = new AtomicBoolean();
+
+                @Override
+                public void onTaskStarted() {
+                    if (callback != null) {
+                        callback.onTaskStarted();
+                    }
+                }
+
+                @Override
+                public void onTaskInProgress() {
+                    if (callback != null) {
+                        callback.onTaskInProgress();
+                    }
+                }
+
+                @Override
+                public void onTaskSuccess(String returnText) {
+                    try {
+                        if (callback != null) {
+                            callback.onTaskSuccess(returnText);
+                        }
+                    } finally {
+                        finish(mFinished);
+                    }
+                }
+
+                @Override
+                public void onTaskError(String errorMessage) {
+                    try {
+                        if (callback != null) {
+                            callback.onTaskError(errorMessage);
+                        }
+                    } finally {
+                        finish(mFinished);
+                    }
+                }
+            };
+        }
+
+        public synchronized int getPendingCount() {
+            return mPending;
+        }
+
+        private void finish(AtomicBoolean finished) {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            boolean release;
+            synchronized (this) {
+                mPending--;
+                release = mClosed && mPending == 0 && !mReleased;
+                mReleased |= release;
+                notifyAll();
+            }
+            if (release) {
+                mClients.release(mKey);
+            }
+        }
+
+        private synchronized boolean await(long timeoutMillis) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (mPending > 0) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            return true;
+        }
+
+        /**
+         * @param abandon give the client back even with tasks pending, their callbacks no longer do
+         */
+        private void close(boolean abandon) {
+            boolean release;
+            synchronized (this) {
+                mClosed = true;
+                release = (abandon || mPending == 0) && !mReleased;
+                mReleased |= release;
+            }
+            if (release) {
+                mClients.release(mKey);
+            }
+        }
+    }
+}
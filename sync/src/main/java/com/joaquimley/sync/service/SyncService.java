@@ -19,6 +19,10 @@ package com.joaquimley.sync.service;
 import android.app.Service;
 import android.content.Intent;
 import android.os.IBinder;
+import android.util.Log;
+
+import com.joaquimley.sync.BuildConfig;
+import com.joaquimley.sync.buffer.BufferPool;
 
 /**
  * Define a Service that returns an IBinder for the
@@ -26,6 +30,9 @@ import android.os.IBinder;
  * onPerformSync().
  */
 public class SyncService extends Service {
+
+    private static final String TAG = SyncService.class.getSimpleName();
+
     // Storage for an instance of the sync adapter
     private static SyncAdapter sSyncAdapter = null;
     // Object to use as a thread-safe lock
@@ -40,11 +47,20 @@ public class SyncService extends Service {
         /*
          * Create the sync adapter as a singleton.
          * Set the sync adapter as syncable
-         * Disallow parallel syncs
+         * Allow parallel syncs, one per account
          */
         synchronized (sSyncAdapterLock) {
             if (sSyncAdapter == null) {
-                sSyncAdapter = new SyncAdapter(this, true);
+                if (BuildConfig.DEBUG) {
+                    BufferPool.setDefault(new BufferPool(BufferPool.DEFAULT_MAX_RETAINED_BYTES, true));
+                    BufferPool.getDefault().setLeakDetection(new BufferPool.LeakListener() {
+                        @Override
+                        public void onLeak(int capacity, Throwable acquiredAt) {
+                            Log.w(TAG, "Pooled buffer of " + capacity + " bytes was never released", acquiredAt);
+                        }
+                    });
+                }
+                sSyncAdapter = new SyncAdapter(this, true, true);
             }
         }
     }
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.service;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.support.annotation.Nullable;
+
+import com.joaquimley.sync.service.SyncContract.Outbox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * State transitions of the upload outbox, on top of a {@link ContentProviderClient} of
+ * {@link SyncProvider}. Entries go PENDING -> IN_PROGRESS -> DONE, or back to PENDING on a
+ * failure until they run out of attempts and stay FAILED.
+ * <p>
+ * An outbox opened for an account only sees that account's entries, plus the ones queued
+ * without an account which it takes over when claiming them, so the syncs of different
+ * accounts can drain it in parallel.
+ */
+public class UploadOutbox {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    private static final String[] PROJECTION = {Outbox._ID, Outbox.COLUMN_PATH, Outbox.COLUMN_FOLDER_ID, Outbox.COLUMN_ATTEMPTS};
+
+    private final ContentProviderClient mProvider;
+    private final Uri mUri;
+    private final int mMaxAttempts;
+    private final String mAccountName;
+
+    public UploadOutbox(Context context, ContentProviderClient provider) {
+        this(context, provider, null, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    public UploadOutbox(Context context, ContentProviderClient provider, int maxAttempts) {
+        this(context, provider, null, maxAttempts);
+    }
+
+    /**
+     * @param accountName account whose entries this outbox works on, null for every entry
+     */
+    public UploadOutbox(Context context, ContentProviderClient provider, @Nullable String accountName) {
+        this(context, provider, accountName, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    public UploadOutbox(Context context, ContentProviderClient provider, @Nullable String accountName, int maxAttempts) {
+        mProvider = provider;
+        mUri = Outbox.getContentUri(context);
+        mAccountName = accountName;
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * Queues {@code path} for upload into {@code folderId}, enqueuing it again before it ran
+     * doesn't add a second upload.
+     */
+    public void enqueue(String path, String folderId) throws RemoteException {
+        ContentValues values = new ContentValues();
+        values.put(Outbox.COLUMN_PATH, path);
+        values.put(Outbox.COLUMN_FOLDER_ID, folderId);
+        values.put(Outbox.COLUMN_ACCOUNT, mAccountName);
+        mProvider.insert(mUri, values);
+    }
+
+    /**
+     * Puts back entries left in progress by a sync that died, only call it when no other sync
+     * of the same account is draining the outbox.
+     *
+     * @return the number of entries put back
+     */
+    public int recoverInterrupted() throws RemoteException {
+        ContentValues values = new ContentValues();
+        values.put(Outbox.COLUMN_STATE, Outbox.STATE_PENDING);
+        return mProvider.update(mUri, values, forAccount(Outbox.COLUMN_STATE + "=" + Outbox.STATE_IN_PROGRESS),
+                forAccountArgs());
+    }
+
+    /**
+     * Moves up to {@code limit} pending entries with an id greater than {@code afterId} to
+     * in progress, oldest first. Every entry is moved by its own update in one transaction and
+     * only the ones it moved are returned, an entry without an account claimed by the sync of
+     * another account meanwhile is left to it.
+     */
+    public List<Entry> claimBatch(long afterId, int limit) throws RemoteException, OperationApplicationException {
+        while (true) {
+            List<Entry> pending = queryPending(afterId, limit);
+            if (pending.isEmpty()) {
+                return pending;
+            }
+            ContentValues values = new ContentValues();
+            values.put(Outbox.COLUMN_STATE, Outbox.STATE_IN_PROGRESS);
+            values.put(Outbox.COLUMN_REQUEUED, 0);
+            if (mAccountName != null) {
+                values.put(Outbox.COLUMN_ACCOUNT, mAccountName);
+            }
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>(pending.size());
+            for (Entry entry : pending) {
+                operations.add(ContentProviderOperation.newUpdate(Uri.withAppendedPath(mUri, String.valueOf(entry.getId())))
+                        .withSelection(Outbox.COLUMN_STATE + "=" + Outbox.STATE_PENDING, null)
+                        .withValues(values)
+                        .build());
+            }
+            ContentProviderResult[] results = mProvider.applyBatch(operations);
+            List<Entry> claimed = new ArrayList<>(pending.size());
+            for (int i = 0; i < results.length; i++) {
+                if (results[i].count != null && results[i].count > 0) {
+                    claimed.add(pending.get(i));
+                }
+            }
+            if (!claimed.isEmpty()) {
+                return claimed;
+            }
+            // All of them were taken by another sync, an empty batch would end the caller's drain
+            afterId = pending.get(pending.size() - 1).getId();
+        }
+    }
+
+    private List<Entry> queryPending(long afterId, int limit) throws RemoteException {
+        Uri uri = mUri.buildUpon().appendQueryParameter(SyncContract.QUERY_PARAMETER_LIMIT, String.valueOf(limit)).build();
+        List<Entry> entries = new ArrayList<>();
+        Cursor cursor = mProvider.query(uri, PROJECTION, forAccount(Outbox.COLUMN_STATE + "=" + Outbox.STATE_PENDING
+                + " AND " + Outbox._ID + ">?"), forAccountArgs(String.valueOf(afterId)), Outbox._ID);
+        if (cursor == null) {
+            return entries;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                entries.add(new Entry(cursor.getLong(0), cursor.getString(1), cursor.getString(2), cursor.getInt(3)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Marks the entry done, or pending again when it was enqueued while uploading.
+     */
+    public void markDone(Entry entry) throws RemoteException {
+        finish(entry, Outbox.STATE_DONE, 0, null);
+    }
+
+    public void markFailed(Entry entry, String error) throws RemoteException {
+        int attempts = entry.getAttempts() + 1;
+        finish(entry, attempts >= mMaxAttempts ? Outbox.STATE_FAILED : Outbox.STATE_PENDING, attempts, error);
+    }
+
+    /**
+     * Deletes the done entries, they are only kept until the end of the drain.
+     */
+    public int purgeDone() throws RemoteException {
+        return mProvider.delete(mUri, forAccount(Outbox.COLUMN_STATE + "=" + Outbox.STATE_DONE), forAccountArgs());
+    }
+
+    /**
+     * @return the number of entries still waiting to be uploaded
+     */
+    public int getPendingCount() throws RemoteException {
+        Cursor cursor = mProvider.query(mUri, new String[]{"COUNT(*)"},
+                forAccount(Outbox.COLUMN_STATE + " IN (" + Outbox.STATE_PENDING + "," + Outbox.STATE_IN_PROGRESS + ")"),
+                forAccountArgs(), null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String forAccount(String selection) {
+        if (mAccountName == null) {
+            return selection;
+        }
+        return selection + " AND (" + Outbox.COLUMN_ACCOUNT + " IS NULL OR " + Outbox.COLUMN_ACCOUNT + "=?)";
+    }
+
+    private String[] forAccountArgs(String... args) {
+        if (mAccountName == null) {
+            return args.length == 0 ? null : args;
+        }
+        String[] scoped = new String[args.length + 1];
+        System.arraycopy(args, 0, scoped, 0, args.length);
+        scoped[args.length] = mAccountName;
+        return scoped;
+    }
+
+    private void finish(Entry entry, int state, int attempts, String error) throws RemoteException {
+        Uri uri = Uri.withAppendedPath(mUri, String.valueOf(entry.getId()));
+        ContentValues requeued = new ContentValues();
+        requeued.put(Outbox.COLUMN_STATE, Outbox.STATE_PENDING);
+        requeued.put(Outbox.COLUMN_REQUEUED, 0);
+        requeued.put(Outbox.COLUMN_ATTEMPTS, 0);
+        requeued.put(Outbox.COLUMN_LAST_ERROR, error);
+        if (mProvider.update(uri, requeued, Outbox.COLUMN_REQUEUED + "=1", null) > 0) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(Outbox.COLUMN_STATE, state);
+        values.put(Outbox.COLUMN_ATTEMPTS, attempts);
+        values.put(Outbox.COLUMN_LAST_ERROR, error);
+        mProvider.update(uri, values, null, null);
+    }
+
+    public static class Entry {
+
+        private final long mId;
+        private final String mPath;
+        private final String mFolderId;
+        private final int mAttempts;
+
+        Entry(long id, String path, String folderId, int attempts) {
+            mId = id;
+            mPath = path;
+            mFolderId = folderId;
+            mAttempts = attempts;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+
+        public String getFolderId() {
+            return mFolderId;
+        }
+
+        public int getAttempts() {
+            return mAttempts;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{id=" + mId + ", path=" + mPath + ", attempts=" + mAttempts + "}";
+        }
+    }
+}
@@ -16,10 +16,10 @@
 
 package com.joaquimley.sync.view;
 
+import android.accounts.Account;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender;
-import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
@@ -30,21 +30,24 @@ import com.google.android.gms.drive.OpenFileActivityBuilder;
 import com.joaquimley.sync.SyncHelper;
 
 /**
- * {@link AppCompatActivity} used to request the user's desired Drive folder
+ * {@link AppCompatActivity} used to request the user's desired Drive folder for an account
  * to be called from the SyncAdapter only.
  */
 public class FolderPickerActivity extends AppCompatActivity {
 
     private static final String TAG = "FolderPickerActivity";
     private static final String EXTRA_INTENT_SENDER = "extraIntentSender";
+    private static final String EXTRA_ACCOUNT = "extraAccount";
     private static final int RC_FOLDER_PICK = 9002;
 
     private IntentSender mFolderPickerIntentSender;
+    private Account mAccount;
 
-    public static Intent newStartIntent(Context context, IntentSender intentSender) {
+    public static Intent newStartIntent(Context context, IntentSender intentSender, Account account) {
         Intent startIntent = new Intent(context, FolderPickerActivity.class);
         startIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
         startIntent.putExtra(EXTRA_INTENT_SENDER, intentSender);
+        startIntent.putExtra(EXTRA_ACCOUNT, account);
         return startIntent;
     }
 
@@ -54,6 +57,7 @@ public class FolderPickerActivity extends AppCompatActivity {
         if (savedInstanceState == null) {
             mFolderPickerIntentSender = (IntentSender) getIntent().getExtras().get(EXTRA_INTENT_SENDER);
         }
+        mAccount = getIntent().getParcelableExtra(EXTRA_ACCOUNT);
         showFolderPicker(mFolderPickerIntentSender);
     }
 
@@ -78,16 +82,11 @@ public class FolderPickerActivity extends AppCompatActivity {
             Log.d(TAG, "FolderPicker OK");
             // Get the folder drive id
             DriveId driveFolderId = data.getParcelableExtra(OpenFileActivityBuilder.EXTRA_RESPONSE_DRIVE_ID);
-            updateFolderIdToSharedPreferences(driveFolderId);
+            SyncHelper.setDriveFolderId(this, mAccount, driveFolderId.encodeToString());
             // Now we can call the SyncAdapter to start syncing to the desired folder!
-            SyncHelper.uploadFileToDriveFolder(this, driveFolderId.encodeToString());
+            SyncHelper.uploadFileToDriveFolder(this, mAccount, driveFolderId.encodeToString());
         }
         finish(); // Finish picker activity
     }
 
-    private void updateFolderIdToSharedPreferences(DriveId driveFolderId) {
-        SharedPreferences sharedPreferences = getSharedPreferences(SyncHelper.SYNC_SHARED_PREFERENCES_NAME, MODE_PRIVATE);
-        sharedPreferences.edit().putString(SyncHelper.SYNC_DRIVE_FOLDER_ID, driveFolderId.encodeToString()).apply();
-    }
-
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.buffer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void acquire_roundsUpToSizeClassAndLimitsToRequestedSize() {
+        BufferPool pool = new BufferPool();
+
+        ByteBuffer small = pool.acquire(10);
+        ByteBuffer chunk = pool.acquire(300 * 1024);
+
+        assertEquals(BufferPool.MIN_CLASS_SIZE, small.capacity());
+        assertEquals(10, small.limit());
+        assertEquals(512 * 1024, chunk.capacity());
+        assertEquals(300 * 1024, chunk.limit());
+        assertFalse(chunk.isDirect());
+        assertTrue(pool.acquireDirect(100).isDirect());
+    }
+
+    @Test
+    public void release_thenAcquireSameClass_reusesBuffer() {
+        BufferPool pool = new BufferPool();
+        ByteBuffer first = pool.acquire(256 * 1024);
+        first.put((byte) 1);
+        pool.release(first);
+
+        ByteBuffer second = pool.acquire(200 * 1024);
+
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(200 * 1024, second.limit());
+        // Heap and direct buffers don't mix
+        assertNotSame(first, pool.acquireDirect(256 * 1024));
+
+        BufferPool.Metrics metrics = pool.getMetrics();
+        assertEquals(1, metrics.getHits());
+        assertEquals(2, metrics.getMisses());
+        assertEquals(2, metrics.getOutstanding());
+    }
+
+    @Test
+    public void release_beyondRetainedBytes_discards() {
+        BufferPool pool = new BufferPool(64 * 1024);
+        ByteBuffer first = pool.acquire(64 * 1024);
+        ByteBuffer second = pool.acquire(64 * 1024);
+        ByteBuffer oversized = pool.acquire(BufferPool.MAX_CLASS_SIZE + 1);
+
+        pool.release(first);
+        pool.release(second);
+        pool.release(oversized);
+
+        BufferPool.Metrics metrics = pool.getMetrics();
+        assertEquals(1, metrics.getReleased());
+        assertEquals(1, metrics.getDiscarded());
+        assertEquals(1, metrics.getUnpooled());
+        assertEquals(64 * 1024, metrics.getRetainedHeapBytes());
+        assertEquals(0, metrics.getOutstanding());
+    }
+
+    @Test
+    public void release_twice_throwsAndKeepsBufferOnce() {
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_MAX_RETAINED_BYTES, true);
+        ByteBuffer buffer = pool.acquire(100);
+        pool.release(buffer);
+
+        try {
+            pool.release(buffer);
+            fail("Expected the second release to throw");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        assertSame(buffer, pool.acquire(100));
+        assertNotSame(buffer, pool.acquire(100));
+        assertEquals(2, pool.getMetrics().getOutstanding());
+    }
+
+    @Test
+    public void release_foreignBuffer_throws() {
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_MAX_RETAINED_BYTES, true);
+        ByteBuffer pooled = pool.acquire(BufferPool.MIN_CLASS_SIZE);
+
+        for (ByteBuffer foreign : new ByteBuffer[]{ByteBuffer.allocate(BufferPool.MIN_CLASS_SIZE), pooled.duplicate()}) {
+            try {
+                pool.release(foreign);
+                fail("Expected " + foreign + " to be refused");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+        assertEquals(1, pool.getMetrics().getOutstanding());
+        assertEquals(0, pool.getMetrics().getReleased());
+    }
+
+    @Test
+    public void release_untrackedPool_reusesAndRefusesOddCapacities() {
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_MAX_RETAINED_BYTES, false);
+        ByteBuffer buffer = pool.acquireDirect(100);
+        pool.release(buffer);
+
+        try {
+            pool.release(ByteBuffer.allocate(BufferPool.MIN_CLASS_SIZE + 1));
+            fail("Expected a buffer outside the size classes to be refused");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        assertSame(buffer, pool.acquireDirect(BufferPool.MIN_CLASS_SIZE));
+        BufferPool.Metrics metrics = pool.getMetrics();
+        assertEquals(1, metrics.getHits());
+        assertEquals(1, metrics.getOutstanding());
+        assertEquals(0, metrics.getRetainedDirectBytes());
+    }
+
+    @Test
+    public void leakDetection_reportsBuffersCollectedWithoutRelease() throws Exception {
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_MAX_RETAINED_BYTES, true);
+        final AtomicInteger leaks = new AtomicInteger();
+        pool.setLeakDetection(new BufferPool.LeakListener() {
+            @Override
+            public void onLeak(int capacity, Throwable acquiredAt) {
+                assertEquals(BufferPool.MIN_CLASS_SIZE, capacity);
+                assertTrue(acquiredAt.getStackTrace().length > 0);
+                leaks.incrementAndGet();
+            }
+        });
+        pool.release(pool.acquire(100));
+        pool.acquire(100);
+
+        for (int i = 0; i < 50 && leaks.get() == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+            pool.getMetrics();
+        }
+
+        assertEquals(1, leaks.get());
+        assertEquals(1, pool.getMetrics().getLeaks());
+        assertEquals(0, pool.getMetrics().getOutstanding());
+    }
+}
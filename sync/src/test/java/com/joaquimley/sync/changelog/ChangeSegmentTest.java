@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.changelog;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ChangeSegmentTest {
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void writeTo_thenRead_keepsEveryRecord() throws Exception {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            large.append("\u0159\u00e1dek ");
+        }
+        ChangeSegment segment = new ChangeSegment(ChangeSegment.Kind.SEGMENT, 10, 14, Arrays.asList(
+                new ChangeRecord(11, "readings", "1", false, "{\"value\":5.4}", 1000),
+                new ChangeRecord(12, "readings", "2", true, "ignored", 2000),
+                new ChangeRecord(13, "notes", "7", false, large.toString(), 3000)));
+
+        ChangeSegment read = ChangeSegment.read(segment.writeTo(mTemporaryFolder.getRoot()));
+
+        assertEquals(ChangeSegment.Kind.SEGMENT, read.getKind());
+        assertEquals(10, read.getFirstId());
+        assertEquals(14, read.getLastId());
+        assertEquals(3, read.getRecords().size());
+        assertEquals("{\"value\":5.4}", read.getRecords().get(0).getData());
+        assertTrue(read.getRecords().get(1).isDeleted());
+        assertNull(read.getRecords().get(1).getData());
+        assertEquals(large.toString(), read.getRecords().get(2).getData());
+        assertEquals(3000, read.getRecords().get(2).getCreatedAt());
+    }
+
+    @Test(expected = IOException.class)
+    public void read_truncatedFile_fails() throws Exception {
+        File file = new ChangeSegment(ChangeSegment.Kind.SNAPSHOT, 0, 3, Collections.singletonList(
+                new ChangeRecord(3, "readings", "1", false, "{}", 1000))).writeTo(mTemporaryFolder.getRoot());
+        FileOutputStream truncate = new FileOutputStream(file, true);
+        try {
+            truncate.getChannel().truncate(file.length() - 4);
+        } finally {
+            truncate.close();
+        }
+
+        ChangeSegment.read(file);
+    }
+
+    @Test
+    public void getFileName_sortsInLogOrder() {
+        List<String> names = new ArrayList<>(Arrays.asList(
+                new ChangeSegment(ChangeSegment.Kind.SEGMENT, 100, 1000, Collections.<ChangeRecord>emptyList()).getFileName(),
+                new ChangeSegment(ChangeSegment.Kind.SEGMENT, 9, 100, Collections.<ChangeRecord>emptyList()).getFileName(),
+                new ChangeSegment(ChangeSegment.Kind.SEGMENT, 0, 9, Collections.<ChangeRecord>emptyList()).getFileName()));
+
+        Collections.sort(names);
+
+        assertTrue(names.get(0).contains("-0000000000000000009" + ChangeSegment.SEGMENT_EXTENSION));
+        assertTrue(names.get(2).endsWith("0000000000000001000" + ChangeSegment.SEGMENT_EXTENSION));
+    }
+
+    @Test
+    public void policy_rollsBySizeOrAge() {
+        ChangeLogPolicy policy = new ChangeLogPolicy(1000, TimeUnit.MINUTES.toMillis(15), 4, 0.5);
+        long now = TimeUnit.HOURS.toMillis(1);
+
+        assertFalse(policy.shouldRoll(0, 0, now));
+        assertFalse(policy.shouldRoll(999, now - TimeUnit.MINUTES.toMillis(1), now));
+        assertTrue(policy.shouldRoll(1000, now, now));
+        assertTrue(policy.shouldRoll(10, now - TimeUnit.MINUTES.toMillis(15), now));
+    }
+
+    @Test
+    public void policy_snapshotsFirstThenWhenSegmentsPileUp() {
+        ChangeLogPolicy policy = new ChangeLogPolicy(1000, TimeUnit.MINUTES.toMillis(15), 4, 0.5);
+
+        assertTrue(policy.shouldSnapshot(-1, 1, 10));
+        assertFalse(policy.shouldSnapshot(10000, 4, 4999));
+        assertTrue(policy.shouldSnapshot(10000, 4, 5000));
+        assertTrue(policy.shouldSnapshot(10000, 5, 100));
+    }
+}
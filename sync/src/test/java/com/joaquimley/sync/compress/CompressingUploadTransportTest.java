@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.compress;
+
+import com.joaquimley.sync.drive.ChunkedDownloader;
+import com.joaquimley.sync.drive.ChunkedUploader;
+import com.joaquimley.sync.drive.FakeUploadTransport;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class CompressingUploadTransportTest {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void upload_compressibleFile_roundTripsThroughEveryCodec() throws Exception {
+        byte[] content = logLines(200 * 1024);
+        File source = newFile("sync.log", content);
+        CompressionCodec[] codecs = {CompressionCodecs.gzip(Deflater.BEST_SPEED),
+                CompressionCodecs.gzip(Deflater.BEST_COMPRESSION), CompressionCodecs.deflate(6)};
+
+        for (CompressionCodec codec : codecs) {
+            FakeUploadTransport remote = new FakeUploadTransport(false);
+            CompressingUploadTransport transport = new CompressingUploadTransport(remote, codec, true);
+
+            long sent = new ChunkedUploader(CHUNK_SIZE, null).upload(source, transport);
+
+            assertEquals(content.length, sent);
+            assertSame(codec, transport.getSelectedCodec());
+            assertEquals(content.length, transport.getUncompressedBytes());
+            assertEquals(remote.getCommittedBytes().length, transport.getCompressedBytes());
+            assertTrue(transport.getCompressedBytes() * 5 < content.length);
+            assertTrue(remote.isClosed());
+            assertArrayEquals(content, decompress(CompressionCodecs.forName(codec.getName()), remote.getCommittedBytes()));
+        }
+    }
+
+    @Test
+    public void upload_incompressibleFile_isSentAsIs() throws Exception {
+        byte[] content = new byte[100 * 1024];
+        new Random(7).nextBytes(content);
+        File source = newFile("photo.jpg", content);
+        FakeUploadTransport remote = new FakeUploadTransport(false);
+        CompressingUploadTransport transport = new CompressingUploadTransport(remote, CompressionCodecs.gzip(6), true);
+
+        new ChunkedUploader(CHUNK_SIZE, null).upload(source, transport);
+
+        assertSame(CompressionCodecs.NONE, transport.getSelectedCodec());
+        assertEquals(content.length, transport.getCompressedBytes());
+        assertArrayEquals(content, remote.getCommittedBytes());
+    }
+
+    @Test
+    public void upload_compressedFile_keepsMd5OfContent() throws Exception {
+        File source = newFile("sync.log", logLines(100 * 1024));
+        FakeUploadTransport remote = new FakeUploadTransport(false);
+        CompressingUploadTransport transport = new CompressingUploadTransport(remote, CompressionCodecs.gzip(6), true);
+
+        new ChunkedUploader(CHUNK_SIZE, null).upload(source, transport);
+
+        assertEquals(new ChunkedDownloader().md5(source), transport.getUncompressedMd5());
+        // What is stored hashes differently
+        assertNotEquals(transport.getUncompressedMd5(), md5(remote.getCommittedBytes()));
+    }
+
+    @Test
+    public void upload_resumableRemote_restartsFromTheBeginning() throws Exception {
+        byte[] content = logLines(64 * 1024);
+        File source = newFile("sync.log", content);
+        FakeUploadTransport remote = new FakeUploadTransport(true);
+        CompressingUploadTransport transport = new CompressingUploadTransport(remote, CompressionCodecs.gzip(6), false);
+
+        assertEquals(0, transport.open(CHUNK_SIZE * 3));
+        new ChunkedUploader(CHUNK_SIZE, null).upload(source, transport);
+
+        assertArrayEquals(content, decompress(CompressionCodecs.forName(CompressionCodecs.GZIP), remote.getCommittedBytes()));
+    }
+
+    private static byte[] logLines(int size) {
+        Random random = new Random(11);
+        StringBuilder builder = new StringBuilder(size + 100);
+        while (builder.length() < size) {
+            builder.append("2016-09-0").append(random.nextInt(9) + 1)
+                    .append(" D/SyncAdapter: onPerformSync() glucose reading ")
+                    .append(random.nextInt(400)).append(" mg/dL\n");
+        }
+        return builder.substring(0, size).getBytes();
+    }
+
+    private File newFile(String name, byte[] content) throws IOException {
+        File file = mTemporaryFolder.newFile(name);
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(content);
+        } finally {
+            outputStream.close();
+        }
+        return file;
+    }
+
+    private String md5(byte[] content) throws IOException {
+        return new ChunkedDownloader().md5(newFile("stored", content));
+    }
+
+    private static byte[] decompress(CompressionCodec codec, byte[] compressed) throws IOException {
+        InputStream inputStream = codec.decompress(new ByteArrayInputStream(compressed));
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+}
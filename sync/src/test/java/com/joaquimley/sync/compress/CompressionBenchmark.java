@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.compress;
+
+import com.joaquimley.sync.drive.ChunkedUploader;
+import com.joaquimley.sync.drive.UploadTransport;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Compares wall time and bytes sent per codec, run it from the IDE or with
+ * {@code java CompressionBenchmark [file...]} to add real samples (Realm files, logs) to the
+ * synthetic ones.
+ */
+public class CompressionBenchmark {
+
+    private static final int SYNTHETIC_SIZE = 8 * 1024 * 1024;
+    private static final int WARM_UP_RUNS = 2;
+    private static final int MEASURED_RUNS = 5;
+
+    public static void main(String[] args) throws IOException {
+        List<File> samples = new ArrayList<>();
+        File directory = createTempDirectory();
+        samples.add(write(new File(directory, "random.bin"), random(SYNTHETIC_SIZE)));
+        samples.add(write(new File(directory, "log.txt"), logLines(SYNTHETIC_SIZE)));
+        samples.add(write(new File(directory, "records.realm"), records(SYNTHETIC_SIZE)));
+        for (String arg : args) {
+            samples.add(new File(arg));
+        }
+
+        String[] names = {"identity", "gzip-1", "gzip-6", "gzip-9", "deflate-1", "deflate-6", "deflate-9"};
+        CompressionCodec[] codecs = {CompressionCodecs.NONE,
+                CompressionCodecs.gzip(Deflater.BEST_SPEED), CompressionCodecs.gzip(6), CompressionCodecs.gzip(Deflater.BEST_COMPRESSION),
+                CompressionCodecs.deflate(Deflater.BEST_SPEED), CompressionCodecs.deflate(6), CompressionCodecs.deflate(Deflater.BEST_COMPRESSION)};
+        ChunkedUploader uploader = new ChunkedUploader(ChunkedUploader.DEFAULT_CHUNK_SIZE, null);
+
+        System.out.printf("%-16s %-10s %8s %12s %12s %8s %10s%n",
+                "sample", "codec", "auto", "bytes in", "bytes sent", "ratio", "ms/run");
+        for (File sample : samples) {
+            for (int i = 0; i < codecs.length; i++) {
+                for (boolean autoSelect : new boolean[]{false, true}) {
+                    if (autoSelect && codecs[i] == CompressionCodecs.NONE) {
+                        continue;
+                    }
+                    CompressingUploadTransport transport = null;
+                    for (int run = 0; run < WARM_UP_RUNS; run++) {
+                        transport = new CompressingUploadTransport(new DiscardingTransport(), codecs[i], autoSelect);
+                        uploader.upload(sample, transport);
+                    }
+                    long start = System.nanoTime();
+                    for (int run = 0; run < MEASURED_RUNS; run++) {
+                        transport = new CompressingUploadTransport(new DiscardingTransport(), codecs[i], autoSelect);
+                        uploader.upload(sample, transport);
+                    }
+                    double millis = (System.nanoTime() - start) / 1e6 / MEASURED_RUNS;
+                    System.out.printf("%-16s %-10s %8s %12d %12d %8.3f %10.1f%n",
+                            sample.getName(), names[i], autoSelect ? transport.getSelectedCodec().getName() : "-",
+                            transport.getUncompressedBytes(), transport.getCompressedBytes(),
+                            (double) transport.getCompressedBytes() / Math.max(1, transport.getUncompressedBytes()), millis);
+                }
+            }
+        }
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static byte[] random(int size) {
+        byte[] bytes = new byte[size];
+        new Random(1).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] logLines(int size) {
+        Random random = new Random(2);
+        StringBuilder builder = new StringBuilder(size + 100);
+        while (builder.length() < size) {
+            builder.append("2016-09-").append(10 + random.nextInt(20)).append(' ')
+                    .append(random.nextInt(24)).append(':').append(random.nextInt(60))
+                    .append(" D/SyncAdapter: onPerformSync() reading ").append(random.nextInt(400)).append(" mg/dL\n");
+        }
+        return builder.substring(0, size).getBytes();
+    }
+
+    /**
+     * Fixed size little endian rows with sparse columns, close to what a Realm file looks like.
+     */
+    private static byte[] records(int size) {
+        Random random = new Random(3);
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        long timestamp = 1473000000000L;
+        while (buffer.remaining() >= 32) {
+            timestamp += random.nextInt(600000);
+            buffer.putLong(timestamp);
+            buffer.putInt(random.nextInt(400));
+            buffer.putInt(random.nextInt(4));
+            buffer.putLong(0);
+            buffer.putLong(random.nextInt(10) == 0 ? random.nextLong() : 0);
+        }
+        return buffer.array();
+    }
+
+    private static File createTempDirectory() throws IOException {
+        File directory = File.createTempFile("compression", "benchmark");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return directory;
+    }
+
+    private static File write(File file, byte[] content) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(content);
+        } finally {
+            outputStream.close();
+        }
+        return file;
+    }
+
+    /**
+     * Counts nothing and keeps nothing, sizes come from {@link CompressingUploadTransport}.
+     */
+    private static class DiscardingTransport implements UploadTransport {
+
+        @Override
+        public long open(long offset) {
+            return 0;
+        }
+
+        @Override
+        public boolean supportsResume() {
+            return false;
+        }
+
+        @Override
+        public void write(ByteBuffer chunk) {
+            chunk.position(chunk.limit());
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.delta;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BlockHasherTest {
+
+    private static final int BLOCK_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private BlockHasher mHasher;
+
+    @Before
+    public void setUp() {
+        mHasher = new BlockHasher(4);
+    }
+
+    @After
+    public void tearDown() {
+        mHasher.shutdown();
+    }
+
+    @Test
+    public void build_splitIntoRanges_matchesSequentialManifest() throws Exception {
+        // Several ranges, the last one ending with a short block
+        File file = write(BLOCK_SIZE * 100 + 7);
+        assertTrue(mHasher.getRangeBlocks(101, BLOCK_SIZE) < 101);
+
+        FileManifest parallel = mHasher.build(file, BLOCK_SIZE, 2);
+        FileManifest sequential = ManifestBuilder.build(file, BLOCK_SIZE, 2);
+
+        assertEquals(sequential, parallel);
+        assertEquals(101, parallel.getBlockCount());
+        assertEquals(7, parallel.getBlockLength(100));
+        assertEquals(2, parallel.getRevision());
+        assertEquals(file.lastModified(), parallel.getLastModified());
+    }
+
+    @Test
+    public void build_smallAndEmptyFiles_matchSequentialManifest() throws Exception {
+        File small = write(BLOCK_SIZE * 3 + 1);
+        File empty = write(0);
+
+        assertEquals(ManifestBuilder.build(small, BLOCK_SIZE, 0), mHasher.build(small, BLOCK_SIZE, 0));
+        assertEquals(0, mHasher.build(empty, BLOCK_SIZE, 0).getBlockCount());
+    }
+
+    private File write(int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        File file = mTemporaryFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
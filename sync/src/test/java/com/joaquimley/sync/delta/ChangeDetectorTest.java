@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.delta;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChangeDetectorTest {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int FILE_SIZE = 1024 * 1024 + 77;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(7);
+    private File mSource;
+    private File mPatch;
+    private ChangeDetector mDetector;
+
+    @Before
+    public void setUp() throws Exception {
+        mSource = mTemporaryFolder.newFile("glucosio.realm");
+        mPatch = new File(mTemporaryFolder.getRoot(), "glucosio.realm.patch");
+        mDetector = new ChangeDetector(new FileManifestStore(mTemporaryFolder.newFolder("manifests")), BLOCK_SIZE, 3);
+    }
+
+    @Test
+    public void detect_firstSync_isFull() throws Exception {
+        write(randomBytes(FILE_SIZE));
+
+        ChangeDetector.Change change = mDetector.detect(mSource, mPatch);
+
+        assertEquals(ChangeDetector.Type.FULL, change.getType());
+        assertEquals(FILE_SIZE, change.getBytesToUpload());
+        assertEquals(0, change.getRevision());
+    }
+
+    @Test
+    public void detect_afterCommit_isUnchanged() throws Exception {
+        write(randomBytes(FILE_SIZE));
+        mDetector.commit(mDetector.detect(mSource, mPatch));
+
+        ChangeDetector.Change change = mDetector.detect(mSource, mPatch);
+
+        assertEquals(ChangeDetector.Type.UNCHANGED, change.getType());
+        assertEquals(0, change.getBytesToUpload());
+    }
+
+    @Test
+    public void detect_touchedOnly_isUnchanged() throws Exception {
+        write(randomBytes(FILE_SIZE));
+        mDetector.commit(mDetector.detect(mSource, mPatch));
+        assertTrue(mSource.setLastModified(mSource.lastModified() - 60000));
+
+        assertEquals(ChangeDetector.Type.UNCHANGED, mDetector.detect(mSource, mPatch).getType());
+    }
+
+    @Test
+    public void detect_appendedData_uploadsSmallPatch() throws Exception {
+        byte[] base = randomBytes(FILE_SIZE);
+        write(base);
+        mDetector.commit(mDetector.detect(mSource, mPatch));
+
+        byte[] appended = concat(base, randomBytes(10000));
+        writeChanged(appended);
+        ChangeDetector.Change change = mDetector.detect(mSource, mPatch);
+
+        assertEquals(ChangeDetector.Type.PATCH, change.getType());
+        assertEquals(1, change.getRevision());
+        // The new bytes plus at most the old partial tail block and the patch framing
+        assertTrue("Patch too big: " + change.getBytesToUpload(), change.getBytesToUpload() < 10000 + BLOCK_SIZE + 200);
+        assertArrayEquals(appended, applyPatch(base));
+    }
+
+    @Test
+    public void detect_insertedInTheMiddle_findsShiftedBlocks() throws Exception {
+        byte[] base = randomBytes(FILE_SIZE);
+        write(base);
+        mDetector.commit(mDetector.detect(mSource, mPatch));
+
+        byte[] inserted = new byte[base.length + 100];
+        System.arraycopy(base, 0, inserted, 0, 500000);
+        System.arraycopy(randomBytes(100), 0, inserted, 500000, 100);
+        System.arraycopy(base, 500000, inserted, 500100, base.length - 500000);
+        writeChanged(inserted);
+        ChangeDetector.Change change = mDetector.detect(mSource, mPatch);
+
+        assertEquals(ChangeDetector.Type.PATCH, change.getType());
+        assertTrue("Patch too big: " + change.getBytesToUpload(), change.getBytesToUpload() < 3 * BLOCK_SIZE);
+        assertArrayEquals(inserted, applyPatch(base));
+    }
+
+    @Test
+    public void detect_rewrittenFile_isFull() throws Exception {
+        write(randomBytes(FILE_SIZE));
+        mDetector.commit(mDetector.detect(mSource, mPatch));
+
+        writeChanged(randomBytes(FILE_SIZE));
+
+        assertEquals(ChangeDetector.Type.FULL, mDetector.detect(mSource, mPatch).getType());
+        assertFalse(mPatch.exists());
+    }
+
+    @Test
+    public void detect_patchChainTooLong_isFull() throws Exception {
+        byte[] content = randomBytes(FILE_SIZE);
+        write(content);
+        mDetector.commit(mDetector.detect(mSource, mPatch));
+        for (int revision = 1; revision <= 3; revision++) {
+            content = concat(content, randomBytes(100));
+            writeChanged(content);
+            ChangeDetector.Change change = mDetector.detect(mSource, mPatch);
+            assertEquals(ChangeDetector.Type.PATCH, change.getType());
+            assertEquals(revision, change.getRevision());
+            mDetector.commit(change);
+        }
+
+        writeChanged(concat(content, randomBytes(100)));
+        ChangeDetector.Change change = mDetector.detect(mSource, mPatch);
+
+        assertEquals(ChangeDetector.Type.FULL, change.getType());
+        assertEquals(0, change.getRevision());
+    }
+
+    private byte[] applyPatch(byte[] base) throws IOException {
+        File baseFile = mTemporaryFolder.newFile();
+        writeTo(baseFile, base);
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        InputStream patch = new FileInputStream(mPatch);
+        try {
+            DeltaPatch.apply(baseFile, patch, target);
+        } finally {
+            patch.close();
+        }
+        return target.toByteArray();
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        mRandom.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private void write(byte[] content) throws IOException {
+        writeTo(mSource, content);
+    }
+
+    /**
+     * Writes and moves the modification time forward, file systems with a coarse clock would
+     * otherwise report the same mtime for two quick writes.
+     */
+    private void writeChanged(byte[] content) throws IOException {
+        long lastModified = mSource.lastModified();
+        writeTo(mSource, content);
+        assertTrue(mSource.setLastModified(lastModified + 2000));
+    }
+
+    private static void writeTo(File file, byte[] content) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(content);
+        } finally {
+            outputStream.close();
+        }
+    }
+}
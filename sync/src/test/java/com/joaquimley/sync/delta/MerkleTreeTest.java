@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.delta;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MerkleTreeTest {
+
+    private static final int BLOCK_SIZE = 16;
+
+    @Test
+    public void diff_sameBlocks_isEmpty() {
+        byte[] content = randomBytes(BLOCK_SIZE * 37 + 5);
+
+        MerkleTree first = treeOf(content);
+        MerkleTree second = treeOf(content.clone());
+
+        assertEquals(Collections.<MerkleTree.BlockRange>emptyList(), first.diff(second));
+        assertArrayEquals(first.getRootHash(), second.getRootHash());
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void diff_changedBlocks_mergesConsecutiveOnes() {
+        byte[] content = randomBytes(BLOCK_SIZE * 64);
+        byte[] changed = content.clone();
+        changed[BLOCK_SIZE * 3] ^= 1;
+        changed[BLOCK_SIZE * 40 + 1] ^= 1;
+        changed[BLOCK_SIZE * 41 + 2] ^= 1;
+
+        assertEquals(Arrays.asList(new MerkleTree.BlockRange(3, 1), new MerkleTree.BlockRange(40, 2)),
+                treeOf(content).diff(treeOf(changed)));
+    }
+
+    @Test
+    public void diff_appendedBlocks_onlyReportsTheTail() {
+        byte[] content = randomBytes(BLOCK_SIZE * 20);
+        byte[] appended = Arrays.copyOf(content, BLOCK_SIZE * 23 + 1);
+
+        // Both ways round, the longer tree being the one diffed or the one diffed against
+        assertEquals(Collections.singletonList(new MerkleTree.BlockRange(20, 4)),
+                treeOf(content).diff(treeOf(appended)));
+        assertEquals(Collections.singletonList(new MerkleTree.BlockRange(20, 4)),
+                treeOf(appended).diff(treeOf(content)));
+    }
+
+    @Test
+    public void diff_shorterLastBlock_isReported() {
+        byte[] content = randomBytes(BLOCK_SIZE * 5);
+
+        assertEquals(Collections.singletonList(new MerkleTree.BlockRange(4, 1)),
+                treeOf(content).diff(treeOf(Arrays.copyOf(content, BLOCK_SIZE * 5 - 1))));
+        assertEquals(Collections.singletonList(new MerkleTree.BlockRange(0, 5)),
+                treeOf(content).diff(treeOf(new byte[0])));
+    }
+
+    private static MerkleTree treeOf(byte[] content) {
+        int blockCount = (content.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int[] weakSums = new int[blockCount];
+        byte[] strongSums = new byte[blockCount * FileManifest.STRONG_SUM_LENGTH];
+        for (int i = 0; i < blockCount; i++) {
+            int length = Math.min(BLOCK_SIZE, content.length - i * BLOCK_SIZE);
+            weakSums[i] = RollingChecksum.of(content, i * BLOCK_SIZE, length);
+            MessageDigest md5 = ManifestBuilder.newMd5();
+            md5.update(content, i * BLOCK_SIZE, length);
+            System.arraycopy(md5.digest(), 0, strongSums, i * FileManifest.STRONG_SUM_LENGTH, FileManifest.STRONG_SUM_LENGTH);
+        }
+        return MerkleTree.of(new FileManifest("test", content.length, 0, BLOCK_SIZE, 0, weakSums, strongSums));
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
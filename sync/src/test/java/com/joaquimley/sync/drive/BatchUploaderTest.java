@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive;
+
+import com.joaquimley.sync.buffer.BufferPool;
+import com.joaquimley.sync.metrics.SyncMetrics;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BatchUploaderTest {
+
+    private static final int FILE_COUNT = 12;
+    private static final int CHUNK_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(3);
+    private File mDirectory;
+    private List<byte[]> mContents;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = mTemporaryFolder.newFolder("backups");
+        mContents = new ArrayList<>();
+        for (int i = 0; i < FILE_COUNT; i++) {
+            // Some files fit in a chunk, others span several
+            byte[] content = new byte[mRandom.nextInt(CHUNK_SIZE * 10)];
+            mRandom.nextBytes(content);
+            mContents.add(content);
+            write(new File(mDirectory, String.format("file-%02d", i)), content);
+        }
+    }
+
+    @Test
+    public void upload_directory_uploadsEveryFile() throws Exception {
+        InMemoryRemoteFolder remoteFolder = new InMemoryRemoteFolder(0);
+        BatchUploader uploader = new BatchUploader(remoteFolder, 3, CHUNK_SIZE);
+
+        BatchUploadResult result = uploader.upload(BatchUploader.listFiles(mDirectory), null);
+
+        assertTrue(result.isSuccess());
+        assertEquals(FILE_COUNT, result.getSuccessCount());
+        long totalBytes = 0;
+        for (int i = 0; i < FILE_COUNT; i++) {
+            assertArrayEquals(mContents.get(i), remoteFolder.getFile(String.format("file-%02d", i)));
+            assertEquals(32, remoteFolder.getMd5(String.format("file-%02d", i)).length());
+            totalBytes += mContents.get(i).length;
+        }
+        assertEquals(totalBytes, result.getBytesUploaded());
+    }
+
+    @Test
+    public void upload_reportsPerFileAndAggregateResults() throws Exception {
+        InMemoryRemoteFolder remoteFolder = new InMemoryRemoteFolder(0);
+        remoteFolder.failOn("file-04");
+        final AtomicInteger successes = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicReference<BatchUploadResult> aggregate = new AtomicReference<>();
+
+        BatchUploadResult result = new BatchUploader(remoteFolder, 4, CHUNK_SIZE).upload(
+                BatchUploader.listFiles(mDirectory), new BatchUploadCallback() {
+                    @Override
+                    public DriveTaskCallback getFileCallback(File file) {
+                        return new DriveTaskCallback() {
+                            @Override
+                            public void onTaskStarted() {
+                            }
+
+                            @Override
+                            public void onTaskInProgress() {
+                            }
+
+                            @Override
+                            public void onTaskSuccess(String returnText) {
+                                successes.incrementAndGet();
+                            }
+
+                            @Override
+                            public void onTaskError(String errorMessage) {
+                                errors.incrementAndGet();
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void onBatchFinished(BatchUploadResult result) {
+                        aggregate.set(result);
+                    }
+                });
+
+        assertSame(result, aggregate.get());
+        assertFalse(result.isSuccess());
+        assertEquals(FILE_COUNT - 1, successes.get());
+        assertEquals(1, errors.get());
+        assertTrue(result.getFailures().containsKey(new File(mDirectory, "file-04")));
+        assertNull(remoteFolder.getFile("file-04"));
+    }
+
+    @Test
+    public void upload_boundedWorkers_overlapRemoteWrites() throws Exception {
+        InMemoryRemoteFolder sequential = new InMemoryRemoteFolder(20);
+        InMemoryRemoteFolder parallel = new InMemoryRemoteFolder(20);
+
+        BatchUploadResult one = new BatchUploader(sequential, 1, CHUNK_SIZE).upload(BatchUploader.listFiles(mDirectory), null);
+        BatchUploadResult four = new BatchUploader(parallel, 4, CHUNK_SIZE).upload(BatchUploader.listFiles(mDirectory), null);
+
+        assertEquals(1, sequential.getMaxConcurrentWrites());
+        assertTrue(parallel.getMaxConcurrentWrites() > 1);
+        assertTrue(parallel.getMaxConcurrentWrites() <= 4);
+        assertTrue("4 workers took " + four.getElapsedMillis() + "ms, 1 worker " + one.getElapsedMillis() + "ms",
+                four.getElapsedMillis() * 2 < one.getElapsedMillis());
+    }
+
+    @Test
+    public void upload_recordsStageTimingsAndCounters() throws Exception {
+        InMemoryRemoteFolder remoteFolder = new InMemoryRemoteFolder(0);
+        remoteFolder.failOn("file-07");
+        SyncMetrics metrics = new SyncMetrics();
+
+        BatchUploadResult result = new BatchUploader(remoteFolder, 2, CHUNK_SIZE, metrics)
+                .upload(BatchUploader.listFiles(mDirectory), null);
+
+        SyncMetrics.Snapshot snapshot = metrics.snapshot();
+        long totalBytes = 0;
+        for (byte[] content : mContents) {
+            totalBytes += content.length;
+        }
+        assertEquals(totalBytes, snapshot.getBytesRead());
+        assertEquals(totalBytes, snapshot.getBytesWritten());
+        assertEquals(result.getSuccessCount(), snapshot.getFilesUploaded());
+        assertEquals(1, snapshot.getErrorCount(SyncMetrics.ErrorCause.REMOTE));
+        assertEquals(FILE_COUNT, snapshot.getStage(SyncMetrics.Stage.CONTENTS).getCount());
+        assertEquals(FILE_COUNT, snapshot.getStage(SyncMetrics.Stage.CREATE_FILE).getCount());
+        assertTrue(snapshot.getStage(SyncMetrics.Stage.WRITE).getCount() >= FILE_COUNT - 1);
+    }
+
+    @Test
+    public void upload_returnsEveryChunkToThePool() throws Exception {
+        InMemoryRemoteFolder remoteFolder = new InMemoryRemoteFolder(0);
+        remoteFolder.failOn("file-03");
+        BufferPool pool = new BufferPool();
+        BatchUploader uploader = new BatchUploader(remoteFolder, 2, CHUNK_SIZE, new SyncMetrics(), pool);
+
+        uploader.upload(BatchUploader.listFiles(mDirectory), null);
+        long misses = pool.getMetrics().getMisses();
+        uploader.upload(BatchUploader.listFiles(mDirectory), null);
+
+        BufferPool.Metrics metrics = pool.getMetrics();
+        assertEquals(0, metrics.getOutstanding());
+        // The second batch mostly runs on the buffers of the first
+        assertTrue(metrics.getHits() > metrics.getMisses() - misses);
+    }
+
+    @Test
+    public void upsert_sameFilesAgain_overwritesInsteadOfCreating() throws Exception {
+        InMemoryRemoteFolder remoteFolder = new InMemoryRemoteFolder(0);
+        BatchUploader uploader = new BatchUploader(remoteFolder, 3, CHUNK_SIZE);
+        List<File> files = BatchUploader.listFiles(mDirectory);
+
+        BatchUploadResult first = uploader.upsert(files, Collections.<File, String>emptyMap(), null);
+        byte[] changed = new byte[CHUNK_SIZE + 1];
+        mRandom.nextBytes(changed);
+        write(files.get(0), changed);
+        BatchUploadResult second = uploader.upsert(files, first.getUploaded(), null);
+
+        assertEquals(FILE_COUNT, remoteFolder.getCreatedCount());
+        assertEquals(first.getUploaded(), second.getUploaded());
+        assertArrayEquals(changed, remoteFolder.getFile("file-00"));
+
+        // Plain uploads still create a file every time
+        uploader.upload(files, null);
+        assertEquals(2 * FILE_COUNT, remoteFolder.getCreatedCount());
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(content);
+        } finally {
+            outputStream.close();
+        }
+    }
+}
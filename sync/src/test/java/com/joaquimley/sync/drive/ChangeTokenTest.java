@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ChangeTokenTest {
+
+    private static final long NOW = 1500000000000L;
+    private static final long MAX_AGE = TimeUnit.DAYS.toMillis(7);
+
+    @Test
+    public void parse_readsWhatEncodeWrote() {
+        ChangeToken token = ChangeToken.afterFullListing(NOW - 5000, NOW);
+
+        assertEquals(token, ChangeToken.parse(token.encode()));
+    }
+
+    @Test
+    public void parse_missingOrUnreadable_isNull() {
+        assertNull(ChangeToken.parse(null));
+        assertNull(ChangeToken.parse(""));
+        assertNull(ChangeToken.parse("1:abc:0"));
+        // Written by another version
+        assertNull(ChangeToken.parse("2:0:0"));
+    }
+
+    @Test
+    public void advance_onlyMovesForward() {
+        ChangeToken token = ChangeToken.afterFullListing(NOW - 5000, NOW);
+
+        assertEquals(NOW - 1000, token.advance(NOW - 1000).getModifiedSince());
+        assertSame(token, token.advance(NOW - 9000));
+        assertEquals(NOW, token.advance(NOW - 1000).getListedAt());
+    }
+
+    @Test
+    public void isExpired_afterMaxAgeOrWhenClockWentBack() {
+        ChangeToken token = ChangeToken.afterFullListing(0, NOW);
+
+        assertFalse(token.isExpired(NOW + MAX_AGE, MAX_AGE));
+        assertTrue(token.isExpired(NOW + MAX_AGE + 1, MAX_AGE));
+        assertTrue(token.isExpired(NOW - 1, MAX_AGE));
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive;
+
+import com.joaquimley.sync.metrics.SyncMetrics;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class ChunkedUploaderTest {
+
+    private static final int CHUNK_SIZE = 4096;
+    private static final int FILE_SIZE = CHUNK_SIZE * 10 + 123;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mSource;
+    private byte[] mContent;
+    private UploadCheckpointStore mCheckpointStore;
+    private ChunkedUploader mUploader;
+
+    @Before
+    public void setUp() throws Exception {
+        mContent = new byte[FILE_SIZE];
+        new Random(42).nextBytes(mContent);
+        mSource = mTemporaryFolder.newFile("backup.realm");
+        write(mSource, mContent);
+        mCheckpointStore = new FileUploadCheckpointStore(mTemporaryFolder.newFolder("checkpoints"));
+        mUploader = new ChunkedUploader(CHUNK_SIZE, mCheckpointStore);
+    }
+
+    @Test
+    public void upload_writesWholeFileInChunks() throws Exception {
+        FakeUploadTransport transport = new FakeUploadTransport(true);
+
+        long sent = mUploader.upload(mSource, transport);
+
+        assertEquals(FILE_SIZE, sent);
+        assertArrayEquals(mContent, transport.getCommittedBytes());
+        assertEquals(11, transport.getCommits());
+        assertTrue(transport.isClosed());
+        assertNull(mCheckpointStore.load(mSource.getAbsolutePath()));
+    }
+
+    @Test
+    public void upload_afterFailure_resumesFromLastCommittedChunk() throws Exception {
+        FakeUploadTransport transport = new FakeUploadTransport(true);
+        transport.failAfter(CHUNK_SIZE * 3 + 100);
+
+        try {
+            mUploader.upload(mSource, transport);
+            fail("Injected failure should propagate");
+        } catch (IOException expected) {
+            // Connection dropped in the middle of the fourth chunk
+        }
+        UploadCheckpoint checkpoint = mCheckpointStore.load(mSource.getAbsolutePath());
+        assertNotNull(checkpoint);
+        assertEquals(CHUNK_SIZE * 3, checkpoint.getBytesCommitted());
+
+        long sent = mUploader.upload(mSource, transport);
+
+        assertEquals(FILE_SIZE - CHUNK_SIZE * 3, sent);
+        assertArrayEquals(mContent, transport.getCommittedBytes());
+        assertNull(mCheckpointStore.load(mSource.getAbsolutePath()));
+    }
+
+    @Test
+    public void upload_nonResumableTransport_restartsFromZero() throws Exception {
+        FakeUploadTransport transport = new FakeUploadTransport(false);
+        transport.failAfter(CHUNK_SIZE * 5);
+        try {
+            mUploader.upload(mSource, transport);
+            fail("Injected failure should propagate");
+        } catch (IOException expected) {
+            // Fail exactly on the sixth chunk
+        }
+        // Nothing could resume from it
+        assertNull(mCheckpointStore.load(mSource.getAbsolutePath()));
+
+        long sent = mUploader.upload(mSource, transport);
+
+        assertEquals(FILE_SIZE, sent);
+        assertArrayEquals(mContent, transport.getCommittedBytes());
+    }
+
+    @Test
+    public void upload_sourceChangedSinceCheckpoint_restartsFromZero() throws Exception {
+        FakeUploadTransport transport = new FakeUploadTransport(true);
+        transport.failAfter(CHUNK_SIZE * 4 + 1);
+        try {
+            mUploader.upload(mSource, transport);
+            fail("Injected failure should propagate");
+        } catch (IOException expected) {
+            // Four chunks committed
+        }
+
+        // Same length and modification time, but the last committed chunk no longer matches
+        long lastModified = mSource.lastModified();
+        RandomAccessFile file = new RandomAccessFile(mSource, "rw");
+        file.seek(CHUNK_SIZE * 3 + 10);
+        file.write(~mContent[CHUNK_SIZE * 3 + 10]);
+        file.close();
+        assertTrue(mSource.setLastModified(lastModified));
+        mContent[CHUNK_SIZE * 3 + 10] = (byte) ~mContent[CHUNK_SIZE * 3 + 10];
+
+        long sent = mUploader.upload(mSource, transport);
+
+        assertEquals(FILE_SIZE, sent);
+        assertArrayEquals(mContent, transport.getCommittedBytes());
+    }
+
+    @Test
+    public void upload_channelTransport_copiesWithEveryReadPath() throws Exception {
+        for (ChunkedUploader.ReadPath readPath : ChunkedUploader.ReadPath.values()) {
+            File target = mTemporaryFolder.newFile("upload-" + readPath);
+            ChunkedUploader uploader = new ChunkedUploader(CHUNK_SIZE, mCheckpointStore, new SyncMetrics(), readPath);
+
+            long sent = uploader.upload(mSource, new FileChannelUploadTransport(new FileOutputStream(target).getChannel()));
+
+            assertEquals(readPath.toString(), FILE_SIZE, sent);
+            assertArrayEquals(readPath.toString(), mContent, read(target));
+            assertNull(mCheckpointStore.load(mSource.getAbsolutePath()));
+        }
+    }
+
+    @Test
+    public void upload_transferTo_checkpointsSameChecksumAsHeapPath() throws Exception {
+        File target = mTemporaryFolder.newFile("upload");
+        final int[] transfers = new int[1];
+        ChannelUploadTransport transport = new FileChannelUploadTransport(new FileOutputStream(target).getChannel()) {
+            @Override
+            public boolean supportsResume() {
+                return true;
+            }
+
+            @Override
+            public long transferFrom(FileChannel source, long position, long count) throws IOException {
+                if (++transfers[0] == 4) {
+                    throw new IOException("Injected failure");
+                }
+                return super.transferFrom(source, position, count);
+            }
+        };
+
+        try {
+            new ChunkedUploader(CHUNK_SIZE, mCheckpointStore, new SyncMetrics(), ChunkedUploader.ReadPath.TRANSFER_TO)
+                    .upload(mSource, transport);
+            fail("Injected failure should propagate");
+        } catch (IOException expected) {
+            // Three chunks committed
+        }
+
+        UploadCheckpoint checkpoint = mCheckpointStore.load(mSource.getAbsolutePath());
+        assertEquals(CHUNK_SIZE * 3, checkpoint.getBytesCommitted());
+        CRC32 crc = new CRC32();
+        crc.update(mContent, CHUNK_SIZE * 2, CHUNK_SIZE);
+        assertEquals(crc.getValue(), checkpoint.getChunkChecksum());
+    }
+
+    @Test
+    public void upload_shortTransfers_checkpointsWhatWasSentAndResumes() throws Exception {
+        HalfChunkTransport transport = new HalfChunkTransport();
+        transport.failAfter(CHUNK_SIZE * 2 + 10);
+        ChunkedUploader uploader = new ChunkedUploader(CHUNK_SIZE, mCheckpointStore, new SyncMetrics(),
+                ChunkedUploader.ReadPath.TRANSFER_TO);
+
+        try {
+            uploader.upload(mSource, transport);
+            fail("Injected failure should propagate");
+        } catch (IOException expected) {
+            // Four half chunks committed
+        }
+        UploadCheckpoint checkpoint = mCheckpointStore.load(mSource.getAbsolutePath());
+        assertEquals(CHUNK_SIZE * 2, checkpoint.getBytesCommitted());
+        CRC32 crc = new CRC32();
+        crc.update(mContent, CHUNK_SIZE * 3 / 2, CHUNK_SIZE / 2);
+        assertEquals(crc.getValue(), checkpoint.getChunkChecksum());
+
+        long sent = uploader.upload(mSource, transport);
+
+        assertEquals(FILE_SIZE - CHUNK_SIZE * 2, sent);
+        assertArrayEquals(mContent, transport.getCommittedBytes());
+    }
+
+    @Test
+    public void upload_sourceShrinksDuringUpload_throws() throws Exception {
+        for (ChunkedUploader.ReadPath readPath : ChunkedUploader.ReadPath.values()) {
+            write(mSource, mContent);
+            HalfChunkTransport transport = new HalfChunkTransport() {
+                @Override
+                public void commit() {
+                    super.commit();
+                    if (getCommits() == 1) {
+                        truncate(mSource, CHUNK_SIZE * 2);
+                    }
+                }
+            };
+
+            try {
+                new ChunkedUploader(CHUNK_SIZE, mCheckpointStore, new SyncMetrics(), readPath).upload(mSource, transport);
+                fail(readPath + ": a short upload must not look complete");
+            } catch (IOException expected) {
+                // The file ended before the length it had when the upload started
+            }
+            assertNull(readPath.toString(), mCheckpointStore.load(mSource.getAbsolutePath()));
+        }
+    }
+
+    private static void truncate(File file, long length) {
+        try {
+            RandomAccessFile output = new RandomAccessFile(file, "rw");
+            try {
+                output.setLength(length);
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            input.readFully(content);
+        } finally {
+            input.close();
+        }
+        return content;
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(content);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Resumable channel transport that only takes half a chunk per transfer, as a socket
+     * channel may.
+     */
+    private static class HalfChunkTransport extends FakeUploadTransport implements ChannelUploadTransport {
+
+        HalfChunkTransport() {
+            super(true);
+        }
+
+        @Override
+        public boolean canTransfer() {
+            return true;
+        }
+
+        @Override
+        public long transferFrom(FileChannel source, long position, long count) throws IOException {
+            ByteBuffer bytes = ByteBuffer.allocate((int) Math.min(count, CHUNK_SIZE / 2));
+            while (bytes.hasRemaining() && source.read(bytes, position + bytes.position()) > 0) {
+                // Keep reading
+            }
+            bytes.flip();
+            write(bytes);
+            return bytes.limit();
+        }
+    }
+}
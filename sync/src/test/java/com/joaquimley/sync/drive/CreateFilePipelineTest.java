@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import com.joaquimley.sync.metrics.SyncMetrics;
+import com.joaquimley.sync.retry.ErrorClass;
+import com.joaquimley.sync.retry.Retrier;
+import com.joaquimley.sync.retry.RetryBudget;
+import com.joaquimley.sync.retry.RetryPolicy;
+import com.joaquimley.sync.retry.StatusException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class CreateFilePipelineTest {
+
+    private static final long LATENCY_MILLIS = 50;
+    private static final int PIPELINE_THREADS = 2;
+    private static final RetryPolicy.Backoff FAST_BACKOFF = new RetryPolicy.Backoff(4, 10, 40);
+
+    private ScheduledExecutorService mNetwork;
+    private ScheduledExecutorService mExecutor;
+    private FakeDriveBackend mBackend;
+    private SyncMetrics mMetrics;
+
+    @Before
+    public void setUp() {
+        // The fake network answers from its own threads, like the Drive service would
+        mNetwork = Executors.newScheduledThreadPool(4);
+        mExecutor = Executors.newScheduledThreadPool(PIPELINE_THREADS);
+        mBackend = new FakeDriveBackend(mNetwork, LATENCY_MILLIS);
+        mMetrics = new SyncMetrics();
+    }
+
+    @After
+    public void tearDown() {
+        mNetwork.shutdownNow();
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void createFile_chainsStepsAndReportsEvents() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+
+        DriveBackend.FileInfo info = newPipeline(1, TimeUnit.SECONDS)
+                .createFile(null, "hello.txt", "text/plain", "Hello world".getBytes(), callback)
+                .get(2, TimeUnit.SECONDS);
+
+        assertTrue(callback.await());
+        assertEquals("hello.txt", info.getTitle());
+        assertEquals(11, info.getFileSize());
+        assertArrayEquals("Hello world".getBytes(), mBackend.getFile(info.getDriveId()));
+        assertEquals(Arrays.asList("started", "inProgress", "success"), callback.mEvents);
+        SyncMetrics.Snapshot snapshot = mMetrics.snapshot();
+        assertEquals(1, snapshot.getFilesUploaded());
+        assertEquals(1, snapshot.getStage(SyncMetrics.Stage.CONTENTS).getCount());
+        assertEquals(1, snapshot.getStage(SyncMetrics.Stage.WRITE).getCount());
+        assertEquals(1, snapshot.getStage(SyncMetrics.Stage.CREATE_FILE).getCount());
+        assertEquals(1, snapshot.getStage(SyncMetrics.Stage.METADATA).getCount());
+    }
+
+    @Test
+    public void createFile_manyUploads_inFlightOnFewThreads() throws Exception {
+        int uploads = 40;
+        CreateFilePipeline pipeline = newPipeline(2, TimeUnit.SECONDS);
+        List<DriveFuture<DriveBackend.FileInfo>> results = new ArrayList<>();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < uploads; i++) {
+            results.add(pipeline.createFile(null, "file-" + i, "text/plain", new byte[]{(byte) i}, null));
+        }
+        for (DriveFuture<DriveBackend.FileInfo> result : results) {
+            result.get(5, TimeUnit.SECONDS);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(uploads, mBackend.getFileCount());
+        assertTrue("Max in flight " + mBackend.getMaxInFlight(), mBackend.getMaxInFlight() > PIPELINE_THREADS * 4);
+        // Three round trips each, one after another that would be 6 seconds
+        assertTrue("Took " + elapsedMillis + "ms", elapsedMillis < uploads * 3 * LATENCY_MILLIS / 4);
+    }
+
+    @Test
+    public void createFile_stepTimesOut_failsAndDiscardsContents() throws Exception {
+        mBackend.hangOn(FakeDriveBackend.Call.CREATE_FILE);
+        RecordingCallback callback = new RecordingCallback();
+
+        DriveFuture<DriveBackend.FileInfo> result = newPipeline(200, TimeUnit.MILLISECONDS)
+                .createFile(null, "slow.txt", "text/plain", new byte[10], callback);
+
+        try {
+            result.get(2, TimeUnit.SECONDS);
+            fail("Expected a timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertTrue(callback.await());
+        assertEquals("error", callback.mEvents.get(callback.mEvents.size() - 1));
+        // The timed out step is cancelled after the failure went out
+        assertTrue(mBackend.awaitCancelled(2, TimeUnit.SECONDS));
+        assertEquals(1, mBackend.getCancelledCount());
+        assertEquals(1, mBackend.getDiscardedCount());
+        assertEquals(1, mMetrics.snapshot().getErrorCount(SyncMetrics.ErrorCause.TIMEOUT));
+    }
+
+    @Test
+    public void createFile_remoteFailure_reportsErrorAndDiscards() throws Exception {
+        mBackend.failOn(FakeDriveBackend.Call.CREATE_FILE);
+        RecordingCallback callback = new RecordingCallback();
+
+        DriveFuture<DriveBackend.FileInfo> result = newPipeline(1, TimeUnit.SECONDS)
+                .createFile(null, "broken.txt", "text/plain", new byte[10], callback);
+
+        try {
+            result.get(2, TimeUnit.SECONDS);
+            fail("Expected a failure");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("CREATE_FILE"));
+        }
+        assertTrue(callback.await());
+        assertTrue(callback.mError.contains("create_file"));
+        assertEquals(1, mBackend.getDiscardedCount());
+        assertEquals(0, mBackend.getFileCount());
+        assertEquals(1, mMetrics.snapshot().getErrorCount(SyncMetrics.ErrorCause.REMOTE));
+    }
+
+    @Test
+    public void cancel_stopsRunningStep() throws Exception {
+        mBackend.hangOn(FakeDriveBackend.Call.GET_METADATA);
+        RecordingCallback callback = new RecordingCallback();
+        DriveFuture<DriveBackend.FileInfo> result = newPipeline(10, TimeUnit.SECONDS)
+                .createFile(null, "cancelled.txt", "text/plain", new byte[10], callback);
+        assertTrue(mBackend.awaitHanging(2, TimeUnit.SECONDS));
+
+        assertTrue(result.cancel(false));
+
+        assertTrue(callback.await());
+        assertTrue(result.isCancelled());
+        // Cancelled before the pipeline followed the step, the step is cancelled when it does
+        assertTrue(mBackend.awaitCancelled(2, TimeUnit.SECONDS));
+        assertEquals(1, mBackend.getCancelledCount());
+        assertEquals("error", callback.mEvents.get(callback.mEvents.size() - 1));
+        assertEquals(0, mMetrics.snapshot().getErrorCount());
+        try {
+            result.get();
+            fail("Expected a cancellation");
+        } catch (CancellationException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void createFile_transientFailures_retriedUntilCreated() throws Exception {
+        mBackend.failTimes(FakeDriveBackend.Call.CREATE_FILE, 2, new IOException("Connection reset"));
+        RecordingCallback callback = new RecordingCallback();
+
+        DriveBackend.FileInfo info = newRetryingPipeline(10)
+                .createFile(null, "flaky.txt", "text/plain", "Hello world".getBytes(), callback)
+                .get(2, TimeUnit.SECONDS);
+
+        assertTrue(callback.await());
+        assertArrayEquals("Hello world".getBytes(), mBackend.getFile(info.getDriveId()));
+        assertEquals(Arrays.asList("started", "inProgress", "success"), callback.mEvents);
+        assertEquals(3, mBackend.getCallCount(FakeDriveBackend.Call.NEW_CONTENTS));
+        assertEquals(2, mBackend.getDiscardedCount());
+        SyncMetrics.Snapshot snapshot = mMetrics.snapshot();
+        assertEquals(2, snapshot.getRetries());
+        assertEquals(0, snapshot.getErrorCount());
+        assertEquals(1, snapshot.getFilesUploaded());
+    }
+
+    @Test
+    public void createFile_metadataFails_retriedWithoutCreatingAgain() throws Exception {
+        mBackend.failTimes(FakeDriveBackend.Call.GET_METADATA, 1, new IOException("Connection reset"));
+
+        DriveBackend.FileInfo info = newRetryingPipeline(10)
+                .createFile(null, "once.txt", "text/plain", new byte[10], null)
+                .get(2, TimeUnit.SECONDS);
+
+        assertEquals("once.txt", info.getTitle());
+        assertEquals(1, mBackend.getFileCount());
+        assertEquals(1, mBackend.getCallCount(FakeDriveBackend.Call.CREATE_FILE));
+        assertEquals(2, mBackend.getCallCount(FakeDriveBackend.Call.GET_METADATA));
+        assertEquals(0, mBackend.getDiscardedCount());
+    }
+
+    @Test
+    public void createFile_permanentFailure_notRetried() throws Exception {
+        mBackend.failTimes(FakeDriveBackend.Call.CREATE_FILE, 1,
+                new StatusException("Contents too large", 1508, ErrorClass.PERMANENT));
+        RecordingCallback callback = new RecordingCallback();
+
+        DriveFuture<DriveBackend.FileInfo> result = newRetryingPipeline(10)
+                .createFile(null, "large.txt", "text/plain", new byte[10], callback);
+
+        try {
+            result.get(2, TimeUnit.SECONDS);
+            fail("Expected a failure");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof StatusException);
+        }
+        assertTrue(callback.await());
+        assertEquals(1, mBackend.getCallCount(FakeDriveBackend.Call.CREATE_FILE));
+        assertEquals(0, mMetrics.snapshot().getRetries());
+        assertEquals(1, mMetrics.snapshot().getErrorCount(SyncMetrics.ErrorCause.REMOTE));
+    }
+
+    @Test
+    public void createFile_quotaFailures_giveUpOnceBudgetIsSpent() throws Exception {
+        mBackend.failTimes(FakeDriveBackend.Call.CREATE_FILE, 10,
+                new StatusException("Rate limit exceeded", 1507, ErrorClass.QUOTA));
+        CreateFilePipeline pipeline = newRetryingPipeline(1);
+        long before = System.currentTimeMillis();
+
+        DriveFuture<DriveBackend.FileInfo> first = pipeline.createFile(null, "a.txt", "text/plain", new byte[10], null);
+        try {
+            first.get(2, TimeUnit.SECONDS);
+            fail("Expected a failure");
+        } catch (ExecutionException e) {
+            // Expected
+        }
+
+        assertEquals(2, mBackend.getCallCount(FakeDriveBackend.Call.CREATE_FILE));
+        SyncMetrics.Snapshot snapshot = mMetrics.snapshot();
+        assertEquals(1, snapshot.getRetries());
+        assertEquals(1, snapshot.getErrorCount(SyncMetrics.ErrorCause.QUOTA));
+        assertTrue(snapshot.getBackoffUntilMillis() > before);
+    }
+
+    private CreateFilePipeline newPipeline(long stepTimeout, TimeUnit unit) {
+        return new CreateFilePipeline(mBackend, mExecutor, mExecutor, stepTimeout, unit, mMetrics);
+    }
+
+    private CreateFilePipeline newRetryingPipeline(int retryBudget) {
+        RetryPolicy policy = new RetryPolicy(FAST_BACKOFF, FAST_BACKOFF, new Random(1));
+        return new CreateFilePipeline(mBackend, mExecutor, mExecutor, 1, TimeUnit.SECONDS, mMetrics,
+                new Retrier(policy, new RetryBudget(retryBudget), mMetrics));
+    }
+
+    private static final class RecordingCallback implements DriveTaskCallback {
+
+        private final List<String> mEvents = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile String mError;
+
+        @Override
+        public void onTaskStarted() {
+            mEvents.add("started");
+        }
+
+        @Override
+        public void onTaskInProgress() {
+            mEvents.add("inProgress");
+        }
+
+        @Override
+        public void onTaskSuccess(String returnText) {
+            mEvents.add("success");
+            mDone.countDown();
+        }
+
+        @Override
+        public void onTaskError(String errorMessage) {
+            mError = errorMessage;
+            mEvents.add("error");
+            mDone.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return mDone.await(2, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Asynchronous {@link DriveBackend} answering every call after a fixed latency from a
+ * scheduler, without any thread waiting in the meantime. Calls can be made to fail, to fail a
+ * few times before they work, or to never answer.
+ */
+public class FakeDriveBackend implements DriveBackend {
+
+    public enum Call {
+        NEW_CONTENTS,
+        CREATE_FILE,
+        GET_METADATA
+    }
+
+    private final ScheduledExecutorService mScheduler;
+    private final long mLatencyMillis;
+    private final Map<String, byte[]> mFiles = new ConcurrentHashMap<>();
+    private final Map<String, String> mTitles = new ConcurrentHashMap<>();
+    private final AtomicInteger mIds = new AtomicInteger();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mMaxInFlight = new AtomicInteger();
+    private final AtomicInteger mCancelled = new AtomicInteger();
+    private final AtomicInteger mDiscarded = new AtomicInteger();
+    private final CountDownLatch mFirstHanging = new CountDownLatch(1);
+    private final CountDownLatch mFirstCancelled = new CountDownLatch(1);
+    private volatile Call mFailingCall;
+    private volatile Call mHangingCall;
+    private final AtomicIntegerArray mCalls = new AtomicIntegerArray(Call.values().length);
+    private final AtomicInteger mFaultsLeft = new AtomicInteger();
+    private volatile Call mFaultyCall;
+    private volatile IOException mFault;
+
+    public FakeDriveBackend(ScheduledExecutorService scheduler, long latencyMillis) {
+        mScheduler = scheduler;
+        mLatencyMillis = latencyMillis;
+    }
+
+    public void failOn(Call call) {
+        mFailingCall = call;
+    }
+
+    /**
+     * Fails the next {@code times} answers to {@code call} with {@code fault}, the later ones work.
+     */
+    public void failTimes(Call call, int times, IOException fault) {
+        mFault = fault;
+        mFaultsLeft.set(times);
+        mFaultyCall = call;
+    }
+
+    /**
+     * Leaves {@code call} without an answer, for timeouts and cancellation.
+     */
+    public void hangOn(Call call) {
+        mHangingCall = call;
+    }
+
+    @Override
+    public DriveFuture<Contents> newContents() {
+        return answer(Call.NEW_CONTENTS, new Answer<Contents>() {
+            @Override
+            public Contents get() {
+                final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                return new FakeContents(outputStream);
+            }
+        });
+    }
+
+    @Override
+    public DriveFuture<String> createFile(String folderId, final String title, String mimeType, final Contents contents) {
+        return answer(Call.CREATE_FILE, new Answer<String>() {
+            @Override
+            public String get() {
+                String driveId = "id-" + mIds.incrementAndGet();
+                mFiles.put(driveId, ((FakeContents) contents).mOutputStream.toByteArray());
+                mTitles.put(driveId, title);
+                return driveId;
+            }
+        });
+    }
+
+    @Override
+    public DriveFuture<FileInfo> getMetadata(final String driveId) {
+        return answer(Call.GET_METADATA, new Answer<FileInfo>() {
+            @Override
+            public FileInfo get() {
+                final String title = mTitles.get(driveId);
+                final long size = mFiles.get(driveId).length;
+                return new FileInfo() {
+                    @Override
+                    public String getDriveId() {
+                        return driveId;
+                    }
+
+                    @Override
+                    public String getTitle() {
+                        return title;
+                    }
+
+                    @Override
+                    public long getFileSize() {
+                        return size;
+                    }
+                };
+            }
+        });
+    }
+
+    public byte[] getFile(String driveId) {
+        return mFiles.get(driveId);
+    }
+
+    public int getFileCount() {
+        return mFiles.size();
+    }
+
+    public int getMaxInFlight() {
+        return mMaxInFlight.get();
+    }
+
+    public int getCancelledCount() {
+        return mCancelled.get();
+    }
+
+    /**
+     * Waits for a call to be left without an answer.
+     *
+     * @return false when none was by then
+     */
+    public boolean awaitHanging(long timeout, TimeUnit unit) throws InterruptedException {
+        return mFirstHanging.await(timeout, unit);
+    }
+
+    /**
+     * Waits for a call to be cancelled before its answer, which can happen after the caller
+     * was told about the failure or cancellation that caused it.
+     *
+     * @return false when none was by then
+     */
+    public boolean awaitCancelled(long timeout, TimeUnit unit) throws InterruptedException {
+        return mFirstCancelled.await(timeout, unit);
+    }
+
+    public int getDiscardedCount() {
+        return mDiscarded.get();
+    }
+
+    public int getCallCount(Call call) {
+        return mCalls.get(call.ordinal());
+    }
+
+    private <T> DriveFuture<T> answer(final Call call, final Answer<T> answer) {
+        final DriveFuture<T> future = new DriveFuture<>();
+        mCalls.incrementAndGet(call.ordinal());
+        int inFlight = mInFlight.incrementAndGet();
+        int max;
+        while ((max = mMaxInFlight.get()) < inFlight && !mMaxInFlight.compareAndSet(max, inFlight)) {
+            // Retry until the maximum is recorded
+        }
+        if (call == mHangingCall) {
+            future.setCancellationHandler(new Runnable() {
+                @Override
+                public void run() {
+                    mCancelled.incrementAndGet();
+                    mInFlight.decrementAndGet();
+                    mFirstCancelled.countDown();
+                }
+            });
+            mFirstHanging.countDown();
+            return future;
+        }
+        final ScheduledFuture<?> reply = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mInFlight.decrementAndGet();
+                if (call == mFailingCall) {
+                    future.fail(new IOException("Injected failure on " + call));
+                } else if (call == mFaultyCall && mFaultsLeft.getAndDecrement() > 0) {
+                    future.fail(mFault);
+                } else {
+                    future.complete(answer.get());
+                }
+            }
+        }, mLatencyMillis, TimeUnit.MILLISECONDS);
+        future.setCancellationHandler(new Runnable() {
+            @Override
+            public void run() {
+                if (reply.cancel(false)) {
+                    mCancelled.incrementAndGet();
+                    mInFlight.decrementAndGet();
+                    mFirstCancelled.countDown();
+                }
+            }
+        });
+        return future;
+    }
+
+    private interface Answer<T> {
+
+        T get();
+    }
+
+    private final class FakeContents implements Contents {
+
+        private final ByteArrayOutputStream mOutputStream;
+
+        FakeContents(ByteArrayOutputStream outputStream) {
+            mOutputStream = outputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOutputStream;
+        }
+
+        @Override
+        public void discard() {
+            mDiscarded.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * In-memory {@link UploadTransport} that keeps the committed bytes like a resumable remote
+ * would, and can be told to fail once a given number of bytes went through.
+ */
+public class FakeUploadTransport implements UploadTransport {
+
+    private final ByteArrayOutputStream mCommitted = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+    private final boolean mResumable;
+
+    private long mFailAfterBytes = -1;
+    private long mBytesWritten;
+    private int mCommits;
+    private boolean mClosed;
+
+    public FakeUploadTransport(boolean resumable) {
+        mResumable = resumable;
+    }
+
+    /**
+     * Makes the next {@link #write(ByteBuffer)} that goes past {@code bytes} throw, as if the
+     * connection dropped mid chunk.
+     */
+    public void failAfter(long bytes) {
+        mFailAfterBytes = bytes;
+    }
+
+    @Override
+    public long open(long offset) {
+        mPending.reset();
+        mClosed = false;
+        if (!mResumable) {
+            mCommitted.reset();
+            return 0;
+        }
+        long resumeAt = Math.min(offset, mCommitted.size());
+        byte[] kept = mCommitted.toByteArray();
+        mCommitted.reset();
+        mCommitted.write(kept, 0, (int) resumeAt);
+        return resumeAt;
+    }
+
+    @Override
+    public boolean supportsResume() {
+        return mResumable;
+    }
+
+    @Override
+    public void write(ByteBuffer chunk) throws IOException {
+        int length = chunk.remaining();
+        if (mFailAfterBytes >= 0 && mBytesWritten + length > mFailAfterBytes) {
+            int partial = (int) (mFailAfterBytes - mBytesWritten);
+            byte[] bytes = new byte[partial];
+            chunk.get(bytes);
+            mPending.write(bytes, 0, partial);
+            mBytesWritten += partial;
+            mFailAfterBytes = -1;
+            throw new IOException("Injected failure after " + mBytesWritten + " bytes");
+        }
+        byte[] bytes = new byte[length];
+        chunk.get(bytes);
+        mPending.write(bytes, 0, length);
+        mBytesWritten += length;
+    }
+
+    @Override
+    public void commit() {
+        byte[] pending = mPending.toByteArray();
+        mCommitted.write(pending, 0, pending.length);
+        mPending.reset();
+        mCommits++;
+    }
+
+    @Override
+    public void close() {
+        // Whatever was not committed is lost, like a dropped connection would
+        mPending.reset();
+        mClosed = true;
+    }
+
+    public byte[] getCommittedBytes() {
+        return mCommitted.toByteArray();
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public int getCommits() {
+        return mCommits;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import com.joaquimley.sync.compress.CompressionCodec;
+import com.joaquimley.sync.compress.CompressionCodecs;
+import com.joaquimley.sync.delta.ChangeDetector;
+import com.joaquimley.sync.delta.FileManifestStore;
+import com.joaquimley.sync.metrics.SyncMetrics;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FileRestorerTest {
+
+    private static final int CHUNK_SIZE = 4096;
+    private static final int FILE_SIZE = CHUNK_SIZE * 10 + 123;
+    private static final long SYNCED_AT = 1000000000L;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private byte[] mContent;
+    private File mRemote;
+    private File mTarget;
+    private ChunkedDownloader mDownloader;
+
+    @Before
+    public void setUp() throws Exception {
+        mContent = new byte[FILE_SIZE];
+        new Random(42).nextBytes(mContent);
+        mRemote = mTemporaryFolder.newFile("remote.realm");
+        write(mRemote, mContent);
+        mTarget = new File(mTemporaryFolder.newFolder("local"), "backup.realm");
+        mDownloader = new ChunkedDownloader(CHUNK_SIZE, new SyncMetrics());
+    }
+
+    @Test
+    public void restore_replacesTargetAndLeavesNoPartFile() throws Exception {
+        write(mTarget, new byte[]{1, 2, 3});
+        mTarget.setLastModified(SYNCED_AT);
+
+        FileRestorer.Result result = newRestorer(FileRestorer.ConflictPolicy.KEEP_BOTH)
+                .restore(source(), remoteVersion(), mTarget, SYNCED_AT);
+
+        assertEquals(FileRestorer.Outcome.RESTORED, result.getOutcome());
+        assertEquals(FILE_SIZE, result.getBytesFetched());
+        assertNull(result.getConflictFile());
+        assertArrayEquals(mContent, read(mTarget));
+        assertEquals(1, mTarget.getParentFile().list().length);
+    }
+
+    @Test
+    public void restore_afterInterruption_resumesFromPartFile() throws Exception {
+        RemoteVersion remote = remoteVersion();
+        File partFile = new File(mTarget.getPath() + "." + remote.getVersionKey() + ".part");
+        byte[] prefix = new byte[CHUNK_SIZE * 3 + 100];
+        System.arraycopy(mContent, 0, prefix, 0, prefix.length);
+        write(partFile, prefix);
+        // Left behind by a version that was replaced since
+        File stalePart = new File(mTarget.getPath() + ".0123.part");
+        write(stalePart, prefix);
+
+        FileRestorer.Result result = newRestorer(FileRestorer.ConflictPolicy.KEEP_BOTH)
+                .restore(source(), remote, mTarget, 0);
+
+        assertEquals(FILE_SIZE - prefix.length, result.getBytesFetched());
+        assertArrayEquals(mContent, read(mTarget));
+        assertFalse(partFile.exists());
+        assertFalse(stalePart.exists());
+    }
+
+    @Test
+    public void restore_checksumMismatch_keepsTargetAndDropsPartFile() throws Exception {
+        byte[] local = {1, 2, 3};
+        write(mTarget, local);
+        mTarget.setLastModified(SYNCED_AT);
+        RemoteVersion remote = new RemoteVersion("DriveId:a", FILE_SIZE, "00000000000000000000000000000000", 0, null);
+
+        try {
+            newRestorer(FileRestorer.ConflictPolicy.KEEP_BOTH).restore(source(), remote, mTarget, SYNCED_AT);
+            fail("Mismatching content must not be restored");
+        } catch (IOException expected) {
+            // The next restore downloads from the start
+        }
+
+        assertArrayEquals(local, read(mTarget));
+        assertEquals(1, mTarget.getParentFile().list().length);
+    }
+
+    @Test
+    public void restore_compressedRemote_isDecompressed() throws Exception {
+        CompressionCodec codec = CompressionCodecs.gzip(6);
+        OutputStream out = codec.compress(new FileOutputStream(mRemote));
+        out.write(mContent);
+        out.close();
+        RemoteVersion remote = new RemoteVersion("DriveId:a", mRemote.length(), mDownloader.md5(mRemote), 0, codec);
+
+        newRestorer(FileRestorer.ConflictPolicy.KEEP_BOTH).restore(source(), remote, mTarget, 0);
+
+        assertArrayEquals(mContent, read(mTarget));
+        assertEquals(1, mTarget.getParentFile().list().length);
+    }
+
+    @Test
+    public void restore_sameContent_downloadsNothing() throws Exception {
+        write(mTarget, mContent);
+
+        FileRestorer.Result result = newRestorer(FileRestorer.ConflictPolicy.KEEP_BOTH)
+                .restore(source(), remoteVersion(), mTarget, 0);
+
+        assertEquals(FileRestorer.Outcome.UNCHANGED, result.getOutcome());
+        assertEquals(0, result.getBytesFetched());
+    }
+
+    @Test
+    public void restore_compressedRemoteOfSameContent_downloadsNothing() throws Exception {
+        write(mTarget, mContent);
+        mTarget.setLastModified(SYNCED_AT + 60000);
+        CompressionCodec codec = CompressionCodecs.gzip(6);
+        OutputStream out = codec.compress(new FileOutputStream(mRemote));
+        out.write(mContent);
+        out.close();
+        // Its own upload coming back, newer than the local copy
+        RemoteVersion remote = new RemoteVersion("DriveId:a", mRemote.length(), mDownloader.md5(mRemote),
+                SYNCED_AT + 120000, codec, mDownloader.md5(mTarget));
+
+        FileRestorer.Result result = newRestorer(FileRestorer.ConflictPolicy.LAST_WRITER_WINS)
+                .restore(source(), remote, mTarget, SYNCED_AT);
+
+        assertEquals(FileRestorer.Outcome.UNCHANGED, result.getOutcome());
+        assertEquals(0, result.getBytesFetched());
+    }
+
+    @Test
+    public void restore_conflict_followsPolicy() throws Exception {
+        byte[] local = {1, 2, 3};
+        write(mTarget, local);
+        mTarget.setLastModified(SYNCED_AT + 60000);
+
+        // Modified after the remote copy
+        RemoteVersion older = new RemoteVersion("DriveId:a", FILE_SIZE, mDownloader.md5(mRemote), SYNCED_AT, null);
+        assertEquals(FileRestorer.Outcome.KEPT_LOCAL, newRestorer(FileRestorer.ConflictPolicy.LAST_WRITER_WINS)
+                .restore(source(), older, mTarget, SYNCED_AT).getOutcome());
+        assertEquals(FileRestorer.Outcome.KEPT_LOCAL, newRestorer(FileRestorer.ConflictPolicy.CALLBACK)
+                .restore(source(), older, mTarget, SYNCED_AT).getOutcome());
+        assertArrayEquals(local, read(mTarget));
+
+        FileRestorer.Result result = newRestorer(FileRestorer.ConflictPolicy.KEEP_BOTH)
+                .restore(source(), older, mTarget, SYNCED_AT);
+
+        assertEquals(FileRestorer.Outcome.RESTORED, result.getOutcome());
+        assertArrayEquals(mContent, read(mTarget));
+        assertArrayEquals(local, read(result.getConflictFile()));
+    }
+
+    @Test
+    public void restore_callbackPolicy_asksResolver() throws Exception {
+        write(mTarget, new byte[]{1, 2, 3});
+        mTarget.setLastModified(SYNCED_AT + 60000);
+        final File[] asked = new File[1];
+        FileRestorer restorer = new FileRestorer(mDownloader, FileRestorer.ConflictPolicy.CALLBACK,
+                new FileRestorer.ConflictResolver() {
+                    @Override
+                    public FileRestorer.Resolution resolve(File local, RemoteVersion remote) {
+                        asked[0] = local;
+                        return FileRestorer.Resolution.TAKE_REMOTE;
+                    }
+                });
+
+        FileRestorer.Result result = restorer.restore(source(), remoteVersion(), mTarget, SYNCED_AT);
+
+        assertEquals(mTarget, asked[0]);
+        assertEquals(FileRestorer.Outcome.RESTORED, result.getOutcome());
+        assertArrayEquals(mContent, read(mTarget));
+        assertEquals(1, mTarget.getParentFile().list().length);
+    }
+
+    @Test
+    public void restore_patchChain_replaysPatchesInOrder() throws Exception {
+        write(mTarget, mContent);
+        byte[] latest = mContent.clone();
+        List<RemoteVersion> patches = new ArrayList<>();
+        Map<String, File> patchFiles = uploadPatches(latest, patches, CompressionCodecs.gzip(6));
+
+        FileRestorer.Result result = newRestorer(FileRestorer.ConflictPolicy.KEEP_BOTH)
+                .restore(source(), remoteVersion(), patches, sources(patchFiles), mTarget, System.currentTimeMillis());
+
+        assertEquals(FileRestorer.Outcome.RESTORED, result.getOutcome());
+        assertArrayEquals(latest, read(mTarget));
+        assertEquals(1, mTarget.getParentFile().list().length);
+    }
+
+    @Test
+    public void restore_patchDoesNotApply_keepsTarget() throws Exception {
+        byte[] local = {1, 2, 3};
+        write(mTarget, local);
+        mTarget.setLastModified(SYNCED_AT);
+        List<RemoteVersion> patches = new ArrayList<>();
+        Map<String, File> patchFiles = uploadPatches(mContent.clone(), patches, CompressionCodecs.NONE);
+        File corrupt = patchFiles.get("DriveId:p2");
+        write(corrupt, new byte[]{1, 2, 3});
+        patches.set(1, new RemoteVersion("DriveId:p2", 3, mDownloader.md5(corrupt), SYNCED_AT + 120000, null));
+
+        try {
+            newRestorer(FileRestorer.ConflictPolicy.KEEP_BOTH)
+                    .restore(source(), remoteVersion(), patches, sources(patchFiles), mTarget, SYNCED_AT);
+            fail("The base alone must not be restored");
+        } catch (IOException expected) {
+            // Nothing renamed over the target
+        }
+
+        assertArrayEquals(local, read(mTarget));
+        assertEquals(1, mTarget.getParentFile().list().length);
+    }
+
+    /**
+     * Changes {@code content} twice as uploads after {@link #mRemote} would, adding the
+     * patches to {@code patches}.
+     *
+     * @return the patch files by DriveId
+     */
+    private Map<String, File> uploadPatches(byte[] content, List<RemoteVersion> patches, CompressionCodec codec)
+            throws IOException {
+        File source = mTemporaryFolder.newFile("source.realm");
+        write(source, content);
+        ChangeDetector detector = new ChangeDetector(new FileManifestStore(mTemporaryFolder.newFolder("manifests")),
+                1024, ChangeDetector.DEFAULT_MAX_PATCH_CHAIN);
+        detector.commit(detector.detect(source, mTemporaryFolder.newFile()));
+
+        Map<String, File> patchFiles = new HashMap<>();
+        for (int revision = 1; revision <= 2; revision++) {
+            Arrays.fill(content, revision * 5000, revision * 5000 + 100, (byte) revision);
+            write(source, content);
+            source.setLastModified(SYNCED_AT + revision * 60000);
+            File patchFile = new File(mTemporaryFolder.getRoot(), "patch-" + revision);
+            ChangeDetector.Change change = detector.detect(source, patchFile);
+            assertEquals(ChangeDetector.Type.PATCH, change.getType());
+
+            File stored = mTemporaryFolder.newFile("stored-patch-" + revision);
+            OutputStream out = codec.compress(new FileOutputStream(stored));
+            out.write(read(patchFile));
+            out.close();
+            detector.commit(change);
+            patchFiles.put("DriveId:p" + revision, stored);
+            patches.add(new RemoteVersion("DriveId:p" + revision, stored.length(), mDownloader.md5(stored),
+                    SYNCED_AT + revision * 60000, codec));
+        }
+        return patchFiles;
+    }
+
+    private static FileRestorer.Sources sources(final Map<String, File> files) {
+        return new FileRestorer.Sources() {
+            @Override
+            public DownloadSource openForDownload(RemoteVersion version) {
+                try {
+                    return new FileChannelDownloadSource(new FileInputStream(files.get(version.getDriveId())));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+    }
+
+    private FileRestorer newRestorer(FileRestorer.ConflictPolicy policy) {
+        return new FileRestorer(mDownloader, policy, null);
+    }
+
+    private RemoteVersion remoteVersion() throws IOException {
+        return new RemoteVersion("DriveId:a", FILE_SIZE, mDownloader.md5(mRemote), SYNCED_AT, null);
+    }
+
+    private DownloadSource source() throws IOException {
+        return new FileChannelDownloadSource(new FileInputStream(mRemote));
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] content = new byte[(int) in.length()];
+            in.readFully(content);
+            return content;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drive stand-in keeping created files in memory. Every commit can be slowed down to emulate
+ * a network round trip, and titles can be set up to fail.
+ */
+public class InMemoryRemoteFolder implements RemoteFolder {
+
+    private final Map<String, byte[]> mFiles = new ConcurrentHashMap<>();
+    private final Map<String, String> mMd5s = new ConcurrentHashMap<>();
+    private final Map<String, String> mIds = new ConcurrentHashMap<>();
+    private final Set<String> mFailingTitles = Collections.synchronizedSet(new HashSet<String>());
+    private final AtomicInteger mConcurrentWrites = new AtomicInteger();
+    private final AtomicInteger mMaxConcurrentWrites = new AtomicInteger();
+    private final AtomicInteger mCreated = new AtomicInteger();
+    private final long mCommitLatencyMillis;
+
+    public InMemoryRemoteFolder(long commitLatencyMillis) {
+        mCommitLatencyMillis = commitLatencyMillis;
+    }
+
+    public void failOn(String title) {
+        mFailingTitles.add(title);
+    }
+
+    @Override
+    public RemoteFile newFile(String title, String mimeType) {
+        return open(title, false);
+    }
+
+    /**
+     * Overwrites the file last committed with the title, the remote id is ignored.
+     */
+    @Override
+    public RemoteFile upsertFile(String title, String mimeType, String remoteId) {
+        return open(title, true);
+    }
+
+    private RemoteFile open(final String title, final boolean upsert) {
+        final FakeUploadTransport transport = new FakeUploadTransport(false);
+        final AtomicBoolean open = new AtomicBoolean(true);
+        mConcurrentWrites.incrementAndGet();
+        return new RemoteFile() {
+            @Override
+            public UploadTransport getTransport() {
+                return transport;
+            }
+
+            @Override
+            public String commit(String md5) throws IOException {
+                try {
+                    int concurrent = mConcurrentWrites.get();
+                    int max;
+                    while ((max = mMaxConcurrentWrites.get()) < concurrent
+                            && !mMaxConcurrentWrites.compareAndSet(max, concurrent)) {
+                        // Retry until the maximum is recorded
+                    }
+                    if (mCommitLatencyMillis > 0) {
+                        Thread.sleep(mCommitLatencyMillis);
+                    }
+                    if (mFailingTitles.contains(title)) {
+                        throw new IOException("Injected failure for " + title);
+                    }
+                    mFiles.put(title, transport.getCommittedBytes());
+                    mMd5s.put(title, md5);
+                    String id = mIds.get(title);
+                    if (!upsert || id == null) {
+                        id = "id-" + mCreated.incrementAndGet();
+                        mIds.put(title, id);
+                    }
+                    return id;
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } finally {
+                    if (open.getAndSet(false)) {
+                        mConcurrentWrites.decrementAndGet();
+                    }
+                }
+            }
+
+            @Override
+            public void discard() {
+                if (open.getAndSet(false)) {
+                    mConcurrentWrites.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    public byte[] getFile(String title) {
+        return mFiles.get(title);
+    }
+
+    public String getMd5(String title) {
+        return mMd5s.get(title);
+    }
+
+    public int getFileCount() {
+        return mFiles.size();
+    }
+
+    /**
+     * @return files created so far, overwritten ones counted once
+     */
+    public int getCreatedCount() {
+        return mCreated.get();
+    }
+
+    public int getMaxConcurrentWrites() {
+        return mMaxConcurrentWrites.get();
+    }
+}
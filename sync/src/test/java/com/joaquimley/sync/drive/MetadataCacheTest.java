@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetadataCacheTest {
+
+    private static final String FOLDER_ID = "DriveId:folder";
+    private static final long TTL_MILLIS = 1000;
+
+    private long mNow;
+    private MetadataCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new MetadataCache(3, TTL_MILLIS, new MetadataCache.Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return mNow;
+            }
+        });
+    }
+
+    @Test
+    public void find_byTitleInFolder() {
+        mCache.put(new MetadataCache.Entry("DriveId:a", FOLDER_ID, "backup.realm", "md5"));
+
+        assertEquals("DriveId:a", mCache.find(FOLDER_ID, "backup.realm").getDriveId());
+        assertEquals("md5", mCache.get("DriveId:a").getMd5());
+        assertNull(mCache.find("DriveId:other", "backup.realm"));
+        assertNull(mCache.find(FOLDER_ID, "other.realm"));
+
+        MetadataCache.Metrics metrics = mCache.getMetrics();
+        assertEquals(2, metrics.getHits());
+        assertEquals(2, metrics.getMisses());
+        assertEquals(0.5, metrics.getHitRate(), 0);
+        assertEquals(2, metrics.getSavedRoundTrips());
+    }
+
+    @Test
+    public void put_sameTitle_replacesPreviousFile() {
+        mCache.put(new MetadataCache.Entry("DriveId:a", FOLDER_ID, "backup.realm", null));
+        mCache.put(new MetadataCache.Entry("DriveId:b", FOLDER_ID, "backup.realm", null));
+
+        assertNull(mCache.get("DriveId:a"));
+        assertEquals("DriveId:b", mCache.find(FOLDER_ID, "backup.realm").getDriveId());
+        assertEquals(1, mCache.getMetrics().getSize());
+    }
+
+    @Test
+    public void get_afterTtl_expires() {
+        mCache.put(new MetadataCache.Entry("DriveId:a", FOLDER_ID, "a", null));
+        mNow += TTL_MILLIS - 1;
+        assertNotNull(mCache.find(FOLDER_ID, "a"));
+
+        mNow++;
+
+        assertNull(mCache.find(FOLDER_ID, "a"));
+        assertEquals(1, mCache.getMetrics().getExpirations());
+        assertEquals(0, mCache.getMetrics().getSize());
+    }
+
+    @Test
+    public void put_beyondMaxEntries_evictsLeastRecentlyUsed() {
+        mCache.put(new MetadataCache.Entry("DriveId:a", FOLDER_ID, "a", null));
+        mCache.put(new MetadataCache.Entry("DriveId:b", FOLDER_ID, "b", null));
+        mCache.put(new MetadataCache.Entry("DriveId:c", FOLDER_ID, "c", null));
+        mCache.get("DriveId:a");
+
+        mCache.put(new MetadataCache.Entry("DriveId:d", FOLDER_ID, "d", null));
+
+        assertNull(mCache.find(FOLDER_ID, "b"));
+        assertNotNull(mCache.find(FOLDER_ID, "a"));
+        assertNotNull(mCache.find(FOLDER_ID, "d"));
+        assertEquals(1, mCache.getMetrics().getEvictions());
+    }
+
+    @Test
+    public void invalidate_dropsFileAndFolderChildren() {
+        mCache.put(new MetadataCache.Entry("DriveId:a", FOLDER_ID, "a", null));
+        mCache.put(new MetadataCache.Entry("DriveId:b", FOLDER_ID, "b", null));
+        mCache.put(new MetadataCache.Entry("DriveId:c", "DriveId:other", "c", null));
+
+        mCache.invalidate("DriveId:a");
+        assertNull(mCache.find(FOLDER_ID, "a"));
+
+        mCache.invalidateFolder(FOLDER_ID);
+        assertNull(mCache.find(FOLDER_ID, "b"));
+        assertNotNull(mCache.get("DriveId:c"));
+        assertEquals(2, mCache.getMetrics().getInvalidations());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class PatchChainTest {
+
+    private static final RemoteVersion BASE = version("base", 1000);
+
+    @Test
+    public void revisionOf_onlyPatchesOfTheTitle() {
+        assertEquals(3, PatchChain.revisionOf("glucosio.realm", PatchChain.titleOf("glucosio.realm", 3)));
+        assertEquals(0, PatchChain.revisionOf("glucosio.realm", "glucosio.realm"));
+        assertEquals(0, PatchChain.revisionOf("glucosio.realm", "glucosio.realm.patch-pending"));
+        assertEquals(0, PatchChain.revisionOf("glucosio", "glucosio.realm.patch-1"));
+    }
+
+    @Test
+    public void select_ordersLinksAndSkipsOlderChain() throws Exception {
+        Map<Integer, RemoteVersion> patches = new HashMap<>();
+        patches.put(2, version("p2", 3000));
+        patches.put(1, version("p1", 2000));
+        // Left by the chain before the last full upload
+        patches.put(3, version("stale3", 500));
+        patches.put(4, version("stale4", 600));
+
+        assertEquals(Arrays.asList(patches.get(1), patches.get(2)), PatchChain.select(BASE, patches));
+        assertTrue(PatchChain.select(BASE, new HashMap<Integer, RemoteVersion>()).isEmpty());
+    }
+
+    @Test
+    public void select_missingLink_throws() {
+        Map<Integer, RemoteVersion> patches = new HashMap<>();
+        patches.put(1, version("p1", 2000));
+        patches.put(3, version("p3", 4000));
+
+        try {
+            PatchChain.select(BASE, patches);
+            fail("Restoring without patch 2 would lose its changes");
+        } catch (IOException expected) {
+            // Patch 2 is missing
+        }
+    }
+
+    private static RemoteVersion version(String driveId, long modifiedTime) {
+        return new RemoteVersion(driveId, 100, null, modifiedTime, null);
+    }
+}
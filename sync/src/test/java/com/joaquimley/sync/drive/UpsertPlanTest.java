@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.drive;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class UpsertPlanTest {
+
+    @Test
+    public void of_fewerFilesThanKept_createsNewRevision() {
+        UpsertPlan plan = UpsertPlan.of(Arrays.asList("newest", "older"), 3);
+
+        assertNull(plan.getTarget());
+        assertTrue(plan.getSurplus().isEmpty());
+        assertNull(UpsertPlan.of(Collections.<String>emptyList(), 1).getTarget());
+    }
+
+    @Test
+    public void of_singleRevision_overwritesNewestAndTrashesDuplicates() {
+        UpsertPlan plan = UpsertPlan.of(Arrays.asList("newest", "older", "oldest"), 1);
+
+        assertEquals("newest", plan.getTarget());
+        assertEquals(Arrays.asList("older", "oldest"), plan.getSurplus());
+    }
+
+    @Test
+    public void of_revisionsFull_overwritesOldestKept() {
+        UpsertPlan plan = UpsertPlan.of(Arrays.asList("a", "b", "c", "d"), 3);
+
+        assertEquals("c", plan.getTarget());
+        assertEquals(Collections.singletonList("d"), plan.getSurplus());
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.drive.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTest {
+
+    private static final String ACCOUNT = "someone@example.com";
+
+    private ScheduledExecutorService mScheduler;
+    private FakeConnector mConnector;
+    private ConnectionPool<FakeClient> mPool;
+
+    @Before
+    public void setUp() {
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mConnector = new FakeConnector();
+        mPool = new ConnectionPool<>(mConnector, mScheduler, 1, TimeUnit.HOURS);
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void acquire_whileConnecting_queuesOnSingleConnect() {
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+
+        mPool.acquire(ACCOUNT, first);
+        mPool.acquire(ACCOUNT, second);
+        assertEquals(1, mConnector.mClients.size());
+        assertEquals(1, mConnector.mClients.get(0).mConnectCalls);
+        assertEquals(0, first.mAcquired.get());
+
+        mConnector.mClients.get(0).completeConnect();
+
+        assertEquals(1, first.mAcquired.get());
+        assertEquals(1, second.mAcquired.get());
+        assertEquals(2, mPool.getReferenceCount(ACCOUNT));
+        ConnectionPool.Metrics metrics = mPool.getMetrics();
+        assertEquals(1, metrics.getConnects());
+        assertEquals(1, metrics.getQueuedAcquisitions());
+        assertEquals(0, metrics.getReuseHits());
+    }
+
+    @Test
+    public void acquire_afterRelease_reusesConnectedClient() throws Exception {
+        mConnector.mConnectImmediately = true;
+        FakeClient client = mPool.acquire(ACCOUNT, 1, TimeUnit.SECONDS);
+        mPool.release(ACCOUNT);
+
+        assertSame(client, mPool.acquire(ACCOUNT, 1, TimeUnit.SECONDS));
+        mPool.release(ACCOUNT);
+
+        assertEquals(1, mConnector.mClients.size());
+        assertTrue(client.mConnected);
+        ConnectionPool.Metrics metrics = mPool.getMetrics();
+        assertEquals(2, metrics.getAcquisitions());
+        assertEquals(1, metrics.getReuseHits());
+        assertEquals(0.5, metrics.getReuseRatio(), 0.001);
+    }
+
+    @Test
+    public void release_disconnectsOnlyAfterIdleTimeout() throws Exception {
+        mConnector.mConnectImmediately = true;
+        mPool.setIdleTimeout(100, TimeUnit.MILLISECONDS);
+        FakeClient client = mPool.acquire(ACCOUNT, 1, TimeUnit.SECONDS);
+        mPool.release(ACCOUNT);
+
+        // Acquired again before the timeout, the pending disconnect is cancelled
+        mPool.acquire(ACCOUNT, 1, TimeUnit.SECONDS);
+        Thread.sleep(200);
+        assertTrue(client.mConnected);
+
+        mPool.release(ACCOUNT);
+        Thread.sleep(300);
+        assertFalse(client.mConnected);
+        assertEquals(1, mPool.getMetrics().getIdleDisconnects());
+        assertEquals(0, mPool.getReferenceCount(ACCOUNT));
+    }
+
+    @Test
+    public void acquire_connectFailure_reachesEveryWaiterAndHoldsNothing() {
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+        mPool.acquire(ACCOUNT, first);
+        mPool.acquire(ACCOUNT, second);
+
+        mConnector.mClients.get(0).failConnect();
+
+        assertEquals(1, first.mFailed.get());
+        assertEquals(1, second.mFailed.get());
+        assertEquals(0, mPool.getReferenceCount(ACCOUNT));
+        assertEquals(1, mPool.getMetrics().getConnectFailures());
+
+        // The next acquire tries again
+        mPool.acquire(ACCOUNT, first);
+        assertEquals(2, mConnector.mClients.get(0).mConnectCalls);
+    }
+
+    @Test
+    public void acquire_timeout_keepsNoReference() throws Exception {
+        try {
+            mPool.acquire(ACCOUNT, 50, TimeUnit.MILLISECONDS);
+            fail("Connect never completes");
+        } catch (TimeoutException expected) {
+            // Nobody completed the connect
+        }
+        mConnector.mClients.get(0).completeConnect();
+
+        assertEquals(0, mPool.getReferenceCount(ACCOUNT));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void release_withoutAcquire_throws() {
+        mPool.release(ACCOUNT);
+    }
+
+    private static class FakeClient {
+
+        private ConnectionPool.ConnectCallback mCallback;
+        private volatile boolean mConnected;
+        private int mConnectCalls;
+
+        void completeConnect() {
+            mConnected = true;
+            mCallback.onConnected();
+        }
+
+        void failConnect() {
+            mCallback.onConnectionFailed(new IOException("Injected failure"));
+        }
+    }
+
+    private static class FakeConnector implements ConnectionPool.Connector<FakeClient> {
+
+        private final List<FakeClient> mClients = new ArrayList<>();
+        private boolean mConnectImmediately;
+
+        @Override
+        public FakeClient create(String key, ConnectionPool.ConnectCallback callback) {
+            FakeClient client = new FakeClient();
+            client.mCallback = callback;
+            mClients.add(client);
+            return client;
+        }
+
+        @Override
+        public void connect(FakeClient client) {
+            client.mConnectCalls++;
+            if (mConnectImmediately) {
+                client.completeConnect();
+            }
+        }
+
+        @Override
+        public boolean isConnected(FakeClient client) {
+            return client.mConnected;
+        }
+
+        @Override
+        public void disconnect(FakeClient client) {
+            client.mConnected = false;
+        }
+    }
+
+    private static class RecordingCallback implements ConnectionPool.AcquireCallback<FakeClient> {
+
+        private final AtomicInteger mAcquired = new AtomicInteger();
+        private final AtomicInteger mFailed = new AtomicInteger();
+
+        @Override
+        public void onAcquired(FakeClient client) {
+            mAcquired.incrementAndGet();
+        }
+
+        @Override
+        public void onAcquireFailed(IOException cause) {
+            mFailed.incrementAndGet();
+        }
+    }
+}
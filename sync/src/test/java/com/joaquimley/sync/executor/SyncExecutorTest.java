@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.executor;
+
+import com.joaquimley.sync.drive.DriveFuture;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SyncExecutorTest {
+
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private final CountDownLatch mBlockerStarted = new CountDownLatch(1);
+    private final List<String> mOrder = Collections.synchronizedList(new ArrayList<String>());
+    private SyncExecutor mExecutor;
+
+    @After
+    public void tearDown() throws Exception {
+        mRelease.countDown();
+        mExecutor.shutdown();
+        mExecutor.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void submit_runsUserInitiatedBeforePeriodic() throws Exception {
+        mExecutor = new SyncExecutor(1, 10, 100);
+        occupyWorker();
+
+        DriveFuture<String> periodic1 = mExecutor.submit(SyncExecutor.Priority.PERIODIC, recording("periodic-1"));
+        DriveFuture<String> periodic2 = mExecutor.submit(SyncExecutor.Priority.PERIODIC, recording("periodic-2"));
+        DriveFuture<String> user = mExecutor.submit(SyncExecutor.Priority.USER_INITIATED, recording("user"));
+        mRelease.countDown();
+
+        assertEquals("periodic-2", periodic2.get(1, TimeUnit.SECONDS));
+        periodic1.get(1, TimeUnit.SECONDS);
+        user.get(1, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("user", "periodic-1", "periodic-2"), mOrder);
+    }
+
+    @Test
+    public void submit_queueFull_waitsThenRejects() throws Exception {
+        mExecutor = new SyncExecutor(1, 2, 100);
+        occupyWorker();
+        mExecutor.submit(SyncExecutor.Priority.PERIODIC, recording("a"));
+        mExecutor.submit(SyncExecutor.Priority.PERIODIC, recording("b"));
+
+        long start = System.nanoTime();
+        try {
+            mExecutor.submit(SyncExecutor.Priority.USER_INITIATED, recording("c"));
+            fail("Expected the full queue to reject");
+        } catch (RejectedExecutionException e) {
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 90);
+        }
+
+        SyncExecutor.Metrics metrics = mExecutor.getMetrics();
+        assertEquals(1, metrics.getRejected());
+        assertEquals(2, metrics.getQueueDepth());
+        assertEquals(2, metrics.getMaxQueueDepth());
+    }
+
+    @Test
+    public void submit_roomFreedWhileWaiting_admitted() throws Exception {
+        mExecutor = new SyncExecutor(1, 1, 2000);
+        occupyWorker();
+        mExecutor.submit(SyncExecutor.Priority.PERIODIC, recording("a"));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sleep(100);
+                mRelease.countDown();
+            }
+        }).start();
+
+        DriveFuture<String> admitted = mExecutor.submit(SyncExecutor.Priority.PERIODIC, recording("b"));
+
+        assertEquals("b", admitted.get(1, TimeUnit.SECONDS));
+        assertEquals(0, mExecutor.getMetrics().getRejected());
+    }
+
+    @Test
+    public void submitContinuation_skipsCapacity() throws Exception {
+        mExecutor = new SyncExecutor(1, 1, 0);
+        occupyWorker();
+        mExecutor.submit(SyncExecutor.Priority.PERIODIC, recording("a"));
+
+        DriveFuture<String> next = mExecutor.submitContinuation(SyncExecutor.Priority.PERIODIC, recording("next"));
+        mRelease.countDown();
+
+        assertEquals("next", next.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancel_queuedTask_neverRunsAndFreesRoom() throws Exception {
+        mExecutor = new SyncExecutor(1, 1, 0);
+        occupyWorker();
+        DriveFuture<String> cancelled = mExecutor.submit(SyncExecutor.Priority.PERIODIC, recording("cancelled"));
+
+        assertTrue(cancelled.cancel(false));
+        DriveFuture<String> admitted = mExecutor.submit(SyncExecutor.Priority.PERIODIC, recording("admitted"));
+        mRelease.countDown();
+
+        assertEquals("admitted", admitted.get(1, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("admitted"), mOrder);
+    }
+
+    @Test
+    public void metrics_recordWaitAndExecutionTimes() throws Exception {
+        mExecutor = new SyncExecutor(2, 10, 100);
+        List<DriveFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            results.add(mExecutor.submit(SyncExecutor.Priority.PERIODIC, sleeping(20)));
+        }
+        results.add(mExecutor.submit(SyncExecutor.Priority.USER_INITIATED, sleeping(20)));
+        for (DriveFuture<String> result : results) {
+            result.get(2, TimeUnit.SECONDS);
+        }
+
+        SyncExecutor.Metrics metrics = mExecutor.getMetrics();
+        assertEquals(7, metrics.getSubmitted());
+        assertEquals(7, metrics.getExecutionTime().getCount());
+        assertTrue(metrics.getExecutionTime().getMaxMicros() >= 20000);
+        assertEquals(6, metrics.getWaitTime(SyncExecutor.Priority.PERIODIC).getCount());
+        assertEquals(1, metrics.getWaitTime(SyncExecutor.Priority.USER_INITIATED).getCount());
+        assertTrue(metrics.getWaitTime(SyncExecutor.Priority.PERIODIC).getMaxMicros() >= 20000);
+    }
+
+    /**
+     * Keeps the single worker busy until {@link #mRelease} opens.
+     */
+    private void occupyWorker() throws InterruptedException {
+        mExecutor.submit(SyncExecutor.Priority.USER_INITIATED, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                mBlockerStarted.countDown();
+                mRelease.await();
+                return null;
+            }
+        });
+        assertTrue(mBlockerStarted.await(1, TimeUnit.SECONDS));
+    }
+
+    private Callable<String> recording(final String name) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                mOrder.add(name);
+                return name;
+            }
+        };
+    }
+
+    private static Callable<String> sleeping(final long millis) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                sleep(millis);
+                return "slept";
+            }
+        };
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
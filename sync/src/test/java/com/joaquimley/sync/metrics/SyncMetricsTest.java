@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.metrics;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SyncMetricsTest {
+
+    @Test
+    public void histogram_bucketsByPowerOfTwoMicros() {
+        assertEquals(0, LatencyHistogram.bucketOf(500));
+        assertEquals(1, LatencyHistogram.bucketOf(TimeUnit.MICROSECONDS.toNanos(1)));
+        assertEquals(2, LatencyHistogram.bucketOf(TimeUnit.MICROSECONDS.toNanos(3)));
+        assertEquals(10, LatencyHistogram.bucketOf(TimeUnit.MILLISECONDS.toNanos(1)));
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketOf(TimeUnit.DAYS.toNanos(1)));
+    }
+
+    @Test
+    public void histogram_snapshot_reportsCountMeanAndPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(50));
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(100, snapshot.getCount());
+        assertEquals(128, snapshot.getPercentileMicros(50));
+        assertEquals(128, snapshot.getPercentileMicros(99));
+        assertEquals(50000, snapshot.getPercentileMicros(100));
+        assertEquals(50000, snapshot.getMaxMicros());
+        assertEquals((99 * 100 + 50000) / 100, snapshot.getMeanMicros());
+    }
+
+    @Test
+    public void record_childMetrics_alsoRecordIntoParent() {
+        SyncMetrics parent = new SyncMetrics();
+        SyncMetrics first = new SyncMetrics(parent);
+        SyncMetrics second = new SyncMetrics(parent);
+
+        first.recordNanos(SyncMetrics.Stage.WRITE, 1000);
+        first.addBytesWritten(10);
+        first.recordError(SyncMetrics.ErrorCause.REMOTE);
+        second.recordNanos(SyncMetrics.Stage.WRITE, 1000);
+        second.addBytesWritten(20);
+        second.recordRetry();
+        second.recordFileUploaded();
+
+        SyncMetrics.Snapshot firstSnapshot = first.snapshot();
+        assertEquals(1, firstSnapshot.getStage(SyncMetrics.Stage.WRITE).getCount());
+        assertEquals(10, firstSnapshot.getBytesWritten());
+        assertEquals(0, firstSnapshot.getFilesUploaded());
+
+        SyncMetrics.Snapshot total = parent.snapshot();
+        assertEquals(2, total.getStage(SyncMetrics.Stage.WRITE).getCount());
+        assertEquals(0, total.getStage(SyncMetrics.Stage.READ).getCount());
+        assertEquals(30, total.getBytesWritten());
+        assertEquals(1, total.getRetries());
+        assertEquals(1, total.getFilesUploaded());
+        assertEquals(1, total.getErrorCount(SyncMetrics.ErrorCause.REMOTE));
+        assertEquals(1, total.getErrorCount());
+    }
+
+    @Test
+    public void record_concurrentThreads_losesNothing() throws Exception {
+        final SyncMetrics metrics = new SyncMetrics();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        metrics.recordNanos(SyncMetrics.Stage.READ, j);
+                        metrics.addBytesRead(1);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        SyncMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(40000, snapshot.getStage(SyncMetrics.Stage.READ).getCount());
+        assertEquals(40000, snapshot.getBytesRead());
+    }
+
+    @Test
+    public void record_doesNotAllocate() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+        SyncMetrics metrics = new SyncMetrics(new SyncMetrics());
+        long threadId = Thread.currentThread().getId();
+        // Let the JIT settle first
+        recordChunks(metrics, 100000);
+
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        recordChunks(metrics, 100000);
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        // Leeway for the measurement itself
+        assertTrue("Recording allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private static void recordChunks(SyncMetrics metrics, int count) {
+        for (int i = 0; i < count; i++) {
+            long start = System.nanoTime();
+            metrics.record(SyncMetrics.Stage.READ, start);
+            metrics.addBytesRead(4096);
+            metrics.record(SyncMetrics.Stage.WRITE, start);
+            metrics.addBytesWritten(4096);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.mirror;
+
+import com.joaquimley.sync.drive.InMemoryRemoteFolder;
+import com.joaquimley.sync.drive.RemoteFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drive stand-in keeping a folder hierarchy in memory, an {@link InMemoryRemoteFolder} per
+ * folder. Creating a folder in one that doesn't exist fails, titles can be set up to fail, and every call is logged in order.
+ */
+public class InMemoryRemoteTree implements RemoteTree {
+
+    public static final String ROOT_ID = "folder-root";
+
+    private final Map<String, InMemoryRemoteFolder> mFolders = new ConcurrentHashMap<>();
+    private final Map<String, String> mTitles = new ConcurrentHashMap<>();
+    private final List<String> mCalls = Collections.synchronizedList(new ArrayList<String>());
+    private final Set<String> mFailingTitles = Collections.synchronizedSet(new HashSet<String>());
+    private final AtomicInteger mCreated = new AtomicInteger();
+
+    public InMemoryRemoteTree() {
+        mFolders.put(ROOT_ID, new InMemoryRemoteFolder(0));
+        mTitles.put(ROOT_ID, "");
+    }
+
+    public void failFolder(String title) {
+        mFailingTitles.add(title);
+    }
+
+    public void recover() {
+        mFailingTitles.clear();
+    }
+
+    @Override
+    public String createFolder(String parentId, String title) throws IOException {
+        if (!mFolders.containsKey(parentId)) {
+            throw new IOException("No folder " + parentId);
+        }
+        if (mFailingTitles.contains(title)) {
+            throw new IOException("Injected failure for " + title);
+        }
+        String id = "folder-" + mCreated.incrementAndGet();
+        mFolders.put(id, new InMemoryRemoteFolder(0));
+        mTitles.put(id, title);
+        mCalls.add("createFolder " + title);
+        return id;
+    }
+
+    @Override
+    public RemoteFolder getFolder(String folderId) throws IOException {
+        InMemoryRemoteFolder folder = mFolders.get(folderId);
+        if (folder == null) {
+            throw new IOException("No folder " + folderId);
+        }
+        mCalls.add("write " + mTitles.get(folderId));
+        return folder;
+    }
+
+    @Override
+    public void trash(String remoteId) {
+        if (mFolders.remove(remoteId) != null) {
+            mCalls.add("trashFolder " + mTitles.get(remoteId));
+        } else {
+            mCalls.add("trashFile " + remoteId);
+        }
+    }
+
+    public InMemoryRemoteFolder getInMemoryFolder(String folderId) {
+        return mFolders.get(folderId);
+    }
+
+    /**
+     * @return folders created so far
+     */
+    public int getCreatedCount() {
+        return mCreated.get();
+    }
+
+    /**
+     * @return every call so far as "createFolder title", "write folderTitle", "trashFolder title"
+     * or "trashFile id"
+     */
+    public List<String> getCalls() {
+        synchronized (mCalls) {
+            return new ArrayList<>(mCalls);
+        }
+    }
+}
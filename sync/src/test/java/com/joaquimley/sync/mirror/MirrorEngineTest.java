@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.mirror;
+
+import com.joaquimley.sync.metrics.SyncMetrics;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MirrorEngineTest {
+
+    // Well before the scan, as files untouched since the last sync are
+    private static final long MODIFIED_AT = System.currentTimeMillis() - 60000;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mRoot;
+    private MirrorSnapshotStore mSnapshotStore;
+    private InMemoryRemoteTree mRemoteTree;
+    private MirrorEngine mEngine;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = mTemporaryFolder.newFolder("root");
+        mSnapshotStore = new MirrorSnapshotStore(mTemporaryFolder.newFolder("snapshots"));
+        mRemoteTree = new InMemoryRemoteTree();
+        mEngine = new MirrorEngine(mRemoteTree, 4, 1024, new SyncMetrics());
+        write("a/b/c.txt", "c");
+        write("a/d.txt", "d");
+        write("e.txt", "e");
+    }
+
+    @Test
+    public void mirror_firstRun_createsFoldersBeforeTheirContent() throws Exception {
+        MirrorResult result = mirror();
+
+        assertEquals(3, result.getFileCount());
+        assertEquals(2, result.getFoldersCreated());
+        assertEquals(3, result.getFilesUploaded());
+        assertTrue(result.getFailures().isEmpty());
+        List<String> calls = mRemoteTree.getCalls();
+        assertTrue(calls.indexOf("createFolder a") < calls.indexOf("createFolder b"));
+        assertTrue(calls.indexOf("createFolder b") < calls.indexOf("write b"));
+        assertArrayEquals("e".getBytes("UTF-8"), mRemoteTree.getInMemoryFolder(InMemoryRemoteTree.ROOT_ID).getFile("e.txt"));
+    }
+
+    @Test
+    public void mirror_unchangedTree_neitherReadsNorCallsRemote() throws Exception {
+        mirror();
+        int calls = mRemoteTree.getCalls().size();
+
+        MirrorResult result = mirror();
+
+        assertEquals(3, result.getFileCount());
+        assertEquals(0, result.getHashedCount());
+        assertEquals(0, result.getFilesUploaded());
+        assertEquals(calls, mRemoteTree.getCalls().size());
+    }
+
+    @Test
+    public void mirror_changes_uploadsChangedAndTrashesRemovedLast() throws Exception {
+        mirror();
+        write("e.txt", "changed");
+        write("a/new.txt", "new");
+        assertTrue(new File(mRoot, "a/d.txt").delete());
+        int before = mRemoteTree.getCalls().size();
+
+        MirrorResult result = mirror();
+
+        assertEquals(2, result.getHashedCount());
+        assertEquals(2, result.getFilesUploaded());
+        assertEquals(1, result.getDeleted());
+        List<String> calls = mRemoteTree.getCalls().subList(before, mRemoteTree.getCalls().size());
+        assertEquals(3, calls.size());
+        assertTrue(calls.get(2).startsWith("trashFile "));
+        assertArrayEquals("changed".getBytes("UTF-8"),
+                mRemoteTree.getInMemoryFolder(InMemoryRemoteTree.ROOT_ID).getFile("e.txt"));
+        assertEquals(0, mirror().getFilesUploaded());
+    }
+
+    @Test
+    public void mirror_removedFolder_trashedOnceWithItsContent() throws Exception {
+        mirror();
+        delete(new File(mRoot, "a"));
+        int before = mRemoteTree.getCalls().size();
+
+        MirrorResult result = mirror();
+
+        assertEquals(1, result.getDeleted());
+        List<String> calls = mRemoteTree.getCalls();
+        assertEquals(before + 1, calls.size());
+        assertEquals("trashFolder a", calls.get(before));
+        assertEquals(0, mirror().getDeleted());
+    }
+
+    @Test
+    public void mirror_failedFolder_skipsItsContentUntilTheNextRun() throws Exception {
+        mRemoteTree.failFolder("a");
+
+        MirrorResult failed = mirror();
+
+        assertEquals(1, failed.getFilesUploaded());
+        assertEquals(4, failed.getFailures().size());
+        assertTrue(failed.getFailures().containsKey("a/b/c.txt"));
+
+        mRemoteTree.recover();
+        MirrorResult retried = mirror();
+
+        assertEquals(2, retried.getFoldersCreated());
+        assertEquals(2, retried.getFilesUploaded());
+        assertTrue(retried.getFailures().isEmpty());
+    }
+
+    private MirrorResult mirror() throws IOException, InterruptedException {
+        return mEngine.mirror(mRoot, InMemoryRemoteTree.ROOT_ID, mSnapshotStore);
+    }
+
+    private void write(String path, String content) throws IOException {
+        File file = new File(mRoot, path);
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        // Distinct from the previous write, whatever the file system's granularity
+        assertTrue(file.setLastModified(MODIFIED_AT + content.length() * 2000L));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.retry;
+
+import com.joaquimley.sync.metrics.SyncMetrics;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class RetrierTest {
+
+    private static final RetryPolicy.Backoff TRANSIENT = new RetryPolicy.Backoff(4, 100, 1000);
+    private static final RetryPolicy.Backoff QUOTA = new RetryPolicy.Backoff(2, 5000, 60000);
+
+    private SyncMetrics mMetrics;
+    private List<Long> mSleeps;
+    private Retrier.Sleeper mSleeper;
+
+    @Before
+    public void setUp() {
+        mMetrics = new SyncMetrics();
+        mSleeps = new ArrayList<>();
+        mSleeper = new Retrier.Sleeper() {
+            @Override
+            public void sleep(long millis) {
+                mSleeps.add(millis);
+            }
+        };
+    }
+
+    @Test
+    public void classify_sortsFailuresByWhatRetryingWouldDo() {
+        assertEquals(ErrorClass.TRANSIENT, ErrorClassifier.classify(new IOException("Connection reset")));
+        assertEquals(ErrorClass.TRANSIENT, ErrorClassifier.classify(new TimeoutException()));
+        assertEquals(ErrorClass.TRANSIENT, ErrorClassifier.classify(new ExecutionException(new IOException())));
+        assertEquals(ErrorClass.QUOTA, ErrorClassifier.classify(new StatusException("Rate limited", 1507, ErrorClass.QUOTA)));
+        assertEquals(ErrorClass.PERMANENT, ErrorClassifier.classify(new FileNotFoundException("backup.realm")));
+        assertEquals(ErrorClass.PERMANENT, ErrorClassifier.classify(new IOException("Invalid DriveId", new IllegalArgumentException())));
+        assertEquals(ErrorClass.PERMANENT, ErrorClassifier.classify(new InterruptedIOException()));
+        assertEquals(ErrorClass.PERMANENT, ErrorClassifier.classify(new IllegalStateException()));
+        assertEquals(SyncMetrics.ErrorCause.AUTH, ErrorClassifier.causeOf(
+                new StatusException("Sign in required", 4, ErrorClass.AUTH), SyncMetrics.ErrorCause.REMOTE));
+        assertEquals(SyncMetrics.ErrorCause.REMOTE, ErrorClassifier.causeOf(new IOException(), SyncMetrics.ErrorCause.REMOTE));
+    }
+
+    @Test
+    public void computeDelayMillis_equalJitterWithinCap() {
+        RetryPolicy policy = new RetryPolicy(TRANSIENT, QUOTA, new Random(42));
+
+        for (int failures = 1; failures <= 8; failures++) {
+            long cap = Math.min(TRANSIENT.getMaxDelayMillis(), TRANSIENT.getBaseDelayMillis() << (failures - 1));
+            long delay = policy.computeDelayMillis(ErrorClass.TRANSIENT, failures);
+            assertTrue(failures + " failures: " + delay, delay >= cap / 2 && delay <= cap);
+        }
+        assertFalse(policy.shouldRetry(ErrorClass.AUTH, 1));
+        assertFalse(policy.shouldRetry(ErrorClass.PERMANENT, 1));
+        assertTrue(policy.shouldRetry(ErrorClass.TRANSIENT, TRANSIENT.getMaxAttempts() - 1));
+        assertFalse(policy.shouldRetry(ErrorClass.TRANSIENT, TRANSIENT.getMaxAttempts()));
+    }
+
+    @Test
+    public void run_transientFailures_retriesUntilSuccess() throws Exception {
+        FlakyAttempt attempt = new FlakyAttempt(2, new IOException("Connection reset"));
+
+        assertEquals("done", newRetrier(10).run(attempt));
+
+        assertEquals(3, attempt.mCalls);
+        assertEquals(2, mSleeps.size());
+        assertEquals(2, mMetrics.snapshot().getRetries());
+        assertEquals(0, mMetrics.snapshot().getBackoffUntilMillis());
+    }
+
+    @Test
+    public void run_authOrPermanentFailure_notRetried() throws Exception {
+        for (IOException error : new IOException[]{new StatusException("Sign in required", 4, ErrorClass.AUTH),
+                new FileNotFoundException("backup.realm")}) {
+            FlakyAttempt attempt = new FlakyAttempt(1, error);
+            try {
+                newRetrier(10).run(attempt);
+                fail("Expected " + error);
+            } catch (IOException e) {
+                assertSame(error, e);
+            }
+            assertEquals(1, attempt.mCalls);
+        }
+        assertTrue(mSleeps.isEmpty());
+        assertEquals(0, mMetrics.snapshot().getRetries());
+    }
+
+    @Test
+    public void run_transientFailuresOutlastPolicy_throwsLastFailure() throws Exception {
+        FlakyAttempt attempt = new FlakyAttempt(10, new IOException("Connection reset"));
+
+        try {
+            newRetrier(10).run(attempt);
+            fail("Expected the last failure");
+        } catch (IOException e) {
+            assertEquals("Connection reset", e.getMessage());
+        }
+
+        assertEquals(TRANSIENT.getMaxAttempts(), attempt.mCalls);
+    }
+
+    @Test
+    public void run_budgetSpent_givesUpAndAsksForBackoff() throws Exception {
+        Retrier retrier = newRetrier(1);
+        long before = System.currentTimeMillis();
+
+        assertEquals("done", retrier.run(new FlakyAttempt(1, new IOException())));
+        FlakyAttempt second = new FlakyAttempt(1, new IOException());
+        try {
+            retrier.run(second);
+            fail("Expected the budget to be spent");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        assertEquals(1, second.mCalls);
+        assertEquals(1, mMetrics.snapshot().getRetries());
+        assertTrue(mMetrics.snapshot().getBackoffUntilMillis() >= before + TRANSIENT.getBaseDelayMillis() / 2);
+    }
+
+    @Test
+    public void run_quotaFailuresOutlastPolicy_asksForLongBackoff() throws Exception {
+        FlakyAttempt attempt = new FlakyAttempt(10, new StatusException("Rate limited", 1507, ErrorClass.QUOTA));
+        long before = System.currentTimeMillis();
+
+        try {
+            newRetrier(10).run(attempt);
+            fail("Expected the quota failure");
+        } catch (StatusException e) {
+            assertEquals(ErrorClass.QUOTA, e.getErrorClass());
+        }
+
+        assertEquals(QUOTA.getMaxAttempts(), attempt.mCalls);
+        assertTrue(mSleeps.get(0) >= QUOTA.getBaseDelayMillis() / 2);
+        // Two failures double the base delay
+        assertTrue(mMetrics.snapshot().getBackoffUntilMillis() >= before + QUOTA.getBaseDelayMillis());
+    }
+
+    @Test
+    public void run_interruptedWhileBackingOff_stops() throws Exception {
+        Retrier retrier = new Retrier(new RetryPolicy(TRANSIENT, QUOTA, new Random(1)), new RetryBudget(10), mMetrics,
+                new Retrier.Sleeper() {
+                    @Override
+                    public void sleep(long millis) throws InterruptedException {
+                        throw new InterruptedException();
+                    }
+                });
+        FlakyAttempt attempt = new FlakyAttempt(5, new IOException());
+
+        try {
+            retrier.run(attempt);
+            fail("Expected an interruption");
+        } catch (InterruptedIOException e) {
+            assertTrue(Thread.interrupted());
+        }
+        assertEquals(1, attempt.mCalls);
+    }
+
+    private Retrier newRetrier(int budget) {
+        return new Retrier(new RetryPolicy(TRANSIENT, QUOTA, new Random(1)), new RetryBudget(budget), mMetrics, mSleeper);
+    }
+
+    private static final class FlakyAttempt implements Retrier.Attempt<String> {
+
+        private final int mFailures;
+        private final IOException mError;
+        private int mCalls;
+
+        FlakyAttempt(int failures, IOException error) {
+            mFailures = failures;
+            mError = error;
+        }
+
+        @Override
+        public String run() throws IOException {
+            if (mCalls++ < mFailures) {
+                throw mError;
+            }
+            return "done";
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.schedule;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RequestCoalescerTest {
+
+    private static final long WINDOW_MILLIS = 200;
+
+    private ScheduledExecutorService mScheduler;
+    private List<String> mDispatched;
+    private List<Integer> mCounts;
+    private CountDownLatch mLatch;
+
+    @Before
+    public void setUp() {
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mDispatched = Collections.synchronizedList(new ArrayList<String>());
+        mCounts = Collections.synchronizedList(new ArrayList<Integer>());
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void submit_sameKeyWithinWindow_dispatchesFirstAtOnceAndFollowersMerged() throws Exception {
+        RequestCoalescer<String, String> coalescer = newCoalescer(WINDOW_MILLIS, 2);
+
+        coalescer.submit("folder", "a");
+        assertEquals(Collections.singletonList("a"), mDispatched);
+        coalescer.submit("folder", "b");
+        coalescer.submit("folder", "c");
+
+        assertTrue(mLatch.await(2, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a", "b+c"), mDispatched);
+        assertEquals(Arrays.asList(1, 2), mCounts);
+        assertEquals(3, coalescer.getSubmittedCount());
+        assertEquals(2, coalescer.getDispatchedCount());
+        assertEquals(1, coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void submit_distinctKeys_dispatchedSeparately() {
+        RequestCoalescer<String, String> coalescer = newCoalescer(WINDOW_MILLIS, 2);
+
+        coalescer.submit("folder-1", "a");
+        coalescer.submit("folder-2", "b");
+
+        assertEquals(Arrays.asList("a", "b"), mDispatched);
+        assertEquals(0, coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void submit_followersDispatched_holdBackNextOnesForAnotherWindow() throws Exception {
+        RequestCoalescer<String, String> coalescer = newCoalescer(WINDOW_MILLIS, 2);
+        coalescer.submit("folder", "a");
+        coalescer.submit("folder", "b");
+        assertTrue(mLatch.await(2, TimeUnit.SECONDS));
+
+        mLatch = new CountDownLatch(1);
+        coalescer.submit("folder", "c");
+        assertEquals(2, mDispatched.size());
+
+        assertTrue(mLatch.await(2, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a", "b", "c"), mDispatched);
+    }
+
+    @Test
+    public void submit_windowClosedWithoutFollowers_nextDispatchedAtOnce() throws Exception {
+        RequestCoalescer<String, String> coalescer = newCoalescer(WINDOW_MILLIS, 2);
+        coalescer.submit("folder", "a");
+        // Runs after the window closed, the scheduler has a single thread
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, WINDOW_MILLIS, TimeUnit.MILLISECONDS).get(2, TimeUnit.SECONDS);
+
+        coalescer.submit("folder", "b");
+
+        assertEquals(Arrays.asList("a", "b"), mDispatched);
+    }
+
+    @Test
+    public void submit_burstWithinWindow_dispatchesOnce() {
+        RequestCoalescer<String, String> coalescer = newCoalescer(TimeUnit.HOURS.toMillis(1), 1);
+
+        // A burst of refresh taps, each of them expedited
+        for (int i = 0; i < 10; i++) {
+            coalescer.submit("folder", "sync-now");
+        }
+
+        assertEquals(Collections.singletonList("sync-now"), mDispatched);
+        assertEquals(1, coalescer.getDispatchedCount());
+        assertEquals(8, coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void submit_zeroWindow_dispatchesImmediately() {
+        RequestCoalescer<String, String> coalescer = newCoalescer(0, 2);
+
+        coalescer.submit("folder", "a");
+        coalescer.submit("folder", "b");
+
+        assertEquals(2, mDispatched.size());
+        assertEquals(0, coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void flushAll_dispatchesFollowersWithoutWaiting() {
+        RequestCoalescer<String, String> coalescer = newCoalescer(TimeUnit.HOURS.toMillis(1), 3);
+
+        coalescer.submit("folder-1", "a");
+        coalescer.submit("folder-1", "b");
+        coalescer.submit("folder-1", "c");
+        coalescer.submit("folder-2", "d");
+        assertEquals(Arrays.asList("a", "d"), mDispatched);
+        coalescer.flushAll();
+
+        assertEquals(Arrays.asList("a", "d", "b+c"), mDispatched);
+        assertEquals(coalescer.getSubmittedCount(), coalescer.getDispatchedCount() + coalescer.getCoalescedCount());
+
+        // The windows closed with the flush
+        coalescer.submit("folder-1", "e");
+        assertEquals("e", mDispatched.get(3));
+    }
+
+    private RequestCoalescer<String, String> newCoalescer(long windowMillis, int expectedDispatches) {
+        mLatch = new CountDownLatch(expectedDispatches);
+        return new RequestCoalescer<>(mScheduler, windowMillis,
+                new RequestCoalescer.Merger<String>() {
+                    @Override
+                    public String merge(String pending, String incoming) {
+                        return pending + "+" + incoming;
+                    }
+                },
+                new RequestCoalescer.Dispatcher<String, String>() {
+                    @Override
+                    public void dispatch(String key, String value, int requestCount) {
+                        mDispatched.add(value);
+                        mCounts.add(requestCount);
+                        mLatch.countDown();
+                    }
+                });
+    }
+}
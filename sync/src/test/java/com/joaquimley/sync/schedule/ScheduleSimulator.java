@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.schedule;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Replays a churn trace against a {@link SyncSchedulePolicy} the way SyncScheduler drives it
+ * on a device: a sync runs every registered interval, uploads what changed since the previous
+ * one and re-registers the interval when the policy moves it enough.
+ */
+public class ScheduleSimulator {
+
+    private final SyncSchedulePolicy mPolicy;
+    private final Set<Integer> mFailingSyncs = new HashSet<>();
+    private boolean mMetered;
+
+    public ScheduleSimulator(SyncSchedulePolicy policy) {
+        mPolicy = policy;
+    }
+
+    /**
+     * Makes the given syncs, counted from 0, fail without uploading anything.
+     */
+    public ScheduleSimulator failSyncs(Integer... syncIndexes) {
+        Collections.addAll(mFailingSyncs, syncIndexes);
+        return this;
+    }
+
+    public ScheduleSimulator setMetered(boolean metered) {
+        mMetered = metered;
+        return this;
+    }
+
+    /**
+     * @param trace change events as {seconds since start, bytes changed}, in time order
+     */
+    public Result replay(List<long[]> trace, long durationSeconds) {
+        Result result = new Result();
+        ChurnEstimator churn = new ChurnEstimator();
+        long interval = SyncSchedulePolicy.DEFAULT_MAX_INTERVAL_SECONDS;
+        long lastSuccess = 0;
+        int failures = 0;
+        int next = 0;
+        long pendingBytes = 0;
+        List<Long> pendingSince = new ArrayList<>();
+
+        for (long now = interval; now <= durationSeconds; now += interval) {
+            while (next < trace.size() && trace.get(next)[0] <= now) {
+                pendingBytes += trace.get(next)[1];
+                pendingSince.add(trace.get(next)[0]);
+                next++;
+            }
+            boolean success = !mFailingSyncs.contains(result.mSyncs);
+            result.mSyncs++;
+            result.mIntervals.add(interval);
+            if (success) {
+                for (long since : pendingSince) {
+                    long staleness = now - since;
+                    result.mMaxStalenessSeconds = Math.max(result.mMaxStalenessSeconds, staleness);
+                    result.mTotalStalenessSeconds += staleness;
+                    result.mChanges++;
+                }
+                churn.update(pendingBytes, now - lastSuccess);
+                lastSuccess = now;
+                pendingBytes = 0;
+                pendingSince.clear();
+                failures = 0;
+            } else {
+                failures++;
+            }
+            long proposed = mPolicy.computeInterval(churn.getBytesPerSecond(), pendingSince.size(), failures, mMetered);
+            if (SyncSchedulePolicy.isSignificantChange(interval, proposed)) {
+                interval = proposed;
+                result.mReschedules++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads a trace resource, one "seconds bytes" pair per line, # starts a comment.
+     */
+    public static List<long[]> loadTrace(String resource) throws IOException {
+        InputStream inputStream = ScheduleSimulator.class.getResourceAsStream(resource);
+        if (inputStream == null) {
+            throw new IOException("Missing trace " + resource);
+        }
+        List<long[]> trace = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                trace.add(new long[]{Long.parseLong(fields[0]), Long.parseLong(fields[1])});
+            }
+        } finally {
+            reader.close();
+        }
+        return trace;
+    }
+
+    public static class Result {
+
+        private final List<Long> mIntervals = new ArrayList<>();
+        private int mSyncs;
+        private int mReschedules;
+        private int mChanges;
+        private long mMaxStalenessSeconds;
+        private long mTotalStalenessSeconds;
+
+        public int getSyncs() {
+            return mSyncs;
+        }
+
+        public int getReschedules() {
+            return mReschedules;
+        }
+
+        /**
+         * @return the interval in effect for each sync
+         */
+        public List<Long> getIntervals() {
+            return mIntervals;
+        }
+
+        /**
+         * @return the longest a change waited before being uploaded
+         */
+        public long getMaxStalenessSeconds() {
+            return mMaxStalenessSeconds;
+        }
+
+        public long getMeanStalenessSeconds() {
+            return mChanges == 0 ? 0 : mTotalStalenessSeconds / mChanges;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{syncs=" + mSyncs + ", reschedules=" + mReschedules + ", maxStaleness=" + mMaxStalenessSeconds
+                    + "s, meanStaleness=" + getMeanStalenessSeconds() + "s}";
+        }
+    }
+}
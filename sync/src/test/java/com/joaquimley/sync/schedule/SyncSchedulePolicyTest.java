@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.joaquimley.sync.schedule;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SyncSchedulePolicyTest {
+
+    private static final long DAY = TimeUnit.DAYS.toSeconds(1);
+    private static final long TWO_WEEKS = 14 * DAY;
+
+    private final SyncSchedulePolicy mPolicy = new SyncSchedulePolicy(new Random(5));
+
+    @Test
+    public void computeInterval_followsChurnWithinBounds() {
+        assertEquals(SyncSchedulePolicy.DEFAULT_MAX_INTERVAL_SECONDS, mPolicy.computeInterval(0, 0, 0, false));
+        // 1 MB target at 1 KB/s is a sync every 1024 seconds
+        assertEquals(1024, mPolicy.computeInterval(1024, 0, 0, false));
+        assertEquals(SyncSchedulePolicy.DEFAULT_MIN_INTERVAL_SECONDS, mPolicy.computeInterval(1024 * 1024, 0, 0, false));
+    }
+
+    @Test
+    public void computeInterval_pendingUploadsAndMeteredNetwork() {
+        assertEquals(SyncSchedulePolicy.OUTBOX_INTERVAL_SECONDS, mPolicy.computeInterval(0, 3, 0, false));
+        assertEquals(SyncSchedulePolicy.OUTBOX_INTERVAL_SECONDS * SyncSchedulePolicy.METERED_FACTOR,
+                mPolicy.computeInterval(0, 3, 0, true));
+    }
+
+    @Test
+    public void computeBackoff_growsExponentiallyWithJitter() {
+        for (int failures = 1; failures <= 12; failures++) {
+            long ceiling = Math.min(SyncSchedulePolicy.MAX_BACKOFF_SECONDS,
+                    SyncSchedulePolicy.BASE_BACKOFF_SECONDS << (failures - 1));
+            for (int i = 0; i < 20; i++) {
+                long backoff = mPolicy.computeBackoff(failures);
+                assertTrue(backoff >= ceiling / 2);
+                assertTrue(backoff <= ceiling);
+            }
+        }
+        assertNotEquals(mPolicy.computeBackoff(4), mPolicy.computeBackoff(4));
+    }
+
+    @Test
+    public void isSignificantChange_ignoresSmallMoves() {
+        assertTrue(SyncSchedulePolicy.isSignificantChange(0, 3600));
+        assertFalse(SyncSchedulePolicy.isSignificantChange(3600, 4000));
+        assertFalse(SyncSchedulePolicy.isSignificantChange(3600, 3000));
+        assertTrue(SyncSchedulePolicy.isSignificantChange(3600, 5000));
+    }
+
+    @Test
+    public void simulate_steadyTrace_settlesWithFewReschedules() throws Exception {
+        List<long[]> trace = ScheduleSimulator.loadTrace("steady.trace");
+
+        ScheduleSimulator.Result adaptive = new ScheduleSimulator(mPolicy).replay(trace, TWO_WEEKS);
+        ScheduleSimulator.Result daily = new ScheduleSimulator(fixed(DAY)).replay(trace, TWO_WEEKS);
+
+        assertTrue(adaptive.toString(), adaptive.getReschedules() <= 10);
+        assertTrue(adaptive + " vs " + daily, adaptive.getMeanStalenessSeconds() * 2 < daily.getMeanStalenessSeconds());
+    }
+
+    @Test
+    public void simulate_burstyTrace_tracksBurstsWithoutPollingWhenIdle() throws Exception {
+        List<long[]> trace = ScheduleSimulator.loadTrace("bursty.trace");
+
+        ScheduleSimulator.Result adaptive = new ScheduleSimulator(mPolicy).replay(trace, TWO_WEEKS);
+        ScheduleSimulator.Result frequent = new ScheduleSimulator(fixed(SyncSchedulePolicy.DEFAULT_MIN_INTERVAL_SECONDS))
+                .replay(trace, TWO_WEEKS);
+
+        assertTrue(adaptive + " vs " + frequent, adaptive.getSyncs() * 4 < frequent.getSyncs());
+        assertTrue(adaptive.toString(), adaptive.getMaxStalenessSeconds() <= DAY);
+    }
+
+    @Test
+    public void simulate_idleTrace_staysAtMaximumInterval() throws Exception {
+        ScheduleSimulator.Result result = new ScheduleSimulator(mPolicy)
+                .replay(ScheduleSimulator.loadTrace("idle.trace"), TWO_WEEKS);
+
+        assertEquals(14, result.getSyncs());
+        assertEquals(0, result.getReschedules());
+    }
+
+    @Test
+    public void simulate_failures_backOff() throws Exception {
+        ScheduleSimulator.Result result = new ScheduleSimulator(mPolicy)
+                .failSyncs(5, 6, 7, 8)
+                .replay(ScheduleSimulator.loadTrace("steady.trace"), TWO_WEEKS);
+
+        List<Long> intervals = result.getIntervals();
+        // The interval in effect after the n-th failure at least covers the backoff floor
+        for (int failures = 1; failures <= 4; failures++) {
+            long floor = (SyncSchedulePolicy.BASE_BACKOFF_SECONDS << (failures - 1)) / 2;
+            assertTrue(intervals.toString(), intervals.get(5 + failures) >= Math.min(floor, intervals.get(5)));
+        }
+    }
+
+    private static SyncSchedulePolicy fixed(long intervalSeconds) {
+        return new SyncSchedulePolicy(intervalSeconds, intervalSeconds, Long.MAX_VALUE, new Random(1));
+    }
+}
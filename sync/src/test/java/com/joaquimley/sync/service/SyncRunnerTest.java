@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) Joaquim Ley 2016. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.joaquimley.sync.service;
+
+import com.joaquimley.sync.drive.DriveTaskCallback;
+import com.joaquimley.sync.drive.client.ConnectionPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SyncRunnerTest {
+
+    private static final String ACCOUNT = "someone@example.com";
+    private static final String FOLDER_ID = "DriveId:folder";
+
+    private final Random mRandom = new Random(42);
+    private ScheduledExecutorService mScheduler;
+    private ExecutorService mTaskExecutor;
+    private ReconnectingConnector mConnector;
+    private ConnectionPool<FakeClient> mPool;
+
+    @Before
+    public void setUp() {
+        mScheduler = Executors.newScheduledThreadPool(2);
+        mTaskExecutor = Executors.newFixedThreadPool(4);
+        mConnector = new ReconnectingConnector();
+        mPool = new ConnectionPool<>(mConnector, mScheduler, 1, TimeUnit.HOURS);
+    }
+
+    @After
+    public void tearDown() {
+        mTaskExecutor.shutdownNow();
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void run_waitsForTrackedTasks() throws Exception {
+        SyncRunner<FakeClient> runner = new SyncRunner<>(mPool, 1, 5, TimeUnit.SECONDS);
+        final AtomicInteger uploaded = new AtomicInteger();
+
+        boolean completed = runner.run(newContext(ACCOUNT), new SyncRunner.Work<FakeClient>() {
+            @Override
+            public void run(SyncContext context, FakeClient client, SyncRunner.Tasks tasks) {
+                uploadLater(tasks.track(new CountingCallback(uploaded, null, null)), client, 50);
+            }
+        });
+
+        assertTrue(completed);
+        assertEquals(1, uploaded.get());
+        assertEquals(0, mPool.getReferenceCount(ACCOUNT));
+    }
+
+    @Test
+    public void run_taskPastCompletionTimeout_releasesClientWhenDone() throws Exception {
+        SyncRunner<FakeClient> runner = new SyncRunner<>(mPool, 1000, 50, TimeUnit.MILLISECONDS);
+        final DriveTaskCallback[] task = new DriveTaskCallback[1];
+
+        boolean completed = runner.run(newContext(ACCOUNT), new SyncRunner.Work<FakeClient>() {
+            @Override
+            public void run(SyncContext context, FakeClient client, SyncRunner.Tasks tasks) {
+                task[0] = tasks.track(null);
+            }
+        });
+
+        assertFalse(completed);
+        assertEquals(1, mPool.getReferenceCount(ACCOUNT));
+        task[0].onTaskSuccess("late");
+        task[0].onTaskError("reported twice");
+        assertEquals(0, mPool.getReferenceCount(ACCOUNT));
+    }
+
+    @Test
+    public void run_workThrowsAfterTracking_releasesClient() throws Exception {
+        SyncRunner<FakeClient> runner = new SyncRunner<>(mPool, 1000, 5000, TimeUnit.MILLISECONDS);
+        final DriveTaskCallback[] task = new DriveTaskCallback[1];
+
+        try {
+            runner.run(newContext(ACCOUNT), new SyncRunner.Work<FakeClient>() {
+                @Override
+                public void run(SyncContext context, FakeClient client, SyncRunner.Tasks tasks) {
+                    task[0] = tasks.track(null);
+                    // The task it was tracked for failed to construct
+                    throw new IllegalArgumentException("Invalid DriveId");
+                }
+            });
+            fail("Expected the work's failure");
+        } catch (IllegalArgumentException expected) {
+            // Passed on to the sync adapter
+        }
+
+        assertEquals(0, mPool.getReferenceCount(ACCOUNT));
+        // A task that did start and reports late doesn't give the client back twice
+        task[0].onTaskError("late");
+        assertEquals(0, mPool.getReferenceCount(ACCOUNT));
+    }
+
+    @Test
+    public void run_taskFailedToStart_untrackedThroughCallback() throws Exception {
+        SyncRunner<FakeClient> runner = new SyncRunner<>(mPool, 1000, 5000, TimeUnit.MILLISECONDS);
+
+        boolean completed = runner.run(newContext(ACCOUNT), new SyncRunner.Work<FakeClient>() {
+            @Override
+            public void run(SyncContext context, FakeClient client, SyncRunner.Tasks tasks) {
+                DriveTaskCallback task = tasks.track(null);
+                task.onTaskError("Invalid folder id");
+                assertEquals(0, tasks.getPendingCount());
+            }
+        });
+
+        assertTrue(completed);
+        assertEquals(0, mPool.getReferenceCount(ACCOUNT));
+    }
+
+    @Test
+    public void run_connectTimeout_skipsWork() throws Exception {
+        mConnector.mNeverConnect = true;
+        SyncRunner<FakeClient> runner = new SyncRunner<>(mPool, 50, 1000, TimeUnit.MILLISECONDS);
+        final AtomicInteger runs = new AtomicInteger();
+
+        try {
+            runner.run(newContext(ACCOUNT), new SyncRunner.Work<FakeClient>() {
+                @Override
+                public void run(SyncContext context, FakeClient client, SyncRunner.Tasks tasks) {
+                    runs.incrementAndGet();
+                }
+            });
+            fail("Expected a timeout");
+        } catch (TimeoutException expected) {
+            // The bounded wait gave up
+        }
+        // The late connect gives the abandoned reference back
+        FakeClient client = mConnector.mClients.get(0);
+        client.mConnected = true;
+        client.mCallback.onConnected();
+
+        assertEquals(0, runs.get());
+        assertEquals(0, mPool.getReferenceCount(ACCOUNT));
+    }
+
+    /**
+     * Parallel syncs of several accounts, each re-run back to back until its outbox is empty,
+     * while the clients drop and reconnect at random. Uploads caught by a drop fail and go back
+     * to the outbox, the reconnects must not run a sync twice.
+     */
+    @Test
+    public void run_randomReconnects_noDuplicateOrLostUploads() throws Exception {
+        final int accounts = 4;
+        final int filesPerAccount = 50;
+        final SyncRunner<FakeClient> runner = new SyncRunner<>(mPool, 5, 5, TimeUnit.SECONDS);
+        final Map<String, AtomicInteger> uploads = new ConcurrentHashMap<>();
+        final AtomicInteger runs = new AtomicInteger();
+        final AtomicInteger workRuns = new AtomicInteger();
+
+        mScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                mConnector.suspendRandomClient();
+            }
+        }, 1, 1, TimeUnit.MILLISECONDS);
+
+        List<Callable<Void>> syncs = new ArrayList<>();
+        for (int a = 0; a < accounts; a++) {
+            final String account = "account" + a + "@example.com";
+            final Queue<String> outbox = new ConcurrentLinkedQueue<>();
+            for (int f = 0; f < filesPerAccount; f++) {
+                outbox.add("/data/" + f);
+                uploads.put(account + "/data/" + f, new AtomicInteger());
+            }
+            syncs.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int attempt = 0; attempt < 1000 && !outbox.isEmpty(); attempt++) {
+                        List<String> claimed = new ArrayList<>();
+                        String path;
+                        while ((path = outbox.poll()) != null) {
+                            claimed.add(path);
+                        }
+                        SyncContext context = new SyncContext(account, true, FOLDER_ID, claimed, null, 1);
+                        boolean completed = runner.run(context, new SyncRunner.Work<FakeClient>() {
+                            @Override
+                            public void run(SyncContext context, FakeClient client, SyncRunner.Tasks tasks) {
+                                workRuns.incrementAndGet();
+                                for (String path : context.getLocalFilePaths()) {
+                                    uploadLater(tasks.track(new CountingCallback(uploads.get(context.getAccountName() + path),
+                                            outbox, path)), client, mRandom.nextInt(2));
+                                }
+                            }
+                        });
+                        assertTrue(completed);
+                        runs.incrementAndGet();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        ExecutorService syncThreads = Executors.newFixedThreadPool(accounts);
+        try {
+            for (Future<Void> sync : syncThreads.invokeAll(syncs)) {
+                sync.get();
+            }
+        } finally {
+            syncThreads.shutdownNow();
+        }
+
+        for (Map.Entry<String, AtomicInteger> upload : uploads.entrySet()) {
+            assertEquals(upload.getKey(), 1, upload.getValue().get());
+        }
+        assertEquals(runs.get(), workRuns.get());
+        assertTrue(mConnector.mSuspensions.get() > 0);
+        for (int a = 0; a < accounts; a++) {
+            assertEquals(0, mPool.getReferenceCount("account" + a + "@example.com"));
+        }
+    }
+
+    private static SyncContext newContext(String account) {
+        return new SyncContext(account, true, FOLDER_ID, Collections.singletonList("/data/backup.realm"), null, 1);
+    }
+
+    /**
+     * Completes the task on another thread, failing it when the client dropped meanwhile.
+     */
+    private void uploadLater(final DriveTaskCallback task, final FakeClient client, final long delayMillis) {
+        mTaskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (client.mConnected) {
+                    task.onTaskSuccess("uploaded");
+                } else {
+                    task.onTaskError("connection suspended");
+                }
+            }
+        });
+    }
+
+    private static class CountingCallback implements DriveTaskCallback {
+
+        private final AtomicInteger mUploads;
+        private final Queue<String> mOutbox;
+        private final String mPath;
+
+        CountingCallback(AtomicInteger uploads, Queue<String> outbox, String path) {
+            mUploads = uploads;
+            mOutbox = outbox;
+            mPath = path;
+        }
+
+        @Override
+        public void onTaskStarted() {
+        }
+
+        @Override
+        public void onTaskInProgress() {
+        }
+
+        @Override
+        public void onTaskSuccess(String returnText) {
+            mUploads.incrementAndGet();
+        }
+
+        @Override
+        public void onTaskError(String errorMessage) {
+            if (mOutbox != null) {
+                mOutbox.add(mPath);
+            }
+        }
+    }
+
+    private static class FakeClient {
+
+        private final ConnectionPool.ConnectCallback mCallback;
+        private volatile boolean mConnected;
+
+        FakeClient(ConnectionPool.ConnectCallback callback) {
+            mCallback = callback;
+        }
+    }
+
+    /**
+     * Connects after a random delay, and reconnects the same way after {@link #suspendRandomClient()}
+     * like GoogleApiClient does, reporting onConnected() again.
+     */
+    private class ReconnectingConnector implements ConnectionPool.Connector<FakeClient> {
+
+        private final List<FakeClient> mClients = Collections.synchronizedList(new ArrayList<FakeClient>());
+        private final AtomicInteger mSuspensions = new AtomicInteger();
+        private volatile boolean mNeverConnect;
+
+        @Override
+        public FakeClient create(String key, ConnectionPool.ConnectCallback callback) {
+            FakeClient client = new FakeClient(callback);
+            mClients.add(client);
+            return client;
+        }
+
+        @Override
+        public void connect(FakeClient client) {
+            if (!mNeverConnect) {
+                connectLater(client);
+            }
+        }
+
+        @Override
+        public boolean isConnected(FakeClient client) {
+            return client.mConnected;
+        }
+
+        @Override
+        public void disconnect(FakeClient client) {
+            client.mConnected = false;
+        }
+
+        void suspendRandomClient() {
+            FakeClient client;
+            synchronized (mClients) {
+                if (mClients.isEmpty()) {
+                    return;
+                }
+                client = mClients.get(mRandom.nextInt(mClients.size()));
+            }
+            if (client.mConnected) {
+                client.mConnected = false;
+                mSuspensions.incrementAndGet();
+                connectLater(client);
+            }
+        }
+
+        private void connectLater(final FakeClient client) {
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    client.mConnected = true;
+                    client.mCallback.onConnected();
+                }
+            }, mRandom.nextInt(3), TimeUnit.MILLISECONDS);
+        }
+    }
+}